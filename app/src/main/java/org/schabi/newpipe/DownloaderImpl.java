@@ -82,6 +82,16 @@ public final class DownloaderImpl extends Downloader {
         return instance;
     }
 
+    /**
+     * Gets the HTTP client used for all the requests. Clients derived from it with
+     * {@link OkHttpClient#newBuilder()} share its connection pool.
+     *
+     * @return the client
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
     /**
      * Enable TLS 1.2 and 1.1 on Android Kitkat. This function is mostly taken
      * from the documentation of OkHttpClient.Builder.sslSocketFactory(_,_).
@@ -72,7 +72,10 @@ import java.util.Locale;
 
 import icepick.Icepick;
 import icepick.State;
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.disposables.CompositeDisposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import us.shandian.giga.get.MissionRecoveryInfo;
 import us.shandian.giga.postprocessing.Postprocessing;
 import us.shandian.giga.service.DownloadManager;
@@ -86,6 +89,8 @@ public class DownloadDialog extends DialogFragment
         implements RadioGroup.OnCheckedChangeListener, AdapterView.OnItemSelectedListener {
     private static final String TAG = "DialogFragment";
     private static final boolean DEBUG = MainActivity.DEBUG;
+    // streams longer than this (in seconds) are muxed as fragmented MP4, like livestream archives
+    private static final long FRAGMENTED_MP4_MIN_DURATION = 3 * 60 * 60;
 
     @State
     StreamInfo currentInfo;
@@ -644,6 +649,21 @@ public class DownloadDialog extends DialogFragment
         dialogBinding.subtitleButton.setEnabled(enabled);
     }
 
+    /**
+     * @param format the format of the subtitle stream
+     * @return the format of the downloaded file, the TTML subtitles are converted to the format
+     * chosen in the settings
+     */
+    private MediaFormat getDownloadedSubtitleFormat(final MediaFormat format) {
+        if (format != MediaFormat.TTML) {
+            return format;
+        }
+
+        final String target = prefs.getString(getString(R.string.downloads_subtitle_format),
+                getString(R.string.downloads_subtitle_format_default));
+        return MediaFormat.VTT.getSuffix().equals(target) ? MediaFormat.VTT : MediaFormat.SRT;
+    }
+
     private int getSubtitleIndexBy(final List<SubtitlesStream> streams) {
         final Localization preferredLocalization = NewPipe.getPreferredLocalization();
 
@@ -723,9 +743,10 @@ public class DownloadDialog extends DialogFragment
             case R.id.subtitle_button:
                 selectedMediaType = getString(R.string.last_download_type_subtitle_key);
                 mainStorage = mainStorageVideo; // subtitle & video files go together
-                format = subtitleStreamsAdapter.getItem(selectedSubtitleIndex).getFormat();
+                format = getDownloadedSubtitleFormat(
+                        subtitleStreamsAdapter.getItem(selectedSubtitleIndex).getFormat());
                 mimeTmp = format.mimeType;
-                filenameTmp += (format == MediaFormat.TTML ? MediaFormat.SRT : format).suffix;
+                filenameTmp += format.suffix;
                 break;
             default:
                 throw new RuntimeException("No stream selected");
@@ -804,8 +825,23 @@ public class DownloadDialog extends DialogFragment
             return;
         }
 
-        // get state of potential mission referring to the same file
-        final MissionState state = downloadManager.checkForExistingMission(storage);
+        // get state of potential mission referring to the same file, this waits for the missions
+        // being loaded and can query the database, so it is done in background
+        final StoredFileHelper target = storage;
+        disposables.add(Single.fromCallable(() -> downloadManager.checkForExistingMission(target))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(state -> askForExistingMission(mainStorage, targetFile, filename, mime,
+                        target, state), throwable -> ErrorActivity.reportErrorInSnackbar(this,
+                        new ErrorInfo(throwable, UserAction.DOWNLOAD_FAILED,
+                                "Checking existing downloads"))));
+    }
+
+    private void askForExistingMission(final StoredDirectoryHelper mainStorage,
+                                       final Uri targetFile, final String filename,
+                                       final String mime, final StoredFileHelper target,
+                                       final MissionState state) {
+        StoredFileHelper storage = target;
         @StringRes final int msgBtn;
         @StringRes final int msgBody;
 
@@ -982,11 +1018,16 @@ public class DownloadDialog extends DialogFragment
 
                     if (selectedStream.getFormat() == MediaFormat.MPEG_4) {
                         psName = Postprocessing.ALGORITHM_MP4_FROM_DASH_MUXER;
+                        psArgs = new String[]{
+                                // fragmented output, avoids huge sample tables in memory
+                                String.valueOf(currentInfo.getDuration()
+                                        >= FRAGMENTED_MP4_MIN_DURATION)
+                        };
                     } else {
                         psName = Postprocessing.ALGORITHM_WEBM_MUXER;
+                        psArgs = null;
                     }
 
-                    psArgs = null;
                     final long videoSize = wrappedVideoStreams
                             .getSizeInBytes((VideoStream) selectedStream);
 
@@ -1006,7 +1047,8 @@ public class DownloadDialog extends DialogFragment
                     psName = Postprocessing.ALGORITHM_TTML_CONVERTER;
                     psArgs = new String[]{
                             selectedStream.getFormat().getSuffix(),
-                            "false" // ignore empty frames
+                            "false", // ignore empty frames
+                            getDownloadedSubtitleFormat(MediaFormat.TTML).getSuffix()
                     };
                 }
                 break;
@@ -146,6 +146,7 @@ import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.disposables.CompositeDisposable;
 import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.disposables.SerialDisposable;
+import us.shandian.giga.get.BandwidthScheduler;
 
 import static com.google.android.exoplayer2.Player.DISCONTINUITY_REASON_AD_INSERTION;
 import static com.google.android.exoplayer2.Player.DISCONTINUITY_REASON_INTERNAL;
@@ -817,6 +818,7 @@ public final class Player implements
         }
         destroyPlayer();
         unregisterBroadcastReceiver();
+        BandwidthScheduler.getInstance().setPlayerBuffering(false);
 
         databaseUpdateDisposable.clear();
         progressUpdateDisposable.set(null);
@@ -2089,6 +2091,9 @@ public final class Player implements
                 onCompleted();
                 break;
         }
+        // let the playback recover before the downloads take the bandwidth again
+        BandwidthScheduler.getInstance()
+                .setPlayerBuffering(state == STATE_BUFFERING || state == STATE_BLOCKED);
         notifyPlaybackUpdateToListeners();
     }
 
@@ -20,7 +20,7 @@ public final class SettingMigrations {
     /**
      * Version number for preferences. Must be incremented every time a migration is necessary.
      */
-    public static final int VERSION = 3;
+    public static final int VERSION = 4;
     private static SharedPreferences sp;
 
     public static final Migration MIGRATION_0_1 = new Migration(0, 1) {
@@ -72,6 +72,23 @@ public final class SettingMigrations {
         }
     };
 
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        protected void migrate(final Context context) {
+            // The "limit download queue" switch was replaced by a maximum amount of downloads
+            // running at the same time. Turning the switch off meant no limit at all.
+            final String queueLimitKey = context.getString(R.string.downloads_queue_limit);
+            if (sp.contains(queueLimitKey)) {
+                final boolean limited = sp.getBoolean(queueLimitKey, true);
+                sp.edit()
+                        .putString(context.getString(R.string.downloads_max_concurrent),
+                                limited ? "1" : "0")
+                        .remove(queueLimitKey)
+                        .apply();
+            }
+        }
+    };
+
     /**
      * List of all implemented migrations.
      * <p>
@@ -81,7 +98,8 @@ public final class SettingMigrations {
     private static final Migration[] SETTING_MIGRATIONS = {
             MIGRATION_0_1,
             MIGRATION_1_2,
-            MIGRATION_2_3
+            MIGRATION_2_3,
+            MIGRATION_3_4
     };
 
 
@@ -5,6 +5,7 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author kapodamy
@@ -16,15 +17,20 @@ public class DataReader {
     public static final int FLOAT_SIZE = 4;
 
     private static final int BUFFER_SIZE = 128 * 1024; // 128 KiB
+    // smaller ranges are cheaper to copy through the read buffer than with a system call
+    private static final int MIN_TRANSFER_SIZE = 64 * 1024; // 64 KiB
 
     private long position = 0;
     private final SharpStream stream;
+    // the bytes are read from the mapped file instead of being copied into the read buffer
+    private final boolean mapped;
 
     private InputStream view;
     private int viewSize;
 
     public DataReader(final SharpStream stream) {
         this.stream = stream;
+        this.mapped = stream.canReadMapped();
         this.readOffset = this.readBuffer.length;
     }
 
@@ -40,7 +46,7 @@ public class DataReader {
         position++;
         readCount--;
 
-        return readBuffer[readOffset++] & 0xFF;
+        return readView.get(readOffset++) & 0xFF;
     }
 
     public long skipBytes(final long byteAmount) throws IOException {
@@ -65,8 +71,40 @@ public class DataReader {
     }
 
     public int readInt() throws IOException {
-        primitiveRead(INTEGER_SIZE);
-        return primitive[0] << 24 | primitive[1] << 16 | primitive[2] << 8 | primitive[3];
+        if (!ensureBuffered(INTEGER_SIZE)) {
+            return (int) readSlow(INTEGER_SIZE);
+        }
+
+        final int value = readView.getInt(readOffset);
+        consume(INTEGER_SIZE);
+        return value;
+    }
+
+    /**
+     * Reads consecutive big-endian integers, used for sample tables.
+     *
+     * @param buffer the destination
+     * @param off    the offset in the destination
+     * @param count  amount of integers to read
+     * @throws IOException if an I/O error occurs or the stream ends before
+     */
+    public void readInts(final int[] buffer, final int off, final int count) throws IOException {
+        int offset = off;
+        final int end = off + count;
+
+        while (offset < end) {
+            if (!ensureBuffered(INTEGER_SIZE)) {
+                // the integer is split between two reads
+                buffer[offset++] = (int) readSlow(INTEGER_SIZE);
+                continue;
+            }
+
+            final int amount = Math.min(end - offset, readCount / INTEGER_SIZE);
+            for (int i = 0; i < amount; i++) {
+                buffer[offset++] = readView.getInt(readOffset + i * INTEGER_SIZE);
+            }
+            consume(amount * INTEGER_SIZE);
+        }
     }
 
     public long readUnsignedInt()  throws IOException {
@@ -76,16 +114,23 @@ public class DataReader {
 
 
     public short readShort() throws IOException {
-        primitiveRead(SHORT_SIZE);
-        return (short) (primitive[0] << 8 | primitive[1]);
+        if (!ensureBuffered(SHORT_SIZE)) {
+            return (short) readSlow(SHORT_SIZE);
+        }
+
+        final short value = readView.getShort(readOffset);
+        consume(SHORT_SIZE);
+        return value;
     }
 
     public long readLong() throws IOException {
-        primitiveRead(LONG_SIZE);
-        final long high
-                = primitive[0] << 24 | primitive[1] << 16 | primitive[2] << 8 | primitive[3];
-        final long low = primitive[4] << 24 | primitive[5] << 16 | primitive[6] << 8 | primitive[7];
-        return high << 32 | low;
+        if (!ensureBuffered(LONG_SIZE)) {
+            return readSlow(LONG_SIZE);
+        }
+
+        final long value = readView.getLong(readOffset);
+        consume(LONG_SIZE);
+        return value;
     }
 
     public int read(final byte[] buffer) throws IOException {
@@ -103,7 +148,7 @@ public class DataReader {
 
         if (count >= readBuffer.length) {
             if (readCount > 0) {
-                System.arraycopy(readBuffer, readOffset, buffer, offset, readCount);
+                copyBuffered(buffer, offset, readCount);
                 readOffset += readCount;
 
                 offset += readCount;
@@ -116,7 +161,7 @@ public class DataReader {
         } else {
             while (count > 0 && !fillBuffer()) {
                 final int read = Math.min(readCount, count);
-                System.arraycopy(readBuffer, readOffset, buffer, offset, read);
+                copyBuffered(buffer, offset, read);
 
                 readOffset += read;
                 readCount -= read;
@@ -132,6 +177,51 @@ public class DataReader {
         return total;
     }
 
+    /**
+     * Copies bytes to the output without reading them one by one. The buffered bytes are
+     * written directly from the read buffer, and the rest is transferred by the streams if
+     * both are backed by files (see {@link SharpStream#transferTo(long, SharpStream)}),
+     * otherwise is copied through the read buffer.
+     *
+     * @param count  the amount of bytes to copy
+     * @param target the output stream
+     * @return the amount of bytes copied, less than {@code count} only if the stream ends
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        long done = 0;
+
+        while (done < count) {
+            final long remaining = count - done;
+
+            if (readCount == 0 && remaining >= MIN_TRANSFER_SIZE) {
+                final long transferred = stream.transferTo(remaining, target);
+                if (transferred > 0) {
+                    position += transferred;
+                    done += transferred;
+                    continue;
+                }
+            }
+
+            if (fillBuffer()) {
+                break;
+            }
+
+            final int amount = (int) Math.min(readCount, remaining);
+            if (mapped) {
+                // the read buffer is not used by the mapped streams, copy through it
+                copyBuffered(readBuffer, 0, amount);
+                target.write(readBuffer, 0, amount);
+            } else {
+                target.write(readBuffer, readOffset, amount);
+            }
+            consume(amount);
+            done += amount;
+        }
+
+        return done;
+    }
+
     public boolean available() {
         return readCount > 0 || stream.available() > 0;
     }
@@ -228,24 +318,66 @@ public class DataReader {
         return view;
     }
 
-    private final short[] primitive = new short[LONG_SIZE];
+    /**
+     * Checks if a primitive can be decoded directly from the read buffer.
+     *
+     * @param amount the primitive size
+     * @return {@code true} if the buffer has enough bytes
+     */
+    private boolean ensureBuffered(final int amount) throws IOException {
+        if (readCount >= amount) {
+            return true;
+        }
 
-    private void primitiveRead(final int amount) throws IOException {
-        final byte[] buffer = new byte[amount];
-        final int read = read(buffer, 0, amount);
+        return !fillBuffer() && readCount >= amount;
+    }
 
-        if (read != amount) {
-            throw new EOFException("Truncated stream, missing "
-                    + (amount - read) + " bytes");
+    /**
+     * Copies the next buffered bytes, from the read buffer or from the mapped file.
+     *
+     * @param buffer the destination
+     * @param offset the offset in the destination
+     * @param count  the amount of bytes to copy, must be buffered
+     */
+    private void copyBuffered(final byte[] buffer, final int offset, final int count) {
+        if (mapped) {
+            readView.position(readOffset);
+            readView.get(buffer, offset, count);
+        } else {
+            System.arraycopy(readBuffer, readOffset, buffer, offset, count);
         }
+    }
+
+    private void consume(final int amount) {
+        readOffset += amount;
+        readCount -= amount;
+        position += amount;
+    }
+
+    /**
+     * Reads a big-endian primitive byte by byte, used when the primitive is split between two
+     * reads of the stream.
+     *
+     * @param amount the primitive size
+     * @return the value
+     */
+    private long readSlow(final int amount) throws IOException {
+        long value = 0;
 
         for (int i = 0; i < amount; i++) {
-            // the "byte" data type in java is signed and is very annoying
-            primitive[i] = (short) (buffer[i] & 0xFF);
+            final int read = read();
+            if (read < 0) {
+                throw new EOFException("Truncated stream, missing " + (amount - i) + " bytes");
+            }
+            value = value << 8 | read;
         }
+
+        return value;
     }
 
     private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    // the read buffer, or the bytes of the mapped file
+    private ByteBuffer readView = ByteBuffer.wrap(readBuffer);
     private int readOffset;
     private int readCount;
 
@@ -253,8 +385,14 @@ public class DataReader {
         if (readCount < 0) {
             return true;
         }
-        if (readOffset >= readBuffer.length) {
-            readCount = stream.read(readBuffer);
+        if (readCount == 0) {
+            // the stream can return less bytes than requested, refill when the buffer is empty
+            if (mapped) {
+                readView = stream.readMapped(BUFFER_SIZE);
+                readCount = readView.remaining();
+            } else {
+                readCount = stream.read(readBuffer);
+            }
             if (readCount < 1) {
                 readCount = -1;
                 return true;
@@ -262,6 +400,6 @@ public class DataReader {
             readOffset = 0;
         }
 
-        return readCount < 1;
+        return false;
     }
 }
@@ -2,6 +2,7 @@ package org.schabi.newpipe.streams;
 
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -237,6 +238,7 @@ public class Mp4DashReader {
                     chunk.moof = moof;
                     if (!infoOnly) {
                         chunk.data = stream.getView(moof.traf.trun.chunkSize);
+                        chunk.source = stream;
                     }
 
                     moof = null;
@@ -434,18 +436,18 @@ public class Mp4DashReader {
 
         obj.entriesRowSize = 0;
         if (hasFlag(obj.bFlags, 0x0100)) {
-            obj.entriesRowSize += 4;
+            obj.entriesRowSize++;
         }
         if (hasFlag(obj.bFlags, 0x0200)) {
-            obj.entriesRowSize += 4;
+            obj.entriesRowSize++;
         }
         if (hasFlag(obj.bFlags, 0x0400)) {
-            obj.entriesRowSize += 4;
+            obj.entriesRowSize++;
         }
         if (hasFlag(obj.bFlags, 0x0800)) {
-            obj.entriesRowSize += 4;
+            obj.entriesRowSize++;
         }
-        obj.bEntries = new byte[obj.entriesRowSize * obj.entryCount];
+        obj.entries = new int[obj.entriesRowSize * obj.entryCount];
 
         if (hasFlag(obj.bFlags, 0x0001)) {
             obj.dataOffset = stream.readInt();
@@ -454,20 +456,21 @@ public class Mp4DashReader {
             obj.bFirstSampleFlags = stream.readInt();
         }
 
-        stream.read(obj.bEntries);
+        stream.readInts(obj.entries, 0, obj.entries.length);
 
-        for (int i = 0; i < obj.entryCount; i++) {
-            final TrunEntry entry = obj.getEntry(i);
-            if (hasFlag(obj.bFlags, 0x0100)) {
-                obj.chunkDuration += entry.sampleDuration;
+        final int durationColumn = obj.getColumn(0x0100);
+        final int sizeColumn = obj.getColumn(0x0200);
+        final int compositionColumn = obj.getColumn(0x0800);
+
+        for (int i = 0; i < obj.entries.length; i += obj.entriesRowSize) {
+            if (durationColumn >= 0) {
+                obj.chunkDuration += obj.entries[i + durationColumn];
             }
-            if (hasFlag(obj.bFlags, 0x0200)) {
-                obj.chunkSize += entry.sampleSize;
+            if (sizeColumn >= 0) {
+                obj.chunkSize += obj.entries[i + sizeColumn];
             }
-            if (hasFlag(obj.bFlags, 0x0800)) {
-                if (!hasFlag(obj.bFlags, 0x0100)) {
-                    obj.chunkDuration += entry.sampleCompositionTimeOffset;
-                }
+            if (compositionColumn >= 0 && durationColumn < 0) {
+                obj.chunkDuration += obj.entries[i + compositionColumn];
             }
         }
 
@@ -788,25 +791,40 @@ public class Mp4DashReader {
         int dataOffset;
 
         public int entryCount;
-        byte[] bEntries;
-        int entriesRowSize;
+        int[] entries; // sample table, one row per entry
+        int entriesRowSize; // amount of integers per row
+
+        /**
+         * Gets the column of a sample field in the sample table.
+         *
+         * @param flag the flag which indicates the presence of the field
+         * @return the column or {@code -1} if the field is not present
+         */
+        int getColumn(final int flag) {
+            if (!hasFlag(bFlags, flag)) {
+                return -1;
+            }
+
+            int column = 0;
+            for (int mask = 0x0100; mask < flag; mask <<= 1) {
+                if (hasFlag(bFlags, mask)) {
+                    column++;
+                }
+            }
+            return column;
+        }
 
         public TrunEntry getEntry(final int i) {
-            final ByteBuffer buffer = ByteBuffer.wrap(bEntries, i * entriesRowSize, entriesRowSize);
-            final TrunEntry entry = new TrunEntry();
+            return getEntry(i, new TrunEntry());
+        }
 
-            if (hasFlag(bFlags, 0x0100)) {
-                entry.sampleDuration = buffer.getInt();
-            }
-            if (hasFlag(bFlags, 0x0200)) {
-                entry.sampleSize = buffer.getInt();
-            }
-            if (hasFlag(bFlags, 0x0400)) {
-                entry.sampleFlags = buffer.getInt();
-            }
-            if (hasFlag(bFlags, 0x0800)) {
-                entry.sampleCompositionTimeOffset = buffer.getInt();
-            }
+        TrunEntry getEntry(final int i, final TrunEntry entry) {
+            int index = i * entriesRowSize;
+
+            entry.sampleDuration = hasFlag(bFlags, 0x0100) ? entries[index++] : 0;
+            entry.sampleSize = hasFlag(bFlags, 0x0200) ? entries[index++] : 0;
+            entry.sampleFlags = hasFlag(bFlags, 0x0400) ? entries[index++] : 0;
+            entry.sampleCompositionTimeOffset = hasFlag(bFlags, 0x0800) ? entries[index] : 0;
 
             entry.hasCompositionTimeOffset = hasFlag(bFlags, 0x0800);
             entry.isKeyframe = !hasFlag(entry.sampleFlags, 0x10000);
@@ -815,7 +833,11 @@ public class Mp4DashReader {
         }
 
         public TrunEntry getAbsoluteEntry(final int i, final Tfhd header) {
-            final TrunEntry entry = getEntry(i);
+            return getAbsoluteEntry(i, header, new TrunEntry());
+        }
+
+        TrunEntry getAbsoluteEntry(final int i, final Tfhd header, final TrunEntry target) {
+            final TrunEntry entry = getEntry(i, target);
 
             if (!hasFlag(bFlags, 0x0100) && hasFlag(header.bFlags, 0x20)) {
                 entry.sampleFlags = header.defaultSampleFlags;
@@ -908,12 +930,95 @@ public class Mp4DashReader {
         public InputStream data;
         public Moof moof;
         private int i = 0;
-
+        private final TrunEntry info = new TrunEntry();
+        private DataReader source;
+        private long pendingDataSize = 0;
+
+        // the sample data, if it was loaded with loadData()
+        private byte[] loaded;
+        private int loadedOffset = 0;
+        private int loadedLength = 0;
+
+        /**
+         * Gets the information of the next sample, without reading the sample data. The data
+         * can be copied later with {@link #writePendingData(SharpStream)}.
+         * Note: the returned object is reused by the next call.
+         *
+         * @return the sample information or {@code null} if there no more samples
+         */
         public TrunEntry getNextSampleInfo() {
             if (i >= moof.traf.trun.entryCount) {
                 return null;
             }
-            return moof.traf.trun.getAbsoluteEntry(i++, moof.traf.tfhd);
+            moof.traf.trun.getAbsoluteEntry(i++, moof.traf.tfhd, info);
+            pendingDataSize += info.sampleSize;
+            return info;
+        }
+
+        /**
+         * Writes the data of the samples returned by {@link #getNextSampleInfo()} and not
+         * written yet. The samples are stored one after another, so all of them are copied in a
+         * single transfer.
+         *
+         * @param output the output stream
+         * @return the amount of bytes written
+         * @throws IOException if an I/O error occurs or the chunk is truncated
+         */
+        public long writePendingData(final SharpStream output) throws IOException {
+            if (source == null && loaded == null) {
+                throw new IllegalStateException("This chunk has info only");
+            }
+
+            final long size = pendingDataSize;
+            pendingDataSize = 0;
+
+            if (loaded != null) {
+                if (size > loadedLength - loadedOffset) {
+                    throw new EOFException("EOF reached while reading the samples");
+                }
+                output.write(loaded, loadedOffset, (int) size);
+                loadedOffset += (int) size;
+                return size;
+            }
+
+            if (source.transferTo(size, output) != size) {
+                throw new EOFException("EOF reached while reading the samples");
+            }
+
+            return size;
+        }
+
+        /**
+         * Reads the sample data of the chunk into memory, after that the chunk does not use the
+         * reader and the next chunk can be read while this one is written.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        public void loadData() throws IOException {
+            if (source == null) {
+                throw new IllegalStateException("This chunk has info only");
+            }
+
+            // only the samples, the chunk size is not reliable in all the files
+            long sum = 0;
+            final TrunEntry entry = new TrunEntry();
+            for (int j = 0; j < moof.traf.trun.entryCount; j++) {
+                moof.traf.trun.getAbsoluteEntry(j, moof.traf.tfhd, entry);
+                sum += entry.sampleSize;
+            }
+
+            final int size = (int) sum;
+            loaded = new byte[size];
+            while (loadedLength < size) {
+                final int read = source.read(loaded, loadedLength, size - loadedLength);
+                if (read < 1) {
+                    break; // truncated, reported when the missing samples are written
+                }
+                loadedLength += read;
+            }
+
+            data = new ByteArrayInputStream(loaded, 0, loadedLength);
+            source = null;
         }
 
         public Mp4DashSample getNextSample() throws IOException {
@@ -2,8 +2,8 @@ package org.schabi.newpipe.streams;
 
 import org.schabi.newpipe.streams.Mp4DashReader.Hdlr;
 import org.schabi.newpipe.streams.Mp4DashReader.Mdia;
+import org.schabi.newpipe.streams.Mp4DashReader.Moof;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashChunk;
-import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashSample;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4Track;
 import org.schabi.newpipe.streams.Mp4DashReader.TrackKind;
 import org.schabi.newpipe.streams.Mp4DashReader.TrunEntry;
@@ -12,6 +12,9 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author kapodamy
@@ -36,6 +39,13 @@ public class Mp4FromDashWriter {
     private long writeOffset;
 
     private boolean moovSimulation = true;
+    private boolean singlePass = false;
+    private SampleTables[] sampleTables;
+
+    private boolean fragmented = false;
+    private FragmentIndex[] fragmentIndex;
+    private int[] fragmentEntries;
+    private ByteBuffer fragmentBuffer;
 
     private boolean done = false;
     private boolean parsed = false;
@@ -46,6 +56,10 @@ public class Mp4FromDashWriter {
     private Mp4DashReader[] readers;
     private Mp4DashChunk[] readersChunks;
 
+    private int prefetchDepth = 0;
+    private boolean prefetchAllowed = false;
+    private List<TrackPrefetcher<Mp4DashChunk>> prefetchers;
+
     private int overrideMainBrand = 0x00;
 
     private final ArrayList<Integer> compatibleBrands = new ArrayList<>(5);
@@ -116,6 +130,43 @@ public class Mp4FromDashWriter {
         overrideMainBrand = brand;
     }
 
+    /**
+     * Reads the sources only once. The sample tables are collected while the samples are
+     * written and the moov box is written at the end, in the space reserved after the ftyp box
+     * or, if the estimated space is not enough, after the mdat box. Otherwise every chunk is
+     * read twice, first to calculate the moov box size.
+     *
+     * @param singlePass {@code true} to read the sources once
+     */
+    public void setSinglePass(final boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Writes a fragmented MP4 instead, every fragment of the sources is written as a moof box
+     * followed by its mdat box, and a mfra box is written at the end to allow fast seeking. The
+     * output is never rewound and the memory usage does not grow with the amount of samples,
+     * useful for very long streams.
+     *
+     * @param fragmented {@code true} to write a fragmented MP4
+     */
+    public void setFragmented(final boolean fragmented) {
+        this.fragmented = fragmented;
+    }
+
+    /**
+     * Reads the chunks of every track in a background thread, so the reads of the sources
+     * (slow on SD cards and SAF) overlap with the writing. Every track keeps up to {@code depth}
+     * chunks loaded in memory, a chunk is a fragment of the source (a few seconds of media).
+     * The sources must be different streams, and must not be closed while building.
+     *
+     * @param depth the amount of chunks loaded ahead of every track, {@code 0} to read the
+     *              sources in the writer thread
+     */
+    public void setPrefetchDepth(final int depth) {
+        this.prefetchDepth = depth;
+    }
+
     public boolean isDone() {
         return done;
     }
@@ -128,6 +179,8 @@ public class Mp4FromDashWriter {
         done = true;
         parsed = true;
 
+        stopPrefetch();
+
         for (final SharpStream src : sourceTracks) {
             src.close();
         }
@@ -155,6 +208,24 @@ public class Mp4FromDashWriter {
         //          not allowed for very short tracks (less than 0.5 seconds)
         //
         outStream = output;
+
+        // the single-pass mode estimates the moov size with the position of the sources
+        prefetchAllowed = fragmented || !singlePass;
+
+        try {
+            if (fragmented) {
+                buildFragmented();
+            } else if (singlePass) {
+                buildSinglePass();
+            } else {
+                buildTwoPass();
+            }
+        } finally {
+            stopPrefetch();
+        }
+    }
+
+    private void buildTwoPass() throws IOException {
         long read = 8; // mdat box header size
         long totalSampleSize = 0;
         final int[] sampleExtra = new int[readers.length];
@@ -167,13 +238,7 @@ public class Mp4FromDashWriter {
             tablesInfo[i] = new TablesInfo();
         }
 
-        final int singleSampleBuffer;
-        if (tracks.length == 1 && tracks[0].kind == TrackKind.Audio) {
-            // near 1 second of audio data per chunk, avoid split the audio stream in large chunks
-            singleSampleBuffer = tracks[0].trak.mdia.mdhdTimeScale / 1000;
-        } else {
-            singleSampleBuffer = -1;
-        }
+        final int singleSampleBuffer = getSingleSampleBuffer();
 
 
         for (int i = 0; i < readers.length; i++) {
@@ -309,6 +374,8 @@ public class Mp4FromDashWriter {
         final int[] sizes
                 = new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
         final int[] sync = new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
+        // ctts entries of the chunk, written after the sample data (one per sample at most)
+        final int[] ctts = new int[sizes.length * 2];
 
         int written = readers.length;
         while (written > 0) {
@@ -321,6 +388,7 @@ public class Mp4FromDashWriter {
 
                 final long chunkOffset = writeOffset;
                 int syncCount = 0;
+                int cttsCount = 0;
                 final int limit;
                 if (singleSampleBuffer > 0) {
                     limit = singleSampleBuffer;
@@ -328,15 +396,16 @@ public class Mp4FromDashWriter {
                     limit = sampleIndex[i] == 0 ? SAMPLES_PER_CHUNK_INIT : SAMPLES_PER_CHUNK;
                 }
 
+                // the sample data is not read, only the information. The data of consecutive
+                // samples is copied at once, before writing the tables
                 int j = 0;
                 for (; j < limit; j++) {
-                    final Mp4DashSample sample = getNextSample(i);
+                    final TrunEntry info = getNextSampleInfo(i);
 
-                    if (sample == null) {
+                    if (info == null) {
                         if (tablesInfo[i].ctts > 0 && sampleExtra[i] >= 0) {
-                            writeEntryArray(tablesInfo[i].ctts, 1, sampleCount[i],
-                                    sampleExtra[i]); // flush last entries
-                            outRestore();
+                            ctts[cttsCount++] = sampleCount[i]; // flush last entries
+                            ctts[cttsCount++] = sampleExtra[i];
                         }
                         sampleIndex[i] = -1;
                         break;
@@ -345,28 +414,33 @@ public class Mp4FromDashWriter {
                     sampleIndex[i]++;
 
                     if (tablesInfo[i].ctts > 0) {
-                        if (sample.info.sampleCompositionTimeOffset == sampleExtra[i]) {
+                        if (info.sampleCompositionTimeOffset == sampleExtra[i]) {
                             sampleCount[i]++;
                         } else {
                             if (sampleExtra[i] >= 0) {
-                                tablesInfo[i].ctts = writeEntryArray(tablesInfo[i].ctts, 2,
-                                        sampleCount[i], sampleExtra[i]);
-                                outRestore();
+                                ctts[cttsCount++] = sampleCount[i];
+                                ctts[cttsCount++] = sampleExtra[i];
                             }
                             sampleCount[i] = 1;
-                            sampleExtra[i] = sample.info.sampleCompositionTimeOffset;
+                            sampleExtra[i] = info.sampleCompositionTimeOffset;
                         }
                     }
 
-                    if (tablesInfo[i].stss > 0 && sample.info.isKeyframe) {
+                    if (tablesInfo[i].stss > 0 && info.isKeyframe) {
                         sync[syncCount++] = sampleIndex[i];
                     }
 
                     if (tablesInfo[i].stsz > 0) {
-                        sizes[j] = sample.data.length;
+                        sizes[j] = info.sampleSize;
                     }
+                }
 
-                    outWrite(sample.data, sample.data.length);
+                if (readersChunks[i] != null) {
+                    writeOffset += readersChunks[i].writePendingData(outStream);
+                }
+
+                if (cttsCount > 0) {
+                    tablesInfo[i].ctts = writeEntryArray(tablesInfo[i].ctts, cttsCount, ctts);
                 }
 
                 if (j > 0) {
@@ -388,9 +462,9 @@ public class Mp4FromDashWriter {
                                     (int) chunkOffset);
                         }
                     }
-
-                    outRestore();
                 }
+
+                outRestore();
             }
         }
 
@@ -402,23 +476,480 @@ public class Mp4FromDashWriter {
         }
     }
 
-    private Mp4DashSample getNextSample(final int track) throws IOException {
-        if (readersChunks[track] == null) {
-            readersChunks[track] = readers[track].getNextChunk(false);
-            if (readersChunks[track] == null) {
+    /**
+     * Gets the information of the next sample of the track, the data of the previous chunk is
+     * written before moving to the next one.
+     *
+     * @param track the track index
+     * @return the sample information or {@code null} if there are no more samples
+     * @throws IOException if an I/O error occurs
+     */
+    private TrunEntry getNextSampleInfo(final int track) throws IOException {
+        while (true) {
+            if (readersChunks[track] == null && nextChunk(track) == null) {
                 return null; // EOF reached
             }
-        }
 
-        final Mp4DashSample sample = readersChunks[track].getNextSample();
-        if (sample == null) {
+            final TrunEntry info = readersChunks[track].getNextSampleInfo();
+            if (info != null) {
+                return info;
+            }
+
+            writeOffset += readersChunks[track].writePendingData(outStream);
             readersChunks[track] = null;
-            return getNextSample(track);
+        }
+    }
+
+
+    private Mp4DashChunk nextChunk(final int track) throws IOException {
+        if (prefetchDepth > 0 && prefetchAllowed) {
+            readersChunks[track] = getPrefetcher(track).next();
         } else {
-            return sample;
+            readersChunks[track] = readers[track].getNextChunk(false);
+        }
+
+        if (readersChunks[track] != null && sampleTables != null) {
+            sampleTables[track].addFragment(readersChunks[track].moof);
+        }
+
+        return readersChunks[track];
+    }
+
+    /**
+     * Gets the prefetcher of the track, started by the first chunk read after the sample
+     * tables were calculated (or estimated). The previous chunk was already written, from there
+     * only the prefetch thread uses the reader.
+     *
+     * @param track the track index
+     * @return the prefetcher
+     */
+    private TrackPrefetcher<Mp4DashChunk> getPrefetcher(final int track) {
+        if (prefetchers == null) {
+            prefetchers = new ArrayList<>(Collections.nCopies(readers.length, null));
+        }
+        if (prefetchers.get(track) == null) {
+            final Mp4DashReader reader = readers[track];
+            prefetchers.set(track, new TrackPrefetcher<>("Mp4Prefetch-" + track, prefetchDepth,
+                    () -> {
+                        final Mp4DashChunk chunk = reader.getNextChunk(false);
+                        if (chunk != null) {
+                            chunk.loadData();
+                        }
+                        return chunk;
+                    }));
+        }
+        return prefetchers.get(track);
+    }
+
+    private void stopPrefetch() {
+        if (prefetchers == null) {
+            return;
+        }
+        for (final TrackPrefetcher<Mp4DashChunk> prefetcher : prefetchers) {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+        }
+        prefetchers = null;
+    }
+
+    private void buildSinglePass() throws IOException {
+        final int[] defaultMediaTime = new int[readers.length];
+        final TablesInfo[] tablesInfo = new TablesInfo[tracks.length];
+        final int singleSampleBuffer = getSingleSampleBuffer();
+
+        long sourcesLength = 0;
+        sampleTables = new SampleTables[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            sourcesLength += sourceTracks[i].available();
+            sampleTables[i] = new SampleTables();
+            tablesInfo[i] = new TablesInfo();
+            nextChunk(i); // used to estimate the amount of samples
+        }
+
+        // the mdat box can not be larger than the sources
+        final boolean mdat64 = sourcesLength > THRESHOLD_FOR_CO64;
+
+        writeOffset = 0;
+        final int ftypSize = makeFtyp();
+
+        // reserve the moov space with a free box, it is used if the moov is written at the end
+        final int reserved = estimateMoovSize(defaultMediaTime, tablesInfo, mdat64);
+        prefetchAllowed = true;
+        int length = reserved;
+        final byte[] buffer = new byte[64 * 1024]; // 64 KiB
+        ByteBuffer.wrap(buffer).putInt(reserved).putInt(0x66726565); // "free"
+        while (length > 0) {
+            final int count = Math.min(length, buffer.length);
+            outWrite(buffer, count);
+            length -= count;
+            Arrays.fill(buffer, 0, 8, (byte) 0);
+        }
+
+        final long mdatOffset = writeOffset;
+        outWrite(makeMdat(0, mdat64));
+
+        final int[] sampleIndex = new int[readers.length];
+        final int chunkSize = singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK;
+
+        int written = readers.length;
+        while (written > 0) {
+            written = 0;
+
+            for (int i = 0; i < readers.length; i++) {
+                if (sampleIndex[i] < 0) {
+                    continue; // track is done
+                }
+
+                final long chunkOffset = writeOffset;
+                final int limit;
+                if (singleSampleBuffer > 0) {
+                    limit = singleSampleBuffer;
+                } else {
+                    limit = sampleIndex[i] == 0 ? SAMPLES_PER_CHUNK_INIT : SAMPLES_PER_CHUNK;
+                }
+
+                int j = 0;
+                for (; j < limit; j++) {
+                    final TrunEntry info = getNextSampleInfo(i);
+                    if (info == null) {
+                        sampleIndex[i] = -1;
+                        break;
+                    }
+
+                    sampleIndex[i]++;
+                    sampleTables[i].addSample(info);
+                }
+
+                if (readersChunks[i] != null) {
+                    writeOffset += readersChunks[i].writePendingData(outStream);
+                }
+
+                if (j > 0) {
+                    written++;
+                    sampleTables[i].addChunk(chunkOffset);
+                }
+            }
+        }
+
+        final long mdatEnd = writeOffset;
+        final boolean is64 = mdatEnd > THRESHOLD_FOR_CO64;
+
+        if (is64 && !mdat64) {
+            throw new IOException("The sources are larger than the reported length");
+        }
+
+        // now the mdat size is known
+        outSeek(mdatOffset);
+        outWrite(makeMdat(mdatEnd - mdatOffset - (mdat64 ? 16 : 8), mdat64));
+
+        for (int i = 0; i < readers.length; i++) {
+            sampleTables[i].fillTablesInfo(tablesInfo[i], tracks[i],
+                    singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK_INIT,
+                    chunkSize);
+            defaultMediaTime[i] = sampleTables[i].defaultMediaTime;
+        }
+
+        // calculate the moov size and write it in the memory
+        moovSimulation = true;
+        writeOffset = 0;
+        final int moovSize = makeMoov(defaultMediaTime, tablesInfo, is64);
+        moovSimulation = false;
+
+        auxBuffer = ByteBuffer.allocate(moovSize);
+        makeMoov(defaultMediaTime, tablesInfo, is64);
+
+        for (int i = 0; i < readers.length; i++) {
+            sampleTables[i].writeTables(tablesInfo[i], is64);
+        }
+
+        if (moovSize == reserved || moovSize + 8 <= reserved) {
+            outSeek(ftypSize);
+            outStream.write(auxBuffer.array(), 0, moovSize);
+
+            if (moovSize < reserved) {
+                // the remaining space
+                outStream.write(ByteBuffer.allocate(8)
+                        .putInt(reserved - moovSize)
+                        .putInt(0x66726565) // "free"
+                        .array());
+            }
+        } else {
+            // the estimation was wrong, the reserved space is left as free box
+            outSeek(mdatEnd);
+            outWrite(auxBuffer.array());
+        }
+
+        auxBuffer = null;
+        sampleTables = null;
+    }
+
+    private void buildFragmented() throws IOException {
+        // the sample tables are empty, the samples are described in the fragments
+        final int[] defaultMediaTime = new int[readers.length];
+        final TablesInfo[] tablesInfo = new TablesInfo[readers.length];
+        final long[] decodeTime = new long[readers.length];
+        final boolean[] ended = new boolean[readers.length];
+
+        fragmentIndex = new FragmentIndex[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            tablesInfo[i] = new TablesInfo();
+            fragmentIndex[i] = new FragmentIndex();
+        }
+
+        if (overrideMainBrand == 0) {
+            overrideMainBrand = 0x69736F35; // iso5, the output is also a DASH file
+        }
+        compatibleBrands.add(0x69736F36); // iso6
+
+        writeOffset = 0;
+        makeFtyp();
+
+        // calculate the moov size and write it in the memory
+        moovSimulation = true;
+        final long ftypSize = writeOffset;
+        writeOffset = 0;
+        final int moovSize = makeMoov(defaultMediaTime, tablesInfo, false);
+        moovSimulation = false;
+        writeOffset = ftypSize;
+
+        auxBuffer = ByteBuffer.allocate(moovSize);
+        makeMoov(defaultMediaTime, tablesInfo, false);
+        final byte[] moov = auxBuffer.array();
+        auxBuffer = null;
+        outWrite(moov);
+
+        fragmentEntries = new int[256 * 4];
+        fragmentBuffer = ByteBuffer.allocate(8 * 1024);
+        int sequenceNumber = 0;
+
+        while (true) {
+            // write the fragment with the lowest decode time, keeps the tracks interleaved
+            int track = -1;
+            double lowestTime = Double.MAX_VALUE;
+
+            for (int i = 0; i < readers.length; i++) {
+                if (ended[i]) {
+                    continue;
+                }
+                if (readersChunks[i] == null && nextChunk(i) == null) {
+                    ended[i] = true;
+                    continue;
+                }
+
+                final double time = decodeTime[i]
+                        / (double) tracks[i].trak.mdia.mdhdTimeScale;
+                if (time < lowestTime) {
+                    lowestTime = time;
+                    track = i;
+                }
+            }
+
+            if (track < 0) {
+                break; // all tracks are done
+            }
+
+            decodeTime[track] = makeFragment(track, ++sequenceNumber, decodeTime[track]);
+            readersChunks[track] = null;
+        }
+
+        makeMfra();
+
+        fragmentIndex = null;
+        fragmentEntries = null;
+        fragmentBuffer = null;
+    }
+
+    /**
+     * Writes the current chunk of the track as a moof box and its mdat box. The sample data is
+     * copied from the source at once.
+     *
+     * @param track          the track index
+     * @param sequenceNumber the sequence number of the fragment, starts at 1
+     * @param decodeTime     the decode time of the first sample of the fragment
+     * @return the decode time of the next fragment
+     * @throws IOException if an I/O error occurs
+     */
+    private long makeFragment(final int track, final int sequenceNumber, final long decodeTime)
+            throws IOException {
+        final Mp4DashChunk chunk = readersChunks[track];
+        final long moofOffset = writeOffset;
+
+        // [sample_duration, sample_size, sample_flags, sample_composition_time_offset]
+        int count = 0;
+        long dataSize = 0;
+        long duration = 0;
+        boolean hasCompositionOffsets = false;
+        boolean negativeOffsets = false;
+        int keyframe = -1;
+        long keyframeTime = 0;
+
+        TrunEntry info;
+        while ((info = chunk.getNextSampleInfo()) != null) {
+            if ((count + 1) * 4 > fragmentEntries.length) {
+                fragmentEntries = Arrays.copyOf(fragmentEntries, fragmentEntries.length * 2);
+            }
+
+            final int offset = count * 4;
+            fragmentEntries[offset] = info.sampleDuration;
+            fragmentEntries[offset + 1] = info.sampleSize;
+            fragmentEntries[offset + 2] = info.isKeyframe ? 0x02000000 : 0x01010000;
+            fragmentEntries[offset + 3] = info.sampleCompositionTimeOffset;
+
+            if (info.hasCompositionTimeOffset) {
+                hasCompositionOffsets = true;
+                negativeOffsets |= info.sampleCompositionTimeOffset < 0;
+            }
+            if (keyframe < 0 && info.isKeyframe) {
+                keyframe = count;
+                keyframeTime = decodeTime + duration + info.sampleCompositionTimeOffset;
+            }
+
+            dataSize += info.sampleSize;
+            duration += info.sampleDuration;
+            count++;
+        }
+
+        final int columns = hasCompositionOffsets ? 4 : 3;
+        final int trunSize = 20 + (count * columns * 4);
+        final int moofSize = 8 + 16 + 8 + 16 + 20 + trunSize;
+
+        if (dataSize > 0xFFFFFFFFL - 8) {
+            throw new IOException("The fragment of the track n°" + track + " is too large");
+        }
+
+        if (fragmentBuffer.capacity() < moofSize + 8) {
+            fragmentBuffer = ByteBuffer.allocate(moofSize + 8);
+        }
+
+        final ByteBuffer buffer = fragmentBuffer;
+        buffer.clear();
+
+        buffer.putInt(moofSize).putInt(0x6D6F6F66); // moof
+        buffer.putInt(16).putInt(0x6D666864).putInt(0).putInt(sequenceNumber); // mfhd
+        buffer.putInt(moofSize - 24).putInt(0x74726166); // traf
+
+        // tfhd, flags: default-base-is-moof
+        buffer.putInt(16).putInt(0x74666864).putInt(0x020000).putInt(track + 1);
+        // tfdt, version 1
+        buffer.putInt(20).putInt(0x74666474).putInt(0x01000000).putLong(decodeTime);
+
+        // trun, flags: data offset, sample duration, size, flags and composition time offset
+        buffer.putInt(trunSize).putInt(0x7472756E);
+        buffer.putInt((negativeOffsets ? 0x01000000 : 0) | 0x000701
+                | (hasCompositionOffsets ? 0x0800 : 0));
+        buffer.putInt(count);
+        buffer.putInt(moofSize + 8); // the data starts after the mdat header
+
+        for (int i = 0; i < count; i++) {
+            final int offset = i * 4;
+            buffer.putInt(fragmentEntries[offset]);
+            buffer.putInt(fragmentEntries[offset + 1]);
+            buffer.putInt(fragmentEntries[offset + 2]);
+            if (hasCompositionOffsets) {
+                buffer.putInt(fragmentEntries[offset + 3]);
+            }
+        }
+
+        buffer.putInt((int) (dataSize + 8)).putInt(0x6D646174); // mdat
+
+        outWrite(buffer.array(), buffer.position());
+
+        writeOffset += chunk.writePendingData(outStream);
+
+        if (keyframe >= 0) {
+            fragmentIndex[track].add(keyframeTime, moofOffset, keyframe + 1);
+        }
+
+        return decodeTime + duration;
+    }
+
+    /**
+     * Writes the mfra box, contains the offset of the fragments which have a keyframe.
+     */
+    private void makeMfra() throws IOException {
+        int size = 8 + 16;
+        for (final FragmentIndex index : fragmentIndex) {
+            size += 24 + (index.count * FragmentIndex.ENTRY_SIZE);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size).putInt(0x6D667261); // mfra
+
+        for (int i = 0; i < fragmentIndex.length; i++) {
+            fragmentIndex[i].write(buffer, i + 1);
         }
+
+        buffer.putInt(16).putInt(0x6D66726F).putInt(0).putInt(size); // mfro
+
+        outWrite(buffer.array());
     }
 
+    /**
+     * Estimates the moov box size using the first chunk of every track, the amount of samples
+     * is calculated from the size of the sources. The estimation is enlarged to cover variable
+     * sample sizes.
+     *
+     * @param defaultMediaTime the default media time of every track
+     * @param tablesInfo       the row counts of the tables, filled with the estimation
+     * @param is64             if the chunk offsets are 64 bits
+     * @return the estimated moov box size
+     */
+    private int estimateMoovSize(final int[] defaultMediaTime, final TablesInfo[] tablesInfo,
+                                 final boolean is64) throws IOException {
+        final TrunEntry info = new TrunEntry();
+
+        for (int i = 0; i < readers.length; i++) {
+            final Mp4DashChunk chunk = readersChunks[i];
+            int samples = 0;
+            int keyframes = 0;
+            int compositionOffsets = 0;
+
+            if (chunk != null && chunk.moof.traf.trun.entryCount > 0) {
+                final int count = chunk.moof.traf.trun.entryCount;
+                int lastOffset = -1;
+
+                for (int j = 0; j < count; j++) {
+                    chunk.moof.traf.trun.getAbsoluteEntry(j, chunk.moof.traf.tfhd, info);
+                    if (info.isKeyframe) {
+                        keyframes++;
+                    }
+                    if (info.hasCompositionTimeOffset
+                            && info.sampleCompositionTimeOffset != lastOffset) {
+                        compositionOffsets++;
+                        lastOffset = info.sampleCompositionTimeOffset;
+                    }
+                }
+
+                final long bytesPerSample
+                        = Math.max(1, chunk.moof.traf.trun.chunkSize / count);
+                final long estimated = sourceTracks[i].available() / bytesPerSample;
+                samples = (int) Math.min(Integer.MAX_VALUE / 16,
+                        estimated + estimated / 2 + count);
+
+                keyframes = (int) ((long) samples * keyframes / count) + 1;
+                compositionOffsets = (int) ((long) samples * compositionOffsets / count);
+            }
+
+            tablesInfo[i].stts = 1;
+            tablesInfo[i].stsc = 3;
+            tablesInfo[i].stsz = samples;
+            tablesInfo[i].stss = keyframes;
+            tablesInfo[i].ctts = compositionOffsets;
+            tablesInfo[i].stco = samples / SAMPLES_PER_CHUNK + 2;
+        }
+
+        moovSimulation = true;
+        final long offset = writeOffset;
+        writeOffset = 0;
+
+        final int size = makeMoov(defaultMediaTime, tablesInfo, is64);
+
+        writeOffset = offset;
+        moovSimulation = false;
+
+        return size;
+    }
 
     private int writeEntry64(final int offset, final long value) throws IOException {
         outBackup();
@@ -447,6 +978,14 @@ public class Mp4FromDashWriter {
         return offset + size;
     }
 
+    private int getSingleSampleBuffer() {
+        if (tracks.length == 1 && tracks[0].kind == TrackKind.Audio) {
+            // near 1 second of audio data per chunk, avoid split the audio stream in large chunks
+            return tracks[0].trak.mdia.mdhdTimeScale / 1000;
+        }
+        return -1;
+    }
+
     private void outBackup() {
         if (auxBuffer == null && lastWriteOffset < 0) {
             lastWriteOffset = writeOffset;
@@ -719,9 +1258,34 @@ public class Mp4FromDashWriter {
             makeTrak(i, durations[i], defaultMediaTime[i], tablesInfo[i], is64);
         }
 
+        if (fragmented) {
+            makeMvex();
+        }
+
         return lengthFor(start);
     }
 
+    private void makeMvex() throws IOException {
+        final int start = auxOffset();
+        auxWrite(new byte[]{0x00, 0x00, 0x00, 0x00, 0x6D, 0x76, 0x65, 0x78}); // mvex
+
+        for (int i = 0; i < tracks.length; i++) {
+            auxWrite(ByteBuffer.allocate(32)
+                    .putInt(32)
+                    .putInt(0x74726578) // trex
+                    .putInt(0x00) // default version & flags
+                    .putInt(i + 1) // track id
+                    .putInt(1) // default sample description index
+                    .putInt(0) // default sample duration
+                    .putInt(0) // default sample size
+                    .putInt(0) // default sample flags
+                    .array()
+            );
+        }
+
+        lengthFor(start);
+    }
+
     private void makeTrak(final int index, final long duration, final int defaultMediaTime,
                           final TablesInfo tables, final boolean is64) throws IOException {
         final int start = auxOffset();
@@ -803,8 +1367,11 @@ public class Mp4FromDashWriter {
         // In audio tracks the following tables is not required: ssts ctts
         // And stsz can be empty if has a default sample size
         //
+        // in fragmented MP4 the tables are empty
+        final int sttsRows = fragmented ? 0 : 1;
+
         if (moovSimulation) {
-            make(0x73747473, -1, 2, 1); // stts
+            make(0x73747473, -1, 2, sttsRows); // stts
             if (tablesInfo.stss > 0) {
                 make(0x73747373, -1, 1, tablesInfo.stss);
             }
@@ -815,7 +1382,7 @@ public class Mp4FromDashWriter {
             make(0x7374737A, tablesInfo.stszDefault, 1, tablesInfo.stsz);
             make(is64 ? 0x636F3634 : 0x7374636F, -1, is64 ? 2 : 1, tablesInfo.stco);
         } else {
-            tablesInfo.stts = make(0x73747473, -1, 2, 1);
+            tablesInfo.stts = make(0x73747473, -1, 2, sttsRows);
             if (tablesInfo.stss > 0) {
                 tablesInfo.stss = make(0x73747373, -1, 1, tablesInfo.stss);
             }
@@ -828,7 +1395,7 @@ public class Mp4FromDashWriter {
                     tablesInfo.stco);
         }
 
-        if (isAudio) {
+        if (isAudio && !fragmented) {
             auxWrite(makeSgpd());
             tablesInfo.sbgp = makeSbgp(); // during simulation the returned offset is ignored
         }
@@ -897,6 +1464,205 @@ public class Mp4FromDashWriter {
         return buffer.array();
     }
 
+    /**
+     * Sample tables of a track, collected in primitive arrays while the samples are written.
+     */
+    final class SampleTables {
+        private int sampleCount = 0;
+        private int[] sizes = new int[1024];
+        private boolean sameSize = true;
+
+        private int syncCount = 0;
+        private int[] sync = new int[64];
+
+        private boolean hasCompositionOffsets = false;
+        private int cttsLength = 0;
+        private int[] ctts = new int[64]; // [sample_count, sample_offset] entries
+        private int cttsRunCount = 0;
+        private int cttsRunOffset = -1;
+
+        private int chunkCount = 0;
+        private long[] chunkOffsets = new long[256];
+
+        private int maxSampleDuration = 0;
+        private int defaultMediaTime = 0;
+        private long duration = 0;
+
+        void addFragment(final Moof moof) {
+            if (defaultMediaTime < 1 && moof.traf.tfhd.defaultSampleDuration > 0) {
+                defaultMediaTime = moof.traf.tfhd.defaultSampleDuration;
+            }
+            duration += moof.traf.trun.chunkDuration;
+        }
+
+        void addSample(final TrunEntry info) {
+            if (sampleCount == sizes.length) {
+                sizes = Arrays.copyOf(sizes, sizes.length * 2);
+            }
+            if (sampleCount > 0 && sizes[sampleCount - 1] != info.sampleSize) {
+                sameSize = false;
+            }
+            sizes[sampleCount++] = info.sampleSize;
+
+            if (info.isKeyframe) {
+                if (syncCount == sync.length) {
+                    sync = Arrays.copyOf(sync, sync.length * 2);
+                }
+                sync[syncCount++] = sampleCount; // the index is not base zero
+            }
+
+            if (info.hasCompositionTimeOffset) {
+                hasCompositionOffsets = true;
+            }
+
+            if (info.sampleCompositionTimeOffset == cttsRunOffset) {
+                cttsRunCount++;
+            } else {
+                flushCompositionOffset();
+                cttsRunCount = 1;
+                cttsRunOffset = info.sampleCompositionTimeOffset;
+            }
+
+            if (info.sampleDuration > maxSampleDuration) {
+                maxSampleDuration = info.sampleDuration;
+            }
+        }
+
+        void addChunk(final long offset) {
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+            }
+            chunkOffsets[chunkCount++] = offset;
+        }
+
+        private void flushCompositionOffset() {
+            if (cttsRunCount < 1) {
+                return;
+            }
+            if (cttsLength + 2 > ctts.length) {
+                ctts = Arrays.copyOf(ctts, ctts.length * 2);
+            }
+            ctts[cttsLength++] = cttsRunCount;
+            ctts[cttsLength++] = cttsRunOffset;
+            cttsRunCount = 0;
+        }
+
+        /**
+         * Sets the row counts of the tables, like the first pass of the two-pass mode.
+         *
+         * @param tables          the tables to fill
+         * @param track           the track, the duration is set if unknown
+         * @param firstCount      the amount of samples of the first chunk
+         * @param successiveCount the amount of samples of the next chunks
+         */
+        void fillTablesInfo(final TablesInfo tables, final Mp4Track track, final int firstCount,
+                            final int successiveCount) {
+            flushCompositionOffset();
+
+            if (defaultMediaTime < 1) {
+                defaultMediaTime = maxSampleDuration;
+            }
+
+            tables.stsz = sampleCount;
+            initChunkTables(tables, firstCount, successiveCount);
+
+            tables.stts = 1;
+            tables.stco = chunkCount;
+            tables.ctts = hasCompositionOffsets ? cttsLength / 2 : 0;
+            tables.stss = syncCount == sampleCount ? -1 : syncCount;
+
+            if (sameSize) {
+                tables.stsz = 0;
+                tables.stszDefault = sampleCount > 0 ? sizes[0] : 0;
+            } else {
+                tables.stszDefault = 0;
+            }
+
+            // ensure track duration
+            if (track.trak.tkhd.duration < 1) {
+                track.trak.tkhd.duration = duration; // this never should happen
+            }
+        }
+
+        /**
+         * Writes the table entries, the tables must be already created by makeMoov().
+         *
+         * @param tables the table offsets returned by makeMoov()
+         * @param is64   if the chunk offsets are 64 bits
+         * @throws IOException if an I/O error occurs
+         */
+        void writeTables(final TablesInfo tables, final boolean is64) throws IOException {
+            writeEntryArray(tables.stts, 2, sampleCount, maxSampleDuration);
+            writeEntryArray(tables.stsc, tables.stscBEntries.length, tables.stscBEntries);
+            tables.stscBEntries = null;
+
+            if (tables.stss > 0) {
+                writeEntryArray(tables.stss, syncCount, sync);
+            }
+            if (tables.ctts > 0) {
+                writeEntryArray(tables.ctts, cttsLength, ctts);
+            }
+            if (tables.stsz > 0) {
+                writeEntryArray(tables.stsz, sampleCount, sizes);
+            }
+            if (tables.sbgp > 0) {
+                writeEntryArray(tables.sbgp, 1, sampleCount);
+            }
+
+            int offset = tables.stco;
+            for (int i = 0; i < chunkCount; i++) {
+                if (is64) {
+                    offset = writeEntry64(offset, chunkOffsets[i]);
+                } else {
+                    offset = writeEntryArray(offset, 1, (int) chunkOffsets[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries of the tfra box of a track, one for every fragment with a keyframe.
+     */
+    static final class FragmentIndex {
+        // time (64 bits), moof offset (64 bits), traf and trun number (8 bits each) and
+        // sample number (32 bits)
+        static final int ENTRY_SIZE = 8 + 8 + 1 + 1 + 4;
+
+        private int count = 0;
+        private long[] times = new long[64];
+        private long[] offsets = new long[64];
+        private int[] samples = new int[64];
+
+        void add(final long time, final long moofOffset, final int sample) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            times[count] = time;
+            offsets[count] = moofOffset;
+            samples[count] = sample;
+            count++;
+        }
+
+        void write(final ByteBuffer buffer, final int trackId) {
+            buffer.putInt(24 + (count * ENTRY_SIZE));
+            buffer.putInt(0x74667261); // tfra
+            buffer.putInt(0x01000000); // version 1
+            buffer.putInt(trackId);
+            buffer.putInt(0x03); // length of traf, trun and sample number fields
+            buffer.putInt(count);
+
+            for (int i = 0; i < count; i++) {
+                buffer.putLong(times[i]);
+                buffer.putLong(offsets[i]);
+                buffer.put((byte) 1); // traf number
+                buffer.put((byte) 1); // trun number
+                buffer.putInt(samples[i]);
+            }
+        }
+    }
+
     static class TablesInfo {
         int stts;
         int stsc;
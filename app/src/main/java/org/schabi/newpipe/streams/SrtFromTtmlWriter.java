@@ -1,18 +1,11 @@
 package org.schabi.newpipe.streams;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.nodes.Node;
-import org.jsoup.nodes.TextNode;
-import org.jsoup.parser.Parser;
-import org.jsoup.select.Elements;
 import org.schabi.newpipe.streams.io.SharpStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 /**
  * @author kapodamy
@@ -24,36 +17,118 @@ public class SrtFromTtmlWriter {
     private final boolean ignoreEmptyFrames;
     private final Charset charset = StandardCharsets.UTF_8;
 
+    private boolean webVtt = false;
     private int frameIndex = 0;
 
+    private final StringBuilder frame = new StringBuilder(256);
+
     public SrtFromTtmlWriter(final SharpStream out, final boolean ignoreEmptyFrames) {
         this.out = out;
         this.ignoreEmptyFrames = ignoreEmptyFrames;
     }
 
-    private static String getTimestamp(final Element frame, final String attr) {
-        return frame
-                .attr(attr)
-                .replace('.', ','); // SRT subtitles uses comma as decimal separator
+    /**
+     * Writes WebVTT subtitles instead of SubRip ones.
+     *
+     * @param webVtt {@code true} to write WebVTT
+     */
+    public void setWebVtt(final boolean webVtt) {
+        this.webVtt = webVtt;
+    }
+
+    private String getTimestamp(final XmlPullReader reader, final String attr) {
+        final String timestamp = reader.getAttribute(attr);
+        if (timestamp == null) {
+            return "";
+        }
+
+        // SRT subtitles uses comma as decimal separator
+        return webVtt ? timestamp : timestamp.replace('.', ',');
     }
 
     private void writeFrame(final String begin, final String end, final StringBuilder text)
             throws IOException {
-        writeString(String.valueOf(frameIndex++));
-        writeString(NEW_LINE);
-        writeString(begin);
-        writeString(" --> ");
-        writeString(end);
-        writeString(NEW_LINE);
-        writeString(text.toString());
-        writeString(NEW_LINE);
-        writeString(NEW_LINE);
+        frame.setLength(0);
+
+        if (!webVtt) {
+            frame.append(frameIndex++).append(NEW_LINE);
+        }
+        frame.append(begin).append(" --> ").append(end).append(NEW_LINE);
+
+        if (webVtt) {
+            appendEscaped(frame, text);
+        } else {
+            frame.append(text);
+        }
+        frame.append(NEW_LINE).append(NEW_LINE);
+
+        writeString(frame.toString());
     }
 
     private void writeString(final String text) throws IOException {
         out.write(text.getBytes(charset));
     }
 
+    /**
+     * Escapes the characters used by the WebVTT cue markup.
+     *
+     * @param target where the escaped text is appended
+     * @param text   the cue text
+     */
+    private static void appendEscaped(final StringBuilder target, final CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    target.append("&amp;");
+                    break;
+                case '<':
+                    target.append("&lt;");
+                    break;
+                case '>':
+                    target.append("&gt;");
+                    break;
+                default:
+                    target.append(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Collapses every whitespace run into a single space and removes the invisible characters,
+     * like the text of the XML nodes is normalized by Jsoup.
+     *
+     * @param target where the normalized text is appended
+     * @param text   the text of the XML node
+     */
+    private static void appendNormalized(final StringBuilder target, final String text) {
+        boolean lastWasWhite = false;
+
+        int i = 0;
+        while (i < text.length()) {
+            final int c = text.codePointAt(i);
+            i += Character.charCount(c);
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == 160) {
+                if (!lastWasWhite) {
+                    target.append(' ');
+                    lastWasWhite = true;
+                }
+            } else if (c != 8203 && c != 173) {
+                target.appendCodePoint(c);
+                lastWasWhite = false;
+            }
+        }
+    }
+
+    private static boolean isParagraph(final ArrayList<String> parents, final String name) {
+        final int size = parents.size();
+        return name.equalsIgnoreCase("p") && size >= 2
+                && parents.get(size - 1).equalsIgnoreCase("div")
+                && parents.get(size - 2).equalsIgnoreCase("body");
+    }
+
     public void build(final SharpStream ttml) throws IOException {
         /*
          * TTML parser with BASIC support
@@ -64,40 +139,72 @@ public class SrtFromTtmlWriter {
          * Language parsing is not supported
          */
 
-        // parse XML
-        final byte[] buffer = new byte[(int) ttml.available()];
-        ttml.read(buffer);
-        final Document doc = Jsoup.parse(new ByteArrayInputStream(buffer), "UTF-8", "",
-                Parser.xmlParser());
-
+        // the XML is parsed while reading, every frame is written when its paragraph ends
+        final XmlPullReader reader = new XmlPullReader(ttml);
+        final ArrayList<String> parents = new ArrayList<>(8);
         final StringBuilder text = new StringBuilder(128);
-        final Elements paragraphList = doc.select("body > div > p");
-
-        // check if has frames
-        if (paragraphList.size() < 1) {
-            return;
-        }
 
-        for (final Element paragraph : paragraphList) {
-            text.setLength(0);
+        // the depth of the current "body > div > p" paragraph
+        int paragraph = -1;
+        String begin = null;
+        String end = null;
 
-            for (final Node children : paragraph.childNodes()) {
-                if (children instanceof TextNode) {
-                    text.append(((TextNode) children).text());
-                } else if (children instanceof Element
-                        && ((Element) children).tagName().equalsIgnoreCase("br")) {
-                    text.append(NEW_LINE);
-                }
-            }
+        if (webVtt) {
+            writeString("WEBVTT" + NEW_LINE + NEW_LINE);
+        }
 
-            if (ignoreEmptyFrames && text.length() < 1) {
-                continue;
+        int event;
+        while ((event = reader.next()) != XmlPullReader.END_DOCUMENT) {
+            switch (event) {
+                case XmlPullReader.START_TAG:
+                    final String name = reader.getName();
+                    if (paragraph < 0 && isParagraph(parents, name)) {
+                        paragraph = parents.size();
+                        begin = getTimestamp(reader, "begin");
+                        end = getTimestamp(reader, "end");
+                        text.setLength(0);
+                    } else if (paragraph >= 0 && parents.size() == paragraph + 1
+                            && name.equalsIgnoreCase("br")) {
+                        text.append(NEW_LINE);
+                    }
+                    parents.add(name);
+                    break;
+                case XmlPullReader.END_TAG:
+                    // the unclosed tags are closed too
+                    final int index = parents.lastIndexOf(reader.getName());
+                    if (index < 0) {
+                        break;
+                    }
+                    while (parents.size() > index) {
+                        parents.remove(parents.size() - 1);
+                    }
+
+                    if (paragraph >= 0 && parents.size() <= paragraph) {
+                        paragraph = -1;
+                        writeParagraph(begin, end, text);
+                    }
+                    break;
+                case XmlPullReader.TEXT:
+                    // only the text of the paragraph, not the text of nested tags
+                    if (paragraph >= 0 && parents.size() == paragraph + 1) {
+                        appendNormalized(text, reader.getText());
+                    }
+                    break;
+                default:
+                    break;
             }
+        }
 
-            final String begin = getTimestamp(paragraph, "begin");
-            final String end = getTimestamp(paragraph, "end");
+        if (paragraph >= 0) {
+            writeParagraph(begin, end, text); // truncated document
+        }
+    }
 
-            writeFrame(begin, end, text);
+    private void writeParagraph(final String begin, final String end, final StringBuilder text)
+            throws IOException {
+        if (ignoreEmptyFrames && text.length() < 1) {
+            return;
         }
+        writeFrame(begin, end, text);
     }
 }
@@ -0,0 +1,128 @@
+package org.schabi.newpipe.streams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the next items (chunks or blocks) of a source track in a background thread, so the reads
+ * of the storage overlap with the work of the writer thread. At most {@code depth} loaded items
+ * wait in the queue, plus the one being loaded.
+ * <p>
+ * The loader thread is never interrupted, an interrupt closes the {@link
+ * java.nio.channels.FileChannel} of the file streams. On {@link #close()} the thread stops after
+ * the item being loaded.
+ * </p>
+ *
+ * @param <T> the item type
+ */
+final class TrackPrefetcher<T> implements Closeable {
+    private static final int POLL_MILLIS = 100;
+    private static final Object END = new Object();
+
+    interface Loader<T> {
+        /**
+         * Loads the next item, called from the prefetch thread. The item must not depend on the
+         * state of the source, because the next one is loaded before the item is used.
+         *
+         * @return the item or {@code null} if there are no more items
+         * @throws IOException if an I/O error occurs
+         */
+        T load() throws IOException;
+    }
+
+    private static final class Failure {
+        private final Throwable error;
+
+        Failure(final Throwable error) {
+            this.error = error;
+        }
+    }
+
+    private final ArrayBlockingQueue<Object> queue;
+    private final Loader<T> loader;
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+    private boolean ended = false;
+
+    TrackPrefetcher(final String name, final int depth, final Loader<T> loader) {
+        this.queue = new ArrayBlockingQueue<>(depth);
+        this.loader = loader;
+
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                final T item = loader.load();
+                if (!put(item == null ? END : item) || item == null) {
+                    return;
+                }
+            }
+        } catch (final Throwable e) {
+            put(new Failure(e));
+        }
+    }
+
+    private boolean put(final Object item) {
+        try {
+            while (!closed) {
+                if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (final InterruptedException e) {
+            // nothing to do
+        }
+        return false;
+    }
+
+    /**
+     * Takes the next loaded item, waits if it is still being loaded. The errors of the loader
+     * are thrown here, in the same order they happen.
+     *
+     * @return the item or {@code null} if there are no more items
+     * @throws IOException if the loader failed
+     */
+    @SuppressWarnings("unchecked")
+    T next() throws IOException {
+        if (ended) {
+            return null;
+        }
+
+        final Object item;
+        try {
+            item = queue.take();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting the " + thread.getName());
+        }
+
+        if (item == END) {
+            ended = true;
+            return null;
+        } else if (item instanceof Failure) {
+            ended = true;
+            final Throwable error = ((Failure) item).error;
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            throw (Error) error;
+        }
+
+        return (T) item;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
@@ -8,18 +8,22 @@ import org.schabi.newpipe.streams.WebMReader.SimpleBlock;
 import org.schabi.newpipe.streams.WebMReader.WebMTrack;
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author kapodamy
  */
 public class WebMWriter implements Closeable {
-    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
     private static final int DEFAULT_TIMECODE_SCALE = 1000000;
     private static final int INTERV = 100; // 100ms on 1000000us timecode scale
     private static final int DEFAULT_CUES_EACH_MS = 5000; // 5000ms on 1000000us timecode scale
@@ -40,11 +44,21 @@ public class WebMWriter implements Closeable {
     private Segment[] readersSegment;
     private Cluster[] readersCluster;
 
+    private int prefetchDepth = 0;
+    private List<TrackPrefetcher<Block>> prefetchers;
+
     private ArrayList<ClusterInfo> clustersOffsetsSizes;
 
+    /**
+     * The output is batched here, the bytes pending to be written are the ones before the
+     * {@link ByteBuffer#position() position} of {@link #outByteBuffer}. The {@link #written}
+     * offset includes them.
+     */
     private byte[] outBuffer;
     private ByteBuffer outByteBuffer;
 
+    private final Block block = new Block();
+
     public WebMWriter(final SharpStream... source) {
         sourceTracks = source;
         readers = new WebMReader[sourceTracks.length];
@@ -102,11 +116,26 @@ public class WebMWriter implements Closeable {
         return done;
     }
 
+    /**
+     * Reads the blocks of every track in a background thread, so the reads of the sources
+     * (slow on SD cards and SAF) overlap with the writing. Every track keeps up to {@code depth}
+     * blocks loaded in memory. The sources must be different streams, and must not be closed
+     * while building.
+     *
+     * @param depth the amount of blocks loaded ahead of every track, {@code 0} to read the
+     *              sources in the writer thread
+     */
+    public void setPrefetchDepth(final int depth) {
+        this.prefetchDepth = depth;
+    }
+
     @Override
     public void close() {
         done = true;
         parsed = true;
 
+        stopPrefetch();
+
         for (final SharpStream src : sourceTracks) {
             src.close();
         }
@@ -122,6 +151,14 @@ public class WebMWriter implements Closeable {
     }
 
     public void build(final SharpStream out) throws IOException, RuntimeException {
+        try {
+            buildSegment(out);
+        } finally {
+            stopPrefetch();
+        }
+    }
+
+    private void buildSegment(final SharpStream out) throws IOException {
         if (!out.canRewind()) {
             throw new IOException("The output stream must be allow seek");
         }
@@ -276,8 +313,10 @@ public class WebMWriter implements Closeable {
 
         /* Segment size */
         seekTo(out, offsetSegmentSizeSet);
-        outByteBuffer.putLong(0, segmentSize);
-        out.write(outBuffer, 1, DataReader.LONG_SIZE - 1);
+        reserve(out, DataReader.LONG_SIZE - 1)
+                .put((byte) (segmentSize >>> 48))
+                .putShort((short) (segmentSize >>> 32))
+                .putInt((int) segmentSize);
 
         /* Segment duration */
         long longestDuration = 0;
@@ -290,8 +329,7 @@ public class WebMWriter implements Closeable {
             }
         }
         seekTo(out, offsetInfoDurationSet);
-        outByteBuffer.putFloat(0, longestDuration);
-        dump(outBuffer, DataReader.FLOAT_SIZE, out);
+        reserve(out, DataReader.FLOAT_SIZE).putFloat(longestDuration);
 
         /* first Cluster offset */
         firstClusterOffset -= segmentOffset;
@@ -304,21 +342,24 @@ public class WebMWriter implements Closeable {
         dump(new byte[]{0x1c, 0x53, (byte) 0xbb, 0x6b, 0x20, 0x00, 0x00}, out); // header size is 7
 
         for (final KeyFrame keyFrame : keyFrames) {
-            final int size = makeCuePoint(cuesForTrackId, keyFrame, outBuffer);
+            final ArrayList<byte[]> cuePoint = makeCuePoint(cuesForTrackId, keyFrame);
+            int size = 0;
+            for (final byte[] buffer : cuePoint) {
+                size += buffer.length;
+            }
 
             if ((cueSize + size + 7 + MINIMUM_EBML_VOID_SIZE) > CUE_RESERVE_SIZE) {
                 break; // no space left
             }
 
             cueSize += size;
-            dump(outBuffer, size, out);
+            dump(cuePoint, out);
         }
 
         makeEbmlVoid(out, CUE_RESERVE_SIZE - cueSize - 7, false);
 
         seekTo(out, cueOffset + 5);
-        outByteBuffer.putShort(0, cueSize);
-        dump(outBuffer, DataReader.SHORT_SIZE, out);
+        reserve(out, DataReader.SHORT_SIZE).putShort(cueSize);
 
         /* seek head, seek for cues element */
         writeInt(out, offsetCuesSet, (int) (cueOffset - segmentOffset));
@@ -326,9 +367,65 @@ public class WebMWriter implements Closeable {
         for (final ClusterInfo cluster : clustersOffsetsSizes) {
             writeInt(out, cluster.offset, cluster.size | 0x10000000);
         }
+
+        flush(out);
     }
 
     private Block getNextBlockFrom(final int internalTrackId) throws IOException {
+        if (prefetchDepth > 0) {
+            return getPrefetcher(internalTrackId).next();
+        }
+        return readBlock(internalTrackId, block);
+    }
+
+    /**
+     * Gets the prefetcher of the track, started by the first block read. From there, only the
+     * prefetch thread uses the reader of the track.
+     *
+     * @param internalTrackId the track index
+     * @return the prefetcher
+     */
+    private TrackPrefetcher<Block> getPrefetcher(final int internalTrackId) {
+        if (prefetchers == null) {
+            prefetchers = new ArrayList<>(Collections.nCopies(readers.length, null));
+        }
+        if (prefetchers.get(internalTrackId) == null) {
+            prefetchers.set(internalTrackId, new TrackPrefetcher<>(
+                    "WebMPrefetch-" + internalTrackId, prefetchDepth, () -> {
+                        final Block loaded = readBlock(internalTrackId, new Block());
+                        if (loaded != null && loaded.data != null) {
+                            // the block data is a view of the source, copy it
+                            final byte[] data = new byte[loaded.dataSize];
+                            int length = 0;
+                            while (length < data.length) {
+                                final int read = loaded.data.read(data, length,
+                                        data.length - length);
+                                if (read < 1) {
+                                    break;
+                                }
+                                length += read;
+                            }
+                            loaded.data = new ByteArrayInputStream(data, 0, length);
+                        }
+                        return loaded;
+                    }));
+        }
+        return prefetchers.get(internalTrackId);
+    }
+
+    private void stopPrefetch() {
+        if (prefetchers == null) {
+            return;
+        }
+        for (final TrackPrefetcher<Block> prefetcher : prefetchers) {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+        }
+        prefetchers = null;
+    }
+
+    private Block readBlock(final int internalTrackId, final Block target) throws IOException {
         if (readersSegment[internalTrackId] == null) {
             readersSegment[internalTrackId] = readers[internalTrackId].getNextSegment();
             if (readersSegment[internalTrackId] == null) {
@@ -340,27 +437,31 @@ public class WebMWriter implements Closeable {
             readersCluster[internalTrackId] = readersSegment[internalTrackId].getNextCluster();
             if (readersCluster[internalTrackId] == null) {
                 readersSegment[internalTrackId] = null;
-                return getNextBlockFrom(internalTrackId);
+                return readBlock(internalTrackId, target);
             }
         }
 
         final SimpleBlock res = readersCluster[internalTrackId].getNextSimpleBlock();
         if (res == null) {
             readersCluster[internalTrackId] = null;
-            return new Block(); // fake block to indicate the end of the cluster
+            target.data = null;
+            return target; // fake block to indicate the end of the cluster
         }
 
-        final Block bloq = new Block();
-        bloq.data = res.data;
-        bloq.dataSize = res.dataSize;
-        bloq.trackNumber = internalTrackId;
-        bloq.flags = res.flags;
-        bloq.absoluteTimecode = res.absoluteTimeCodeNs / DEFAULT_TIMECODE_SCALE;
+        // without prefetch, the block is consumed before reading the next one and the same
+        // instance is reused
+        target.data = res.data;
+        target.dataSize = res.dataSize;
+        target.trackNumber = internalTrackId;
+        target.flags = res.flags;
+        target.absoluteTimecode = res.absoluteTimeCodeNs / DEFAULT_TIMECODE_SCALE;
 
-        return bloq;
+        return target;
     }
 
     private void seekTo(final SharpStream stream, final long offset) throws IOException {
+        flush(stream);
+
         if (stream.canSeek()) {
             stream.seek(offset);
         } else {
@@ -378,8 +479,7 @@ public class WebMWriter implements Closeable {
     private void writeInt(final SharpStream stream, final long offset, final int number)
             throws IOException {
         seekTo(stream, offset);
-        outByteBuffer.putInt(0, number);
-        dump(outBuffer, DataReader.INTEGER_SIZE, stream);
+        reserve(stream, DataReader.INTEGER_SIZE).putInt(number);
     }
 
     private void writeBlock(final SharpStream stream, final Block bloq, final long clusterTimecode)
@@ -390,26 +490,31 @@ public class WebMWriter implements Closeable {
             throw new IndexOutOfBoundsException("SimpleBlock timecode overflow.");
         }
 
-        final ArrayList<byte[]> listBuffer = new ArrayList<>(5);
-        listBuffer.add(new byte[]{(byte) 0xa3});
-        listBuffer.add(null); // block size
-        listBuffer.add(encode(bloq.trackNumber + 1, false));
-        listBuffer.add(ByteBuffer.allocate(DataReader.SHORT_SIZE).putShort((short) relativeTimeCode)
-                .array());
-        listBuffer.add(new byte[]{bloq.flags});
-
-        int blockSize = bloq.dataSize;
-        for (int i = 2; i < listBuffer.size(); i++) {
-            blockSize += listBuffer.get(i).length;
-        }
-        listBuffer.set(1, encode(blockSize, false));
+        final int trackNumber = bloq.trackNumber + 1;
+        final int headerSize = encodedLength(trackNumber) + DataReader.SHORT_SIZE + 1;
+        final int blockSize = headerSize + bloq.dataSize;
 
-        dump(listBuffer, stream);
+        reserve(stream, 1 + encodedLength(blockSize) + headerSize)
+                .put((byte) 0xa3);
+        encode(outByteBuffer, blockSize, false);
+        encode(outByteBuffer, trackNumber, false);
+        outByteBuffer.putShort((short) relativeTimeCode);
+        outByteBuffer.put(bloq.flags);
 
+        // read the block data right after the header, the buffer is written once it is full
         int read;
-        while ((read = bloq.data.read(outBuffer)) > 0) {
-            dump(outBuffer, read, stream);
-        }
+        do {
+            if (!outByteBuffer.hasRemaining()) {
+                flush(stream);
+            }
+
+            final int position = outByteBuffer.position();
+            read = bloq.data.read(outBuffer, position, outByteBuffer.remaining());
+            if (read > 0) {
+                outByteBuffer.position(position + read);
+                written += read;
+            }
+        } while (read > 0);
     }
 
     private long makeCluster(final SharpStream stream, final long timecode, final long offsetStart,
@@ -427,19 +532,17 @@ public class WebMWriter implements Closeable {
 
         if (create) {
             /* cluster */
-            dump(new byte[]{0x1f, 0x43, (byte) 0xb6, 0x75}, stream);
+            reserve(stream, 4).putInt(0x1f43b675);
 
             cluster = new ClusterInfo();
             cluster.offset = written;
             clustersOffsetsSizes.add(cluster);
 
-            dump(new byte[]{
-                    0x10, 0x00, 0x00, 0x00,
+            reserve(stream, 5 + 1 + encodedLength(timecode))
+                    .putInt(0x10000000)
                     /* timestamp */
-                    (byte) 0xe7
-            }, stream);
-
-            dump(encode(timecode, true), stream);
+                    .put((byte) 0xe7);
+            encode(outByteBuffer, timecode, true);
         }
 
         return offset;
@@ -534,8 +637,8 @@ public class WebMWriter implements Closeable {
         return lengthFor(buffer);
     }
 
-    private int makeCuePoint(final int internalTrackId, final KeyFrame keyFrame,
-                             final byte[] buffer) {
+    private ArrayList<byte[]> makeCuePoint(final int internalTrackId,
+                                           final KeyFrame keyFrame) {
         final ArrayList<byte[]> cue = new ArrayList<>(5);
 
         /* CuePoint */
@@ -549,15 +652,7 @@ public class WebMWriter implements Closeable {
         /* CueTrackPosition */
         cue.addAll(makeCueTrackPosition(internalTrackId, keyFrame));
 
-        int size = 0;
-        lengthFor(cue);
-
-        for (final byte[] buff : cue) {
-            System.arraycopy(buff, 0, buffer, size, buff.length);
-            size += buff.length;
-        }
-
-        return size;
+        return lengthFor(cue);
     }
 
     private ArrayList<byte[]> makeCueTrackPosition(final int internalTrackId,
@@ -590,16 +685,17 @@ public class WebMWriter implements Closeable {
         int size = amount;
 
         /* ebml void */
-        outByteBuffer.putShort(0, (short) 0xec20);
-        outByteBuffer.putShort(2, (short) (size - 4));
-
-        dump(outBuffer, 4, out);
+        reserve(out, 4)
+                .putShort((short) 0xec20)
+                .putShort((short) (size - 4));
 
         if (wipe) {
             size -= 4;
             while (size > 0) {
                 final int write = Math.min(size, outBuffer.length);
-                dump(outBuffer, write, out);
+                final int position = reserve(out, write).position();
+                Arrays.fill(outBuffer, position, position + write, (byte) 0);
+                outByteBuffer.position(position + write);
                 size -= write;
             }
         }
@@ -611,15 +707,43 @@ public class WebMWriter implements Closeable {
 
     private void dump(final byte[] buffer, final int count, final SharpStream stream)
             throws IOException {
-        stream.write(buffer, 0, count);
-        written += count;
+        if (count > outBuffer.length) {
+            flush(stream);
+            stream.write(buffer, 0, count);
+            written += count;
+        } else {
+            reserve(stream, count).put(buffer, 0, count);
+        }
     }
 
     private void dump(final ArrayList<byte[]> buffers, final SharpStream stream)
             throws IOException {
         for (final byte[] buffer : buffers) {
-            stream.write(buffer);
-            written += buffer.length;
+            dump(buffer, buffer.length, stream);
+        }
+    }
+
+    /**
+     * Makes room in the output buffer for an element header or a value, the caller must put
+     * exactly the requested amount of bytes in the returned buffer.
+     *
+     * @param stream the output, the pending bytes are written if there is not enough room
+     * @param count  amount of bytes, can not be bigger than the buffer size
+     * @return the output buffer
+     * @throws IOException if an error occurs while writing the pending bytes
+     */
+    private ByteBuffer reserve(final SharpStream stream, final int count) throws IOException {
+        if (outByteBuffer.remaining() < count) {
+            flush(stream);
+        }
+        written += count;
+        return outByteBuffer;
+    }
+
+    private void flush(final SharpStream stream) throws IOException {
+        if (outByteBuffer.position() > 0) {
+            stream.write(outBuffer, 0, outByteBuffer.position());
+            outByteBuffer.clear();
         }
     }
 
@@ -633,40 +757,53 @@ public class WebMWriter implements Closeable {
     }
 
     private byte[] encode(final long number, final boolean withLength) {
-        int length = -1;
-        for (int i = 1; i <= 7; i++) {
-            if (number < Math.pow(2, 7 * i)) {
-                length = i;
-                break;
-            }
+        final int length = encodedLength(number);
+        final byte[] buffer = new byte[(withLength ? 1 : 0) + length];
+
+        encode(ByteBuffer.wrap(buffer), number, withLength);
+        return buffer;
+    }
+
+    /**
+     * Gets the amount of bytes used to encode a number, without counting the length byte.
+     *
+     * @param number the value to encode
+     * @return the length of the encoded number
+     */
+    private static int encodedLength(final long number) {
+        int length = 1;
+        while (length <= 7 && number >= 1L << (7 * length)) {
+            length++;
         }
 
-        if (length < 1) {
+        if (length > 7) {
             throw new ArithmeticException("Can't encode a number of bigger than 7 bytes");
         }
 
-        if (number == (Math.pow(2, 7 * length)) - 1) {
+        if (number == (1L << (7 * length)) - 1) {
             length++;
         }
 
-        final int offset = withLength ? 1 : 0;
-        final byte[] buffer = new byte[offset + length];
-        final long marker = (long) Math.floor((length - 1f) / 8f);
+        return length;
+    }
+
+    private static void encode(final ByteBuffer buffer, final long number,
+                               final boolean withLength) {
+        final int length = encodedLength(number);
+        final int marker = (length - 1) / 8;
 
-        int shift = 0;
-        for (int i = length - 1; i >= 0; i--, shift += 8) {
+        if (withLength) {
+            buffer.put((byte) (0x80 | length));
+        }
+
+        int shift = 8 * (length - 1);
+        for (int i = 0; i < length; i++, shift -= 8) {
             long b = number >>> shift;
             if (!withLength && i == marker) {
                 b = b | (0x80 >>> (length - 1));
             }
-            buffer[offset + i] = (byte) b;
+            buffer.put((byte) b);
         }
-
-        if (withLength) {
-            buffer[0] = (byte) (0x80 | length);
-        }
-
-        return buffer;
     }
 
     private ArrayList<byte[]> encode(final String value) {
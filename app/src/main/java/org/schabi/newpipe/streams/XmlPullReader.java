@@ -0,0 +1,376 @@
+package org.schabi.newpipe.streams;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Minimal XML pull parser, reads the document in small blocks and returns one event (tag or
+ * text) at the time, the memory usage only depends on the size of the biggest tag or text.
+ * Comments, processing instructions and the document type declaration are skipped, CDATA
+ * sections are returned as text. The document is expected to be UTF-8.
+ */
+final class XmlPullReader {
+    static final int END_DOCUMENT = 0;
+    static final int START_TAG = 1;
+    static final int END_TAG = 2;
+    static final int TEXT = 3;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final SharpStream source;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int length = 0;
+
+    // the bytes of the current tag or text
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+
+    private String name;
+    private String text;
+    private final ArrayList<String> attributes = new ArrayList<>(8); // name and value pairs
+    private boolean emptyElement = false;
+
+    XmlPullReader(final SharpStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Reads the next event, an empty element ({@code <br/>}) is returned as a start tag
+     * followed by an end tag.
+     *
+     * @return {@link #START_TAG}, {@link #END_TAG}, {@link #TEXT} or {@link #END_DOCUMENT}
+     * @throws IOException if an I/O error occurs
+     */
+    int next() throws IOException {
+        if (emptyElement) {
+            emptyElement = false;
+            attributes.clear();
+            return END_TAG;
+        }
+
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                return END_DOCUMENT;
+            }
+
+            tokenLength = 0;
+
+            if (c != '<') {
+                while (c >= 0 && c != '<') {
+                    append(c);
+                    c = read();
+                }
+                if (c == '<') {
+                    position--; // the tag is read in the next call
+                }
+
+                text = decodeEntities(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+                return TEXT;
+            }
+
+            c = read();
+            if (c == '?') {
+                skipUntil("?>");
+            } else if (c == '!') {
+                if (readCData()) {
+                    text = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+                    return TEXT;
+                }
+            } else if (c == '/') {
+                readTag();
+                name = new String(token, 0, tokenLength, StandardCharsets.UTF_8).trim();
+                attributes.clear();
+                return END_TAG;
+            } else if (c >= 0) {
+                append(c);
+                readTag();
+
+                emptyElement = tokenLength > 0 && token[tokenLength - 1] == '/';
+                if (emptyElement) {
+                    tokenLength--;
+                }
+
+                parseTag(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+                return START_TAG;
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the current tag.
+     *
+     * @return the tag name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the text, the entities are already decoded.
+     *
+     * @return the text
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Gets an attribute of the current start tag, the name is not case-sensitive.
+     *
+     * @param attributeName the attribute name
+     * @return the decoded value or {@code null} if the attribute is not present
+     */
+    String getAttribute(final String attributeName) {
+        for (int i = 0; i < attributes.size(); i += 2) {
+            if (attributes.get(i).equalsIgnoreCase(attributeName)) {
+                return attributes.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    private int read() throws IOException {
+        if (position >= length) {
+            length = source.read(buffer, 0, buffer.length);
+            position = 0;
+            if (length < 1) {
+                length = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private void append(final int c) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = (byte) c;
+    }
+
+    /**
+     * Reads the rest of the tag until the {@code >} character, the quoted attribute values can
+     * contain it.
+     */
+    private void readTag() throws IOException {
+        int quote = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return;
+            }
+            append(c);
+        }
+    }
+
+    /**
+     * Reads the markup which starts with {@code <!}, a comment or a document type declaration
+     * is skipped.
+     *
+     * @return {@code true} if a CDATA section was read in the token
+     */
+    private boolean readCData() throws IOException {
+        int c = read();
+        if (c == '-') {
+            skipUntil("-->");
+            return false;
+        }
+
+        if (c == '[') {
+            // "CDATA["
+            for (int i = 0; i < 6; i++) {
+                c = read();
+            }
+            c = read();
+            while (c >= 0) {
+                append(c);
+                if (c == '>' && tokenLength >= 3 && token[tokenLength - 2] == ']'
+                        && token[tokenLength - 3] == ']') {
+                    tokenLength -= 3;
+                    break;
+                }
+                c = read();
+            }
+            return true;
+        }
+
+        // document type declaration, can contain an internal subset between brackets
+        int brackets = 0;
+        while (c >= 0 && (c != '>' || brackets > 0)) {
+            if (c == '[') {
+                brackets++;
+            } else if (c == ']') {
+                brackets--;
+            }
+            c = read();
+        }
+        return false;
+    }
+
+    /**
+     * Skips the markup until the given terminator, like {@code ?>} or {@code -->}.
+     *
+     * @param terminator the last characters of the markup
+     */
+    private void skipUntil(final String terminator) throws IOException {
+        final int last = terminator.length() - 1;
+        int matched = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == terminator.charAt(matched)) {
+                if (matched == last) {
+                    return;
+                }
+                matched++;
+            } else if (c == terminator.charAt(0)) {
+                // "--->" is still the end of a comment
+                matched = terminator.charAt(0) == terminator.charAt(1) ? Math.min(matched, 2)
+                        : 1;
+            } else {
+                matched = 0;
+            }
+        }
+    }
+
+    private void parseTag(final String tag) {
+        attributes.clear();
+
+        int i = 0;
+        while (i < tag.length() && !Character.isWhitespace(tag.charAt(i))) {
+            i++;
+        }
+        name = tag.substring(0, i);
+
+        while (i < tag.length()) {
+            while (i < tag.length() && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+
+            final int nameStart = i;
+            while (i < tag.length() && tag.charAt(i) != '='
+                    && !Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            if (i == nameStart) {
+                break;
+            }
+            final String attributeName = tag.substring(nameStart, i);
+
+            while (i < tag.length() && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+
+            String value = "";
+            if (i < tag.length() && tag.charAt(i) == '=') {
+                i++;
+                while (i < tag.length() && Character.isWhitespace(tag.charAt(i))) {
+                    i++;
+                }
+
+                if (i < tag.length()) {
+                    final char quote = tag.charAt(i);
+                    final int valueStart;
+                    if (quote == '"' || quote == '\'') {
+                        valueStart = ++i;
+                        while (i < tag.length() && tag.charAt(i) != quote) {
+                            i++;
+                        }
+                        value = tag.substring(valueStart, i++);
+                    } else {
+                        valueStart = i;
+                        while (i < tag.length() && !Character.isWhitespace(tag.charAt(i))) {
+                            i++;
+                        }
+                        value = tag.substring(valueStart, i);
+                    }
+                }
+            }
+
+            attributes.add(attributeName);
+            attributes.add(decodeEntities(value));
+        }
+    }
+
+    /**
+     * Decodes the XML entities and the numeric character references, unknown entities are
+     * left as they are.
+     *
+     * @param value the raw text or attribute value
+     * @return the decoded value
+     */
+    static String decodeEntities(final String value) {
+        int index = value.indexOf('&');
+        if (index < 0) {
+            return value;
+        }
+
+        final StringBuilder result = new StringBuilder(value.length());
+        int start = 0;
+
+        while (index >= 0) {
+            final int end = value.indexOf(';', index);
+            if (end < 0) {
+                break;
+            }
+
+            final String entity = value.substring(index + 1, end);
+            final int codePoint = getCodePoint(entity);
+
+            if (codePoint >= 0) {
+                result.append(value, start, index).appendCodePoint(codePoint);
+                start = end + 1;
+            }
+
+            index = value.indexOf('&', codePoint >= 0 ? start : index + 1);
+        }
+
+        return result.append(value, start, value.length()).toString();
+    }
+
+    private static int getCodePoint(final String entity) {
+        switch (entity) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return 160; // not an XML entity, but used by some subtitles
+            default:
+                break;
+        }
+
+        if (entity.length() < 2 || entity.charAt(0) != '#') {
+            return -1;
+        }
+
+        try {
+            final int codePoint;
+            if (entity.charAt(1) == 'x' || entity.charAt(1) == 'X') {
+                codePoint = Integer.parseInt(entity.substring(2), 16);
+            } else {
+                codePoint = Integer.parseInt(entity.substring(1));
+            }
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package org.schabi.newpipe.streams.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Decorator that reads ahead and writes behind in a background thread, so the I/O of the wrapped
+ * stream overlaps with the work of the caller. The memory used is bounded by
+ * {@code bufferCount * bufferSize}.
+ * <p>
+ * The sequential reads are served from the buffers read ahead, and the writes are queued and
+ * written in order. Seeking, rewinding, or switching between reading and writing waits for the
+ * queued writes and drops the data read ahead. The wrapped stream must be at its start, the
+ * position is tracked here to move the wrapped stream back after dropping the data read ahead.
+ * </p>
+ * <p>
+ * The error of a queued write is thrown by the next write, read, flush or seek, and from there
+ * by every operation because the written data is incomplete. {@link #close()} can not throw it,
+ * call {@link #flush()} before. The error of a read ahead is thrown once the caller reaches the
+ * failed position, and is discarded if the caller seeks before.
+ * </p>
+ * <p>
+ * This class is not thread-safe, only one thread can use it at the time.
+ * </p>
+ */
+public final class BufferedSharpStream extends SharpStream {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    private static final int IDLE = 0;
+    private static final int READING = 1;
+    private static final int WRITING = 2;
+
+    private static final class Buffer {
+        private final byte[] data;
+        private int offset;
+        private int length;
+
+        Buffer(final int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final SharpStream stream;
+    private final int bufferSize;
+    private final int bufferCount;
+
+    // the fields below are guarded by the lock, the worker thread only uses the wrapped stream
+    // while "busy" is set
+    private final Object lock = new Object();
+    private final ArrayDeque<Buffer> queue = new ArrayDeque<>(); // read ahead or to be written
+    private final ArrayDeque<Buffer> free = new ArrayDeque<>();
+    private int allocated = 0;
+    private int mode = IDLE;
+    private boolean busy = false;
+    private boolean endReached = false;
+    private IOException readError;
+    private volatile IOException writeError; // also checked without the lock, by the writes
+    private boolean closed = false;
+    private Thread worker;
+
+    // the fields below are used by the caller thread only
+    private Buffer current; // being read, or being filled by the writes
+    private long position = 0;
+    private long readEnd; // the stream length when reading ahead, used by available()
+
+    public BufferedSharpStream(final SharpStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Wraps the stream.
+     *
+     * @param stream      the stream, at its start
+     * @param bufferSize  the size of every buffer, and of the reads and writes of the stream
+     * @param bufferCount the amount of buffers, at least 2
+     */
+    public BufferedSharpStream(final SharpStream stream, final int bufferSize,
+                               final int bufferCount) {
+        if (bufferSize < 1 || bufferCount < 2) {
+            throw new IllegalArgumentException("invalid buffers: " + bufferCount + " of "
+                    + bufferSize + " bytes");
+        }
+        this.stream = stream;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+    }
+
+    private void run() {
+        while (true) {
+            final Buffer buffer;
+            final boolean write;
+
+            synchronized (lock) {
+                try {
+                    while (true) {
+                        if (closed) {
+                            return;
+                        } else if (mode == WRITING && !queue.isEmpty()) {
+                            buffer = queue.peekFirst();
+                            write = true;
+                            break;
+                        } else if (mode == READING && !endReached && readError == null
+                                && (!free.isEmpty() || allocated < bufferCount)) {
+                            buffer = obtainBuffer();
+                            write = false;
+                            break;
+                        }
+                        lock.wait();
+                    }
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                busy = true;
+            }
+
+            IOException error = null;
+            int read = 0;
+            try {
+                if (write) {
+                    stream.write(buffer.data, 0, buffer.length);
+                } else {
+                    read = stream.read(buffer.data, 0, bufferSize);
+                }
+            } catch (final IOException e) {
+                error = e;
+            } catch (final RuntimeException e) {
+                error = new IOException(e);
+            }
+
+            synchronized (lock) {
+                busy = false;
+
+                if (write) {
+                    queue.pollFirst();
+                    free.add(buffer);
+                    if (error != null) {
+                        writeError = error;
+                        // the rest of the data can not be written
+                        free.addAll(queue);
+                        queue.clear();
+                    }
+                } else if (error != null || read < 1) {
+                    free.add(buffer);
+                    readError = error;
+                    endReached = error == null;
+                } else {
+                    buffer.offset = 0;
+                    buffer.length = read;
+                    queue.addLast(buffer);
+                }
+
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private Buffer obtainBuffer() {
+        if (free.isEmpty()) {
+            allocated++;
+            return new Buffer(bufferSize);
+        }
+        return free.pollFirst();
+    }
+
+    private void waitLock() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting the background I/O");
+        }
+    }
+
+    private void throwWriteError() throws IOException {
+        if (writeError != null) {
+            throw new IOException("a previous write failed", writeError);
+        }
+    }
+
+    /**
+     * Finishes the current mode and switches to the given one. The pending writes are written
+     * and the data read ahead is dropped, moving the stream back to the current position.
+     *
+     * @param newMode the new mode
+     * @throws IOException if a write fails or the stream can not be moved back
+     */
+    private void switchMode(final int newMode) throws IOException {
+        synchronized (lock) {
+            throwWriteError();
+            if (mode == newMode) {
+                return;
+            }
+
+            if (mode == WRITING) {
+                waitWrites();
+            } else if (mode == READING) {
+                mode = IDLE;
+                while (busy) {
+                    waitLock();
+                }
+
+                long unread = 0;
+                if (current != null) {
+                    unread += current.length - current.offset;
+                    free.add(current);
+                    current = null;
+                }
+                for (final Buffer buffer : queue) {
+                    unread += buffer.length;
+                }
+                free.addAll(queue);
+                queue.clear();
+
+                if (unread > 0 || readError != null) {
+                    moveTo(position);
+                }
+                endReached = false;
+                readError = null;
+            }
+
+            mode = newMode;
+            if (newMode == READING) {
+                readEnd = position + stream.available();
+            }
+
+            if (newMode != IDLE && worker == null) {
+                worker = new Thread(this::run, "BufferedSharpStream");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the buffer being filled and waits until all the queued writes are written.
+     *
+     * @throws IOException if a write fails
+     */
+    private void waitWrites() throws IOException {
+        if (current != null) {
+            if (current.length > 0) {
+                queue.addLast(current);
+                lock.notifyAll();
+            } else {
+                free.add(current);
+            }
+            current = null;
+        }
+
+        while (busy || (!queue.isEmpty() && writeError == null)) {
+            waitLock();
+        }
+        throwWriteError();
+    }
+
+    private void moveTo(final long offset) throws IOException {
+        if (stream.canSeek()) {
+            stream.seek(offset);
+        } else if (stream.canRewind()) {
+            stream.rewind();
+            long remaining = offset;
+            while (remaining > 0) {
+                final long skipped = stream.skip(remaining);
+                if (skipped < 1) {
+                    throw new IOException("can not move the stream back to " + offset);
+                }
+                remaining -= skipped;
+            }
+        } else {
+            throw new IOException("can not move the stream back to " + offset);
+        }
+    }
+
+    /**
+     * Gets the next buffer read ahead, the current one was fully read.
+     *
+     * @param wait {@code true} to wait if the next buffer is still being read
+     * @return the buffer, or {@code null} if the stream ended or {@code wait} is {@code false}
+     * and the buffer is not ready yet
+     * @throws IOException if the read of the buffer failed
+     */
+    private Buffer nextReadBuffer(final boolean wait) throws IOException {
+        synchronized (lock) {
+            if (current != null) {
+                free.add(current);
+                current = null;
+                lock.notifyAll();
+            }
+
+            while (queue.isEmpty()) {
+                if (!wait || endReached) {
+                    return null;
+                } else if (readError != null) {
+                    throw readError;
+                }
+                waitLock();
+            }
+
+            current = queue.pollFirst();
+            return current;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mode != READING) {
+            switchMode(READING);
+        }
+
+        if ((current == null || current.offset >= current.length)
+                && nextReadBuffer(true) == null) {
+            return -1;
+        }
+
+        position++;
+        return current.data[current.offset++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer) throws IOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+        if (count < 1) {
+            return 0;
+        } else if (mode != READING) {
+            switchMode(READING);
+        }
+
+        int total = 0;
+        while (total < count) {
+            // only wait for the first bytes, return the bytes already read ahead
+            if ((current == null || current.offset >= current.length)
+                    && nextReadBuffer(total == 0) == null) {
+                break;
+            }
+
+            final int amount = Math.min(count - total, current.length - current.offset);
+            System.arraycopy(current.data, current.offset, buffer, offset + total, amount);
+            current.offset += amount;
+            total += amount;
+        }
+
+        position += total;
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public long skip(final long amount) throws IOException {
+        if (amount < 1) {
+            return 0;
+        }
+
+        long skipped = 0;
+        if (mode == READING) {
+            // drop the data read ahead, without waiting
+            while (skipped < amount) {
+                if ((current == null || current.offset >= current.length)
+                        && nextReadBuffer(false) == null) {
+                    break;
+                }
+                final int count = (int) Math.min(amount - skipped,
+                        current.length - current.offset);
+                current.offset += count;
+                skipped += count;
+            }
+            position += skipped;
+        }
+
+        if (skipped < amount) {
+            switchMode(IDLE);
+            final long res = stream.skip(amount - skipped);
+            if (res > 0) {
+                position += res;
+                skipped += res;
+            }
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public long available() {
+        if (mode == READING) {
+            return readEnd - position;
+        }
+
+        try {
+            switchMode(IDLE);
+        } catch (final IOException e) {
+            return 0; // thrown again by the next operation
+        }
+        return stream.available();
+    }
+
+    @Override
+    public void rewind() throws IOException {
+        switchMode(IDLE);
+        stream.rewind();
+        position = 0;
+    }
+
+    @Override
+    public void seek(final long offset) throws IOException {
+        switchMode(IDLE);
+        stream.seek(offset);
+        position = offset;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                if (mode == WRITING) {
+                    waitWrites();
+                }
+                while (busy) {
+                    waitLock();
+                }
+            } catch (final IOException e) {
+                // thrown by flush(), if it was called
+            }
+
+            closed = true;
+            lock.notifyAll();
+        }
+        stream.close();
+    }
+
+    @Override
+    public boolean canRewind() {
+        return stream.canRewind();
+    }
+
+    @Override
+    public boolean canRead() {
+        return stream.canRead();
+    }
+
+    @Override
+    public boolean canWrite() {
+        return stream.canWrite();
+    }
+
+    @Override
+    public boolean canSetLength() {
+        return stream.canSetLength();
+    }
+
+    @Override
+    public boolean canSeek() {
+        return stream.canSeek();
+    }
+
+    @Override
+    public void write(final byte value) throws IOException {
+        write(new byte[]{value}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer) throws IOException {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+        if (mode != WRITING) {
+            switchMode(WRITING);
+        } else {
+            throwWriteError();
+        }
+
+        int done = 0;
+        while (done < count) {
+            if (current == null) {
+                synchronized (lock) {
+                    while (free.isEmpty() && allocated >= bufferCount && writeError == null) {
+                        waitLock();
+                    }
+                    throwWriteError();
+                    current = obtainBuffer();
+                    current.length = 0;
+                }
+            }
+
+            final int amount = Math.min(count - done, bufferSize - current.length);
+            System.arraycopy(buffer, offset + done, current.data, current.length, amount);
+            current.length += amount;
+            done += amount;
+
+            if (current.length >= bufferSize) {
+                synchronized (lock) {
+                    queue.addLast(current);
+                    current = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        position += count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (mode == WRITING) {
+                waitWrites();
+            } else {
+                // no writes pending, but the stream can not be used while reading ahead
+                while (busy) {
+                    waitLock();
+                }
+                throwWriteError();
+            }
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void setLength(final long length) throws IOException {
+        switchMode(IDLE);
+        stream.setLength(length);
+        position = Math.min(position, length);
+    }
+
+    @Override
+    public long length() throws IOException {
+        if (mode != READING) {
+            switchMode(IDLE);
+            return stream.length();
+        }
+
+        synchronized (lock) {
+            while (busy) {
+                waitLock();
+            }
+            return stream.length();
+        }
+    }
+
+    /**
+     * Copies the data read ahead to the target. The stream never transfers the data by itself,
+     * because the part already read ahead would be read twice, and a {@code CircularFileWriter}
+     * may have overwritten it in the meantime.
+     *
+     * @param count  the amount of bytes to copy
+     * @param target the output stream
+     * @return the amount of bytes copied, 0 at the end of the stream
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        if (count < 1) {
+            return 0;
+        } else if (mode != READING) {
+            switchMode(READING);
+        }
+
+        long done = 0;
+        while (done < count) {
+            if ((current == null || current.offset >= current.length)
+                    && nextReadBuffer(done == 0) == null) {
+                break;
+            }
+            final int amount = (int) Math.min(count - done, current.length - current.offset);
+            target.write(current.data, current.offset, amount);
+            current.offset += amount;
+            done += amount;
+        }
+
+        position += done;
+        return done;
+    }
+
+    @Override
+    public long transferFrom(final FileChannel source, final long sourcePosition,
+                             final long count) throws IOException {
+        switchMode(IDLE);
+        final long transferred = stream.transferFrom(source, sourcePosition, count);
+        if (transferred > 0) {
+            position += transferred;
+        }
+        return transferred;
+    }
+}
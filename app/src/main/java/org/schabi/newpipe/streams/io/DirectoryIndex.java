@@ -0,0 +1,314 @@
+package org.schabi.newpipe.streams.io;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static android.provider.DocumentsContract.Document.COLUMN_DISPLAY_NAME;
+import static android.provider.DocumentsContract.Document.COLUMN_DOCUMENT_ID;
+
+/**
+ * Names of the files in a directory of the Storage Access Framework, so every new download can
+ * check if a filename is in use without listing the whole directory again. The directory is
+ * listed once, the files created and deleted by the app are added and removed here.
+ * <p>
+ * The changes made by other apps are not seen until the index is invalidated, this is done when
+ * the storage provider notifies a change in the directory, or once the index is older than
+ * {@link #MAX_AGE_MILLIS} because most providers do not notify anything. The names are compared
+ * ignoring the case, like {@link StoredFileHelper#equals(StoredFileHelper)} does.
+ * </p>
+ */
+final class DirectoryIndex {
+    static final long MAX_AGE_MILLIS = 30 * 1000;
+    static final int MAX_NUMBERED_NAMES = 999;
+
+    /**
+     * Indexes of the directories used, by the uri of the tree
+     */
+    private static final HashMap<String, DirectoryIndex> INDEXES = new HashMap<>();
+
+    /**
+     * Lists the files of a directory.
+     */
+    interface Lister {
+        /**
+         * @return the document id of every file by its name, or {@code null} if the directory
+         * can not be listed
+         */
+        @Nullable
+        Map<String, String> list();
+    }
+
+    private final Lister lister;
+    private final long maxAgeNanos;
+
+    /**
+     * Document id of every file by its lowercase name, {@code null} if not listed yet. The names
+     * reserved by {@link #reserveUniqueName(String)} have no document id.
+     */
+    private HashMap<String, String> documentIds = null;
+    private long listedAt;
+
+    /**
+     * Last number given to every numbered filename, the lower numbers are known to be in use
+     */
+    private final HashMap<String, Integer> lastNumbers = new HashMap<>();
+
+    DirectoryIndex(@NonNull final Lister lister, final long maxAgeMillis) {
+        this.lister = lister;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Lists the directory if the index was not built yet, or it is outdated.
+     *
+     * @return {@code false} if the directory can not be listed
+     */
+    synchronized boolean load() {
+        if (documentIds != null && System.nanoTime() - listedAt < maxAgeNanos) {
+            return true;
+        }
+
+        documentIds = null;
+        lastNumbers.clear();
+
+        final Map<String, String> listed = lister.list();
+        if (listed == null) {
+            return false;
+        }
+
+        documentIds = new HashMap<>(listed.size() * 2);
+        for (final Map.Entry<String, String> entry : listed.entrySet()) {
+            if (entry.getKey() != null) {
+                documentIds.put(entry.getKey().toLowerCase(), entry.getValue());
+            }
+        }
+        listedAt = System.nanoTime();
+
+        return true;
+    }
+
+    /**
+     * Must be called after {@link #load()} succeeds.
+     *
+     * @param filename the filename
+     * @return {@code true} if a file has the name, or the name is reserved
+     */
+    synchronized boolean contains(@NonNull final String filename) {
+        return documentIds != null && documentIds.containsKey(filename.toLowerCase());
+    }
+
+    /**
+     * Must be called after {@link #load()} succeeds.
+     *
+     * @param filename the filename
+     * @return the document id of the file, or {@code null} if there is no such file
+     */
+    @Nullable
+    synchronized String findDocumentId(@NonNull final String filename) {
+        return documentIds == null ? null : documentIds.get(filename.toLowerCase());
+    }
+
+    /**
+     * Finds a filename not in use and reserves it, so other downloads do not pick the same name
+     * before the file is created. The name is the given one or {@code "name (N).ext"} with the
+     * lowest number available. Must be called after {@link #load()} succeeds.
+     *
+     * @param filename the filename wanted
+     * @return the name reserved, or {@code null} if all the numbered names are in use
+     */
+    @Nullable
+    synchronized String reserveUniqueName(@NonNull final String filename) {
+        if (documentIds == null) {
+            return null;
+        }
+
+        if (!documentIds.containsKey(filename.toLowerCase())) {
+            documentIds.put(filename.toLowerCase(), null);
+            return filename;
+        }
+
+        final String[] parts = splitFilename(filename);
+        final String key = filename.toLowerCase();
+        final Integer last = lastNumbers.get(key);
+
+        for (int i = last == null ? 1 : last + 1; i <= MAX_NUMBERED_NAMES; i++) {
+            final String name = makeFileName(parts[0], i, parts[1]);
+            if (!documentIds.containsKey(name.toLowerCase())) {
+                documentIds.put(name.toLowerCase(), null);
+                lastNumbers.put(key, i);
+                return name;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a file created in the directory.
+     *
+     * @param filename   the name given to the file, it can differ from the name requested
+     * @param documentId the document id of the file
+     */
+    synchronized void onCreated(@NonNull final String filename,
+                                @Nullable final String documentId) {
+        if (documentIds != null) {
+            documentIds.put(filename.toLowerCase(), documentId);
+        }
+    }
+
+    /**
+     * Removes a file deleted from the directory, or a name reserved but not used.
+     *
+     * @param filename the filename
+     */
+    synchronized void onDeleted(@NonNull final String filename) {
+        if (documentIds != null) {
+            documentIds.remove(filename.toLowerCase());
+            // the lowest number available can be a lower one now
+            lastNumbers.clear();
+        }
+    }
+
+    /**
+     * Discards the index, the directory is listed again the next time.
+     */
+    synchronized void invalidate() {
+        documentIds = null;
+        lastNumbers.clear();
+    }
+
+    ////////////////////
+    //      Utils
+    ///////////////////
+
+    static String[] splitFilename(@NonNull final String filename) {
+        final int dotIndex = filename.lastIndexOf('.');
+
+        if (dotIndex < 0 || (dotIndex == filename.length() - 1)) {
+            return new String[]{filename, ""};
+        }
+
+        return new String[]{filename.substring(0, dotIndex), filename.substring(dotIndex)};
+    }
+
+    static String makeFileName(final String name, final int idx, final String ext) {
+        return name.concat(" (").concat(String.valueOf(idx)).concat(")").concat(ext);
+    }
+
+    /**
+     * Gets the index of a directory, created the first time. The index is invalidated when the
+     * storage provider notifies a change in the directory.
+     *
+     * @param context the context
+     * @param treeUri the uri of the directory tree
+     * @return the index, shared by every {@link StoredDirectoryHelper} of the directory
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @NonNull
+    static DirectoryIndex forTree(@NonNull final Context context, @NonNull final Uri treeUri) {
+        synchronized (INDEXES) {
+            DirectoryIndex index = INDEXES.get(treeUri.toString());
+            if (index != null) {
+                return index;
+            }
+
+            final ContentResolver contentResolver =
+                    context.getApplicationContext().getContentResolver();
+            final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                    DocumentsContract.getDocumentId(treeUri));
+
+            index = new DirectoryIndex(() -> listChildren(contentResolver, childrenUri),
+                    MAX_AGE_MILLIS);
+
+            final DirectoryIndex observed = index;
+            try {
+                contentResolver.registerContentObserver(childrenUri, true,
+                        new ContentObserver(null) {
+                            @Override
+                            public void onChange(final boolean selfChange) {
+                                observed.invalidate();
+                            }
+                        });
+            } catch (final SecurityException e) {
+                // not allowed, only the maximum age applies
+            }
+
+            INDEXES.put(treeUri.toString(), index);
+            return index;
+        }
+    }
+
+    /**
+     * Updates the index of a directory, if the directory is indexed.
+     *
+     * @param treeUri    the uri of the directory tree
+     * @param filename   the name of the file created
+     * @param documentId the document id of the file
+     */
+    static void notifyCreated(@Nullable final String treeUri, @Nullable final String filename,
+                              @Nullable final String documentId) {
+        final DirectoryIndex index = get(treeUri);
+        if (index != null && filename != null) {
+            index.onCreated(filename, documentId);
+        }
+    }
+
+    /**
+     * Updates the index of a directory, if the directory is indexed.
+     *
+     * @param treeUri  the uri of the directory tree
+     * @param filename the name of the file deleted
+     */
+    static void notifyDeleted(@Nullable final String treeUri, @Nullable final String filename) {
+        final DirectoryIndex index = get(treeUri);
+        if (index != null && filename != null) {
+            index.onDeleted(filename);
+        }
+    }
+
+    @Nullable
+    private static DirectoryIndex get(@Nullable final String treeUri) {
+        if (treeUri == null) {
+            return null;
+        }
+        synchronized (INDEXES) {
+            return INDEXES.get(treeUri);
+        }
+    }
+
+    @Nullable
+    private static Map<String, String> listChildren(@NonNull final ContentResolver resolver,
+                                                    @NonNull final Uri childrenUri) {
+        final String[] projection = {COLUMN_DISPLAY_NAME, COLUMN_DOCUMENT_ID};
+
+        try (Cursor cursor = resolver.query(childrenUri, projection, null, null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+
+            final HashMap<String, String> children = new HashMap<>(cursor.getCount() * 2);
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    children.put(cursor.getString(0), cursor.getString(1));
+                }
+            }
+            return children;
+        } catch (final Exception e) {
+            // missing read permission or the directory was deleted
+            return null;
+        }
+    }
+}
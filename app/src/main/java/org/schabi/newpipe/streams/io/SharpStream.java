@@ -3,6 +3,8 @@ package org.schabi.newpipe.streams.io;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Based on C#'s Stream class. SharpStream is a wrapper around the 2 different APIs for SAF
@@ -67,4 +69,55 @@ public abstract class SharpStream implements Closeable, Flushable {
     public long length() throws IOException {
         throw new UnsupportedOperationException("Unsupported operation");
     }
+
+    /**
+     * Indicates if the stream is mapped in memory, see {@link #readMapped(int)}.
+     *
+     * @return {@code true} if the bytes can be read without copying them
+     */
+    public boolean canReadMapped() {
+        return false;
+    }
+
+    /**
+     * Reads the next bytes without copying them, the returned buffer is a read-only slice of the
+     * mapped file. The stream position is moved after the returned bytes.
+     *
+     * @param count the amount of bytes to read
+     * @return the bytes, less than {@code count} only if the stream ends
+     * @throws IOException if an I/O error occurs
+     */
+    public ByteBuffer readMapped(final int count) throws IOException {
+        throw new UnsupportedOperationException("Unsupported operation");
+    }
+
+    /**
+     * Copies bytes from the current position of this stream to the current position of the
+     * target, without reading them into a buffer. Only possible if both streams are backed by
+     * files, see {@link #transferFrom(FileChannel, long, long)}.
+     *
+     * @param count  the amount of bytes to copy
+     * @param target the output stream
+     * @return the amount of bytes copied, or -1 if the streams do not support it and the caller
+     * must copy the data
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        return -1;
+    }
+
+    /**
+     * Writes bytes of a file at the current position of this stream, the file position of the
+     * source channel is not modified.
+     *
+     * @param source   the channel of the input file
+     * @param position the position in the input file
+     * @param count    the amount of bytes to copy
+     * @return the amount of bytes copied, or -1 if this stream can not write from a channel
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferFrom(final FileChannel source, final long position, final long count)
+            throws IOException {
+        return -1;
+    }
 }
@@ -69,8 +69,16 @@ public class StoredDirectoryHelper {
     }
 
     public StoredFileHelper createUniqueFile(final String name, final String mime) {
+        if (docTree != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // warning: SAF file listing is very slow, the directory is listed only once
+            final DirectoryIndex index = DirectoryIndex.forTree(context, docTree.getUri());
+            if (index.load()) {
+                return createUniqueFile(index, name, mime);
+            }
+        }
+
         final ArrayList<String> matches = new ArrayList<>();
-        final String[] filename = splitFilename(name);
+        final String[] filename = DirectoryIndex.splitFilename(name);
         final String lcFilename = filename[0].toLowerCase();
 
         if (docTree == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
@@ -78,7 +86,6 @@ public class StoredDirectoryHelper {
                 addIfStartWith(matches, lcFilename, file.getName());
             }
         } else {
-            // warning: SAF file listing is very slow
             final Uri docTreeChildren = DocumentsContract.buildChildDocumentsUriUsingTree(
                     docTree.getUri(), DocumentsContract.getDocumentId(docTree.getUri()));
 
@@ -116,9 +123,11 @@ public class StoredDirectoryHelper {
 
         Collections.sort(matches, String::compareTo);
 
-        for (int i = 1; i < 1000; i++) {
-            if (Collections.binarySearch(matches, makeFileName(lcFilename, i, filename[1])) < 0) {
-                return createFile(makeFileName(filename[0], i, filename[1]), mime, true);
+        for (int i = 1; i <= DirectoryIndex.MAX_NUMBERED_NAMES; i++) {
+            final String testName = DirectoryIndex.makeFileName(lcFilename, i, filename[1]);
+            if (Collections.binarySearch(matches, testName) < 0) {
+                return createFile(DirectoryIndex.makeFileName(filename[0], i, filename[1]), mime,
+                        true);
             }
         }
 
@@ -126,6 +135,24 @@ public class StoredDirectoryHelper {
                 false);
     }
 
+    private StoredFileHelper createUniqueFile(final DirectoryIndex index, final String name,
+                                              final String mime) {
+        final String uniqueName = index.reserveUniqueName(name);
+        if (uniqueName == null) {
+            return createFile(String.valueOf(System.currentTimeMillis())
+                    .concat(DirectoryIndex.splitFilename(name)[1]), mime, false);
+        }
+
+        final StoredFileHelper storage = createFile(uniqueName, mime, true);
+        if (storage == null || !uniqueName.equalsIgnoreCase(storage.getName())) {
+            // not created, or named differently by the storage provider, the name reserved can
+            // be in use by a file not indexed, list the directory again
+            index.invalidate();
+        }
+
+        return storage;
+    }
+
     private StoredFileHelper createFile(final String filename, final String mime,
                                         final boolean safe) {
         final StoredFileHelper storage;
@@ -215,6 +242,25 @@ public class StoredDirectoryHelper {
             return res.exists() ? Uri.fromFile(res) : null;
         }
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final DirectoryIndex index = DirectoryIndex.forTree(context, docTree.getUri());
+            // the file can be deleted by other app while indexed, the directory is listed again
+            for (int i = 0; i < 2 && index.load(); i++) {
+                final String documentId = index.findDocumentId(filename);
+                if (documentId == null) {
+                    return null;
+                }
+
+                final Uri uri = DocumentsContract.buildDocumentUriUsingTree(docTree.getUri(),
+                        documentId);
+                final DocumentFile file = DocumentFile.fromSingleUri(context, uri);
+                if (file != null && file.exists()) {
+                    return uri;
+                }
+                index.invalidate();
+            }
+        }
+
         final DocumentFile res = findFileSAFHelper(context, docTree, filename);
         return res == null ? null : res.getUri();
     }
@@ -253,20 +299,6 @@ public class StoredDirectoryHelper {
         }
     }
 
-    private static String[] splitFilename(@NonNull final String filename) {
-        final int dotIndex = filename.lastIndexOf('.');
-
-        if (dotIndex < 0 || (dotIndex == filename.length() - 1)) {
-            return new String[]{filename, ""};
-        }
-
-        return new String[]{filename.substring(0, dotIndex), filename.substring(dotIndex)};
-    }
-
-    private static String makeFileName(final String name, final int idx, final String ext) {
-        return name.concat(" (").concat(String.valueOf(idx)).concat(")").concat(ext);
-    }
-
     /**
      * Fast (but not enough) file/directory finder under the storage access framework.
      *
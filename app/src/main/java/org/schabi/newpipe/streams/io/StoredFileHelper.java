@@ -18,6 +18,8 @@ import com.nononsenseapps.filepicker.Utils;
 import org.schabi.newpipe.settings.NewPipeSettings;
 import org.schabi.newpipe.util.FilePickerActivityHelper;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
@@ -95,6 +97,9 @@ public class StoredFileHelper implements Serializable {
 
         this.srcName = this.docFile.getName();
         this.srcType = this.docFile.getType();
+
+        DirectoryIndex.notifyCreated(sourceTree, srcName,
+                DocumentsContract.getDocumentId(docFile.getUri()));
     }
 
     StoredFileHelper(final File location, final String filename, final String mime)
@@ -181,6 +186,57 @@ public class StoredFileHelper implements Serializable {
         return instance;
     }
 
+    /**
+     * Writes the state required by {@link #deserialize(StoredFileHelper, Context)}, a compact
+     * alternative to the Java serialization.
+     *
+     * @param out where write
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeState(@NonNull final DataOutput out) throws IOException {
+        writeNullableString(out, source);
+        writeNullableString(out, sourceTree);
+        writeNullableString(out, tag);
+        writeNullableString(out, srcName);
+        writeNullableString(out, srcType);
+    }
+
+    /**
+     * Reads the state written by {@link #writeState(DataOutput)}. The returned instance must be
+     * passed to {@link #deserialize(StoredFileHelper, Context)} before using it.
+     *
+     * @param in where read
+     * @return the storage
+     * @throws IOException if an I/O error occurs
+     */
+    public static StoredFileHelper readState(@NonNull final DataInput in) throws IOException {
+        final String source = readNullableString(in);
+        final String sourceTree = readNullableString(in);
+        final String tag = readNullableString(in);
+        final String srcName = readNullableString(in);
+        final String srcType = readNullableString(in);
+
+        final StoredFileHelper storage = new StoredFileHelper(null, srcName, srcType, tag);
+        storage.source = source;
+        storage.sourceTree = sourceTree;
+        storage.srcType = srcType;
+
+        return storage;
+    }
+
+    private static void writeNullableString(final DataOutput out, @Nullable final String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(final DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     public SharpStream getStream() throws IOException {
         assertValid();
 
@@ -235,6 +291,9 @@ public class StoredFileHelper implements Serializable {
         }
 
         final boolean res = docFile.delete();
+        if (res) {
+            DirectoryIndex.notifyDeleted(sourceTree, srcName);
+        }
 
         try {
             final int flags = Intent.FLAG_GRANT_READ_URI_PERMISSION
@@ -327,6 +386,11 @@ public class StoredFileHelper implements Serializable {
             source = (docFile == null ? Uri.fromFile(ioFile) : docFile.getUri()).toString();
             srcName = getName();
             srcType = getType();
+
+            if (docFile != null) {
+                DirectoryIndex.notifyCreated(sourceTree, srcName,
+                        DocumentsContract.getDocumentId(docFile.getUri()));
+            }
         }
 
         return result;
@@ -382,6 +446,41 @@ public class StoredFileHelper implements Serializable {
                 .equalsIgnoreCase(DocumentsContract.getDocumentId(storage.docFile.getUri()));
     }
 
+    /**
+     * Gets a key to find this file in hash tables. Two valid files are
+     * {@link #equals(StoredFileHelper) equal} only if they have the same location key.
+     *
+     * @return the normalized path or document id, {@code null} if this instance is invalid
+     */
+    @Nullable
+    public String getLocationKey() {
+        if (isInvalid()) {
+            return null;
+        }
+
+        if (isDirect()) {
+            return "file:" + getLowerCase(ioFile.getPath());
+        }
+
+        return "doc:" + getLowerCase(DocumentsContract.getDocumentId(docFile.getUri()));
+    }
+
+    /**
+     * Gets a key to find this file in hash tables by its name. A file is
+     * {@link #equals(StoredFileHelper) equal} to an invalid one only if both have the same name
+     * key.
+     *
+     * @return the normalized filename and mime type, {@code null} if any of them is unknown
+     */
+    @Nullable
+    public String getNameKey() {
+        if (srcName == null || srcType == null) {
+            return null;
+        }
+
+        return getLowerCase(srcName) + "|" + getLowerCase(srcType);
+    }
+
     @NonNull
     @Override
     public String toString() {
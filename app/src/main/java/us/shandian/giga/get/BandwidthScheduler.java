@@ -0,0 +1,265 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Token bucket shared by the download threads of every mission. The global rate is divided
+ * between the running missions according to their {@link DownloadMission#weight}, every mission
+ * has its own bucket so a mission with many threads can not starve the others.
+ * <p>
+ * While the player is buffering the rate is reduced, so the playback can recover. The back-off
+ * ends automatically after {@link #MAX_BACKOFF_NANOS} in case the player never reports it.
+ */
+public class BandwidthScheduler {
+    /**
+     * Rate value used to disable the bandwidth limit
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * Fraction of the global rate kept while the player is buffering
+     */
+    static final double BACKOFF_FACTOR = 0.25;
+
+    /**
+     * Rate used while the player is buffering and there is no global limit (256 KiB/s)
+     */
+    static final long BACKOFF_RATE = 256 * 1024;
+
+    /**
+     * Longest time the downloads are slowed down by a single buffering event
+     */
+    static final long MAX_BACKOFF_NANOS = 30L * 1000L * 1000L * 1000L;
+
+    /**
+     * Amount of unused bandwidth a bucket can save, as time at its rate
+     */
+    static final long BURST_NANOS = 250L * 1000L * 1000L;
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static BandwidthScheduler instance;
+
+    private final Clock clock;
+    private final HashMap<DownloadMission, Bucket> buckets = new HashMap<>();
+
+    private volatile long maxRate = UNLIMITED;// bytes per second
+    private volatile boolean throttling;
+
+    private boolean buffering;
+    private long bufferingSince;
+
+    BandwidthScheduler(@NonNull Clock clock) {
+        this.clock = clock;
+    }
+
+    public static synchronized BandwidthScheduler getInstance() {
+        if (instance == null) instance = new BandwidthScheduler(Clock.SYSTEM);
+        return instance;
+    }
+
+    /**
+     * Sets the maximum rate shared by all missions
+     *
+     * @param bytesPerSecond the rate, or {@link #UNLIMITED}
+     */
+    public synchronized void setMaxRate(long bytesPerSecond) {
+        maxRate = Math.max(UNLIMITED, bytesPerSecond);
+        redistribute(clock.nanoTime());
+    }
+
+    public long getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Reports the buffering state of the player, the downloads are slowed down while buffering
+     *
+     * @param state {@code true} if the player is waiting for data
+     */
+    public synchronized void setPlayerBuffering(boolean state) {
+        if (buffering == state) return;
+
+        long now = clock.nanoTime();
+        buffering = state;
+        bufferingSince = now;
+        redistribute(now);
+    }
+
+    /**
+     * Indicates if the downloads are currently slowed down because the player is buffering
+     *
+     * @return {@code true} if backing off
+     */
+    public synchronized boolean isBackingOff() {
+        return isBackingOff(clock.nanoTime());
+    }
+
+    /**
+     * Adds a mission to the missions sharing the bandwidth, called when its threads start
+     *
+     * @param mission the mission
+     */
+    synchronized void register(@NonNull DownloadMission mission) {
+        if (buckets.containsKey(mission)) return;
+
+        long now = clock.nanoTime();
+        Bucket bucket = new Bucket();
+        bucket.weight = Math.max(1, mission.weight);
+        bucket.updated = now;
+
+        buckets.put(mission, bucket);
+        redistribute(now);
+    }
+
+    /**
+     * Removes a mission, its share is given to the other missions
+     *
+     * @param mission the mission
+     */
+    synchronized void unregister(@NonNull DownloadMission mission) {
+        if (buckets.remove(mission) != null) redistribute(clock.nanoTime());
+    }
+
+    /**
+     * Changes the share of a running mission, see {@link DownloadMission#weight}
+     *
+     * @param mission the mission
+     * @param weight  the weight, at least one
+     */
+    synchronized void setWeight(@NonNull DownloadMission mission, int weight) {
+        Bucket bucket = buckets.get(mission);
+        if (bucket == null) return;
+
+        bucket.weight = Math.max(1, weight);
+        redistribute(clock.nanoTime());
+    }
+
+    /**
+     * Takes the tokens for the given amount of bytes, waiting if the mission exceeded its share
+     *
+     * @param mission the mission which transferred the bytes
+     * @param bytes   amount of bytes
+     * @throws InterruptedIOException if the calling thread was interrupted while waiting
+     */
+    void acquire(@NonNull DownloadMission mission, int bytes) throws InterruptedIOException {
+        if (!throttling) return;
+
+        long wait = reserve(mission, bytes);
+        if (wait < 1) return;
+
+        try {
+            clock.sleep(wait);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while throttling");
+        }
+    }
+
+    /**
+     * Takes the tokens for the given amount of bytes. The bucket can go into debt, the debt is
+     * paid by the caller waiting the returned time.
+     *
+     * @param mission the mission which transferred the bytes
+     * @param bytes   amount of bytes
+     * @return the time to wait in nanoseconds, zero if there no need to wait
+     */
+    synchronized long reserve(@NonNull DownloadMission mission, int bytes) {
+        long now = clock.nanoTime();
+
+        if (buffering && now - bufferingSince >= MAX_BACKOFF_NANOS) {
+            // the player never reported the end of the buffering
+            buffering = false;
+            redistribute(now);
+        }
+
+        Bucket bucket = buckets.get(mission);
+        if (bucket == null || bucket.rate <= 0) return 0;
+
+        bucket.refill(now);
+        bucket.tokens -= bytes;
+
+        if (bucket.tokens >= 0) return 0;
+        return (long) Math.ceil(-bucket.tokens / bucket.rate);
+    }
+
+    /**
+     * Gets the rate assigned to a mission
+     *
+     * @param mission the mission
+     * @return the rate in bytes per second, or {@link #UNLIMITED}
+     */
+    synchronized long getRate(@NonNull DownloadMission mission) {
+        Bucket bucket = buckets.get(mission);
+        if (bucket == null) return UNLIMITED;
+        return Math.round(bucket.rate * NANOS_PER_SECOND);
+    }
+
+    private boolean isBackingOff(long now) {
+        return buffering && now - bufferingSince < MAX_BACKOFF_NANOS;
+    }
+
+    /**
+     * Splits the effective rate between the registered missions, must be called holding the
+     * instance lock
+     */
+    private void redistribute(long now) {
+        long rate = maxRate;
+
+        if (isBackingOff(now)) {
+            rate = rate == UNLIMITED ? BACKOFF_RATE : Math.max(1, (long) (rate * BACKOFF_FACTOR));
+        }
+
+        double effectiveRate = rate / NANOS_PER_SECOND;
+        throttling = rate != UNLIMITED;
+
+        int totalWeight = 0;
+        for (Bucket bucket : buckets.values()) totalWeight += bucket.weight;
+
+        for (Bucket bucket : buckets.values()) {
+            // the tokens saved until now are kept, at most the new capacity
+            bucket.refill(now);
+            bucket.rate = effectiveRate * bucket.weight / totalWeight;
+            bucket.tokens = bucket.rate > 0 ? Math.min(bucket.tokens, bucket.capacity()) : 0;
+        }
+    }
+
+    private static class Bucket {
+        int weight;
+        double rate;// bytes per nanosecond, zero if unlimited
+        double tokens;
+        long updated;
+
+        double capacity() {
+            return rate * BURST_NANOS;
+        }
+
+        void refill(long now) {
+            if (rate > 0) tokens = Math.min(capacity(), tokens + (now - updated) * rate);
+            updated = now;
+        }
+    }
+
+    /**
+     * Time source of the scheduler, replaced in tests by a simulated clock
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+}
@@ -0,0 +1,120 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection counters of a mission, shows how many requests were served by an already opened
+ * connection instead of paying a new TCP connection and TLS handshake. Also counts the stalled
+ * blocks and the hedged requests made for them.
+ */
+public class ConnectionStats {
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final AtomicInteger multiplexed = new AtomicInteger();
+    private final AtomicInteger stalls = new AtomicInteger();
+    private final AtomicInteger hedges = new AtomicInteger();
+    private final AtomicInteger hedgesWon = new AtomicInteger();
+
+    void onRequest() {
+        requests.incrementAndGet();
+    }
+
+    void onConnect() {
+        connections.incrementAndGet();
+    }
+
+    void onHandshake() {
+        handshakes.incrementAndGet();
+    }
+
+    void onMultiplexed() {
+        multiplexed.incrementAndGet();
+    }
+
+    void onStall() {
+        stalls.incrementAndGet();
+    }
+
+    void onHedge() {
+        hedges.incrementAndGet();
+    }
+
+    void onHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the amount of new connections, only known if the transport supports it
+     *
+     * @return opened connections
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Gets the amount of requests sent over HTTP/2
+     *
+     * @return multiplexed requests
+     */
+    public int getMultiplexed() {
+        return multiplexed.get();
+    }
+
+    /**
+     * Gets the amount of times a block was detected as stalled, see {@link StallDetector}
+     *
+     * @return stalled blocks
+     */
+    public int getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * Gets the amount of hedged requests issued for stalled blocks
+     *
+     * @return hedged requests
+     */
+    public int getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Gets the amount of hedged requests which finished the block before the stalled request
+     *
+     * @return hedged requests that won
+     */
+    public int getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Gets the amount of requests that reused a connection
+     *
+     * @return reused connections
+     */
+    public int getReused() {
+        return Math.max(0, requests.get() - connections.get());
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "requests=%d connections=%d handshakes=%d reused=%d http2=%d stalls=%d hedges=%d/%d",
+                getRequests(), getConnections(), getHandshakes(), getReused(), getMultiplexed(),
+                getStalls(), getHedgesWon(), getHedges());
+    }
+}
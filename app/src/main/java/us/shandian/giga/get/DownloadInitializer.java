@@ -9,11 +9,8 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 
-import us.shandian.giga.util.Utility;
-
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
 
@@ -24,7 +21,7 @@ public class DownloadInitializer extends Thread {
     private final static int RESERVE_SPACE_MAXIMUM = 150 * 1024 * 1024;// 150 MiB
 
     private final DownloadMission mMission;
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
 
     DownloadInitializer(@NonNull DownloadMission mission) {
         mMission = mission;
@@ -33,7 +30,7 @@ public class DownloadInitializer extends Thread {
 
     private void dispose() {
         try {
-            mConn.getInputStream().close();
+            mConn.close();
         } catch (Exception e) {
             // nothing to do
         }
@@ -59,7 +56,7 @@ public class DownloadInitializer extends Thread {
                         dispose();
 
                         if (Thread.interrupted()) return;
-                        long length = Utility.getContentLength(mConn);
+                        long length = mConn.getContentLength();
 
                         if (i == 0) {
                             httpCode = mConn.getResponseCode();
@@ -91,7 +88,7 @@ public class DownloadInitializer extends Thread {
                     if (!mMission.running || Thread.interrupted()) return;
 
                     httpCode = mConn.getResponseCode();
-                    mMission.length = Utility.getContentLength(mConn);
+                    mMission.length = mConn.getContentLength();
                 }
 
                 if (mMission.length == 0 || httpCode == 204) {
@@ -203,6 +200,6 @@ public class DownloadInitializer extends Thread {
     @Override
     public void interrupt() {
         super.interrupt();
-        if (mConn != null) dispose();
+        if (mConn != null) mConn.disconnect();
     }
 }
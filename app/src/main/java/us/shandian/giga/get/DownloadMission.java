@@ -17,19 +17,23 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import javax.net.ssl.SSLException;
 
 import org.schabi.newpipe.streams.io.StoredFileHelper;
+import us.shandian.giga.io.PositionalFileSink;
 import us.shandian.giga.postprocessing.Postprocessing;
 import us.shandian.giga.service.DownloadManagerService;
-import us.shandian.giga.util.Utility;
+import us.shandian.giga.util.StripedCounter;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 
@@ -39,8 +43,20 @@ public class DownloadMission extends Mission {
     static final int BUFFER_SIZE = 64 * 1024;
     static final int BLOCK_SIZE = 512 * 1024;
 
+    /**
+     * Minimum amount of bytes left in a block to split it with an idle thread
+     */
+    static final int MIN_STEAL_SIZE = 2 * BUFFER_SIZE;
+
+    /**
+     * How often the post-processing checks for new data, when it runs while downloading
+     */
+    private static final int PIPELINE_POLL_MILLIS = 50;
+
     private static final String TAG = "DownloadMission";
 
+    private static HttpTransport defaultTransport;
+
     public static final int ERROR_NOTHING = -1;
     public static final int ERROR_PATH_CREATION = 1000;
     public static final int ERROR_FILE_CREATION = 1001;
@@ -59,6 +75,10 @@ public class DownloadMission extends Mission {
     public static final int ERROR_HTTP_NO_CONTENT = 204;
     static final int ERROR_HTTP_FORBIDDEN = 403;
 
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     /**
      * The urls of the file to download
      */
@@ -96,7 +116,7 @@ public class DownloadMission extends Mission {
     /**
      * The current resource to download, {@code urls[current]} and {@code offsets[current]}
      */
-    public int current;
+    public volatile int current;
 
     /**
      * Metadata where the mission state is saved
@@ -117,6 +137,7 @@ public class DownloadMission extends Mission {
      * Download blocks, the size is multiple of {@link DownloadMission#BLOCK_SIZE}.
      * Every entry (block) in this array holds an offset, used to resume the download.
      * An block offset can be -1 if the block was downloaded successfully.
+     * A thread can request several consecutive blocks at once, see {@link DownloadTuner}.
      */
     int[] blocks;
 
@@ -130,6 +151,38 @@ public class DownloadMission extends Mission {
      */
     public int threadCount = 3;
 
+    /**
+     * Adjust the request size and the amount of running threads to the connection quality.
+     * Missions saved by older versions are deserialized with {@code false} (fixed mode)
+     */
+    public boolean adaptive = true;
+
+    /**
+     * Share of the bandwidth given to this mission when there is a global limit, relative to the
+     * other running missions, see {@link BandwidthScheduler}
+     */
+    public int weight = 1;
+
+    /**
+     * Missions with higher priority are started first, see {@link #PRIORITY_HIGH}
+     */
+    public int priority = PRIORITY_NORMAL;
+
+    /**
+     * Order of this mission in the queue, among the missions with the same priority
+     */
+    public long queuePosition;
+
+    /**
+     * Time spent waiting in the queue, in milliseconds
+     */
+    long queueWaitTime;
+
+    /**
+     * Time spent downloading and post-processing, in milliseconds
+     */
+    long runTime;
+
     /**
      * information required to recover a download
      */
@@ -144,16 +197,70 @@ public class DownloadMission extends Mission {
 
     public transient Handler mHandler;
     private transient boolean[] blockAcquired;
+    transient DownloadTuner tuner;
+    private transient int activeThreads;
+    private transient ArrayList<Block> inFlight;
+    private transient int stealCount;
+    transient ThroughputTrace trace;
+
+    /**
+     * Set by the first download thread which finds the urls expired, see {@link #claimRecovery()}
+     */
+    private transient AtomicBoolean recovering;
 
+    private transient StripedCounter progress;
+
+    /**
+     * Transport used for the HTTP requests, {@code null} to use the shared one
+     */
+    transient HttpTransport transport;
+
+    /**
+     * Scheduler which limits the bandwidth, {@code null} to use the shared one
+     */
+    transient BandwidthScheduler scheduler;
+    private transient ConnectionStats connectionStats;
+
+    private transient PositionalFileSink sink;
+
+    /**
+     * Post-processing thread started before the download is finished, see {@link #startPipeline()}
+     */
+    private transient volatile Thread pipeline;
     private transient long writingToFileNext;
-    private transient volatile boolean writingToFile;
+    private transient long writingToFileDone;
+
+    /**
+     * State measured by {@link #trackTime()}: -1 unknown, 0 idle, 1 queued, 2 running
+     */
+    private transient int timeState = -1;
+    private transient long timeStateSince = System.nanoTime();
+
+    /**
+     * Serializes the writes of the metadata file, see {@link #writeThisToFile()}. The states are
+     * numbered under {@link #LOCK}, so an older state never replaces a newer one
+     */
+    private transient Object writeLock;
+    private transient long writeSequence;
+    private transient long writtenSequence;
 
     final Object LOCK = new Lock();
 
+    private static final AtomicIntegerFieldUpdater<Block> DONE =
+            AtomicIntegerFieldUpdater.newUpdater(Block.class, "done");
+    private static final AtomicLongFieldUpdater<Block> CLAIMED =
+            AtomicLongFieldUpdater.newUpdater(Block.class, "claimed");
+
     @NonNull
     public transient Thread[] threads = new Thread[0];
     public transient Thread init = null;
 
+    /**
+     * Used by {@link MissionStore} to restore a saved mission
+     */
+    DownloadMission() {
+    }
+
     public DownloadMission(String[] urls, StoredFileHelper storage, char kind, Postprocessing psInstance) {
         if (Objects.requireNonNull(urls).length < 1)
             throw new IllegalArgumentException("urls array is empty");
@@ -171,39 +278,474 @@ public class DownloadMission extends Mission {
     }
 
     /**
-     * Acquire a block
+     * Acquire a block, if there no free blocks left, the slowest block in download is split
+     * and the tail part is returned
      *
      * @return the block or {@code null} if no more blocks left
      */
     @Nullable
     Block acquireBlock() {
         synchronized (LOCK) {
+            int first = -1;
+            int free = 0;
+
             for (int i = 0; i < blockAcquired.length; i++) {
                 if (!blockAcquired[i] && blocks[i] >= 0) {
-                    Block block = new Block();
-                    block.position = i;
-                    block.done = blocks[i];
+                    if (first < 0) first = i;
+                    free++;
+                }
+            }
+
+            if (first < 0) return stealBlock();
+
+            // do not let a single thread take the tail of the file
+            int maxSpan = tuner == null ? 1 : tuner.getSpan();
+            maxSpan = Math.min(maxSpan, Math.max(1, free / Math.max(1, activeThreads)));
+
+            Block block = new Block();
+            block.position = first;
+            block.done = blocks[first];
+            block.count = DownloadTuner.spanLength(blocks, blockAcquired, first, maxSpan);
+            block.end = Math.min(length, (long) (first + block.count) * BLOCK_SIZE) - 1;
+
+            for (int i = 0; i < block.count; i++) blockAcquired[first + i] = true;
+
+            track(block);
+            return block;
+        }
+    }
+
+    /**
+     * Splits the block in download with the highest estimated remaining time. Whole blocks
+     * are taken from the end of a span, the last block of a span is split in two halves.
+     * Must be called holding {@link #LOCK}.
+     *
+     * @return the tail part or {@code null} if there nothing worth to split
+     */
+    @Nullable
+    private Block stealBlock() {
+        long now = System.nanoTime();
+        Block slowest = null;
+        double slowestTime = -1;
+
+        for (Block block : inFlight) {
+            long remaining = block.end - block.claimed + 1;
+            int claimedBlock = (int) (block.claimed / BLOCK_SIZE);
+            boolean unitSteal = block.position + block.count - 1 > claimedBlock;
+
+            if (block.split != null || block.owners > 1 || remaining < MIN_STEAL_SIZE) continue;
+            if (!unitSteal && block.count != 1) continue;// moving to the next block, try later
+
+            long transferred = block.claimed - block.origin;
+            double time = transferred < 1 ? Double.MAX_VALUE : remaining * (double) (now - block.started) / transferred;
+
+            if (time > slowestTime) {
+                slowest = block;
+                slowestTime = time;
+            }
+        }
+
+        if (slowest == null) return null;
+
+        Block thief = new Block();
+        long claimed = slowest.claimed;
+        long end = slowest.end;
+        int claimedBlock = (int) (claimed / BLOCK_SIZE);
+        int last = slowest.position + slowest.count - 1;
+
+        if (last > claimedBlock) {
+            // take the untouched half of the span, the ownership of these blocks is transferred
+            int count = (last - claimedBlock + 1) / 2;
+
+            thief.position = last - count + 1;
+            thief.count = count;
+            thief.end = end;
+
+            if (!shrinkBlock(slowest, (long) thief.position * BLOCK_SIZE - 1)) return null;
+            slowest.count -= count;
+        } else {
+            // split the block in two halves, both threads must finish to complete the block
+            long mid = claimed + (end - claimed + 1) / 2;
+            Split split = new Split();
+            split.position = slowest.position;
+            split.mid = (int) (mid - (long) slowest.position * BLOCK_SIZE);
+
+            thief.position = slowest.position;
+            thief.done = split.mid;
+            thief.end = end;
+            thief.split = split;
+            thief.tail = true;
+
+            if (!shrinkBlock(slowest, mid - 1)) return null;
+            slowest.split = split;
+        }
+
+        stealCount++;
+        track(thief);
+        return thief;
+    }
+
+    /**
+     * Moves the end of a block being downloaded. The owner reserves each range without holding
+     * {@link #LOCK} (see {@link #claimBlock(Block, long, int)}), if it reserved past the new end
+     * meanwhile, the end is restored. Must be called holding {@link #LOCK}.
+     *
+     * @param block the block
+     * @param end   the new last byte to download
+     * @return {@code false} if the owner already reserved past the new end
+     */
+    private static boolean shrinkBlock(Block block, long end) {
+        long previous = block.end;
+        block.end = end;
+
+        // the owner writes the reservation and then reads the end, the opposite order is done
+        // here, so at least one of both notices the other
+        if (block.claimed <= end + 1) return true;
+
+        block.end = previous;
+        return false;
+    }
+
+    private void track(Block block) {
+        block.origin = (long) block.position * BLOCK_SIZE + block.done;
+        block.claimed = block.origin;
+        block.started = System.nanoTime();
+        block.sampledAt = block.started;
+        block.sampledClaimed = block.origin;
+        inFlight.add(block);
+    }
+
+    /**
+     * Reserves the range to be written by a thread, a block can shrink at any time if other
+     * thread steals part of it. Called for every read, {@link #LOCK} is only taken if the end of
+     * the block was moved meanwhile.
+     *
+     * @param block  the block
+     * @param start  offset of the data to write
+     * @param amount amount of bytes to write
+     * @return the amount of bytes which can be written, zero if the block end was reached
+     */
+    int claimBlock(Block block, long start, int amount) {
+        // the block can be finished or released by the other connection of a hedged block
+        if (block.owners < 1 || isCompleted(block)) return 0;
+
+        long end = block.end;
+        long allowed = Math.max(0, Math.min(amount, end - start + 1));
+        if (allowed < 1) return 0;
+
+        long claimed;
+        do {
+            claimed = block.claimed;
+        } while (claimed < start + allowed && !CLAIMED.compareAndSet(block, claimed, start + allowed));
+
+        if (block.end == end) return (int) allowed;
+
+        // other thread moved the end meanwhile, see shrinkBlock()
+        synchronized (LOCK) {
+            if (block.owners < 1 || isCompleted(block)) return 0;
+            return (int) Math.max(0, Math.min(amount, block.end - start + 1));
+        }
+    }
+
+    /**
+     * Marks the data written by a thread as downloaded. If the block is also downloaded by a
+     * hedged request (see {@link #checkStalls()}) only the data not written by the other
+     * connection is counted. Called for every read, {@link #LOCK} is only taken for hedged blocks
+     * and once the first block of a span is done.
+     *
+     * @param block  the block
+     * @param offset offset after the last byte written
+     * @return the amount of new bytes downloaded
+     */
+    int commitBlock(Block block, long offset) {
+        if (block.owners > 1) {
+            // hedged, the owner can release the block while the hedge is writing
+            synchronized (LOCK) {
+                if (block.owners < 1) return 0;
+                return addDone(block, offset);
+            }
+        }
+
+        if (block.owners < 1) return 0;
+        return addDone(block, offset);
+    }
+
+    private int addDone(Block block, long offset) {
+        int done = (int) (offset - (long) block.position * BLOCK_SIZE);
+        int previous;
+
+        do {
+            previous = block.done;
+            if (done <= previous) return 0;
+        } while (!DONE.compareAndSet(block, previous, done));
+
+        if (block.count > 1 && done >= BLOCK_SIZE) {
+            // the first block of the span is done, move to the next one
+            advanceBlock(block);
+        }
+
+        return done - previous;
+    }
+
+    private static boolean isCompleted(Block block) {
+        return (long) block.position * BLOCK_SIZE + block.done > block.end;
+    }
+
+    /**
+     * Marks the first block of a span as downloaded and moves to the next one
+     *
+     * @param block the span
+     */
+    void advanceBlock(Block block) {
+        synchronized (LOCK) {
+            // the span can be shortened meanwhile, see checkStalls()
+            if (block.count < 2 || block.done < BLOCK_SIZE) return;
+
+            blocks[block.position] = -1;
+            blockAcquired[block.position] = false;
+            block.position++;
+            block.count--;
+            block.done -= BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Indicates if there blocks not acquired by any thread
+     *
+     * @return {@code true} if a new thread can download something
+     */
+    private boolean hasFreeBlocks() {
+        synchronized (LOCK) {
+            for (int i = 0; i < blockAcquired.length; i++) {
+                if (!blockAcquired[i] && blocks[i] >= 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release a block
+     *
+     * @param block     the block
+     * @param completed {@code true} if the block was fully downloaded
+     */
+    void releaseBlock(Block block, boolean completed) {
+        releaseBlock(block, completed, null);
+    }
+
+    /**
+     * Release a block. A hedged block is released by the first connection which finishes it, or
+     * by its owner if it stops downloading it, the other connection is aborted.
+     *
+     * @param block     the block
+     * @param completed {@code true} if the block was fully downloaded
+     * @param reader    the thread releasing the block
+     */
+    void releaseBlock(Block block, boolean completed, @Nullable DownloadRunnable reader) {
+        long discard = 0;
+        DownloadRunnable loser = null;
+        ConnectionStats stats = getConnectionStats();// not under LOCK, see balanceThreads()
 
-                    blockAcquired[i] = true;
-                    return block;
+        synchronized (LOCK) {
+            if (block.owners < 1) return;// already released by the other connection
+
+            completed |= isCompleted(block);
+
+            if (block.owners > 1) {
+                boolean hedge = reader != null && reader == block.hedge;
+
+                if (hedge && !completed) {
+                    // the hedged request failed, the owner keeps downloading the block
+                    block.owners = 1;
+                    return;
                 }
+
+                if (hedge) stats.onHedgeWon();
+                loser = hedge ? block.owner : block.hedge;
             }
+
+            block.owners = 0;
+            inFlight.remove(block);
+
+            // untouched blocks of the span
+            for (int i = 1; i < block.count; i++) blockAcquired[block.position + i] = false;
+
+            if (block.split == null) {
+                blockAcquired[block.position] = false;
+                blocks[block.position] = completed ? -1 : block.done;
+            } else {
+                discard = releaseSplit(block, completed);
+            }
+        }
+
+        if (loser != null) loser.cancelBlock(block);
+
+        // the progress of the tail can not be saved, the block will be resumed from the head
+        if (discard > 0) notifyProgress(-discard);
+    }
+
+    /**
+     * Release one part of a split block. The block is released when both parts are done.
+     * Must be called holding {@link #LOCK}.
+     *
+     * @return amount of bytes downloaded by the tail which must be discarded
+     */
+    private long releaseSplit(Block block, boolean completed) {
+        Split split = block.split;
+
+        if (block.tail) {
+            split.tailState = completed ? 1 : -1;
+            split.tailBytes = block.done - split.mid;
+        } else {
+            split.headState = completed ? 1 : -1;
+            split.headDone = block.done;
+        }
+
+        if (split.headState == 0 || split.tailState == 0) return 0;// wait for the other part
+
+        blockAcquired[split.position] = false;
+
+        if (split.headState > 0 && split.tailState > 0) {
+            blocks[split.position] = -1;
+            return 0;
         }
 
-        return null;
+        blocks[split.position] = split.headDone;
+        return split.tailBytes;
     }
 
     /**
-     * Release an block
+     * Prepares the download blocks to be acquired by the download threads
+     */
+    void prepareBlocks() {
+        // take the progress not published yet, if any
+        if (progress != null) done = progress.sum();
+
+        progress = new StripedCounter();
+        progress.reset(done);
+
+        blockAcquired = new boolean[blocks.length];
+        inFlight = new ArrayList<>(threadCount);
+        stealCount = 0;
+        trace = new ThroughputTrace(System.nanoTime(), done);
+        recovering = new AtomicBoolean();
+    }
+
+    /**
+     * Gets the output file shared by the download threads, every caller must release it when
+     * done. The disk space of the whole file is allocated when the file is opened.
      *
-     * @param position the index of the block
-     * @param done     amount of bytes downloaded
+     * @return the output file
+     * @throws IOException if the file can not be opened or there is no enough free space
      */
-    void releaseBlock(int position, int done) {
+    PositionalFileSink acquireSink() throws IOException {
         synchronized (LOCK) {
-            blockAcquired[position] = false;
-            blocks[position] = done;
+            if (sink == null || !sink.retain()) {
+                PositionalFileSink newSink = PositionalFileSink.open(storage.getStream());
+
+                try {
+                    newSink.preallocate(offsets[current] + length);
+                } catch (IOException e) {
+                    newSink.release();
+                    throw e;
+                }
+
+                sink = newSink;
+            }
+
+            return sink;
+        }
+    }
+
+    /**
+     * Gets the connection counters of this mission, since the app was started. Must not be
+     * called holding {@link #LOCK}, see {@link #balanceThreads(int)}
+     *
+     * @return the counters
+     */
+    public synchronized ConnectionStats getConnectionStats() {
+        if (connectionStats == null) connectionStats = new ConnectionStats();
+        return connectionStats;
+    }
+
+    /**
+     * Adds the time elapsed since the last call to the queue-wait time or to the run time,
+     * depending of the state of the mission at that call. Must be called on every change of
+     * {@link #running} or {@link #enqueued}.
+     */
+    public synchronized void trackTime() {
+        long now = System.nanoTime();
+        int state = running ? 2 : (enqueued ? 1 : 0);
+        long elapsed = (now - timeStateSince) / 1000000L;
+
+        // the first known state is the state the mission was loaded with
+        int previous = timeState < 0 ? state : timeState;
+
+        if (previous == 1)
+            queueWaitTime += elapsed;
+        else if (previous == 2)
+            runTime += elapsed;
+
+        timeState = state;
+        timeStateSince = now;
+    }
+
+    /**
+     * Gets the time this mission spent waiting in the queue, since it was created
+     *
+     * @return the time in milliseconds
+     */
+    public long getQueueWaitTime() {
+        trackTime();
+        return queueWaitTime;
+    }
+
+    /**
+     * Gets the time this mission spent downloading and post-processing, since it was created
+     *
+     * @return the time in milliseconds
+     */
+    public long getRunTime() {
+        trackTime();
+        return runTime;
+    }
+
+    private BandwidthScheduler getScheduler() {
+        return scheduler == null ? BandwidthScheduler.getInstance() : scheduler;
+    }
+
+    /**
+     * Waits if this mission is exceeding its share of the bandwidth, called by the download
+     * threads after every read
+     *
+     * @param bytes amount of bytes read
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    void throttle(int bytes) throws InterruptedIOException {
+        getScheduler().acquire(this, bytes);
+    }
+
+    /**
+     * Changes the share of the bandwidth of this mission
+     *
+     * @param weight the weight, at least one
+     */
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+        getScheduler().setWeight(this, this.weight);
+        writeThisToFileAsync();
+    }
+
+    private static synchronized HttpTransport getDefaultTransport() {
+        if (defaultTransport == null) {
+            DownloaderImpl downloader = DownloaderImpl.getInstance();
+            if (downloader == null)
+                defaultTransport = new UrlConnectionTransport();
+            else
+                defaultTransport = new OkHttpTransport(downloader.getClient());
         }
+
+        return defaultTransport;
     }
 
     /**
@@ -212,25 +754,22 @@ public class DownloadMission extends Mission {
      * @param headRequest {@code true} for use {@code HEAD} request method, otherwise, {@code GET} is used
      * @param rangeStart  range start
      * @param rangeEnd    range end
-     * @return a {@link java.net.URLConnection URLConnection} linking to the URL.
+     * @return a {@link HttpConnection} linking to the URL.
      * @throws IOException if an I/O exception occurs.
      */
-    HttpURLConnection openConnection(boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
+    HttpConnection openConnection(boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
         return openConnection(urls[current], headRequest, rangeStart, rangeEnd);
     }
 
-    HttpURLConnection openConnection(String url, boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setInstanceFollowRedirects(true);
+    HttpConnection openConnection(String url, boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
+        HttpTransport transport = this.transport;
+        if (transport == null) transport = getDefaultTransport();
+
+        HttpConnection conn = transport.open(url, headRequest, getConnectionStats());
         conn.setRequestProperty("User-Agent", DownloaderImpl.USER_AGENT);
         conn.setRequestProperty("Accept", "*/*");
         conn.setRequestProperty("Accept-Encoding", "*");
 
-        if (headRequest) conn.setRequestMethod("HEAD");
-
-        // BUG workaround: switching between networks can freeze the download forever
-        conn.setConnectTimeout(30000);
-
         if (rangeStart >= 0) {
             String req = "bytes=" + rangeStart + "-";
             if (rangeEnd > 0) req += rangeEnd;
@@ -247,13 +786,13 @@ public class DownloadMission extends Mission {
      * @throws IOException if an error occurred connecting to the server.
      * @throws HttpError   if the HTTP Status-Code is not satisfiable
      */
-    void establishConnection(int threadId, HttpURLConnection conn) throws IOException, HttpError {
+    void establishConnection(int threadId, HttpConnection conn) throws IOException, HttpError {
         int statusCode = conn.getResponseCode();
 
         if (DEBUG) {
             Log.d(TAG, threadId + ":[request]  Range=" + conn.getRequestProperty("Range"));
             Log.d(TAG, threadId + ":[response] Code=" + statusCode);
-            Log.d(TAG, threadId + ":[response] Content-Length=" + conn.getContentLength());
+            Log.d(TAG, threadId + ":[response] Content-Length=" + conn.getHeaderField("Content-Length"));
             Log.d(TAG, threadId + ":[response] Content-Range=" + conn.getHeaderField("Content-Range"));
         }
 
@@ -274,26 +813,159 @@ public class DownloadMission extends Mission {
     }
 
 
+    /**
+     * Applies the thread count suggested by the {@link DownloadTuner}, by spawning new download
+     * threads or telling to the caller to exit.
+     *
+     * @param threadId id of the calling thread
+     * @return {@code false} if the calling thread must stop downloading
+     */
+    synchronized boolean balanceThreads(int threadId) {
+        // takes LOCK holding this instance lock, the opposite order is not allowed
+        if (tuner == null || !tuner.isAdaptive() || !running) return true;
+
+        int target = tuner.getTargetThreads();
+
+        if (activeThreads > target) {
+            activeThreads--;
+            if (DEBUG) Log.d(TAG, threadId + ":stopping, thread count target is " + target);
+            return false;
+        }
+
+        while (activeThreads < target && hasFreeBlocks()) {
+            int id = threads.length;
+            Thread[] newThreads = Arrays.copyOf(threads, id + 1);
+
+            // notifyFinished() can not be called meanwhile, holding this instance lock
+            newThreads[id] = runAsync(id + 1, new DownloadRunnable(this, id));
+            threads = newThreads;
+            activeThreads++;
+
+            if (DEBUG) Log.d(TAG, "thread " + id + " added, thread count target is " + target);
+        }
+
+        return true;
+    }
+
+    /**
+     * Looks for stalled blocks (see {@link StallDetector}) and downloads the slowest one again
+     * with a hedged request on other connection. Both connections race to finish the block, the
+     * data is written by the one ahead. Called periodically by the {@link ProgressSnapshotter}.
+     */
+    void checkStalls() {
+        if (!running || unknownLength || inFlight == null) return;
+
+        // the downloads are slow on purpose
+        if (getScheduler().getRate(this) != BandwidthScheduler.UNLIMITED) return;
+
+        DownloadRunnable hedge;
+        ConnectionStats stats = getConnectionStats();// not under LOCK, see balanceThreads()
+
+        synchronized (LOCK) {
+            Block block = StallDetector.check(inFlight, System.nanoTime(), stats);
+            if (block == null) return;
+
+            DownloadRunnable owner = null;
+            for (Thread thread : threads) {
+                if (thread instanceof DownloadRunnable && ((DownloadRunnable) thread).isDownloading(block)) {
+                    owner = (DownloadRunnable) thread;
+                    break;
+                }
+            }
+
+            if (owner == null) return;
+
+            // hedge only the current block of the span, other threads can take the rest
+            int last = (int) (block.claimed / BLOCK_SIZE);
+            if (last != block.position) return;// moving to the next block, try later
+
+            if (!shrinkBlock(block, Math.min(block.end, (long) (last + 1) * BLOCK_SIZE - 1))) return;
+            for (int i = last + 1; i < block.position + block.count; i++) blockAcquired[i] = false;
+            block.count = 1;
+
+            hedge = new DownloadRunnable(this, -4, block);
+            block.owner = owner;
+            block.hedge = hedge;
+            block.owners = 2;
+            block.hedged = true;
+        }
+
+        if (DEBUG) Log.d(TAG, "block stalled, starting a hedged request, " + stats);
+
+        stats.onHedge();
+        runAsync(-4, hedge);
+    }
+
     private void notify(int what) {
         mHandler.obtainMessage(what, this).sendToTarget();
     }
 
-    synchronized void notifyProgress(long deltaLen) {
+    /**
+     * Adds the amount of bytes downloaded by a thread. The value of {@link #done} is refreshed
+     * later by the {@link ProgressSnapshotter}.
+     *
+     * @param deltaLen amount of bytes, can be negative
+     */
+    void notifyProgress(long deltaLen) {
         if (unknownLength) {
-            length += deltaLen;// Update length before proceeding
+            length += deltaLen;// Update length before proceeding (single thread, fallback mode)
         }
 
-        done += deltaLen;
+        progress.add(deltaLen);
+    }
+
+    /**
+     * Amount of bytes downloaded, including the progress not published yet in {@link #done}.
+     * Only meaningful while the download threads are running.
+     *
+     * @return the amount of bytes
+     */
+    long getDone() {
+        return progress == null ? done : progress.sum();
+    }
+
+    /**
+     * Restarts the amount of bytes downloaded, can not be called if there multiple download
+     * threads running.
+     *
+     * @param value amount of bytes
+     */
+    void resetProgress(long value) {
+        if (progress != null) progress.reset(value);
+        done = value;
+    }
+
+    /**
+     * Publishes the progress made by the download threads in {@link #done}
+     *
+     * @param persist {@code true} to also save the state each {@link #BLOCK_SIZE} of progress
+     */
+    void snapshot(boolean persist) {
+        if (progress == null) return;
+
+        long value = progress.sum();
+        done = value;
+
+        if (trace != null) trace.sample(System.nanoTime(), value, false);
 
-        if (metadata == null) return;
+        if (!persist || metadata == null) return;
 
-        if (!writingToFile && (done > writingToFileNext || deltaLen < 0)) {
-            writingToFile = true;
-            writingToFileNext = done + BLOCK_SIZE;
-            writeThisToFileAsync();
+        if (value > writingToFileNext || value < writingToFileDone) {
+            writingToFileNext = value + BLOCK_SIZE;
+            writingToFileDone = value;
+            writeThisToFile();
         }
     }
 
+    /**
+     * Stops the periodic progress snapshots and publishes the final progress
+     */
+    private void stopSnapshots() {
+        ProgressSnapshotter.unregister(this);
+        getScheduler().unregister(this);
+        snapshot(false);
+    }
+
     synchronized void notifyError(Exception err) {
         Log.e(TAG, "notifyError()", err);
 
@@ -358,6 +1030,8 @@ public class DownloadMission extends Mission {
                 if (code < 500 || code > 599) enqueued = false;
         }
 
+        trackTime();
+
         notify(DownloadManagerService.MESSAGE_ERROR);
 
         if (running) pauseThreads();
@@ -367,8 +1041,16 @@ public class DownloadMission extends Mission {
         if (current < urls.length) {
             if (++finishCount < threads.length) return;
 
+            stopSnapshots();
+
             if (DEBUG) {
                 Log.d(TAG, "onFinish: downloaded " + (current + 1) + "/" + urls.length);
+
+                if (trace != null) {
+                    trace.sample(System.nanoTime(), done, true);
+                    Log.d(TAG, "onFinish: " + stealCount + " blocks split, throughput " + trace);
+                }
+                Log.d(TAG, "onFinish: connections " + getConnectionStats());
             }
 
             current++;
@@ -380,6 +1062,12 @@ public class DownloadMission extends Mission {
             }
         }
 
+        if (pipeline != null) {
+            // the post-processing is already running and will finish the mission
+            threads = new Thread[]{pipeline};
+            return;
+        }
+
         if (psAlgorithm != null && psState == 0) {
             threads = new Thread[]{
                     runAsync(1, this::doPostprocessing)
@@ -393,6 +1081,11 @@ public class DownloadMission extends Mission {
         unknownLength = false;
         enqueued = false;
         running = false;
+        trackTime();
+
+        if (DEBUG) {
+            Log.d(TAG, "onFinish: queued " + queueWaitTime + "ms, running " + runTime + "ms");
+        }
 
         deleteThisFromFile();
         notify(DownloadManagerService.MESSAGE_FINISHED);
@@ -419,10 +1112,11 @@ public class DownloadMission extends Mission {
         }
 
         synchronized (LOCK) {
-            // don't return without fully write the current state
             psState = state;
-            writeThisToFile();
         }
+
+        // don't return without fully write the current state
+        writeThisToFile();
     }
 
 
@@ -437,6 +1131,7 @@ public class DownloadMission extends Mission {
 
         running = true;
         errCode = ERROR_NOTHING;
+        trackTime();
 
         if (hasInvalidStorage()) {
             notifyError(ERROR_FILE_CREATION, null);
@@ -462,9 +1157,11 @@ public class DownloadMission extends Mission {
 
         init = null;
         finishCount = 0;
-        blockAcquired = new boolean[blocks.length];
+        prepareBlocks();
 
         if (blocks.length < 1) {
+            getScheduler().register(this);
+            ProgressSnapshotter.register(this);
             threads = new Thread[]{runAsync(1, new DownloadRunnableFallback(this))};
         } else {
             int remainingBlocks = 0;
@@ -475,11 +1172,94 @@ public class DownloadMission extends Mission {
                 return;
             }
 
-            threads = new Thread[Math.min(threadCount, remainingBlocks)];
+            if (tuner == null) tuner = new DownloadTuner(threadCount, adaptive);
+
+            threads = new Thread[Math.min(tuner.getTargetThreads(), remainingBlocks)];
+            activeThreads = threads.length;
+
+            getScheduler().register(this);
+            ProgressSnapshotter.register(this);
 
             for (int i = 0; i < threads.length; i++) {
                 threads[i] = runAsync(i + 1, new DownloadRunnable(this, i));
             }
+
+            if (current == urls.length - 1) startPipeline();
+        }
+    }
+
+    /**
+     * Starts the post-processing while the last resource is downloaded, if the algorithm
+     * supports it. The other resources are already downloaded and the last one is read as soon
+     * as a contiguous part is written, so the final file is ready shortly after the download.
+     * <p>
+     * From here the mission is treated as post-processing: the file is being overwritten and the
+     * download can not be paused.
+     */
+    private synchronized void startPipeline() {
+        if (pipeline != null || psAlgorithm == null || psState != 0) return;
+        if (!psAlgorithm.canRunWhileDownloading() || unknownLength || urls.length < 2) return;
+
+        if (DEBUG) Log.d(TAG, "starting the post-processing while downloading");
+
+        pipeline = runAsync(-1, this::doPostprocessing);
+    }
+
+    /**
+     * Gets the end of the data written without gaps, of a resource
+     *
+     * @param index resource index
+     * @return absolute file position, or {@code -1} if the data will never be written
+     */
+    long getContiguousEnd(int index) {
+        synchronized (LOCK) {
+            if (metadata == null || urls.length < 1) return -1;// deleted or dead mission
+
+            if (index < current) {
+                return index + 1 < urls.length ? offsets[index + 1] : offsets[index] + length;
+            }
+
+            if (index > current) return 0;
+            if (blocks == null || blocks.length < 1) return -1;// reset or single-thread download
+
+            int first = 0;
+            while (first < blocks.length && blocks[first] < 0) first++;
+
+            if (first >= blocks.length) return offsets[index] + length;
+
+            long contiguous = (long) first * BLOCK_SIZE + blocks[first];
+
+            if (inFlight != null) {
+                for (Block block : inFlight) {
+                    if (block.tail || block.position != first) continue;
+                    contiguous = Math.max(contiguous, (long) first * BLOCK_SIZE + block.done);
+                }
+            }
+
+            return offsets[index] + Math.min(contiguous, length);
+        }
+    }
+
+    /**
+     * Waits until a byte of a resource is downloaded, used by the post-processing when runs
+     * while downloading
+     *
+     * @param index    resource index
+     * @param position absolute file position
+     * @return the absolute file position where the downloaded data ends
+     * @throws IOException if the download was reset or the mission deleted
+     */
+    public long waitForData(int index, long position) throws IOException {
+        while (true) {
+            long end = getContiguousEnd(index);
+            if (end < 0) throw new IOException("the resource will not be downloaded");
+            if (end > position) return end;
+
+            try {
+                Thread.sleep(PIPELINE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting the download");
+            }
         }
     }
 
@@ -497,6 +1277,7 @@ public class DownloadMission extends Mission {
         }
 
         running = false;
+        trackTime();
         notify(DownloadManagerService.MESSAGE_PAUSED);
 
         if (init != null && init.isAlive()) {
@@ -518,7 +1299,9 @@ public class DownloadMission extends Mission {
 
     private void pauseThreads() {
         running = false;
+        trackTime();
         joinForThreads(-1);
+        stopSnapshots();
         writeThisToFile();
     }
 
@@ -527,6 +1310,9 @@ public class DownloadMission extends Mission {
      */
     @Override
     public boolean delete() {
+        Thread pipeline = this.pipeline;
+        if (pipeline != null) pipeline.interrupt();
+
         if (psAlgorithm != null) psAlgorithm.cleanupTemporalDir();
 
         notify(DownloadManagerService.MESSAGE_DELETED);
@@ -553,6 +1339,7 @@ public class DownloadMission extends Mission {
         fallbackResumeOffset = 0;
         blocks = null;
         blockAcquired = null;
+        inFlight = null;
 
         if (rollback) current = 0;
         if (persistChanges) writeThisToFile();
@@ -562,7 +1349,10 @@ public class DownloadMission extends Mission {
         init = runAsync(DownloadInitializer.mId, new DownloadInitializer(this));
     }
 
-    private void writeThisToFileAsync() {
+    /**
+     * Write this {@link DownloadMission} to the meta file in a new thread
+     */
+    public void writeThisToFileAsync() {
         runAsync(-2, this::writeThisToFile);
     }
 
@@ -571,13 +1361,47 @@ public class DownloadMission extends Mission {
      * if no thread is already running.
      */
     void writeThisToFile() {
+        File file;
+        byte[] data;
+        long sequence;
+        Object lock;
+
+        // only the encoding holds the mission lock, the disk is slow and the lock is used by
+        // every read of the download threads
         synchronized (LOCK) {
             if (metadata == null) return;
-            Utility.writeToFile(metadata, this);
-            writingToFile = false;
+            try {
+                data = MissionStore.serialize(this);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save the mission state", e);
+                return;
+            }
+            file = metadata;
+            sequence = ++writeSequence;
+            lock = getWriteLock();
+        }
+
+        synchronized (lock) {
+            // skip if a newer state was written or the mission was deleted meanwhile
+            if (sequence < writtenSequence || metadata != file) return;
+            try {
+                MissionStore.write(file, data);
+                writtenSequence = sequence;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save the mission state", e);
+            }
         }
     }
 
+    /**
+     * Must be called holding {@link #LOCK}, the lock is created here because the missions saved
+     * by older versions are restored without running the field initializers
+     */
+    private Object getWriteLock() {
+        if (writeLock == null) writeLock = new Object();
+        return writeLock;
+    }
+
     /**
      * Indicates if the download if fully finished
      *
@@ -627,7 +1451,7 @@ public class DownloadMission extends Mission {
      */
     public long getLength() {
         long calculated;
-        if (psState == 1 || psState == 3) {
+        if ((psState == 1 || psState == 3) && current >= urls.length) {
             return length;
         }
 
@@ -644,6 +1468,7 @@ public class DownloadMission extends Mission {
      */
     public void setEnqueued(boolean queue) {
         enqueued = queue;
+        trackTime();
         writeThisToFileAsync();
     }
 
@@ -701,9 +1526,16 @@ public class DownloadMission extends Mission {
 
         try {
             psAlgorithm.run(this);
+            if (thread == pipeline) awaitDownload();
         } catch (Exception err) {
             Log.e(TAG, "Post-processing failed. " + psAlgorithm.toString(), err);
 
+            if (thread == pipeline) {
+                synchronized (this) {
+                    pipeline = null;
+                }
+            }
+
             if (err instanceof InterruptedIOException || err instanceof ClosedByInterruptException || thread.isInterrupted()) {
                 notifyError(DownloadMission.ERROR_POSTPROCESSING_STOPPED, null);
                 return;
@@ -725,6 +1557,37 @@ public class DownloadMission extends Mission {
         notifyFinished();
     }
 
+    /**
+     * Waits until the download threads are done, after the post-processing consumed all the
+     * downloaded data
+     */
+    private void awaitDownload() throws InterruptedIOException {
+        while (true) {
+            synchronized (this) {
+                if (current >= urls.length) {
+                    pipeline = null;
+                    return;
+                }
+            }
+
+            try {
+                Thread.sleep(PIPELINE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting the download");
+            }
+        }
+    }
+
+    /**
+     * Elects the download thread in charge of the recovery. When the urls expire every thread
+     * gets the error, whatever their ids, but only one must recover the mission
+     *
+     * @return {@code true} for the first caller since the download was started
+     */
+    boolean claimRecovery() {
+        return recovering.compareAndSet(false, true);
+    }
+
     /**
      * Attempts to recover the download
      *
@@ -747,10 +1610,20 @@ public class DownloadMission extends Mission {
     }
 
     private boolean deleteThisFromFile() {
+        File file;
+        Object lock;
+
         synchronized (LOCK) {
-            boolean res = metadata.delete();
+            file = metadata;
             metadata = null;
-            return res;
+            lock = getWriteLock();
+        }
+
+        if (file == null) return false;
+
+        // wait for a write in progress, otherwise it can create the file again
+        synchronized (lock) {
+            return MissionStore.delete(file);
         }
     }
 
@@ -773,7 +1646,9 @@ public class DownloadMission extends Mission {
      */
     private Thread runAsync(int id, Thread who) {
         // known thread ids:
-        //   -2:     state saving by  notifyProgress()  method
+        //   -4:     hedged request of a stalled block
+        //   -3:     recovery of expired urls
+        //   -2:     state saving by  setEnqueued()  method
         //   -1:     wait for saving the state by  pause()  method
         //    0:     initializer
         //  >=1:     any download thread
@@ -847,7 +1722,76 @@ public class DownloadMission extends Mission {
 
     public static class Block {
         public int position;
-        public int done;
+
+        /**
+         * Bytes downloaded from the start of the block at {@code position}. Increased by the
+         * download threads without holding the mission lock, see
+         * {@link DownloadMission#commitBlock(Block, long)}
+         */
+        public volatile int done;
+
+        /**
+         * Amount of consecutive blocks requested together, starting at {@code position}
+         */
+        public int count = 1;
+
+        /**
+         * Last byte to download, can be reduced by other thread (see {@link #acquireBlock()})
+         */
+        volatile long end;
+
+        /**
+         * Split information, if this block is shared with other thread
+         */
+        Split split;
+
+        /**
+         * Indicates if this the tail part of a split block
+         */
+        boolean tail;
+
+        long origin;
+
+        /**
+         * Offset after the last byte reserved to be written, see
+         * {@link DownloadMission#claimBlock(Block, long, int)}
+         */
+        volatile long claimed;
+        long started;
+
+        /**
+         * Throughput measured by the {@link StallDetector} in bytes per nanosecond, {@code -1}
+         * if not measured yet
+         */
+        double rate = -1;
+        long sampledAt;
+        long sampledClaimed;
+        boolean stalled;
+
+        /**
+         * Amount of connections downloading this block, two while hedged, zero once released
+         */
+        volatile int owners = 1;
+
+        /**
+         * Indicates if a hedged request was made for this block, only one is made
+         */
+        boolean hedged;
+        DownloadRunnable owner;
+        DownloadRunnable hedge;
+    }
+
+    /**
+     * A block downloaded by two threads, the head goes until {@code mid} and the tail from
+     * {@code mid} to the end of the block. States: 0 running, 1 completed, -1 stopped.
+     */
+    static class Split {
+        int position;
+        int mid;
+        int headState;
+        int headDone;
+        int tailState;
+        int tailBytes;
     }
 
     private static class Lock implements Serializable {
@@ -2,17 +2,14 @@ package us.shandian.giga.get;
 
 import android.util.Log;
 
-import org.schabi.newpipe.extractor.NewPipe;
-import org.schabi.newpipe.extractor.StreamingService;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
 import org.schabi.newpipe.extractor.stream.AudioStream;
-import org.schabi.newpipe.extractor.stream.StreamExtractor;
+import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.List;
 
@@ -29,9 +26,9 @@ public class DownloadMissionRecover extends Thread {
 
     private final int mErrCode;
 
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
     private MissionRecoveryInfo mRecovery;
-    private StreamExtractor mExtractor;
+    private StreamInfo mInfo;
 
     DownloadMissionRecover(DownloadMission mission, int errCode) {
         mMission = mission;
@@ -66,15 +63,9 @@ public class DownloadMissionRecover extends Thread {
     }
 
     private void tryRecover() throws ExtractionException, IOException, HttpError {
-        if (mExtractor == null) {
-            try {
-                StreamingService svr = NewPipe.getServiceByUrl(mMission.source);
-                mExtractor = svr.getStreamExtractor(mMission.source);
-                mExtractor.fetchPage();
-            } catch (ExtractionException e) {
-                mExtractor = null;
-                throw e;
-            }
+        if (mInfo == null) {
+            // shared with the other missions of the same stream
+            mInfo = RecoveryCoordinator.getInstance().resolve(mMission.source);
         }
 
         // maybe the following check is redundant
@@ -120,18 +111,12 @@ public class DownloadMissionRecover extends Thread {
         mMission.start();
     }
 
-    private void resolveStream() throws IOException, ExtractionException, HttpError {
-        // FIXME: this getErrorMessage() always returns "video is unavailable"
-        /*if (mExtractor.getErrorMessage() != null) {
-            mMission.notifyError(mErrCode, new ExtractionException(mExtractor.getErrorMessage()));
-            return;
-        }*/
-
+    private void resolveStream() throws IOException, HttpError {
         String url = null;
 
         switch (mRecovery.getKind()) {
             case 'a':
-                for (AudioStream audio : mExtractor.getAudioStreams()) {
+                for (AudioStream audio : mInfo.getAudioStreams()) {
                     if (audio.average_bitrate == mRecovery.getDesiredBitrate() && audio.getFormat() == mRecovery.getFormat()) {
                         url = audio.getUrl();
                         break;
@@ -141,9 +126,9 @@ public class DownloadMissionRecover extends Thread {
             case 'v':
                 List<VideoStream> videoStreams;
                 if (mRecovery.isDesired2())
-                    videoStreams = mExtractor.getVideoOnlyStreams();
+                    videoStreams = mInfo.getVideoOnlyStreams();
                 else
-                    videoStreams = mExtractor.getVideoStreams();
+                    videoStreams = mInfo.getVideoStreams();
                 for (VideoStream video : videoStreams) {
                     if (video.resolution.equals(mRecovery.getDesired()) && video.getFormat() == mRecovery.getFormat()) {
                         url = video.getUrl();
@@ -152,7 +137,9 @@ public class DownloadMissionRecover extends Thread {
                 }
                 break;
             case 's':
-                for (SubtitlesStream subtitles : mExtractor.getSubtitles(mRecovery.getFormat())) {
+                for (SubtitlesStream subtitles : mInfo.getSubtitles()) {
+                    if (subtitles.getFormat() != mRecovery.getFormat()) continue;
+
                     String tag = subtitles.getLanguageTag();
                     if (tag.equals(mRecovery.getDesired()) && subtitles.isAutoGenerated() == mRecovery.isDesired2()) {
                         url = subtitles.getUrl();
@@ -293,11 +280,7 @@ public class DownloadMissionRecover extends Thread {
 
     private void disconnect() {
         try {
-            try {
-                mConn.getInputStream().close();
-            } finally {
-                mConn.disconnect();
-            }
+            mConn.close();
         } catch (Exception e) {
             // nothing to do
         } finally {
@@ -308,6 +291,8 @@ public class DownloadMissionRecover extends Thread {
     @Override
     public void interrupt() {
         super.interrupt();
-        if (mConn != null) disconnect();
+
+        HttpConnection conn = mConn;
+        if (conn != null) conn.disconnect();
     }
 }
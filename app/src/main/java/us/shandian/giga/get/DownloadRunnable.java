@@ -2,16 +2,14 @@ package us.shandian.giga.get;
 
 import android.util.Log;
 
-import org.schabi.newpipe.streams.io.SharpStream;
-
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.Objects;
 
 import us.shandian.giga.get.DownloadMission.Block;
 import us.shandian.giga.get.DownloadMission.HttpError;
+import us.shandian.giga.io.PositionalFileSink;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
@@ -27,35 +25,94 @@ public class DownloadRunnable extends Thread {
     private final DownloadMission mMission;
     private final int mId;
 
-    private HttpURLConnection mConn;
+    /**
+     * Stalled block downloaded again by this thread, {@code null} for a regular download thread
+     */
+    private final Block mHedged;
+
+    private HttpConnection mConn;
+    private volatile Block mBlock;
+    private volatile boolean mLost;
 
     DownloadRunnable(DownloadMission mission, int id) {
+        this(mission, id, null);
+    }
+
+    /**
+     * @param mission the mission
+     * @param id      id of the thread
+     * @param hedged  a stalled block to download with a hedged request, the thread exits after
+     *                downloading it
+     */
+    DownloadRunnable(DownloadMission mission, int id, Block hedged) {
         mMission = Objects.requireNonNull(mission);
         mId = id;
+        mHedged = hedged;
+        mBlock = hedged;
     }
 
     private void releaseBlock(Block block, long remain) {
         // set the block offset to -1 if it is completed
-        mMission.releaseBlock(block.position, remain < 0 ? -1 : block.done);
+        mMission.releaseBlock(block, remain < 0, this);
+    }
+
+    /**
+     * Indicates if this thread is downloading the given block
+     *
+     * @param block the block
+     * @return {@code true} if the block was acquired by this thread
+     */
+    boolean isDownloading(Block block) {
+        return mBlock == block;
+    }
+
+    /**
+     * Aborts the request of a hedged block, because the other connection finished it first or
+     * stopped downloading it
+     *
+     * @param block the block
+     */
+    synchronized void cancelBlock(Block block) {
+        if (mBlock != block) return;
+
+        mLost = true;
+
+        try {
+            if (mConn != null) mConn.disconnect();
+        } catch (Exception e) {
+            // nothing to do
+        }
+    }
+
+    private synchronized void setBlock(Block block) {
+        mBlock = block;
+        mLost = false;
     }
 
     @Override
     public void run() {
-        boolean retry = false;
-        Block block = null;
+        boolean retry = mHedged != null;// a hedge starts with the block of other thread
+        Block block = mHedged;
         int retryCount = 0;
-        SharpStream f;
+        PositionalFileSink sink;
 
         try {
-            f = mMission.storage.getStream();
+            sink = mMission.acquireSink();
         } catch (IOException e) {
-            mMission.notifyError(e);// this never should happen
+            if (mHedged == null)
+                mMission.notifyError(e);
+            else
+                releaseBlock(mHedged, 0);
             return;
         }
 
+        long offset = mMission.offsets[mMission.current];
+
         while (mMission.running && mMission.errCode == DownloadMission.ERROR_NOTHING) {
             if (!retry) {
-                block = mMission.acquireBlock();
+                // a hedge downloads a single block
+                block = mHedged == null ? mMission.acquireBlock() : null;
+                setBlock(block);
             }
 
             if (block == null) {
@@ -70,27 +127,37 @@ public class DownloadRunnable extends Thread {
                     Log.d(TAG, mId + ":acquired block at position=" + block.position + " done=" + block.done);
             }
 
-            long start = (long)block.position * DownloadMission.BLOCK_SIZE;
-            long end = start + DownloadMission.BLOCK_SIZE - 1;
-
-            start += block.done;
+            long start = (long) block.position * DownloadMission.BLOCK_SIZE + block.done;
+            long end = block.end;
 
-            if (end >= mMission.length) {
-                end = mMission.length - 1;
+            if (retry && start > end) {
+                // finished by the other connection of a hedged block
+                retry = false;
+                releaseBlock(block, -1);
+                continue;
             }
 
+            long requestStart = start;
+            long transferStart = 0;
+            long ttfb = 0;
+
+            mConn = null;
+
             try {
+                long connectTime = System.nanoTime();
                 mConn = mMission.openConnection(false, start, end);
                 mMission.establishConnection(mId, mConn);
 
+                transferStart = System.nanoTime();
+                ttfb = transferStart - connectTime;
+
                 // check if the download can be resumed
                 if (mConn.getResponseCode() == 416) {
-                    if (block.done > 0) {
+                    if (block.done > 0 && !block.tail && mHedged == null) {
                         // try again from the start (of the block)
                         mMission.notifyProgress(-block.done);
                         block.done = 0;
                         retry = true;
-                        mConn.disconnect();
                         continue;
                     }
 
@@ -108,33 +175,51 @@ public class DownloadRunnable extends Thread {
                     break;
                 }
 
-                f.seek(mMission.offsets[mMission.current] + start);
-
                 try (InputStream is = mConn.getInputStream()) {
                     byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
                     int len;
 
                     // use always start <= end
                     // fixes a deadlock because in some videos, youtube is sending one byte alone
-                    while (start <= end && mMission.running && (len = is.read(buf, 0, buf.length)) != -1) {
-                        f.write(buf, 0, len);
+                    while (start <= block.end && mMission.running && (len = is.read(buf, 0, buf.length)) != -1) {
+                        // other thread can take the rest of the block at any time
+                        len = mMission.claimBlock(block, start, len);
+                        if (len < 1) break;
+
+                        sink.write(buf, 0, len, offset + start);
                         start += len;
-                        block.done += len;
-                        mMission.notifyProgress(len);
+                        mMission.notifyProgress(mMission.commitBlock(block, start));
+                        mMission.throttle(len);
                     }
                 }
 
+                end = block.end;
+
                 if (DEBUG && mMission.running) {
                     Log.d(TAG, mId + ":position " + block.position + " stopped " + start + "/" + end);
                 }
             } catch (Exception e) {
                 if (!mMission.running || e instanceof ClosedByInterruptException) break;
 
+                if (mLost) {
+                    // the other connection of the hedged block finished it first
+                    retry = false;
+                    continue;
+                }
+
+                if (mHedged != null) {
+                    // the owner of the block keeps downloading it
+                    if (DEBUG) Log.d(TAG, mId + ":hedged request failed", e);
+                    retry = false;
+                    break;
+                }
+
                 if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
                     // for youtube streams. The url has expired, recover
-                    f.close();
+                    sink.release();
+                    retry = false;// release the block
 
-                    if (mId == 1) {
+                    if (mMission.claimRecovery()) {
                         // only the first thread will execute the recovery procedure
                         mMission.doRecover(ERROR_HTTP_FORBIDDEN);
                     }
@@ -148,16 +233,31 @@ public class DownloadRunnable extends Thread {
 
                 retry = true;
             } finally {
-                if (!retry) releaseBlock(block, end - start);
+                // let the next request reuse the connection
+                if (mConn != null) mConn.close();
+
+                if (!retry) releaseBlock(block, block.end - start);
+            }
+
+            if (!retry && mMission.running && start > end) {
+                long now = System.nanoTime();
+                mMission.tuner.onRequest(start - requestStart, ttfb, now - transferStart);
+                mMission.tuner.onProgress(now, mMission.getDone());
+
+                if (mHedged == null && !mMission.balanceThreads(mId)) break;
             }
         }
 
-        f.close();
+        if (retry) releaseBlock(block, 0);
+
+        sink.release();
 
         if (DEBUG) {
             Log.d(TAG, "thread " + mId + " exited from main download loop");
         }
 
+        if (mHedged != null) return;
+
         if (mMission.errCode == DownloadMission.ERROR_NOTHING && mMission.running) {
             if (DEBUG) {
                 Log.d(TAG, "no error has happened, notifying");
@@ -8,11 +8,9 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 
 import us.shandian.giga.get.DownloadMission.HttpError;
-import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
@@ -28,7 +26,7 @@ public class DownloadRunnableFallback extends Thread {
     private int mRetryCount = 0;
     private InputStream mIs;
     private SharpStream mF;
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
 
     DownloadRunnableFallback(@NonNull DownloadMission mission) {
         mMission = mission;
@@ -39,7 +37,7 @@ public class DownloadRunnableFallback extends Thread {
             try {
                 if (mIs != null) mIs.close();
             } finally {
-                mConn.disconnect();
+                if (mConn != null) mConn.close();
             }
         } catch (IOException e) {
             // nothing to do
@@ -80,11 +78,11 @@ public class DownloadRunnableFallback extends Thread {
 
             // secondary check for the file length
             if (!mMission.unknownLength)
-                mMission.unknownLength = Utility.getContentLength(mConn) == -1;
+                mMission.unknownLength = mConn.getContentLength() == -1;
 
             if (mMission.unknownLength || mConn.getResponseCode() == 200) {
                 // restart amount of bytes downloaded
-                mMission.done = mMission.offsets[mMission.current] - mMission.offsets[0];
+                mMission.resetProgress(mMission.offsets[mMission.current] - mMission.offsets[0]);
             }
 
             mF = mMission.storage.getStream();
@@ -99,6 +97,7 @@ public class DownloadRunnableFallback extends Thread {
                 mF.write(buf, 0, len);
                 start += len;
                 mMission.notifyProgress(len);
+                mMission.throttle(len);
             }
 
             dispose();
@@ -0,0 +1,183 @@
+package us.shandian.giga.get;
+
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+
+/**
+ * Chooses how many consecutive blocks a {@link DownloadRunnable} should request at once and
+ * how many download threads should be running, based on the throughput and the time to first
+ * byte (TTFB) observed on every connection.
+ * <p>
+ * The block grid of {@link DownloadMission#blocks} is never changed, a bigger request simply
+ * spans over several blocks, so the resume metadata keeps the same layout.
+ */
+class DownloadTuner {
+    /**
+     * Maximum amount of consecutive blocks covered by a single request (8 MiB)
+     */
+    static final int MAX_SPAN = 16;
+
+    /**
+     * Period used to measure the aggregated throughput of all threads
+     */
+    static final long WINDOW_NANOS = 2000L * 1000L * 1000L;
+
+    /**
+     * Shortest transfer time desired for every request, keeps the requests overhead low
+     * on fast connections
+     */
+    private static final long MIN_REQUEST_NANOS = 500L * 1000L * 1000L;
+
+    /**
+     * Desired fraction of the request time spent waiting for the first byte
+     */
+    private static final double TTFB_RATIO = 0.1;
+
+    /**
+     * Weight of every new sample in the moving averages
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Minimum aggregated throughput change considered as an improvement or a degradation
+     */
+    private static final double GAIN_THRESHOLD = 0.1;
+
+    private final boolean adaptive;
+    private final int maxThreads;
+
+    private double throughput;// bytes per nanosecond, per connection
+    private double ttfb;// nanoseconds
+
+    private int span = 1;
+    private int targetThreads;
+
+    private long windowStart = -1;
+    private long windowDone;
+    private double lastAggregate;
+    private int lastStep;
+
+    /**
+     * @param maxThreads maximum amount of threads, chosen by the user
+     * @param adaptive   {@code false} to always request one block and use all threads
+     */
+    DownloadTuner(int maxThreads, boolean adaptive) {
+        this.maxThreads = Math.max(1, maxThreads);
+        this.adaptive = adaptive;
+
+        // start with the half of the allowed threads, more are added if the throughput improves
+        targetThreads = adaptive ? (this.maxThreads + 1) / 2 : this.maxThreads;
+    }
+
+    /**
+     * Amount of consecutive blocks which should be requested in the next connection
+     *
+     * @return the number of blocks, at least one
+     */
+    synchronized int getSpan() {
+        return span;
+    }
+
+    /**
+     * Amount of download threads which should be running
+     *
+     * @return the number of threads, between one and the maximum chosen by the user
+     */
+    synchronized int getTargetThreads() {
+        return targetThreads;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Reports a finished request of a single connection
+     *
+     * @param bytes         amount of bytes transferred
+     * @param ttfbNanos     elapsed time between opening the connection and the response headers
+     * @param transferNanos elapsed time reading the response body
+     */
+    synchronized void onRequest(long bytes, long ttfbNanos, long transferNanos) {
+        if (!adaptive || bytes < 1 || transferNanos < 1) return;
+
+        double sample = bytes / (double) transferNanos;
+
+        if (throughput == 0) {
+            throughput = sample;
+            ttfb = ttfbNanos;
+        } else {
+            throughput += (sample - throughput) * SMOOTHING;
+            ttfb += (ttfbNanos - ttfb) * SMOOTHING;
+        }
+
+        // request enough bytes to hide the TTFB, but not too many to keep the work balanced
+        double desiredNanos = Math.max(MIN_REQUEST_NANOS, ttfb / TTFB_RATIO);
+        long desiredSpan = Math.round(throughput * desiredNanos / BLOCK_SIZE);
+
+        span = (int) Math.max(1, Math.min(MAX_SPAN, desiredSpan));
+    }
+
+    /**
+     * Reports the overall progress of the mission, the thread count is revised every
+     * {@link #WINDOW_NANOS}
+     *
+     * @param now  current time in nanoseconds
+     * @param done total amount of bytes downloaded by all threads
+     */
+    synchronized void onProgress(long now, long done) {
+        if (!adaptive) return;
+
+        if (windowStart < 0) {
+            windowStart = now;
+            windowDone = done;
+            return;
+        }
+
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) return;
+
+        double aggregate = (done - windowDone) / (double) elapsed;
+        int step;
+
+        if (lastAggregate <= 0) {
+            step = 1;// first window, probe with one more connection
+        } else {
+            double gain = (aggregate - lastAggregate) / lastAggregate;
+
+            if (gain >= GAIN_THRESHOLD)
+                step = lastStep == 0 ? 1 : lastStep;// keep going
+            else if (gain <= -GAIN_THRESHOLD)
+                step = lastStep > 0 ? -1 : 1;// undo the last change or compensate the loss
+            else
+                step = lastStep > 0 ? -1 : 0;// the extra connection is useless
+        }
+
+        int target = Math.max(1, Math.min(maxThreads, targetThreads + step));
+
+        lastStep = target - targetThreads;
+        lastAggregate = aggregate;
+        targetThreads = target;
+        windowStart = now;
+        windowDone = done;
+    }
+
+    /**
+     * Counts how many blocks, starting at {@code first}, can be requested together. Only the
+     * first block can be partially downloaded, the following ones must be untouched and free.
+     *
+     * @param blocks   the download blocks, see {@link DownloadMission#blocks}
+     * @param acquired blocks currently owned by a thread
+     * @param first    the first block of the span, must be free
+     * @param maxSpan  maximum amount of blocks
+     * @return the length of the span, at least one
+     */
+    static int spanLength(int[] blocks, boolean[] acquired, int first, int maxSpan) {
+        int count = 1;
+        while (count < maxSpan) {
+            int i = first + count;
+            if (i >= blocks.length || acquired[i] || blocks[i] != 0) break;
+            count++;
+        }
+        return count;
+    }
+}
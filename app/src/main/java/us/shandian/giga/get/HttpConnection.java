@@ -0,0 +1,78 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single HTTP request made by the download threads, created by a {@link HttpTransport}. The
+ * request is sent when the response code is requested for the first time.
+ */
+public abstract class HttpConnection {
+    protected final String url;
+    protected final boolean headRequest;
+    protected final ConnectionStats stats;
+    protected final Map<String, String> requestProperties = new LinkedHashMap<>();
+
+    protected HttpConnection(@NonNull String url, boolean headRequest, @NonNull ConnectionStats stats) {
+        this.url = url;
+        this.headRequest = headRequest;
+        this.stats = stats;
+    }
+
+    public void setRequestProperty(@NonNull String key, @NonNull String value) {
+        requestProperties.put(key, value);
+    }
+
+    @Nullable
+    public String getRequestProperty(@NonNull String key) {
+        return requestProperties.get(key);
+    }
+
+    /**
+     * Sends the request (if not already sent) and waits for the response headers
+     *
+     * @return the HTTP status code
+     * @throws IOException if an error occurred connecting to the server
+     */
+    public abstract int getResponseCode() throws IOException;
+
+    /**
+     * Gets a response header, must be called after {@link #getResponseCode()}
+     *
+     * @param name the header name
+     * @return the value, or {@code null} if not present
+     */
+    @Nullable
+    public abstract String getHeaderField(@NonNull String name);
+
+    /**
+     * Gets the response body length, must be called after {@link #getResponseCode()}
+     *
+     * @return the length, or {@code -1} if unknown
+     */
+    public long getContentLength() {
+        try {
+            return Long.parseLong(getHeaderField("Content-Length"));
+        } catch (Exception err) {
+            return -1;
+        }
+    }
+
+    public abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Releases the connection, if the response body was fully read the connection can be reused
+     * by the next request
+     */
+    public abstract void close();
+
+    /**
+     * Aborts the request, can be called from any thread
+     */
+    public abstract void disconnect();
+}
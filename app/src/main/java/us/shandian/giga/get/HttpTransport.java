@@ -0,0 +1,22 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Creates the HTTP requests of the download engine
+ */
+public interface HttpTransport {
+
+    /**
+     * Prepares a request, nothing is sent until {@link HttpConnection#getResponseCode()} is called
+     *
+     * @param url         the resource url
+     * @param headRequest {@code true} for use {@code HEAD} request method, otherwise, {@code GET} is used
+     * @param stats       where count the connections used by the request
+     * @return the connection
+     * @throws IOException if the url is malformed
+     */
+    HttpConnection open(@NonNull String url, boolean headRequest, @NonNull ConnectionStats stats) throws IOException;
+}
@@ -0,0 +1,446 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.extractor.MediaFormat;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import us.shandian.giga.postprocessing.Postprocessing;
+
+/**
+ * Reads and writes the metadata of a pending {@link DownloadMission} using a compact versioned
+ * binary format. The file is replaced atomically: the new state is written in a temporal file,
+ * flushed to the disk and renamed over the previous one, a crash while writing leaves the
+ * previous state intact.
+ * <p>
+ * Layout: magic, version, payload length, payload, CRC32 of all the previous bytes.
+ * Files written by older versions (Java serialization) are still readable.
+ */
+public class MissionStore {
+    static final int MAGIC = 0x4E504D44;// "NPMD"
+    static final short VERSION = 3;
+
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+    private static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
+    private MissionStore() {
+    }
+
+    /**
+     * Saves the mission state
+     *
+     * @param file    the metadata file
+     * @param mission the mission
+     * @throws IOException if the state can not be written
+     */
+    public static void write(@NonNull File file, @NonNull DownloadMission mission) throws IOException {
+        write(file, serialize(mission));
+    }
+
+    /**
+     * Encodes the mission state, the result is saved later with {@link #write(File, byte[])}.
+     * The mission must not be changed meanwhile.
+     *
+     * @param mission the mission
+     * @return the content of the metadata file
+     * @throws IOException if the state can not be encoded
+     */
+    @NonNull
+    static byte[] serialize(@NonNull DownloadMission mission) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(0);// payload length, set later
+        writePayload(out, mission);
+        out.flush();
+
+        byte[] data = buffer.toByteArray();
+        int payloadLength = data.length - HEADER_SIZE;
+        data[6] = (byte) (payloadLength >>> 24);
+        data[7] = (byte) (payloadLength >>> 16);
+        data[8] = (byte) (payloadLength >>> 8);
+        data[9] = (byte) payloadLength;
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        byte[] result = Arrays.copyOf(data, data.length + 4);
+        int value = (int) crc.getValue();
+        result[data.length] = (byte) (value >>> 24);
+        result[data.length + 1] = (byte) (value >>> 16);
+        result[data.length + 2] = (byte) (value >>> 8);
+        result[data.length + 3] = (byte) value;
+
+        return result;
+    }
+
+    /**
+     * Saves a mission state encoded by {@link #serialize(DownloadMission)}, the file is flushed
+     * to the disk before replacing the previous state
+     *
+     * @param file the metadata file
+     * @param data the encoded state
+     * @throws IOException if the state can not be written
+     */
+    static void write(@NonNull File file, @NonNull byte[] data) throws IOException {
+        File temp = getTempFile(file);
+
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(data);
+            output.getFD().sync();
+        }
+
+        if (!replace(temp, file)) throw new IOException("Cannot replace " + file.getName());
+    }
+
+    /**
+     * Loads a mission saved with {@link #write(File, DownloadMission)} or by older versions
+     * using the Java serialization. If a write was interrupted after the temporal file was
+     * fully written, that state is recovered.
+     *
+     * @param file the metadata file
+     * @return the mission, or {@code null} if the file is corrupt or missing
+     */
+    @Nullable
+    public static DownloadMission read(@NonNull File file) {
+        File temp = getTempFile(file);
+
+        if (temp.exists()) {
+            // the temporal file is newer, but it can be incomplete
+            DownloadMission mission = tryRead(temp);
+            if (mission != null && replace(temp, file)) return mission;
+
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+
+        return file.exists() ? tryRead(file) : null;
+    }
+
+    /**
+     * Deletes the metadata file and the leftovers of an interrupted write
+     *
+     * @param file the metadata file
+     * @return {@code true} if the metadata file was deleted
+     */
+    public static boolean delete(@NonNull File file) {
+        File temp = getTempFile(file);
+        if (temp.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+        return file.delete();
+    }
+
+    /**
+     * Indicates if the file is a leftover of an interrupted write, these are handled by
+     * {@link #read(File)}
+     *
+     * @param file a file in the metadata directory
+     * @return {@code true} if the file is temporal
+     */
+    public static boolean isTempFile(@NonNull File file) {
+        return file.getName().endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Gets the metadata file of a temporal file
+     *
+     * @param temp a file where {@link #isTempFile(File)} is {@code true}
+     * @return the metadata file
+     */
+    public static File getMetadataFile(@NonNull File temp) {
+        String name = temp.getName();
+        return new File(temp.getParentFile(), name.substring(0, name.length() - TEMP_SUFFIX.length()));
+    }
+
+    private static boolean replace(File source, File target) {
+        if (source.renameTo(target)) return true;
+
+        // some file systems do not allow replacing files
+        return (!target.exists() || target.delete()) && source.renameTo(target);
+    }
+
+    @Nullable
+    private static DownloadMission tryRead(File file) {
+        try {
+            return readFile(file);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+    }
+
+    private static DownloadMission readFile(File file) throws IOException, ClassNotFoundException {
+        long length = file.length();
+        if (length < HEADER_SIZE + CRC_SIZE || length > MAX_LENGTH) {
+            throw new IOException("invalid metadata length " + length);
+        }
+
+        byte[] data = new byte[(int) length];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(data);
+        }
+
+        if ((short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) == SERIALIZATION_MAGIC) {
+            return readLegacy(data);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (in.readInt() != MAGIC) throw new IOException("unknown metadata format");
+
+        short version = in.readShort();
+        if (version < 1 || version > VERSION) throw new IOException("unsupported version " + version);
+
+        int payloadLength = in.readInt();
+        if (payloadLength != data.length - HEADER_SIZE - CRC_SIZE) throw new IOException("truncated metadata");
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - CRC_SIZE);
+
+        DataInputStream tail = new DataInputStream(new ByteArrayInputStream(data, data.length - CRC_SIZE, CRC_SIZE));
+        if (tail.readInt() != (int) crc.getValue()) throw new IOException("corrupt metadata");
+
+        return readPayload(in, version);
+    }
+
+    private static DownloadMission readLegacy(byte[] data) throws IOException, ClassNotFoundException {
+        DownloadMission mission;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            mission = (DownloadMission) in.readObject();
+        }
+
+        // fields added after the last serialized version
+        mission.weight = 1;
+        mission.queuePosition = mission.timestamp;
+        return mission;
+    }
+
+    private static void writePayload(DataOutputStream out, DownloadMission mission) throws IOException {
+        // Mission
+        writeString(out, mission.source);
+        out.writeLong(mission.length);
+        out.writeLong(mission.timestamp);
+        out.writeChar(mission.kind);
+
+        out.writeBoolean(mission.storage != null);
+        if (mission.storage != null) mission.storage.writeState(out);
+
+        // DownloadMission
+        out.writeInt(mission.urls.length);
+        for (String url : mission.urls) writeString(out, url);
+
+        out.writeLong(mission.done);
+        out.writeBoolean(mission.unknownLength);
+
+        out.writeInt(mission.offsets.length);
+        for (long offset : mission.offsets) out.writeLong(offset);
+
+        out.writeInt(mission.psState);
+        out.writeBoolean(mission.psAlgorithm != null);
+        if (mission.psAlgorithm != null) {
+            writeString(out, mission.psAlgorithm.getName());
+            writeStringArray(out, mission.psAlgorithm.getArguments());
+        }
+
+        out.writeInt(mission.current);
+        out.writeLong(mission.nearLength);
+
+        int[] blocks = mission.blocks;
+        out.writeInt(blocks == null ? -1 : blocks.length);
+        if (blocks != null) for (int block : blocks) out.writeInt(block);
+
+        out.writeLong(mission.fallbackResumeOffset);
+        out.writeInt(mission.threadCount);
+        out.writeBoolean(mission.adaptive);
+        out.writeInt(mission.weight);
+        out.writeInt(mission.priority);
+        out.writeLong(mission.queuePosition);
+        out.writeLong(mission.queueWaitTime);
+        out.writeLong(mission.runTime);
+
+        MissionRecoveryInfo[] recoveryInfo = mission.recoveryInfo;
+        out.writeInt(recoveryInfo == null ? -1 : recoveryInfo.length);
+        if (recoveryInfo != null) {
+            for (MissionRecoveryInfo info : recoveryInfo) {
+                out.writeBoolean(info != null);
+                if (info == null) continue;
+
+                out.writeUTF(info.getFormat().name());
+                writeString(out, info.getDesired());
+                out.writeBoolean(info.isDesired2());
+                out.writeInt(info.getDesiredBitrate());
+                out.writeChar(info.getKind());
+                writeString(out, info.getValidateCondition());
+            }
+        }
+
+        out.writeBoolean(mission.enqueued);
+        out.writeInt(mission.errCode);
+
+        byte[] error = serializeError(mission.errObject);
+        out.writeInt(error == null ? -1 : error.length);
+        if (error != null) out.write(error);
+    }
+
+    private static DownloadMission readPayload(DataInputStream in, short version) throws IOException, ClassNotFoundException {
+        DownloadMission mission = new DownloadMission();
+
+        mission.source = readString(in);
+        mission.length = in.readLong();
+        mission.timestamp = in.readLong();
+        mission.kind = in.readChar();
+
+        if (in.readBoolean()) mission.storage = StoredFileHelper.readState(in);
+
+        mission.urls = new String[readLength(in)];
+        for (int i = 0; i < mission.urls.length; i++) mission.urls[i] = readString(in);
+
+        mission.done = in.readLong();
+        mission.unknownLength = in.readBoolean();
+
+        mission.offsets = new long[readLength(in)];
+        for (int i = 0; i < mission.offsets.length; i++) mission.offsets[i] = in.readLong();
+
+        mission.psState = in.readInt();
+        if (in.readBoolean()) {
+            String name = readString(in);
+            String[] args = readStringArray(in);
+            mission.psAlgorithm = Postprocessing.getAlgorithm(name, args);
+        }
+
+        mission.current = in.readInt();
+        mission.nearLength = in.readLong();
+
+        int blocks = in.readInt();
+        if (blocks >= 0) {
+            mission.blocks = new int[checkLength(blocks)];
+            for (int i = 0; i < blocks; i++) mission.blocks[i] = in.readInt();
+        }
+
+        mission.fallbackResumeOffset = in.readLong();
+        mission.threadCount = in.readInt();
+        mission.adaptive = in.readBoolean();
+        mission.weight = version >= 2 ? in.readInt() : 1;
+
+        if (version >= 3) {
+            mission.priority = in.readInt();
+            mission.queuePosition = in.readLong();
+            mission.queueWaitTime = in.readLong();
+            mission.runTime = in.readLong();
+        } else {
+            mission.queuePosition = mission.timestamp;
+        }
+
+        int recoveryInfo = in.readInt();
+        if (recoveryInfo >= 0) {
+            mission.recoveryInfo = new MissionRecoveryInfo[checkLength(recoveryInfo)];
+            for (int i = 0; i < recoveryInfo; i++) {
+                if (!in.readBoolean()) continue;
+
+                MediaFormat format = MediaFormat.valueOf(in.readUTF());
+                String desired = readString(in);
+                boolean desired2 = in.readBoolean();
+                int bitrate = in.readInt();
+                char kind = in.readChar();
+                String validateCondition = readString(in);
+
+                mission.recoveryInfo[i] = new MissionRecoveryInfo(
+                        format, desired, desired2, bitrate, kind, validateCondition
+                );
+            }
+        }
+
+        mission.enqueued = in.readBoolean();
+        mission.errCode = in.readInt();
+
+        int error = in.readInt();
+        if (error >= 0) {
+            byte[] buffer = new byte[checkLength(error)];
+            in.readFully(buffer);
+            mission.errObject = deserializeError(buffer);
+        }
+
+        return mission;
+    }
+
+    @Nullable
+    private static byte[] serializeError(@Nullable Exception err) {
+        if (err == null) return null;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(err);
+        } catch (Exception e) {
+            return null;// the exception can not be serialized, forget it
+        }
+        return buffer.toByteArray();
+    }
+
+    @Nullable
+    private static Exception deserializeError(byte[] buffer) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer))) {
+            return (Exception) in.readObject();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) out.writeUTF(str);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStringArray(DataOutputStream out, @Nullable String[] array) throws IOException {
+        out.writeInt(array == null ? -1 : array.length);
+        if (array != null) for (String str : array) writeString(out, str);
+    }
+
+    @Nullable
+    private static String[] readStringArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        String[] array = new String[checkLength(length)];
+        for (int i = 0; i < length; i++) array[i] = readString(in);
+        return array;
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        return checkLength(in.readInt());
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) throw new IOException("invalid array length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,147 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Transport using the OkHttp client of the application. The connection pool is shared with the
+ * extractor requests, connections are kept alive between the range requests and HTTP/2 is used
+ * where the server supports it.
+ */
+class OkHttpTransport implements HttpTransport {
+    private final OkHttpClient client;
+
+    /**
+     * @param client the client to derive from, its connection pool and dispatcher are shared
+     */
+    OkHttpTransport(@NonNull OkHttpClient client) {
+        this.client = client.newBuilder()
+                .followRedirects(true)
+                .followSslRedirects(true)
+                // BUG workaround: switching between networks can freeze the download forever
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .eventListenerFactory(OkHttpTransport::createListener)
+                .build();
+    }
+
+    @Override
+    public HttpConnection open(@NonNull String url, boolean headRequest, @NonNull ConnectionStats stats) throws IOException {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) throw new IOException("Invalid url " + url);
+
+        return new OkHttpConnection(client, httpUrl, url, headRequest, stats);
+    }
+
+    private static EventListener createListener(Call call) {
+        ConnectionStats stats = call.request().tag(ConnectionStats.class);
+        return stats == null ? EventListener.NONE : new StatsListener(stats);
+    }
+
+    private static class StatsListener extends EventListener {
+        private final ConnectionStats stats;
+
+        StatsListener(ConnectionStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            stats.onConnect();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            stats.onHandshake();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            stats.onRequest();
+            if (connection.protocol() == Protocol.HTTP_2) stats.onMultiplexed();
+        }
+    }
+
+    private static class OkHttpConnection extends HttpConnection {
+        private final OkHttpClient client;
+        private final HttpUrl httpUrl;
+
+        private volatile Call call;
+        private volatile boolean canceled = false;
+        private Response response;
+
+        OkHttpConnection(OkHttpClient client, HttpUrl httpUrl, String url, boolean headRequest, ConnectionStats stats) {
+            super(url, headRequest, stats);
+            this.client = client;
+            this.httpUrl = httpUrl;
+        }
+
+        private Response execute() throws IOException {
+            if (response != null) return response;
+
+            Request.Builder builder = new Request.Builder()
+                    .url(httpUrl)
+                    .tag(ConnectionStats.class, stats);
+
+            if (headRequest) builder.head();
+
+            for (Map.Entry<String, String> property : requestProperties.entrySet())
+                builder.header(property.getKey(), property.getValue());
+
+            call = client.newCall(builder.build());
+            if (canceled) call.cancel();
+
+            response = call.execute();
+            return response;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return execute().code();
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return response == null ? null : response.header(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            ResponseBody body = execute().body();
+            if (body == null) throw new IOException("The response has no body");
+
+            return body.byteStream();
+        }
+
+        @Override
+        public void close() {
+            // if the body was fully read the connection returns to the pool
+            if (response != null) response.close();
+        }
+
+        @Override
+        public void disconnect() {
+            canceled = true;
+
+            Call call = this.call;
+            if (call != null) call.cancel();
+        }
+    }
+}
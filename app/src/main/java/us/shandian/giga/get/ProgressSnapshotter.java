@@ -0,0 +1,58 @@
+package us.shandian.giga.get;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread which periodically publishes the progress of every running mission, saves
+ * its state and looks for stalled connections, instead of doing it from the download threads.
+ */
+class ProgressSnapshotter {
+    static final long INTERVAL_MILLIS = 250;
+
+    private static final CopyOnWriteArrayList<DownloadMission> missions = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService executor;
+    private static ScheduledFuture<?> task;
+
+    private ProgressSnapshotter() {
+    }
+
+    static synchronized void register(DownloadMission mission) {
+        if (missions.addIfAbsent(mission) && task == null) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ProgressSnapshotter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            task = executor.scheduleWithFixedDelay(
+                    ProgressSnapshotter::run, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    static synchronized void unregister(DownloadMission mission) {
+        if (missions.remove(mission) && missions.isEmpty() && task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    private static void run() {
+        for (DownloadMission mission : missions) {
+            try {
+                mission.snapshot(true);
+                mission.checkStalls();
+            } catch (Exception e) {
+                // keep going with the other missions
+            }
+
+            if (!mission.running) unregister(mission);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.extractor.InfoItem;
+import org.schabi.newpipe.extractor.NewPipe;
+import org.schabi.newpipe.extractor.StreamingService;
+import org.schabi.newpipe.extractor.exceptions.ExtractionException;
+import org.schabi.newpipe.extractor.stream.StreamInfo;
+import org.schabi.newpipe.util.InfoCache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import static org.schabi.newpipe.BuildConfig.DEBUG;
+
+/**
+ * Resolves the stream pages of the missions being recovered by {@link DownloadMissionRecover}.
+ * The missions of the same stream (video, audio and subtitles, or a batch of missions expired
+ * at once) share a single resolution: while a page is fetched the other missions wait for it,
+ * and the resulting {@link StreamInfo} is stored in the {@link InfoCache} and reused for
+ * {@link #REUSE_MILLIS}.
+ * <p>
+ * At most {@link #MAX_PARALLEL} pages are fetched at the same time, and a page which failed to
+ * load is not fetched again until its back-off time elapses.
+ */
+class RecoveryCoordinator {
+    private static final String TAG = "RecoveryCoordinator";
+
+    /**
+     * Maximum amount of stream pages fetched at the same time
+     */
+    static final int MAX_PARALLEL = 2;
+
+    /**
+     * Time a resolved stream is reused by other missions, the stream urls are still fresh
+     */
+    static final long REUSE_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Wait before fetching again a page which failed to load, doubled on every failure
+     */
+    static final long BASE_BACKOFF_MILLIS = 2000;
+
+    static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private static RecoveryCoordinator instance;
+
+    private final Loader loader;
+    private final Semaphore permits = new Semaphore(MAX_PARALLEL, true);
+
+    private final HashMap<String, Resolution> inFlight = new HashMap<>();
+    private final HashMap<String, Long> resolved = new HashMap<>();
+    private final HashMap<String, Backoff> failed = new HashMap<>();
+
+    RecoveryCoordinator(@NonNull Loader loader) {
+        this.loader = loader;
+    }
+
+    static synchronized RecoveryCoordinator getInstance() {
+        if (instance == null) instance = new RecoveryCoordinator(Loader.NETWORK);
+        return instance;
+    }
+
+    /**
+     * Gets the information of a stream, fetching its page only if no other mission did it
+     * recently. Blocks until the page is fetched.
+     *
+     * @param url the url of the stream page, see {@link DownloadMission#source}
+     * @return the stream information
+     * @throws ExtractionException    if the page can not be parsed
+     * @throws IOException            if the page can not be fetched
+     * @throws InterruptedIOException if the calling thread was interrupted while waiting
+     */
+    @NonNull
+    StreamInfo resolve(@NonNull String url) throws ExtractionException, IOException {
+        while (true) {
+            Resolution resolution;
+            boolean owner = false;
+            long retryAt = 0;
+
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                prune(now);
+
+                resolution = inFlight.get(url);
+
+                if (resolution == null) {
+                    Long resolvedAt = resolved.get(url);
+                    if (resolvedAt != null && now - resolvedAt < REUSE_MILLIS) {
+                        StreamInfo info = loader.getCached(url);
+                        if (info != null) {
+                            if (DEBUG) Log.d(TAG, "reusing " + url);
+                            return info;
+                        }
+                    }
+
+                    Backoff backoff = failed.get(url);
+                    if (backoff != null) retryAt = backoff.retryAt;
+
+                    resolution = new Resolution();
+                    inFlight.put(url, resolution);
+                    owner = true;
+                }
+            }
+
+            if (owner) return fetch(url, resolution, retryAt);
+
+            if (DEBUG) Log.d(TAG, "waiting for the resolution of " + url);
+
+            resolution.await();
+            if (resolution.info != null) return resolution.info;
+            if (resolution.error instanceof ExtractionException)
+                throw (ExtractionException) resolution.error;
+            if (resolution.error instanceof IOException) throw (IOException) resolution.error;
+
+            // the thread fetching the page was interrupted, try again
+        }
+    }
+
+    private StreamInfo fetch(String url, Resolution resolution, long retryAt)
+            throws ExtractionException, IOException {
+        StreamInfo info = null;
+        Exception error = null;
+        boolean interrupted = false;
+
+        try {
+            long wait = retryAt - System.currentTimeMillis();
+            if (wait > 0) {
+                if (DEBUG) Log.d(TAG, "backing off " + wait + "ms before fetching " + url);
+                Thread.sleep(wait);
+            }
+
+            permits.acquire();
+            try {
+                info = loader.fetch(url);
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw new InterruptedIOException("interrupted while resolving " + url);
+        } catch (InterruptedIOException e) {
+            interrupted = true;
+            throw e;
+        } catch (ExtractionException | IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            finish(url, resolution, info, error, interrupted);
+        }
+
+        return info;
+    }
+
+    private synchronized void finish(String url, Resolution resolution, @Nullable StreamInfo info,
+                                     @Nullable Exception error, boolean interrupted) {
+        inFlight.remove(url);
+
+        if (info != null) {
+            resolved.put(url, System.currentTimeMillis());
+            failed.remove(url);
+        } else if (!interrupted) {
+            Backoff backoff = failed.get(url);
+            if (backoff == null) {
+                backoff = new Backoff();
+                failed.put(url, backoff);
+            }
+
+            long delay = BASE_BACKOFF_MILLIS << Math.min(backoff.failures, 16);
+            backoff.failures++;
+            backoff.retryAt = System.currentTimeMillis() + Math.min(delay, MAX_BACKOFF_MILLIS);
+        }
+
+        resolution.complete(info, error);
+    }
+
+    /**
+     * Forgets the resolutions which can not be reused anymore, must be called holding the
+     * instance lock
+     */
+    private void prune(long now) {
+        Iterator<Map.Entry<String, Long>> resolvedIterator = resolved.entrySet().iterator();
+        while (resolvedIterator.hasNext()) {
+            if (now - resolvedIterator.next().getValue() >= REUSE_MILLIS) resolvedIterator.remove();
+        }
+
+        Iterator<Map.Entry<String, Backoff>> failedIterator = failed.entrySet().iterator();
+        while (failedIterator.hasNext()) {
+            if (now - failedIterator.next().getValue().retryAt >= MAX_BACKOFF_MILLIS) failedIterator.remove();
+        }
+    }
+
+    private static class Backoff {
+        int failures;
+        long retryAt;
+    }
+
+    private static class Resolution {
+        private boolean done;
+        StreamInfo info;
+        Exception error;
+
+        synchronized void complete(StreamInfo info, Exception error) {
+            this.info = info;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedIOException {
+            try {
+                while (!done) wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting the resolution");
+            }
+        }
+    }
+
+    /**
+     * Source of the stream pages, replaced in tests
+     */
+    interface Loader {
+        Loader NETWORK = new Loader() {
+            @Nullable
+            @Override
+            public StreamInfo getCached(@NonNull String url) throws ExtractionException {
+                int serviceId = NewPipe.getServiceByUrl(url).getServiceId();
+                return (StreamInfo) InfoCache.getInstance().getFromKey(serviceId, url, InfoItem.InfoType.STREAM);
+            }
+
+            @NonNull
+            @Override
+            public StreamInfo fetch(@NonNull String url) throws ExtractionException, IOException {
+                StreamingService service = NewPipe.getServiceByUrl(url);
+                StreamInfo info = StreamInfo.getInfo(service, url);
+
+                // the player and the download dialog can use the fresh urls too
+                InfoCache.getInstance().putInfo(service.getServiceId(), url, info, InfoItem.InfoType.STREAM);
+                return info;
+            }
+        };
+
+        @Nullable
+        StreamInfo getCached(@NonNull String url) throws ExtractionException;
+
+        @NonNull
+        StreamInfo fetch(@NonNull String url) throws ExtractionException, IOException;
+    }
+}
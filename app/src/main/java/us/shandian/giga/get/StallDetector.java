@@ -0,0 +1,102 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+import us.shandian.giga.get.DownloadMission.Block;
+
+/**
+ * Finds the blocks whose connection stopped delivering data. The throughput of every block in
+ * download is measured in windows of {@link #WINDOW_NANOS}, a block is stalled if its throughput
+ * falls below a floor relative to the other blocks of the mission, or below
+ * {@link #MIN_RATE} if it is downloaded alone.
+ * <p>
+ * A stalled block is downloaded again by a hedged request, see {@link DownloadMission#checkStalls()}.
+ */
+class StallDetector {
+    /**
+     * Period used to measure the throughput of every block
+     */
+    static final long WINDOW_NANOS = 3000L * 1000L * 1000L;
+
+    /**
+     * Lowest throughput of a healthy connection (4 KiB/s), in bytes per nanosecond
+     */
+    static final double MIN_RATE = 4 * 1024 / 1e9;
+
+    /**
+     * Fraction of the average throughput of the blocks below which a block is stalled
+     */
+    static final double RELATIVE_FLOOR = 0.1;
+
+    /**
+     * Maximum amount of hedged requests running at the same time in a mission
+     */
+    static final int MAX_HEDGES = 2;
+
+    private StallDetector() {
+    }
+
+    /**
+     * Measures the throughput of the blocks in download, must be called periodically holding
+     * {@link DownloadMission#LOCK}
+     *
+     * @param inFlight the blocks in download
+     * @param now      current time in nanoseconds
+     * @param stats    where count the stalls
+     * @return the stalled block which should be hedged, or {@code null}
+     */
+    @Nullable
+    static Block check(@NonNull List<Block> inFlight, long now, @NonNull ConnectionStats stats) {
+        int measured = 0;
+        int hedging = 0;
+        double total = 0;
+
+        for (Block block : inFlight) {
+            if (block.owners > 1) hedging++;
+
+            long elapsed = now - block.sampledAt;
+            if (elapsed >= WINDOW_NANOS) {
+                block.rate = (block.claimed - block.sampledClaimed) / (double) elapsed;
+                block.sampledAt = now;
+                block.sampledClaimed = block.claimed;
+            }
+
+            if (block.rate < 0) continue;// not measured yet
+
+            measured++;
+            total += block.rate;
+        }
+
+        if (measured < 1) return null;
+
+        double floor = Math.max(MIN_RATE, RELATIVE_FLOOR * total / measured);
+        Block slowest = null;
+        int stalled = 0;
+
+        for (Block block : inFlight) {
+            if (block.rate < 0) continue;
+
+            boolean stall = block.rate < floor;
+            if (stall && !block.stalled) stats.onStall();
+            block.stalled = stall;
+
+            if (!stall) continue;
+            stalled++;
+
+            if (block.hedged || block.owners > 1) continue;
+            if (block.end - block.claimed + 1 < DownloadMission.MIN_STEAL_SIZE) continue;// almost done
+
+            if (slowest == null || block.rate < slowest.rate) slowest = block;
+        }
+
+        // if every connection is stalled, the network is the problem and not the server
+        if (measured > 1 && stalled == measured) return null;
+
+        if (hedging >= MAX_HEDGES) return null;
+
+        return slowest;
+    }
+}
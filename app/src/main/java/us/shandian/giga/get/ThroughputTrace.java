@@ -0,0 +1,115 @@
+package us.shandian.giga.get;
+
+import java.util.Locale;
+
+/**
+ * Records the download progress over the time. Used to measure the throughput near the end of
+ * the download, where a single slow connection can hold the whole mission.
+ * <p>
+ * The amount of samples is bounded, when the capacity is reached every other sample is dropped
+ * and the sampling interval is doubled.
+ */
+class ThroughputTrace {
+    static final int CAPACITY = 256;
+    private static final long INITIAL_INTERVAL = 250L * 1000L * 1000L;// 250ms
+
+    private final long[] times = new long[CAPACITY];
+    private final long[] bytes = new long[CAPACITY];
+    private int size;
+    private long interval = INITIAL_INTERVAL;
+
+    private final long origin;
+    private final long initialBytes;
+
+    /**
+     * @param now  current time in nanoseconds
+     * @param done amount of bytes already downloaded (resumed downloads)
+     */
+    ThroughputTrace(long now, long done) {
+        origin = now;
+        initialBytes = done;
+    }
+
+    /**
+     * Adds a sample, ignored if the previous one is too recent
+     *
+     * @param now   current time in nanoseconds
+     * @param done  amount of bytes downloaded
+     * @param force {@code true} to always add the sample, used for the last one
+     */
+    synchronized void sample(long now, long done, boolean force) {
+        if (size > 0 && !force && (now - times[size - 1]) < interval) return;
+
+        if (size == CAPACITY) {
+            for (int i = 0; i < CAPACITY / 2; i++) {
+                times[i] = times[i * 2];
+                bytes[i] = bytes[i * 2];
+            }
+            size = CAPACITY / 2;
+            interval *= 2;
+        }
+
+        times[size] = now;
+        bytes[size] = done;
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Elapsed time since the creation of this trace until {@code done} bytes were downloaded
+     *
+     * @param done amount of bytes
+     * @return the time in nanoseconds, or -1 if that amount has not been reached
+     */
+    synchronized long timeToReach(long done) {
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] >= done) return times[i] - origin;
+        }
+        return -1;
+    }
+
+    /**
+     * Time spent downloading the last part of the recorded bytes
+     *
+     * @param fraction the size of the last part, between 0 and 1
+     * @return the time in nanoseconds, or -1 if there no samples
+     */
+    synchronized long tailTime(double fraction) {
+        if (size < 1) return -1;
+
+        long total = bytes[size - 1] - initialBytes;
+        long reached = timeToReach(initialBytes + (long) Math.ceil(total * (1.0 - fraction)));
+
+        return (times[size - 1] - origin) - reached;
+    }
+
+    /**
+     * Average throughput of the recorded samples
+     *
+     * @return speed in bytes per second
+     */
+    synchronized double averageSpeed() {
+        if (size < 1 || times[size - 1] == origin) return 0;
+        return (bytes[size - 1] - initialBytes) * 1e9 / (times[size - 1] - origin);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder(64 + size * 16);
+        str.append(String.format(Locale.ENGLISH, "elapsed=%.2fs avg=%.0fB/s tail10%%=%.2fs [",
+                size < 1 ? 0 : (times[size - 1] - origin) / 1e9,
+                averageSpeed(),
+                tailTime(0.1) / 1e9
+        ));
+
+        for (int i = 0; i < size; i++) {
+            if (i > 0) str.append(' ');
+            str.append((times[i] - origin) / 1000000L).append("ms:").append(bytes[i]);
+        }
+
+        return str.append(']').toString();
+    }
+}
@@ -0,0 +1,91 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import us.shandian.giga.util.Utility;
+
+/**
+ * Transport using {@link HttpURLConnection}, used when the OkHttp client is not available
+ */
+class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public HttpConnection open(@NonNull String url, boolean headRequest, @NonNull ConnectionStats stats) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        return new UrlConnection(url, headRequest, stats, conn);
+    }
+
+    private static class UrlConnection extends HttpConnection {
+        private final HttpURLConnection conn;
+        private boolean connected = false;
+
+        UrlConnection(String url, boolean headRequest, ConnectionStats stats, HttpURLConnection conn) {
+            super(url, headRequest, stats);
+            this.conn = conn;
+        }
+
+        private void connect() throws IOException {
+            if (connected) return;
+            connected = true;
+
+            conn.setInstanceFollowRedirects(true);
+            if (headRequest) conn.setRequestMethod("HEAD");
+
+            // BUG workaround: switching between networks can freeze the download forever
+            conn.setConnectTimeout(30000);
+
+            for (Map.Entry<String, String> property : requestProperties.entrySet())
+                conn.setRequestProperty(property.getKey(), property.getValue());
+
+            // the platform does not tell if the connection was reused, assume it was not
+            stats.onRequest();
+            stats.onConnect();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return conn.getResponseCode();
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return connected ? conn.getHeaderField(name) : null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return connected ? Utility.getContentLength(conn) : -1;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return conn.getInputStream();
+        }
+
+        @Override
+        public void close() {
+            if (!connected) return;
+
+            try {
+                conn.getInputStream().close();
+            } catch (Exception e) {
+                // nothing to do
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            conn.disconnect();
+        }
+    }
+}
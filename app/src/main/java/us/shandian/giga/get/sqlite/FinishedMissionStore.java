@@ -9,6 +9,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -184,6 +185,45 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
         return result;
     }
 
+    /**
+     * Creates a reader of the finished missions, which loads them page by page
+     *
+     * @return the reader, positioned before the newest mission
+     */
+    public Pager getPager() {
+        return new Pager();
+    }
+
+    /**
+     * Finds a finished mission by its file
+     *
+     * @param storage where the file would be stored
+     * @return the mission or {@code null} if no such mission exists
+     */
+    @Nullable
+    public FinishedMission findMission(@NonNull StoredFileHelper storage) {
+        if (storage.isInvalid()) return null;
+
+        SQLiteDatabase database = getReadableDatabase();
+        try (Cursor cursor = database.query(FINISHED_TABLE_NAME, null, KEY_PATH + " = ? COLLATE NOCASE",
+                new String[]{storage.getUri().toString()}, null, null, KEY_TIMESTAMP + " DESC")) {
+            while (cursor.moveToNext()) {
+                FinishedMission mission = getMissionFromCursor(cursor);
+                if (mission.storage.equals(storage)) return mission;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Forget all finished missions
+     */
+    public void deleteAllMissions() {
+        SQLiteDatabase database = getWritableDatabase();
+        database.delete(FINISHED_TABLE_NAME, null, null);
+    }
+
     public void addFinishedMission(DownloadMission downloadMission) {
         ContentValues values = getValuesOfMission(Objects.requireNonNull(downloadMission));
         SQLiteDatabase database = getWritableDatabase();
@@ -231,4 +271,45 @@ public class FinishedMissionStore extends SQLiteOpenHelper {
             Log.e("FinishedMissionStore", "Expected 1 row to be affected by update but got " + rowsAffected);
         }
     }
+
+    /**
+     * Reads the finished missions page by page, the newest first. The position is kept by
+     * timestamp and row id, so the missions added or removed meanwhile do not shift the pages.
+     */
+    public class Pager {
+        private long timestamp = Long.MAX_VALUE;
+        private long rowId = Long.MAX_VALUE;
+
+        private Pager() {
+        }
+
+        /**
+         * Loads the missions following the last page
+         *
+         * @param limit maximum amount of missions to load
+         * @return the missions, less than {@code limit} if there are no more missions
+         */
+        public ArrayList<FinishedMission> next(int limit) {
+            SQLiteDatabase database = getReadableDatabase();
+            String ts = String.valueOf(timestamp);
+
+            try (Cursor cursor = database.rawQuery(
+                    "SELECT rowid, * FROM " + FINISHED_TABLE_NAME +
+                            " WHERE " + KEY_TIMESTAMP + " < ? OR (" + KEY_TIMESTAMP + " = ? AND rowid < ?)" +
+                            " ORDER BY " + KEY_TIMESTAMP + " DESC, rowid DESC LIMIT " + limit,
+                    new String[]{ts, ts, String.valueOf(rowId)})) {
+
+                ArrayList<FinishedMission> result = new ArrayList<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    FinishedMission mission = getMissionFromCursor(cursor);
+                    result.add(mission);
+
+                    timestamp = mission.timestamp;
+                    rowId = cursor.getLong(0);
+                }
+
+                return result;
+            }
+        }
+    }
 }
@@ -3,6 +3,7 @@ package us.shandian.giga.io;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ChunkFileInputStream extends SharpStream {
     private static final int REPORT_INTERVAL = 256 * 1024;
@@ -10,18 +11,52 @@ public class ChunkFileInputStream extends SharpStream {
     private SharpStream source;
     private final long offset;
     private final long length;
-    private long position;
+    private volatile long position; // also read by the OffsetChecker, from the writer thread
+    private volatile int mappedView; // size of the last mapped view, can be still in use by the reader
 
     private long progressReport;
     private final ProgressReport onProgress;
 
+    private final Availability availability;
+    private long availableEnd;
+
+    /**
+     * Tells how much of the chunk is already written, used to read a file while it is downloaded
+     */
+    public interface Availability {
+
+        /**
+         * Waits until the byte at the given position is written
+         *
+         * @param position absolute file position
+         * @return the absolute file position where the written data ends
+         * @throws IOException if the data will never be written
+         */
+        long waitFor(long position) throws IOException;
+    }
+
     public ChunkFileInputStream(SharpStream target, long start, long end, ProgressReport callback) throws IOException {
+        this(target, start, end, callback, null);
+    }
+
+    /**
+     * @param target       the file
+     * @param start        chunk start
+     * @param end          chunk end
+     * @param callback     read progress listener
+     * @param availability if not {@code null}, the reads wait until the data is written
+     * @throws IOException if the chunk is invalid
+     */
+    public ChunkFileInputStream(SharpStream target, long start, long end, ProgressReport callback,
+                                Availability availability) throws IOException {
         source = target;
         offset = start;
         length = end - start;
         position = 0;
         onProgress = callback;
         progressReport = REPORT_INTERVAL;
+        this.availability = availability;
+        availableEnd = availability == null ? end : start;
 
         if (length < 1) {
             source.close();
@@ -47,16 +82,54 @@ public class ChunkFileInputStream extends SharpStream {
         return offset + position;
     }
 
+    /**
+     * Get absolute position on file of the first byte the reader can still need, the last view
+     * returned by {@link #readMapped(int)} is a mapping of the file, not a copy, and is counted as
+     * unread until the next read
+     *
+     * @return the position, the file can be overwritten only before it
+     */
+    public long getUnreadPointer() {
+        return offset + position - mappedView;
+    }
+
+    /**
+     * Get the amount of bytes the reader can still need, like {@link #available()} but counting the
+     * last view returned by {@link #readMapped(int)} as unread
+     *
+     * @return the amount of bytes
+     */
+    public long getUnreadLength() {
+        return length - position + mappedView;
+    }
+
+    /**
+     * Limits the amount of bytes to read to the written data
+     */
+    private int waitForData(int len) throws IOException {
+        long filePosition = offset + position;
+
+        if (filePosition + len > availableEnd) {
+            if (filePosition >= availableEnd) availableEnd = availability.waitFor(filePosition);
+            len = (int) Math.min(len, availableEnd - filePosition);
+        }
+
+        return len;
+    }
+
     @Override
     public int read() throws IOException {
         if ((position + 1) > length) {
             return 0;
         }
 
+        if (availability != null) waitForData(1);
+
         int res = source.read();
         if (res >= 0) {
             position++;
         }
+        mappedView = 0;
 
         return res;
     }
@@ -75,8 +148,54 @@ public class ChunkFileInputStream extends SharpStream {
             return 0;
         }
 
+        if (availability != null) len = waitForData(len);
+
         int res = source.read(b, off, len);
         position += res;
+        mappedView = 0;
+
+        if (onProgress != null && position > progressReport) {
+            onProgress.report(position);
+            progressReport = position + REPORT_INTERVAL;
+        }
+
+        return res;
+    }
+
+    @Override
+    public long transferTo(long count, SharpStream target) throws IOException {
+        count = Math.min(count, length - position);
+        if (count < 1) return 0;
+
+        if (availability != null) count = waitForData((int) Math.min(count, Integer.MAX_VALUE));
+
+        long res = source.transferTo(count, target);
+        if (res < 1) return res;
+
+        position += res;
+        mappedView = 0;
+
+        if (onProgress != null && position > progressReport) {
+            onProgress.report(position);
+            progressReport = position + REPORT_INTERVAL;
+        }
+
+        return res;
+    }
+
+    @Override
+    public boolean canReadMapped() {
+        return source.canReadMapped();
+    }
+
+    @Override
+    public ByteBuffer readMapped(int count) throws IOException {
+        count = (int) Math.min(count, length - position);
+        if (count > 0 && availability != null) count = waitForData(count);
+
+        ByteBuffer res = source.readMapped(Math.max(count, 0));
+        mappedView = res.remaining();// before the position, the checker never sees the view as read
+        position += mappedView;
 
         if (onProgress != null && position > progressReport) {
             onProgress.report(position);
@@ -97,6 +216,7 @@ public class ChunkFileInputStream extends SharpStream {
         source.seek(offset + pos);
 
         long oldPos = position;
+        mappedView = 0;// the reader drops the view
         position = pos;
 
         return pos - oldPos;
@@ -121,6 +241,7 @@ public class ChunkFileInputStream extends SharpStream {
 
     @Override
     public void rewind() throws IOException {
+        mappedView = 0;
         position = 0;
         source.seek(offset);
     }
@@ -7,6 +7,7 @@ import org.schabi.newpipe.streams.io.SharpStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
 
 public class CircularFileWriter extends SharpStream {
@@ -15,6 +16,7 @@ public class CircularFileWriter extends SharpStream {
     private final static int COPY_BUFFER_SIZE = 128 * 1024; // 128 KiB
     private final static int NOTIFY_BYTES_INTERVAL = 64 * 1024;// 64 KiB
     private final static int THRESHOLD_AUX_LENGTH = 15 * 1024 * 1024;// 15 MiB
+    private final static int MIN_PARTIAL_FLUSH = 1024 * 1024;// 1 MiB
 
     private final OffsetChecker callback;
 
@@ -25,7 +27,7 @@ public class CircularFileWriter extends SharpStream {
     private long maxLengthKnown = -1;
 
     private BufferedFile out;
-    private BufferedFile aux;
+    private SpillRing aux;
 
     public CircularFileWriter(SharpStream target, File temp, OffsetChecker checker) throws IOException {
         Objects.requireNonNull(checker);
@@ -36,7 +38,7 @@ public class CircularFileWriter extends SharpStream {
             }
         }
 
-        aux = new BufferedFile(temp);
+        aux = new SpillRing(temp);
         out = new BufferedFile(target);
 
         callback = checker;
@@ -53,24 +55,9 @@ public class CircularFileWriter extends SharpStream {
         aux.flush();
 
         boolean underflow = aux.offset < aux.length || out.offset < out.length;
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
 
-        aux.target.seek(0);
         out.target.seek(out.length);
-
-        long length = amount;
-        while (length > 0) {
-            int read = (int) Math.min(length, Integer.MAX_VALUE);
-            read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
-
-            if (read < 1) {
-                amount -= length;
-                break;
-            }
-
-            out.writeProof(buffer, read);
-            length -= read;
-        }
+        amount = aux.transferTo(out, Math.min(amount, aux.length));
 
         if (underflow) {
             if (out.offset >= out.length) {
@@ -98,34 +85,11 @@ public class CircularFileWriter extends SharpStream {
         }
 
         if (amount < aux.length) {
-            // move the excess data to the beginning of the file
-            long readOffset = amount;
-            long writeOffset = 0;
-
-            aux.length -= amount;
-            length = aux.length;
-            while (length > 0) {
-                int read = (int) Math.min(length, Integer.MAX_VALUE);
-                read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
-
-                aux.target.seek(writeOffset);
-                aux.writeProof(buffer, read);
-
-                writeOffset += read;
-                readOffset += read;
-                length -= read;
-
-                aux.target.seek(readOffset);
-            }
-
-            aux.target.setLength(aux.length);
+            // the ring start is moved, the remaining data stays in place
+            aux.discard(amount);
             return;
         }
 
-        if (aux.length > THRESHOLD_AUX_LENGTH) {
-            aux.target.setLength(THRESHOLD_AUX_LENGTH);// or setLength(0);
-        }
-
         aux.reset();
     }
 
@@ -183,18 +147,9 @@ public class CircularFileWriter extends SharpStream {
             return;
         }
 
-        long available;
         long offsetOut = out.getOffset();
         long offsetAux = aux.getOffset();
-        long end = callback.check();
-
-        if (end == -1) {
-            available = Integer.MAX_VALUE;
-        } else if (end < offsetOut) {
-            throw new IOException("The reported offset is invalid: " + end + "<" + offsetOut);
-        } else {
-            available = end - offsetOut;
-        }
+        long available = available(offsetOut);
 
         boolean usingAux = aux.length > 0 && offsetOut >= out.length;
         boolean underflow = offsetAux < aux.length || offsetOut < out.length;
@@ -212,7 +167,8 @@ public class CircularFileWriter extends SharpStream {
 
             aux.write(b, off, len);
 
-            if (length >= THRESHOLD_AUX_LENGTH && length <= available) {
+            // the ring does not move the remaining data, so a partial flush is cheap
+            if (length >= THRESHOLD_AUX_LENGTH && available >= Math.min(length, MIN_PARTIAL_FLUSH)) {
                 flushAuxiliar(available);
             }
         } else {
@@ -231,6 +187,69 @@ public class CircularFileWriter extends SharpStream {
             }
         }
 
+        reportProgress();
+    }
+
+    /**
+     * Writes a file range without reading it, used to copy the samples. The range goes to the
+     * output file while there is space available ahead, otherwise to the auxiliary file.
+     * Not possible if the output file is not backed by a channel or if previous data is being
+     * overwritten.
+     */
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        long offsetOut = out.getOffset();
+        long available = available(offsetOut);
+
+        boolean usingAux = aux.length > 0 && offsetOut >= out.length;
+        boolean underflow = aux.getOffset() < aux.length || offsetOut < out.length;
+
+        if (underflow) {
+            return -1;// let the caller write through the buffers
+        }
+
+        long transferred;
+        if (usingAux || available < 1) {
+            transferred = aux.transferFrom(source, position, count);
+
+            if (aux.length >= THRESHOLD_AUX_LENGTH && available >= Math.min(aux.length, MIN_PARTIAL_FLUSH)) {
+                flushAuxiliar(available);
+            }
+        } else {
+            out.flush();
+
+            count = Math.min(count, available);
+            transferred = transferProof(out.target, out.offset, source, position, count);
+            if (transferred < 0) {
+                return -1;// not backed by a file channel
+            }
+
+            out.offset += transferred;
+            out.length = out.offset;
+        }
+
+        reportProgress();
+
+        return transferred;
+    }
+
+    /**
+     * Calculates the space that can be written in the output file without overwriting the
+     * unread data
+     */
+    private long available(long offsetOut) throws IOException {
+        long end = callback.check();
+
+        if (end == -1) {
+            return Integer.MAX_VALUE;
+        } else if (end < offsetOut) {
+            throw new IOException("The reported offset is invalid: " + end + "<" + offsetOut);
+        }
+
+        return end - offsetOut;
+    }
+
+    private void reportProgress() {
         if (onProgress != null) {
             long absoluteOffset = out.getOffset() + aux.getOffset();
             if (absoluteOffset > reportPosition) {
@@ -449,21 +468,7 @@ public class CircularFileWriter extends SharpStream {
         }
 
         void writeProof(byte[] buffer, int length) throws IOException {
-            if (onWriteError == null) {
-                target.write(buffer, 0, length);
-                return;
-            }
-
-            while (true) {
-                try {
-                    target.write(buffer, 0, length);
-                    return;
-                } catch (Exception e) {
-                    if (!onWriteError.handle(e)) {
-                        throw e;// give up
-                    }
-                }
-            }
+            CircularFileWriter.this.writeProof(target, buffer, 0, length);
         }
 
         @NonNull
@@ -483,4 +488,250 @@ public class CircularFileWriter extends SharpStream {
             );
         }
     }
+
+    /**
+     * Auxiliary file used as a ring buffer. The data moved to the output file is released by
+     * moving the start of the ring, the remaining data is never copied. The ring only grows if
+     * the data does not fit; a wrapped ring is unwrapped by moving the wrapped part after the old
+     * end, once per growth.
+     */
+    class SpillRing {
+
+        final FileStream target;
+
+        private long capacity;
+        private long head;// file position of the first byte
+        private long stored;// amount of bytes written in the file, excluding the queue
+
+        private long offset;
+        long length;
+
+        private byte[] queue = new byte[QUEUE_BUFFER_SIZE];
+        private int queueSize;
+
+        private byte[] copyBuffer;
+
+        SpillRing(File file) throws IOException {
+            target = new FileStream(file);
+            capacity = target.length();
+        }
+
+        long getOffset() {
+            return offset + queueSize;// relative offset in the ring
+        }
+
+        void close() {
+            queue = null;
+            copyBuffer = null;
+            target.close();
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (queueSize >= queue.length) flush();
+
+                int read = Math.min(queue.length - queueSize, len);
+
+                // enqueue incoming buffer
+                System.arraycopy(b, off, queue, queueSize, read);
+                queueSize += read;
+
+                len -= read;
+                off += read;
+            }
+
+            long total = offset + queueSize;
+            if (total > length) {
+                length = total;// save length
+            }
+        }
+
+        void flush() throws IOException {
+            if (queueSize < 1) return;
+
+            ensureCapacity(offset + queueSize);
+
+            int done = 0;
+            while (done < queueSize) {
+                long position = physical(offset + done);
+                int len = (int) Math.min(queueSize - done, capacity - position);
+
+                target.seek(position);
+                writeProof(target, queue, done, len);
+                done += len;
+            }
+
+            offset += queueSize;
+            queueSize = 0;
+
+            if (offset > stored) stored = offset;
+        }
+
+        void seek(long relativeOffset) {
+            offset = relativeOffset;
+        }
+
+        /**
+         * Copies data from the start of the ring to the current position of the output file
+         *
+         * @param out    the output file
+         * @param amount the amount of bytes to copy
+         * @return the amount of bytes copied
+         * @throws IOException if an I/O error occurs
+         */
+        long transferTo(BufferedFile out, long amount) throws IOException {
+            long done = 0;
+            while (done < amount) {
+                long position = physical(done);
+                long len = Math.min(amount - done, capacity - position);
+
+                // the output file is positioned at its end
+                long transferred = transferProof(out.target, out.length + done,
+                        target.getChannel(), position, len);
+
+                if (transferred < 0) {
+                    // not backed by a file channel
+                    if (copyBuffer == null) copyBuffer = new byte[COPY_BUFFER_SIZE];
+
+                    target.seek(position);
+                    transferred = target.read(copyBuffer, 0, (int) Math.min(len, copyBuffer.length));
+                    if (transferred > 0) out.writeProof(copyBuffer, (int) transferred);
+                }
+
+                if (transferred < 1) break;
+                done += transferred;
+            }
+
+            return done;
+        }
+
+        /**
+         * Writes a file range at the current position of the ring
+         *
+         * @param source   the input file
+         * @param position the position in the input file
+         * @param count    the amount of bytes to write
+         * @return the amount of bytes written
+         * @throws IOException if an I/O error occurs
+         */
+        long transferFrom(FileChannel source, long position, long count) throws IOException {
+            flush();
+            ensureCapacity(offset + count);
+
+            long done = 0;
+            while (done < count) {
+                long physical = physical(offset + done);
+                long len = Math.min(count - done, capacity - physical);
+
+                long transferred = transferProof(target, physical, source, position + done, len);
+                if (transferred < 1) break;// end of the input file
+
+                done += transferred;
+            }
+
+            offset += done;
+            if (offset > stored) stored = offset;
+            if (offset > length) length = offset;
+
+            return done;
+        }
+
+        /**
+         * Releases data at the start of the ring
+         *
+         * @param amount the amount of bytes
+         */
+        void discard(long amount) {
+            head = physical(amount);
+            length -= amount;
+            stored -= amount;
+        }
+
+        void reset() throws IOException {
+            offset = 0;
+            length = 0;
+            head = 0;
+            stored = 0;
+
+            if (capacity > THRESHOLD_AUX_LENGTH) {
+                capacity = THRESHOLD_AUX_LENGTH;
+                target.setLength(capacity);
+            }
+        }
+
+        private long physical(long relativeOffset) {
+            long position = head + relativeOffset;
+            return position < capacity ? position : position - capacity;
+        }
+
+        private void ensureCapacity(long required) throws IOException {
+            if (required <= capacity) return;
+
+            long newCapacity = Math.max(required, Math.max(capacity * 2, QUEUE_BUFFER_SIZE));
+            long wrapped = head + stored - capacity;
+
+            if (wrapped > 0 && head > 0) {
+                // move the wrapped part after the old end, the data becomes contiguous
+                if (copyBuffer == null) copyBuffer = new byte[COPY_BUFFER_SIZE];
+
+                for (long i = 0; i < wrapped; ) {
+                    int len = (int) Math.min(wrapped - i, copyBuffer.length);
+
+                    target.seek(i);
+                    len = target.read(copyBuffer, 0, len);
+                    if (len < 1) throw new IOException("Unexpected end of the auxiliary file");
+
+                    target.seek(capacity + i);
+                    writeProof(target, copyBuffer, 0, len);
+                    i += len;
+                }
+            } else if (stored < 1) {
+                head = 0;
+            }
+
+            capacity = newCapacity;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(
+                    "offset=%s  length=%s  queue=%s  head=%s  capacity=%s",
+                    offset, length, queueSize, head, capacity
+            );
+        }
+    }
+
+    private long transferProof(SharpStream target, long offset, FileChannel source,
+                               long position, long count) throws IOException {
+        while (true) {
+            try {
+                target.seek(offset);
+                return target.transferFrom(source, position, count);
+            } catch (Exception e) {
+                if (onWriteError == null || !onWriteError.handle(e)) {
+                    throw e;// give up
+                }
+                // retry from the start of the range
+            }
+        }
+    }
+
+    private void writeProof(SharpStream target, byte[] buffer, int offset, int length) throws IOException {
+        if (onWriteError == null) {
+            target.write(buffer, offset, length);
+            return;
+        }
+
+        while (true) {
+            try {
+                target.write(buffer, offset, length);
+                return;
+            } catch (Exception e) {
+                if (!onWriteError.handle(e)) {
+                    throw e;// give up
+                }
+            }
+        }
+    }
 }
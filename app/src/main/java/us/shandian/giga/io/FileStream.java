@@ -5,9 +5,11 @@ import androidx.annotation.NonNull;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
  * @author kapodamy
@@ -128,4 +130,53 @@ public class FileStream extends SharpStream {
     public long length() throws IOException {
         return source.length();
     }
+
+    @Override
+    public long transferTo(long count, SharpStream target) throws IOException {
+        long position = source.getFilePointer();
+        count = Math.min(count, source.length() - position);
+        if (count < 1) return 0;
+
+        long transferred = target.transferFrom(source.getChannel(), position, count);
+        if (transferred > 0) source.seek(position + transferred);
+
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(FileChannel channel, long position, long count) throws IOException {
+        return transfer(channel, position, count, source.getChannel());
+    }
+
+    public FileChannel getChannel() {
+        return source.getChannel();
+    }
+
+    public FileDescriptor getFD() throws IOException {
+        return source.getFD();
+    }
+
+    /**
+     * Copies a file range into the current position of the target channel, the kernel copies
+     * the data when possible (sendfile)
+     *
+     * @param source   the input channel
+     * @param position the position in the input file
+     * @param count    the amount of bytes to copy
+     * @param target   the output channel, its position is moved
+     * @return the amount of bytes copied
+     * @throws IOException if an I/O error occurs
+     */
+    static long transfer(FileChannel source, long position, long count, FileChannel target)
+            throws IOException {
+        long done = 0;
+
+        while (done < count) {
+            long transferred = source.transferTo(position + done, count - done, target);
+            if (transferred < 1) break;// end of the input file
+            done += transferred;
+        }
+
+        return done;
+    }
 }
@@ -9,6 +9,7 @@ import androidx.annotation.NonNull;
 
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -143,4 +144,39 @@ public class FileStreamSAF extends SharpStream {
     public long length() throws IOException {
         return channel.size();
     }
+
+    @Override
+    public long transferTo(long count, SharpStream target) throws IOException {
+        long position = channel.position();
+        count = Math.min(count, channel.size() - position);
+        if (count < 1) return 0;
+
+        // the channel of the output stream is write-only
+        long transferred = target.transferFrom(getReadChannel(), position, count);
+        if (transferred > 0) channel.position(position + transferred);
+
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        return FileStream.transfer(source, position, count, channel);
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Gets a readable channel of the file, shares the file position with this stream
+     *
+     * @return the channel
+     */
+    public FileChannel getReadChannel() {
+        return in.getChannel();
+    }
+
+    public FileDescriptor getFD() {
+        return file.getFileDescriptor();
+    }
 }
@@ -0,0 +1,231 @@
+package us.shandian.giga.io;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only stream over a memory-mapped file. The file is mapped in windows, a new window is
+ * mapped when the position leaves the current one, the old windows are unmapped by the garbage
+ * collector. The reads are copies from the page cache without system calls, and
+ * {@link #readMapped(int)} returns the bytes without copying them, so the readers of the muxers
+ * decode the boxes and elements directly from the mapping.
+ * <p>
+ * The file can grow while it is mapped (the windows never go past the file length at the time
+ * they are mapped), but must not be truncated: reading a truncated page crashes the process.
+ * </p>
+ */
+public class MappedFileStream extends SharpStream {
+    static final int WINDOW_SIZE = 8 * 1024 * 1024;// 8 MiB, keeps the address space usage low
+
+    private SharpStream owner;
+    private final FileChannel channel;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    /**
+     * Maps the file of the stream, if the stream is backed by a regular file
+     *
+     * @param stream the file stream, closed when the returned stream is closed
+     * @return the mapped stream, or the given stream if the file can not be mapped (for example
+     * the virtual files of a SAF provider, which are pipes)
+     */
+    public static SharpStream map(@NonNull SharpStream stream) {
+        FileChannel channel;
+        if (stream instanceof FileStream)
+            channel = ((FileStream) stream).getChannel();
+        else if (stream instanceof FileStreamSAF)
+            channel = ((FileStreamSAF) stream).getReadChannel();
+        else
+            return stream;
+
+        try {
+            MappedFileStream mapped = new MappedFileStream(stream, channel, WINDOW_SIZE);
+            mapped.mapWindow(0);// fails here if the file descriptor can not be mapped
+            return mapped;
+        } catch (IOException | RuntimeException e) {
+            return stream;
+        }
+    }
+
+    /**
+     * @param owner      the stream that owns the channel, closed with this stream
+     * @param channel    a readable channel of the file
+     * @param windowSize the size of the mapped windows
+     * @throws IOException if the channel position can not be read
+     */
+    MappedFileStream(SharpStream owner, FileChannel channel, int windowSize) throws IOException {
+        this.owner = owner;
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.position = channel.position();
+    }
+
+    /**
+     * Makes sure the window contains the next bytes, maps a new one if not
+     *
+     * @param count the amount of bytes to access
+     * @return the amount of bytes in the window, from the position, can be less than
+     * {@code count} only at the end of the file
+     * @throws IOException if the file can not be mapped
+     */
+    private int mapWindow(int count) throws IOException {
+        long offset = position - windowStart;
+
+        if (window == null || offset < 0 || offset + count > window.capacity()) {
+            long size = Math.min(Math.max(windowSize, count), channel.size() - position);
+            if (size < 1) return 0;
+
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart = position;
+            offset = 0;
+        }
+
+        return (int) Math.min(count, window.capacity() - offset);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mapWindow(1) < 1) return -1;
+
+        int value = window.get((int) (position - windowStart)) & 0xFF;
+        position++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count < 1) return 0;
+
+        // at the end of the window only the rest of the window is read
+        int amount = mapWindow(Math.min(count, windowSize));
+        if (amount < 1) return -1;
+
+        window.position((int) (position - windowStart));
+        window.get(buffer, offset, amount);
+        position += amount;
+        return amount;
+    }
+
+    @Override
+    public ByteBuffer readMapped(int count) throws IOException {
+        int amount = count < 1 ? 0 : mapWindow(count);
+        if (amount < 1) return ByteBuffer.allocate(0);
+
+        ByteBuffer slice = window.duplicate();
+        slice.position((int) (position - windowStart));
+        slice.limit(slice.position() + amount);
+
+        position += amount;
+        return slice.slice();
+    }
+
+    @Override
+    public boolean canReadMapped() {
+        return true;
+    }
+
+    @Override
+    public long skip(long amount) throws IOException {
+        amount = Math.max(0, Math.min(amount, channel.size() - position));
+        position += amount;
+        return amount;
+    }
+
+    @Override
+    public long available() {
+        try {
+            return Math.max(0, channel.size() - position);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void rewind() {
+        position = 0;
+    }
+
+    @Override
+    public void seek(long offset) {
+        position = offset;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public long transferTo(long count, SharpStream target) throws IOException {
+        count = Math.min(count, channel.size() - position);
+        if (count < 1) return 0;
+
+        long transferred = target.transferFrom(channel, position, count);
+        if (transferred > 0) position += transferred;
+
+        return transferred;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return owner == null;
+    }
+
+    @Override
+    public void close() {
+        if (owner == null) return;
+
+        window = null;
+        owner.close();
+        owner = null;
+    }
+
+    @Override
+    public boolean canRewind() {
+        return true;
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return false;
+    }
+
+    @Override
+    public boolean canSeek() {
+        return true;
+    }
+
+    @Override
+    public void write(byte value) throws IOException {
+        throw new IOException("the mapped stream is read-only");
+    }
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        throw new IOException("the mapped stream is read-only");
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        throw new IOException("the mapped stream is read-only");
+    }
+}
@@ -0,0 +1,161 @@
+package us.shandian.giga.io;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Output file shared by all download threads of a mission. Every write carries its own file
+ * position ({@link FileChannel#write(ByteBuffer, long)}), so there is no seek state and only
+ * one file descriptor is opened. The data is copied into pooled direct buffers, which the channel
+ * can write without an extra copy.
+ * <p>
+ * If the stream does not expose a {@link FileChannel}, the writes fall back to seek and write
+ * under a lock.
+ */
+public class PositionalFileSink {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 32;
+
+    private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final SharpStream stream;
+    @Nullable
+    private final FileChannel channel;
+    private int references = 1;
+
+    private PositionalFileSink(@NonNull SharpStream stream, @Nullable FileChannel channel) {
+        this.stream = stream;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a sink, the stream is closed when the last reference is released
+     *
+     * @param stream the output file
+     * @return the sink, with one reference
+     */
+    public static PositionalFileSink open(@NonNull SharpStream stream) {
+        FileChannel channel = null;
+
+        if (stream instanceof FileStream)
+            channel = ((FileStream) stream).getChannel();
+        else if (stream instanceof FileStreamSAF)
+            channel = ((FileStreamSAF) stream).getChannel();
+
+        return new PositionalFileSink(stream, channel);
+    }
+
+    /**
+     * Adds a reference, used by every download thread
+     *
+     * @return {@code false} if the sink is already closed
+     */
+    public synchronized boolean retain() {
+        if (references < 1 || (channel != null && !channel.isOpen())) return false;
+        references++;
+        return true;
+    }
+
+    /**
+     * Releases a reference, the last one closes the file
+     */
+    public synchronized void release() {
+        if (references < 1) return;
+        if (--references == 0) stream.close();
+    }
+
+    /**
+     * Indicates if the writes are done concurrently, without seeking
+     *
+     * @return {@code true} if a {@link FileChannel} is used
+     */
+    public boolean isPositional() {
+        return channel != null;
+    }
+
+    /**
+     * Allocates the disk space of the whole file, this avoids fragmentation and detects the
+     * lack of free space before downloading anything. Not all file systems support it.
+     *
+     * @param length the file length
+     * @throws IOException if there is no enough free space
+     */
+    public void preallocate(long length) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+
+        FileDescriptor fd = null;
+        if (stream instanceof FileStream)
+            fd = ((FileStream) stream).getFD();
+        else if (stream instanceof FileStreamSAF)
+            fd = ((FileStreamSAF) stream).getFD();
+
+        if (fd == null) return;
+
+        try {
+            Os.posix_fallocate(fd, 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) throw new IOException("ENOSPC", e);
+            // not supported by the file system (or the storage provider), ignore
+        }
+    }
+
+    /**
+     * Writes data at the given file position, can be called by many threads at the same time
+     *
+     * @param buffer   the data
+     * @param offset   offset in the buffer
+     * @param count    amount of bytes to write
+     * @param position file position
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(byte[] buffer, int offset, int count, long position) throws IOException {
+        if (channel == null) {
+            synchronized (stream) {
+                stream.seek(position);
+                stream.write(buffer, offset, count);
+            }
+            return;
+        }
+
+        ByteBuffer buf = acquireBuffer();
+        try {
+            while (count > 0) {
+                int len = Math.min(count, buf.capacity());
+
+                buf.clear();
+                buf.put(buffer, offset, len);
+                buf.flip();
+
+                while (buf.hasRemaining()) position += channel.write(buf, position);
+
+                offset += len;
+                count -= len;
+            }
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = pool.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        // if the pool is full the buffer is left to the garbage collector
+        pool.offer(buffer);
+    }
+}
@@ -32,6 +32,7 @@ class M4aNoDash extends Postprocessing {
     int process(SharpStream out, SharpStream... sources) throws IOException {
         Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources[0]);
         muxer.setMainBrand(0x4D344120);// binary string "M4A "
+        muxer.setSinglePass(true);// the audio fragments are small, avoid reading them twice
         muxer.parseSources();
         muxer.selectTracks(0);
         muxer.build(out);
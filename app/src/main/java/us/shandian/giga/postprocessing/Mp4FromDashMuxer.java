@@ -14,9 +14,20 @@ class Mp4FromDashMuxer extends Postprocessing {
         super(true, true, ALGORITHM_MP4_FROM_DASH_MUXER);
     }
 
+    @Override
+    public boolean canRunWhileDownloading() {
+        return true;
+    }
+
     @Override
     int process(SharpStream out, SharpStream... sources) throws IOException {
+        // the fragmented output does not hold the sample tables in memory (long streams)
+        boolean fragmented = getArgumentAt(0, "false").equals("true");
+
         Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+        muxer.setSinglePass(true);// also allows muxing while the last track is downloaded
+        muxer.setFragmented(fragmented);
+        muxer.setPrefetchDepth(1);// read the next fragment while the current one is written
         muxer.parseSources();
         muxer.selectTracks(0, 0);
         muxer.build(out);
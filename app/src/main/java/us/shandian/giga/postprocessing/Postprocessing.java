@@ -4,6 +4,7 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import org.schabi.newpipe.streams.io.BufferedSharpStream;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.File;
@@ -14,6 +15,7 @@ import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.io.ChunkFileInputStream;
 import us.shandian.giga.io.CircularFileWriter;
 import us.shandian.giga.io.CircularFileWriter.OffsetChecker;
+import us.shandian.giga.io.MappedFileStream;
 import us.shandian.giga.io.ProgressReport;
 
 import static us.shandian.giga.get.DownloadMission.ERROR_NOTHING;
@@ -82,12 +84,42 @@ public abstract class Postprocessing implements Serializable {
 
     private transient File tempFile;
 
+    private transient volatile boolean downloading;
+
     Postprocessing(boolean reserveSpace, boolean worksOnSameFile, String algorithmName) {
         this.reserveSpace = reserveSpace;
         this.worksOnSameFile = worksOnSameFile;
         this.name = algorithmName;// for debugging only
     }
 
+    /**
+     * Gets the algorithm name, used with {@link #getAlgorithm(String, String[])}
+     *
+     * @return the algorithm name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the arguments passed to {@link #getAlgorithm(String, String[])}
+     *
+     * @return the arguments, can be {@code null}
+     */
+    public String[] getArguments() {
+        return args;
+    }
+
+    /**
+     * Indicates if the algorithm can start while the last resource is downloaded. The sources are
+     * read sequentially and the reads wait until the data is written.
+     *
+     * @return {@code true} if the algorithm can run while downloading
+     */
+    public boolean canRunWhileDownloading() {
+        return false;
+    }
+
     public void setTemporalDir(@NonNull File directory) {
         long rnd = (int) (Math.random() * 100000.0f);
         tempFile = new File(directory, rnd + "_" + System.nanoTime() + ".tmp");
@@ -111,40 +143,69 @@ public abstract class Postprocessing implements Serializable {
         int result;
         long finalLength = -1;
 
-        mission.done = 0;
-
-        long length = mission.storage.length() - mission.offsets[0];
-        mission.length = Math.max(length, mission.nearLength);
+        // when running while downloading, the progress belongs to the download until it ends
+        downloading = mission.current < mission.urls.length;
+        if (!downloading) resetProgress();
 
         final ProgressReport readProgress = (long position) -> {
+            if (!isProgressReady()) return;
+
             position -= mission.offsets[0];
             if (position > mission.done) mission.done = position;
         };
 
         if (worksOnSameFile) {
             ChunkFileInputStream[] sources = new ChunkFileInputStream[mission.urls.length];
+            SharpStream[] readers = sources;
             try {
                 for (int i = 0, j = 1; i < sources.length; i++, j++) {
-                    SharpStream source = mission.storage.getStream();
-                    long end = j < sources.length ? mission.offsets[j] : source.length();
+                    // the local files are mapped, the readers decode the boxes from the mapping
+                    SharpStream source = MappedFileStream.map(mission.storage.getStream());
+                    ChunkFileInputStream.Availability availability = null;
+                    long end;
+
+                    if (j < sources.length) {
+                        end = mission.offsets[j];
+                    } else if (downloading) {
+                        end = mission.offsets[i] + mission.length;
+                    } else {
+                        end = source.length();
+                    }
+
+                    if (downloading) {
+                        final int index = i;
+                        availability = position -> mission.waitForData(index, position);
+                    }
 
-                    sources[i] = new ChunkFileInputStream(source, mission.offsets[i], end, readProgress);
+                    sources[i] = new ChunkFileInputStream(source, mission.offsets[i], end, readProgress, availability);
                 }
 
                 if (test(sources)) {
                     for (SharpStream source : sources) source.rewind();
 
+                    if (!downloading) {
+                        // read the sources ahead, in background threads, while the algorithm works
+                        // the kernel already reads ahead the mapped files
+                        readers = new SharpStream[sources.length];
+                        for (int i = 0; i < sources.length; i++) {
+                            if (sources[i].canReadMapped())
+                                readers[i] = sources[i];
+                            else
+                                readers[i] = new BufferedSharpStream(sources[i]);
+                        }
+                    }
+
                     OffsetChecker checker = () -> {
                         for (ChunkFileInputStream source : sources) {
                             /*
                              * WARNING: never use rewind() in any chunk after any writing (especially on first chunks)
                              *          or the CircularFileWriter can lead to unexpected results
                              */
-                            if (source.isClosed() || source.available() < 1) {
+                            if (source.isClosed() || source.getUnreadLength() < 1) {
                                 continue;// the selected source is not used anymore
                             }
 
-                            return source.getFilePointer() - 1;
+                            return source.getUnreadPointer();
                         }
 
                         return -1;
@@ -152,7 +213,9 @@ public abstract class Postprocessing implements Serializable {
 
                     try (CircularFileWriter out = new CircularFileWriter(
                             mission.storage.getStream(), tempFile, checker)) {
-                        out.onProgress = (long position) -> mission.done = position;
+                        out.onProgress = (long position) -> {
+                            if (isProgressReady()) mission.done = position;
+                        };
 
                         out.onWriteError = err -> {
                             mission.psState = 3;
@@ -171,7 +234,7 @@ public abstract class Postprocessing implements Serializable {
                             return mission.errCode == ERROR_NOTHING;
                         };
 
-                        result = process(out, sources);
+                        result = process(out, readers);
 
                         if (result == OK_RESULT)
                             finalLength = out.finalizeFile();
@@ -180,6 +243,12 @@ public abstract class Postprocessing implements Serializable {
                     result = OK_RESULT;
                 }
             } finally {
+                // the readers are closed first, the read ahead of the sources stops
+                for (SharpStream source : readers) {
+                    if (source != null && !source.isClosed()) {
+                        source.close();
+                    }
+                }
                 for (SharpStream source : sources) {
                     if (source != null && !source.isClosed()) {
                         source.close();
@@ -209,6 +278,31 @@ public abstract class Postprocessing implements Serializable {
         this.mission = null;
     }
 
+    private void resetProgress() {
+        mission.done = 0;
+
+        long length = mission.storage.length() - mission.offsets[0];
+        mission.length = Math.max(length, mission.nearLength);
+    }
+
+    /**
+     * Checks if the download ended, from there the mission progress is the post-processing one
+     *
+     * @return {@code true} if the post-processing progress can be reported
+     */
+    private boolean isProgressReady() {
+        if (!downloading) return true;
+        if (mission.current < mission.urls.length) return false;
+
+        synchronized (mission) {
+            if (downloading) {
+                resetProgress();
+                downloading = false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Test if the post-processing algorithm can be skipped
      *
@@ -14,7 +14,7 @@ class TtmlConverter extends Postprocessing {
     private static final String TAG = "TtmlConverter";
 
     TtmlConverter() {
-        // due how XmlPullParser works, the xml is fully loaded on the ram
+        // the xml is parsed while reading, the CircularFileWriter keeps the output behind it
         super(false, true, ALGORITHM_TTML_CONVERTER);
     }
 
@@ -23,9 +23,11 @@ class TtmlConverter extends Postprocessing {
         // check if the subtitle is already in srt and copy, this should never happen
         String format = getArgumentAt(0, null);
         boolean ignoreEmptyFrames = getArgumentAt(1, "true").equals("true");
+        boolean webVtt = getArgumentAt(2, "srt").equals("vtt");
 
         if (format == null || format.equals("ttml")) {
             SrtFromTtmlWriter writer = new SrtFromTtmlWriter(out, ignoreEmptyFrames);
+            writer.setWebVtt(webVtt);
 
             try {
                 writer.build(sources[0]);
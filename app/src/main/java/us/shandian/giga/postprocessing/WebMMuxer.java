@@ -16,9 +16,15 @@ class WebMMuxer extends Postprocessing {
         super(true, true, ALGORITHM_WEBM_MUXER);
     }
 
+    @Override
+    public boolean canRunWhileDownloading() {
+        return true;
+    }
+
     @Override
     int process(SharpStream out, SharpStream... sources) throws IOException {
         WebMWriter muxer = new WebMWriter(sources);
+        muxer.setPrefetchDepth(16);// read the next blocks while the current ones are written
         muxer.parseSources();
 
         // youtube uses a webm with a fake video track that acts as a "cover image"
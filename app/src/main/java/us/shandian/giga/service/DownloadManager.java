@@ -12,12 +12,16 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.FinishedMission;
 import us.shandian.giga.get.Mission;
+import us.shandian.giga.get.MissionStore;
 import us.shandian.giga.get.sqlite.FinishedMissionStore;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
@@ -38,19 +42,33 @@ public class DownloadManager {
     public static final String TAG_VIDEO = "video";
     private static final String DOWNLOADS_METADATA_FOLDER = "pending_downloads";
 
+    /**
+     * Maximum amount of threads used to read the metadata of the pending missions
+     */
+    private static final int MAX_LOADER_THREADS = 4;
+
     private final FinishedMissionStore mFinishedMissionStore;
 
     private final ArrayList<DownloadMission> mMissionsPending = new ArrayList<>();
-    private final ArrayList<FinishedMission> mMissionsFinished;
+    private final MissionIndex<DownloadMission> mPendingIndex = new MissionIndex<>();
+    private final FinishedMissionList mMissionsFinished;
 
     private final Handler mHandler;
     private final File mPendingMissionsDir;
 
+    /**
+     * Reads the missions in background, the pending ones first and later the pages of the
+     * finished missions
+     */
+    private final ExecutorService mLoader;
+    private boolean mPendingLoaded = false;
+    private boolean mLoadingFinished = false;
+
     private NetworkState mLastNetworkStatus = NetworkState.Unavailable;
 
     int mPrefMaxRetry;
     boolean mPrefMeteredDownloads;
-    boolean mPrefQueueLimit;
+    private int mPrefMaxConcurrent = 1;
     private boolean mSelfMissionsControl;
 
     StoredDirectoryHelper mMainStorageAudio;
@@ -67,14 +85,21 @@ public class DownloadManager {
             Log.d(TAG, "new DownloadManager instance. 0x" + Integer.toHexString(this.hashCode()));
         }
 
+        long start = System.nanoTime();
+
         mFinishedMissionStore = new FinishedMissionStore(context);
         mHandler = handler;
         mMainStorageAudio = storageAudio;
         mMainStorageVideo = storageVideo;
-        mMissionsFinished = loadFinishedMissions();
+        mMissionsFinished = new FinishedMissionList(createFinishedSource());
         mPendingMissionsDir = getPendingDir(context);
 
-        loadPendingMissions(context);
+        mLoader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DownloadManagerLoader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mLoader.execute(() -> load(context, start));
     }
 
     private static File getPendingDir(@NonNull Context context) {
@@ -105,38 +130,97 @@ public class DownloadManager {
         }
     }
 
-    /**
-     * Loads finished missions from the data source and forgets finished missions whose file does
-     * not exist anymore.
-     */
-    private ArrayList<FinishedMission> loadFinishedMissions() {
-        ArrayList<FinishedMission> finishedMissions = mFinishedMissionStore.loadFinishedMissions();
+    private FinishedMissionList.Source createFinishedSource() {
+        FinishedMissionStore.Pager pager = mFinishedMissionStore.getPager();
 
-        // check if the files exists, otherwise, forget the download
-        for (int i = finishedMissions.size() - 1; i >= 0; i--) {
-            FinishedMission mission = finishedMissions.get(i);
+        return new FinishedMissionList.Source() {
+            @NonNull
+            @Override
+            public List<FinishedMission> next(int limit) {
+                return pager.next(limit);
+            }
 
-            if (!mission.storage.existsAsFile()) {
-                if (DEBUG) Log.d(TAG, "downloaded file removed: " + mission.storage.getName());
+            @Override
+            public boolean exists(@NonNull FinishedMission mission) {
+                return mission.storage.existsAsFile();
+            }
 
+            @Override
+            public void delete(@NonNull FinishedMission mission) {
+                if (DEBUG) Log.d(TAG, "downloaded file removed: " + mission.storage.getName());
                 mFinishedMissionStore.deleteMission(mission);
-                finishedMissions.remove(i);
             }
-        }
 
-        return finishedMissions;
+            @Nullable
+            @Override
+            public FinishedMission find(@NonNull StoredFileHelper storage) {
+                return mFinishedMissionStore.findMission(storage);
+            }
+        };
     }
 
-    private void loadPendingMissions(Context ctx) {
-        File[] subs = mPendingMissionsDir.listFiles();
+    /**
+     * Loads the pending missions and the first page of the finished missions, runs in the
+     * loader thread. Until the pending missions are loaded the lookups made by the download
+     * dialog wait for them.
+     */
+    private void load(Context ctx, long created) {
+        long start = System.nanoTime();
+        int threads = 0;
+        List<DownloadMission> pending;
 
-        if (subs == null) {
-            Log.e(TAG, "listFiles() returned null");
-            return;
+        try {
+            File[] subs = mPendingMissionsDir.listFiles();
+
+            if (subs == null) {
+                Log.e(TAG, "listFiles() returned null");
+                pending = Collections.emptyList();
+            } else {
+                threads = Math.min(subs.length, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADER_THREADS));
+                pending = loadPendingMissions(ctx, subs, threads);
+            }
+        } finally {
+            synchronized (this) {
+                mPendingLoaded = true;
+                notifyAll();
+            }
         }
-        if (subs.length < 1) {
-            return;
+
+        long pendingTime = System.nanoTime() - start;
+        int finished = loadFinishedPage();
+        long finishedTime = System.nanoTime() - start - pendingTime;
+
+        Log.i(TAG, String.format(
+                "startup: %d pending missions in %dms (%d threads), %d finished missions in %dms, ready %dms after creation",
+                pending.size(), pendingTime / 1000000, threads, finished, finishedTime / 1000000,
+                (System.nanoTime() - created) / 1000000
+        ));
+    }
+
+    /**
+     * Reads the metadata of the pending missions in parallel, and adds them to the queue
+     *
+     * @return the missions loaded
+     */
+    private List<DownloadMission> loadPendingMissions(Context ctx, File[] subs, int threads) {
+        ArrayList<File> files = new ArrayList<>(subs.length);
+
+        for (File sub : subs) {
+            if (!sub.isFile()) continue;
+            if (sub.getName().equals(".tmp")) continue;
+
+            if (MissionStore.isTempFile(sub)) {
+                // interrupted write, handled when reading the metadata file
+                File metadata = MissionStore.getMetadataFile(sub);
+                if (metadata.exists()) continue;
+                sub = metadata;
+            }
+
+            files.add(sub);
         }
+
+        if (files.isEmpty()) return Collections.emptyList();
+
         if (DEBUG) {
             Log.d(TAG, "Loading pending downloads from directory: " + mPendingMissionsDir.getAbsolutePath());
         }
@@ -144,63 +228,157 @@ public class DownloadManager {
         File tempDir = pickAvailableTemporalDir(ctx);
         Log.i(TAG, "using '" + tempDir + "' as temporal directory");
 
-        for (File sub : subs) {
-            if (!sub.isFile()) continue;
-            if (sub.getName().equals(".tmp")) continue;
+        // most of the time is spent waiting the storage (SAF queries), read the files in parallel
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayList<Future<DownloadMission>> tasks = new ArrayList<>(files.size());
+        ArrayList<DownloadMission> loaded = new ArrayList<>(files.size());
 
-            DownloadMission mis = Utility.readFromFile(sub);
-            if (mis == null || mis.isFinished() || mis.hasInvalidStorage()) {
-                //noinspection ResultOfMethodCallIgnored
-                sub.delete();
-                continue;
+        try {
+            for (File file : files) tasks.add(pool.submit(() -> loadPendingMission(ctx, file, tempDir)));
+
+            for (Future<DownloadMission> task : tasks) {
+                try {
+                    DownloadMission mis = task.get();
+                    if (mis != null) loaded.add(mis);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to load a pending mission", e.getCause());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
 
-            mis.threads = new Thread[0];
-
-            boolean exists;
-            try {
-                mis.storage = StoredFileHelper.deserialize(mis.storage, ctx);
-                exists = !mis.storage.isInvalid() && mis.storage.existsAsFile();
-            } catch (Exception ex) {
-                Log.e(TAG, "Failed to load the file source of " + mis.storage.toString(), ex);
-                mis.storage.invalidate();
-                exists = false;
+        synchronized (this) {
+            for (DownloadMission mis : loaded) {
+                mis.maxRetry = mPrefMaxRetry;
+                mis.mHandler = mHandler;
+                mPendingIndex.add(mis);
             }
 
-            if (mis.isPsRunning()) {
-                if (mis.psAlgorithm.worksOnSameFile) {
-                    // Incomplete post-processing results in a corrupted download file
-                    // because the selected algorithm works on the same file to save space.
-                    // the file will be deleted if the storage API
-                    // is Java IO (avoid showing the "Save as..." dialog)
-                    if (exists && mis.storage.isDirect() && !mis.storage.delete())
-                        Log.w(TAG, "Unable to delete incomplete download file: " + sub.getPath());
-                }
+            // new missions can be added while loading
+            mMissionsPending.addAll(loaded);
+            if (mMissionsPending.size() > 1)
+                Collections.sort(mMissionsPending, MissionQueue.ORDER);
+        }
 
-                mis.psState = 0;
-                mis.errCode = DownloadMission.ERROR_POSTPROCESSING_STOPPED;
-            } else if (!exists) {
-                tryRecover(mis);
+        if (mHandler != null) mHandler.obtainMessage(DownloadManagerService.MESSAGE_LOADED).sendToTarget();
 
-                // the progress is lost, reset mission state
-                if (mis.isInitialized())
-                    mis.resetState(true, true, DownloadMission.ERROR_PROGRESS_LOST);
-            }
+        return loaded;
+    }
 
-            if (mis.psAlgorithm != null) {
-                mis.psAlgorithm.cleanupTemporalDir();
-                mis.psAlgorithm.setTemporalDir(tempDir);
+    @Nullable
+    private DownloadMission loadPendingMission(Context ctx, File sub, File tempDir) {
+        DownloadMission mis = MissionStore.read(sub);
+        if (mis == null || mis.isFinished() || mis.hasInvalidStorage()) {
+            MissionStore.delete(sub);
+            return null;
+        }
+
+        mis.threads = new Thread[0];
+
+        boolean exists;
+        try {
+            mis.storage = StoredFileHelper.deserialize(mis.storage, ctx);
+            exists = !mis.storage.isInvalid() && mis.storage.existsAsFile();
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to load the file source of " + mis.storage.toString(), ex);
+            mis.storage.invalidate();
+            exists = false;
+        }
+
+        if (mis.isPsRunning()) {
+            if (mis.psAlgorithm.worksOnSameFile) {
+                // Incomplete post-processing results in a corrupted download file
+                // because the selected algorithm works on the same file to save space.
+                // the file will be deleted if the storage API
+                // is Java IO (avoid showing the "Save as..." dialog)
+                if (exists && mis.storage.isDirect() && !mis.storage.delete())
+                    Log.w(TAG, "Unable to delete incomplete download file: " + sub.getPath());
             }
 
-            mis.metadata = sub;
-            mis.maxRetry = mPrefMaxRetry;
-            mis.mHandler = mHandler;
+            mis.psState = 0;
+            mis.errCode = DownloadMission.ERROR_POSTPROCESSING_STOPPED;
+        } else if (!exists) {
+            tryRecover(mis);
 
-            mMissionsPending.add(mis);
+            // the progress is lost, reset mission state
+            if (mis.isInitialized())
+                mis.resetState(true, true, DownloadMission.ERROR_PROGRESS_LOST);
+        }
+
+        if (mis.psAlgorithm != null) {
+            mis.psAlgorithm.cleanupTemporalDir();
+            mis.psAlgorithm.setTemporalDir(tempDir);
+        }
+
+        mis.metadata = sub;
+
+        return mis;
+    }
+
+    /**
+     * Reads the next page of finished missions, runs in the loader thread
+     *
+     * @return the amount of missions added to the list
+     */
+    private int loadFinishedPage() {
+        FinishedMissionList.Page page = mMissionsFinished.read();
+        boolean changed;
+
+        synchronized (this) {
+            changed = mMissionsFinished.publish(page);
+            mLoadingFinished = false;
         }
 
-        if (mMissionsPending.size() > 1)
-            Collections.sort(mMissionsPending, Comparator.comparingLong(Mission::getTimestamp));
+        if (changed && mHandler != null) {
+            mHandler.obtainMessage(DownloadManagerService.MESSAGE_LOADED).sendToTarget();
+        }
+
+        return page.missions.size();
+    }
+
+    /**
+     * Loads in background the next page of finished missions, if any. The downloads list is
+     * notified with {@link DownloadManagerService#MESSAGE_LOADED}.
+     */
+    public void loadMoreFinishedMissions() {
+        synchronized (this) {
+            if (mLoadingFinished || !mMissionsFinished.hasMore()) return;
+            mLoadingFinished = true;
+        }
+
+        mLoader.execute(this::loadFinishedPage);
+    }
+
+    /**
+     * Loads all the finished missions not loaded yet, blocks until done. Reads the whole data
+     * source, must not be called from the main thread
+     */
+    public void loadAllFinishedMissions() {
+        Future<?> task = mLoader.submit(() -> {
+            while (mMissionsFinished.hasMore()) loadFinishedPage();
+        });
+
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load the finished missions", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the pending missions are loaded, must be called holding this instance lock
+     */
+    private void waitPendingMissions() {
+        try {
+            while (!mPendingLoaded) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -210,6 +388,8 @@ public class DownloadManager {
      */
     void startMission(DownloadMission mission) {
         synchronized (this) {
+            waitPendingMissions();// the metadata file must not be read as a pending mission
+
             mission.timestamp = System.currentTimeMillis();
             mission.mHandler = mHandler;
             mission.maxRetry = mPrefMaxRetry;
@@ -229,11 +409,21 @@ public class DownloadManager {
                 mission.timestamp = System.currentTimeMillis();
             }
 
+            mission.queuePosition = mission.timestamp;
+            mission.priority = MissionQueue.getDefaultPriority(mission);
+
             mSelfMissionsControl = true;
             mMissionsPending.add(mission);
+            mPendingIndex.add(mission);
+            Collections.sort(mMissionsPending, MissionQueue.ORDER);
+            mission.trackTime();// from now the mission is waiting in the queue
 
             // Before continue, save the metadata in case the internet connection is not available
-            Utility.writeToFile(mission.metadata, mission);
+            try {
+                MissionStore.write(mission.metadata, mission);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save the metadata of the new mission", e);
+            }
 
             if (mission.storage == null) {
                 // noting to do here
@@ -243,11 +433,70 @@ public class DownloadManager {
                 return;
             }
 
-            boolean start = !mPrefQueueLimit || getRunningMissionsCount() < 1;
+            if (canDownloadInCurrentNetwork()) startWaitingMissions();
+        }
+    }
+
+    /**
+     * Starts the missions waiting in the queue, by priority, until the concurrency limit is
+     * reached. Must be called holding this instance lock.
+     */
+    private void startWaitingMissions() {
+        int free = MissionQueue.getFreeSlots(mMissionsPending, mPrefMaxConcurrent);
+        if (free < 1) return;
+
+        for (DownloadMission mission : MissionQueue.getWaiting(mMissionsPending)) {
+            resumeMission(mission);
 
-            if (canDownloadInCurrentNetwork() && start) {
-                mission.start();
-            }
+            // the mission can fail before starting, use the slot for the next one
+            if (MissionQueue.isActive(mission) && --free < 1) break;
+        }
+    }
+
+    /**
+     * Changes the priority of a pending mission, the queue is reordered
+     *
+     * @param mission  the mission
+     * @param priority the new priority, see {@link DownloadMission#PRIORITY_HIGH}
+     */
+    public void setMissionPriority(DownloadMission mission, int priority) {
+        synchronized (this) {
+            if (mission.priority == priority || !mPendingIndex.contains(mission)) return;
+
+            mission.priority = priority;
+            mission.writeThisToFileAsync();
+            Collections.sort(mMissionsPending, MissionQueue.ORDER);
+        }
+    }
+
+    /**
+     * Moves a pending mission one place in the queue
+     *
+     * @param mission the mission
+     * @param offset  {@code -1} to move towards the head of the queue, {@code 1} to the tail
+     * @return {@code true} if the mission was moved
+     */
+    public boolean moveMission(DownloadMission mission, int offset) {
+        synchronized (this) {
+            List<DownloadMission> changed = MissionQueue.move(mMissionsPending, mission, offset);
+            for (DownloadMission item : changed) item.writeThisToFileAsync();
+
+            return !changed.isEmpty();
+        }
+    }
+
+    /**
+     * Indicates if a pending mission can be moved in the queue
+     *
+     * @param mission the mission
+     * @param offset  {@code -1} towards the head of the queue, {@code 1} towards the tail
+     * @return {@code true} if there is a mission in that direction
+     */
+    public boolean canMoveMission(DownloadMission mission, int offset) {
+        synchronized (this) {
+            int index = mMissionsPending.indexOf(mission);
+            int target = index + offset;
+            return index >= 0 && target >= 0 && target < mMissionsPending.size();
         }
     }
 
@@ -269,8 +518,9 @@ public class DownloadManager {
         synchronized (this) {
             if (mission instanceof DownloadMission) {
                 mMissionsPending.remove(mission);
+                mPendingIndex.remove((DownloadMission) mission);
             } else if (mission instanceof FinishedMission) {
-                mMissionsFinished.remove(mission);
+                mMissionsFinished.remove((FinishedMission) mission);
                 mFinishedMissionStore.deleteMission(mission);
             }
 
@@ -285,8 +535,9 @@ public class DownloadManager {
 
             if (mission instanceof DownloadMission) {
                 mMissionsPending.remove(mission);
+                mPendingIndex.remove((DownloadMission) mission);
             } else if (mission instanceof FinishedMission) {
-                mMissionsFinished.remove(mission);
+                mMissionsFinished.remove((FinishedMission) mission);
                 mFinishedMissionStore.deleteMission(mission);
             }
 
@@ -296,6 +547,15 @@ public class DownloadManager {
     }
 
     public void tryRecover(DownloadMission mission) {
+        recreateStorage(mission);
+
+        // the file can be created again, invalidated or replaced
+        synchronized (this) {
+            mPendingIndex.update(mission);
+        }
+    }
+
+    private void recreateStorage(DownloadMission mission) {
         StoredDirectoryHelper mainStorage = getMainStorage(mission.storage.getTag());
 
         if (!mission.storage.isInvalid() && mission.storage.create()) return;
@@ -323,43 +583,66 @@ public class DownloadManager {
      */
     @Nullable
     private DownloadMission getPendingMission(StoredFileHelper storage) {
-        for (DownloadMission mission : mMissionsPending) {
-            if (mission.storage.equals(storage)) {
-                return mission;
-            }
+        waitPendingMissions();
+
+        return mPendingIndex.get(storage);
+    }
+
+    /**
+     * Gets the pending missions downloading from a stream
+     *
+     * @param source the url of the stream, see {@link Mission#source}
+     * @return the missions, can be empty
+     */
+    public List<DownloadMission> getPendingMissions(String source) {
+        synchronized (this) {
+            waitPendingMissions();
+
+            return new ArrayList<>(mPendingIndex.getBySource(source));
         }
-        return null;
     }
 
     /**
-     * Get the index into {@link #mMissionsFinished} of a finished mission by its path, return
-     * {@code -1} if there is no such mission. This function also checks if the matched mission's
-     * file exists, and, if it does not, the related mission is forgotten about (like in {@link
-     * #loadFinishedMissions()}) and {@code -1} is returned.
+     * Changes the file of a pending mission, picked again by the user
      *
-     * @param storage where the file would be stored
-     * @return the mission index or -1 if no such mission exists
+     * @param mission the mission
+     * @param storage the new file
      */
-    private int getFinishedMissionIndex(StoredFileHelper storage) {
-        for (int i = 0; i < mMissionsFinished.size(); i++) {
-            if (mMissionsFinished.get(i).storage.equals(storage)) {
-                // If the file does not exist the mission is not valid anymore. Also checking if
-                // length == 0 since the file picker may create an empty file before yielding it,
-                // but that does not mean the file really belonged to a previous mission.
-                if (!storage.existsAsFile() || storage.length() == 0) {
-                    if (DEBUG) {
-                        Log.d(TAG, "matched downloaded file removed: " + storage.getName());
-                    }
+    public void setMissionStorage(DownloadMission mission, StoredFileHelper storage) {
+        synchronized (this) {
+            mission.storage = storage;
+            mPendingIndex.update(mission);
+        }
+    }
 
-                    mFinishedMissionStore.deleteMission(mMissionsFinished.get(i));
-                    mMissionsFinished.remove(i);
-                    return -1; // finished mission whose associated file was removed
-                }
-                return i;
+    /**
+     * Get a finished mission by its path, the missions not loaded yet are looked up in the data
+     * source. This function also checks if the matched mission's file exists, and, if it does
+     * not, the related mission is forgotten about (like when the missions are loaded) and
+     * {@code null} is returned.
+     *
+     * @param storage where the file would be stored
+     * @return the mission or null if no such mission exists
+     */
+    @Nullable
+    private FinishedMission getFinishedMission(StoredFileHelper storage) {
+        FinishedMission mission = mMissionsFinished.find(storage);
+        if (mission == null) return null;
+
+        // If the file does not exist the mission is not valid anymore. Also checking if
+        // length == 0 since the file picker may create an empty file before yielding it,
+        // but that does not mean the file really belonged to a previous mission.
+        if (!storage.existsAsFile() || storage.length() == 0) {
+            if (DEBUG) {
+                Log.d(TAG, "matched downloaded file removed: " + storage.getName());
             }
+
+            mFinishedMissionStore.deleteMission(mission);
+            mMissionsFinished.remove(mission);
+            return null; // finished mission whose associated file was removed
         }
 
-        return -1;
+        return mission;
     }
 
     private Mission getAnyMission(StoredFileHelper storage) {
@@ -367,19 +650,15 @@ public class DownloadManager {
             Mission mission = getPendingMission(storage);
             if (mission != null) return mission;
 
-            int idx = getFinishedMissionIndex(storage);
-            if (idx >= 0) return mMissionsFinished.get(idx);
+            return getFinishedMission(storage);
         }
-
-        return null;
     }
 
     int getRunningMissionsCount() {
         int count = 0;
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) {
-                if (mission.running && !mission.isPsFailed() && !mission.isFinished())
-                    count++;
+                if (MissionQueue.isActive(mission)) count++;
             }
         }
 
@@ -420,7 +699,8 @@ public class DownloadManager {
     void setFinished(DownloadMission mission) {
         synchronized (this) {
             mMissionsPending.remove(mission);
-            mMissionsFinished.add(0, new FinishedMission(mission));
+            mPendingIndex.remove(mission);
+            mMissionsFinished.add(new FinishedMission(mission));
             mFinishedMissionStore.addFinishedMission(mission);
         }
     }
@@ -435,24 +715,9 @@ public class DownloadManager {
             if (mMissionsPending.size() < 1) return false;
             if (!canDownloadInCurrentNetwork()) return false;
 
-            if (mPrefQueueLimit) {
-                for (DownloadMission mission : mMissionsPending)
-                    if (!mission.isFinished() && mission.running) return true;
-            }
-
-            boolean flag = false;
-            for (DownloadMission mission : mMissionsPending) {
-                if (mission.running || !mission.enqueued || mission.isFinished())
-                    continue;
-
-                resumeMission(mission);
-                if (mission.errCode != DownloadMission.ERROR_NOTHING) continue;
+            startWaitingMissions();
 
-                if (mPrefQueueLimit) return true;
-                flag = true;
-            }
-
-            return flag;
+            return getRunningMissionsCount() > 0;
         }
     }
 
@@ -466,9 +731,7 @@ public class DownloadManager {
      */
     public void forgetFinishedDownloads() {
         synchronized (this) {
-            for (FinishedMission mission : mMissionsFinished) {
-                mFinishedMissionStore.deleteMission(mission);
-            }
+            mFinishedMissionStore.deleteAllMissions();
             mMissionsFinished.clear();
         }
     }
@@ -491,15 +754,32 @@ public class DownloadManager {
         boolean isMetered = mPrefMeteredDownloads && mLastNetworkStatus == NetworkState.MeteredOperating;
 
         synchronized (this) {
-            for (DownloadMission mission : mMissionsPending) {
-                if (mission.isCorrupt() || mission.isPsRunning()) continue;
-
-                if (mission.running && isMetered) {
-                    mission.pause();
-                } else if (!mission.running && !isMetered && mission.enqueued) {
-                    mission.start();
-                    if (mPrefQueueLimit) break;
+            if (isMetered) {
+                for (DownloadMission mission : mMissionsPending) {
+                    if (mission.isCorrupt() || mission.isPsRunning()) continue;
+                    if (mission.running) mission.pause();
                 }
+            } else {
+                startWaitingMissions();
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum amount of missions running at the same time. If the limit is raised
+     * the waiting missions are started, if lowered the running missions are not paused.
+     *
+     * @param value the limit, or {@link MissionQueue#UNLIMITED}
+     */
+    void setMaxConcurrentMissions(int value) {
+        synchronized (this) {
+            boolean raised = value == MissionQueue.UNLIMITED
+                    || (mPrefMaxConcurrent != MissionQueue.UNLIMITED && value > mPrefMaxConcurrent);
+
+            mPrefMaxConcurrent = Math.max(MissionQueue.UNLIMITED, value);
+
+            if (raised && mSelfMissionsControl && canDownloadInCurrentNetwork()) {
+                startWaitingMissions();
             }
         }
     }
@@ -510,12 +790,20 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * Finds the state of a mission downloading to the given file. Waits until the pending
+     * missions are loaded and can look up the data source, must not be called from the main
+     * thread
+     *
+     * @param storage where the file would be stored
+     * @return the state of the mission using the file, if any
+     */
     public MissionState checkForExistingMission(StoredFileHelper storage) {
         synchronized (this) {
             DownloadMission pending = getPendingMission(storage);
 
             if (pending == null) {
-                if (getFinishedMissionIndex(storage) >= 0) return MissionState.Finished;
+                if (getFinishedMission(storage) != null) return MissionState.Finished;
             } else {
                 if (pending.isFinished()) {
                     return MissionState.Finished;// this never should happen (race-condition)
@@ -579,7 +867,7 @@ public class DownloadManager {
         private ArrayList<Object> getSpecialItems() {
             synchronized (DownloadManager.this) {
                 ArrayList<Mission> pending = new ArrayList<>(mMissionsPending);
-                ArrayList<Mission> finished = new ArrayList<>(mMissionsFinished);
+                ArrayList<Mission> finished = new ArrayList<>(mMissionsFinished.getLoaded());
                 List<Mission> remove = new ArrayList<>(hidden);
 
                 // hide missions (if required)
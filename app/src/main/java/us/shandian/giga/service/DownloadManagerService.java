@@ -45,6 +45,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import us.shandian.giga.get.BandwidthScheduler;
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.MissionRecoveryInfo;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
@@ -64,6 +65,7 @@ public class DownloadManagerService extends Service {
     public static final int MESSAGE_FINISHED = 2;
     public static final int MESSAGE_ERROR = 3;
     public static final int MESSAGE_DELETED = 4;
+    public static final int MESSAGE_LOADED = 5;// missions loaded in background, msg.obj is null
 
     private static final int FOREGROUND_NOTIFICATION_ID = 1000;
     private static final int DOWNLOADS_NOTIFICATION_ID = 1001;
@@ -191,7 +193,8 @@ public class DownloadManagerService extends Service {
 
         handlePreferenceChange(mPrefs, getString(R.string.downloads_cross_network));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_maximum_retry));
-        handlePreferenceChange(mPrefs, getString(R.string.downloads_queue_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_max_concurrent));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_bandwidth_limit));
 
         mLock = new LockManager(this);
     }
@@ -305,7 +308,7 @@ public class DownloadManagerService extends Service {
                 break;
         }
 
-        if (msg.what != MESSAGE_ERROR)
+        if (mission != null && msg.what != MESSAGE_ERROR)
             mFailedDownloads.delete(mFailedDownloads.indexOfValue(mission));
 
         for (Callback observer : mEchoObservers)
@@ -348,8 +351,23 @@ public class DownloadManagerService extends Service {
             mManager.updateMaximumAttempts();
         } else if (key.equals(getString(R.string.downloads_cross_network))) {
             mManager.mPrefMeteredDownloads = prefs.getBoolean(key, false);
-        } else if (key.equals(getString(R.string.downloads_queue_limit))) {
-            mManager.mPrefQueueLimit = prefs.getBoolean(key, true);
+        } else if (key.equals(getString(R.string.downloads_max_concurrent))) {
+            int value;
+            try {
+                value = Integer.parseInt(prefs.getString(key, getString(R.string.downloads_max_concurrent_default)));
+            } catch (Exception e) {
+                value = 1;
+            }
+            mManager.setMaxConcurrentMissions(value);
+        } else if (key.equals(getString(R.string.downloads_bandwidth_limit))) {
+            long rate;
+            try {
+                String value = prefs.getString(key, getString(R.string.downloads_bandwidth_limit_default));
+                rate = value == null ? 0 : Long.parseLong(value) * 1024;
+            } catch (Exception e) {
+                rate = BandwidthScheduler.UNLIMITED;
+            }
+            BandwidthScheduler.getInstance().setMaxRate(rate);
         } else if (key.equals(getString(R.string.download_path_video_key))) {
             mManager.mMainStorageVideo = loadMainVideoStorage();
         } else if (key.equals(getString(R.string.download_path_audio_key))) {
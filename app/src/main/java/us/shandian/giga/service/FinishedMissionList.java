@@ -0,0 +1,192 @@
+package us.shandian.giga.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import us.shandian.giga.get.FinishedMission;
+
+/**
+ * Finished missions loaded so far, the newest first. The missions are read from the data source
+ * page by page when the downloads list is scrolled, instead of loading all of them at once.
+ * <p>
+ * Reading a page is done without holding any lock (see {@link #read()}), the page is added to
+ * the list later with {@link #publish(Page)}. Apart from {@link #read()} the methods must be
+ * called holding the lock of the {@link DownloadManager}.
+ */
+class FinishedMissionList {
+    static final int PAGE_SIZE = 50;
+
+    private final Source mSource;
+
+    private final ArrayList<FinishedMission> mLoaded = new ArrayList<>();
+    private final MissionIndex<FinishedMission> mIndex = new MissionIndex<>();
+
+    /**
+     * Missions finished after the list was created, the data source can return them again
+     */
+    private final ArrayList<FinishedMission> mAdded = new ArrayList<>(1);
+
+    private volatile boolean mExhausted = false;
+    private int mGeneration = 0;
+
+    FinishedMissionList(@NonNull Source source) {
+        mSource = source;
+    }
+
+    /**
+     * Reads the next page from the data source, the missions whose file does not exist anymore
+     * are forgotten. Must be called from a single thread.
+     *
+     * @return the page, to be added with {@link #publish(Page)}
+     */
+    @NonNull
+    Page read() {
+        Page page = new Page();
+        synchronized (this) {
+            page.generation = mGeneration;
+        }
+
+        if (mExhausted) return page;
+
+        List<FinishedMission> missions = mSource.next(PAGE_SIZE);
+        page.last = missions.size() < PAGE_SIZE;
+
+        // check if the files exists, otherwise, forget the download
+        for (FinishedMission mission : missions) {
+            if (mSource.exists(mission)) {
+                page.missions.add(mission);
+                continue;
+            }
+
+            mSource.delete(mission);
+        }
+
+        return page;
+    }
+
+    /**
+     * Adds a page read by {@link #read()} at the end of the list
+     *
+     * @param page the page
+     * @return {@code true} if the list was changed
+     */
+    boolean publish(@NonNull Page page) {
+        synchronized (this) {
+            if (page.generation != mGeneration) return false;// cleared meanwhile
+        }
+
+        boolean changed = false;
+        for (FinishedMission mission : page.missions) {
+            if (isAdded(mission)) continue;
+
+            mLoaded.add(mission);
+            mIndex.add(mission);
+            changed = true;
+        }
+
+        if (page.last) mExhausted = true;
+
+        return changed;
+    }
+
+    private boolean isAdded(FinishedMission mission) {
+        for (FinishedMission added : mAdded) {
+            if (added.timestamp == mission.timestamp && added.storage.equals(mission.storage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates if there are missions left in the data source
+     */
+    boolean hasMore() {
+        return !mExhausted;
+    }
+
+    @NonNull
+    List<FinishedMission> getLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Adds a mission which has just finished at the head of the list
+     */
+    void add(@NonNull FinishedMission mission) {
+        mLoaded.add(0, mission);
+        mIndex.add(mission);
+        if (!mExhausted) mAdded.add(mission);
+    }
+
+    void remove(@NonNull FinishedMission mission) {
+        if (!mIndex.contains(mission)) return;
+
+        mLoaded.remove(mission);
+        mIndex.remove(mission);
+        mAdded.remove(mission);
+    }
+
+    /**
+     * Forgets the missions loaded, and the ones still in the data source
+     */
+    void clear() {
+        synchronized (this) {
+            mGeneration++;
+        }
+
+        mLoaded.clear();
+        mIndex.clear();
+        mAdded.clear();
+        mExhausted = true;
+    }
+
+    /**
+     * Finds a finished mission by its file, looking in the data source if the mission was not
+     * loaded yet
+     *
+     * @param storage where the file would be stored
+     * @return the mission or {@code null} if no such mission exists
+     */
+    @Nullable
+    FinishedMission find(@NonNull StoredFileHelper storage) {
+        FinishedMission mission = mIndex.get(storage);
+        if (mission != null || mExhausted) return mission;
+
+        return mSource.find(storage);
+    }
+
+    static class Page {
+        final ArrayList<FinishedMission> missions = new ArrayList<>(PAGE_SIZE);
+        boolean last = true;
+        int generation;
+    }
+
+    /**
+     * Data source of the finished missions, see
+     * {@link us.shandian.giga.get.sqlite.FinishedMissionStore}
+     */
+    interface Source {
+        /**
+         * Reads the next missions, newest first. The missions added or removed meanwhile do not
+         * shift the following pages.
+         *
+         * @param limit maximum amount of missions
+         * @return the missions, less than {@code limit} if there are no more missions
+         */
+        @NonNull
+        List<FinishedMission> next(int limit);
+
+        boolean exists(@NonNull FinishedMission mission);
+
+        void delete(@NonNull FinishedMission mission);
+
+        @Nullable
+        FinishedMission find(@NonNull StoredFileHelper storage);
+    }
+}
@@ -0,0 +1,161 @@
+package us.shandian.giga.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import us.shandian.giga.get.Mission;
+
+/**
+ * Hash indexes of a list of missions, to find them by their file or by their source url without
+ * scanning the whole list. The missions are found by their file like
+ * {@link StoredFileHelper#equals(StoredFileHelper)} does, every candidate is checked with it.
+ * <p>
+ * The keys of every mission are kept, if the file of an indexed mission is changed (replaced,
+ * created again or invalidated) {@link #update(Mission)} must be called. Not thread-safe.
+ */
+class MissionIndex<T extends Mission> {
+    private final HashMap<String, ArrayList<T>> mByLocation = new HashMap<>();
+    private final HashMap<String, ArrayList<T>> mByName = new HashMap<>();
+    private final HashMap<String, ArrayList<T>> mBySource = new HashMap<>();
+
+    /**
+     * Keys used to index every mission, needed to remove them after the file changes
+     */
+    private final IdentityHashMap<T, String[]> mKeys = new IdentityHashMap<>();
+
+    /**
+     * Indexes a mission, does nothing if the mission is already indexed
+     *
+     * @param mission the mission
+     */
+    void add(@NonNull T mission) {
+        if (mKeys.containsKey(mission)) return;
+
+        StoredFileHelper storage = mission.storage;
+        String[] keys = new String[]{
+                storage == null ? null : storage.getLocationKey(),
+                storage == null ? null : storage.getNameKey(),
+                mission.source
+        };
+
+        put(mByLocation, keys[0], mission);
+        put(mByName, keys[1], mission);
+        put(mBySource, keys[2], mission);
+        mKeys.put(mission, keys);
+    }
+
+    void remove(@NonNull T mission) {
+        String[] keys = mKeys.remove(mission);
+        if (keys == null) return;
+
+        take(mByLocation, keys[0], mission);
+        take(mByName, keys[1], mission);
+        take(mBySource, keys[2], mission);
+    }
+
+    /**
+     * Indexes again a mission whose file has changed, does nothing if the mission is not indexed
+     *
+     * @param mission the mission
+     */
+    void update(@NonNull T mission) {
+        if (!mKeys.containsKey(mission)) return;
+
+        remove(mission);
+        add(mission);
+    }
+
+    void clear() {
+        mByLocation.clear();
+        mByName.clear();
+        mBySource.clear();
+        mKeys.clear();
+    }
+
+    boolean contains(@NonNull T mission) {
+        return mKeys.containsKey(mission);
+    }
+
+    int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * Finds a mission by its file
+     *
+     * @param storage where the file would be stored
+     * @return the mission or {@code null} if no such mission exists
+     */
+    @Nullable
+    T get(@Nullable StoredFileHelper storage) {
+        if (storage == null) return null;
+
+        T mission = find(mByLocation.get(storage.getLocationKey()), storage);
+        if (mission != null) return mission;
+
+        // an invalid file is equal to any other with the same name
+        return find(mByName.get(storage.getNameKey()), storage);
+    }
+
+    /**
+     * Gets the missions downloading from a source url
+     *
+     * @param source the url of the stream, see {@link Mission#source}
+     * @return the missions, in the order they were added
+     */
+    @NonNull
+    List<T> getBySource(@Nullable String source) {
+        ArrayList<T> missions = mBySource.get(source);
+        if (missions == null) return Collections.emptyList();
+
+        return Collections.unmodifiableList(missions);
+    }
+
+    @Nullable
+    private T find(@Nullable List<T> candidates, @NonNull StoredFileHelper storage) {
+        if (candidates == null) return null;
+
+        for (T mission : candidates) {
+            if (mission.storage != null && mission.storage.equals(storage)) return mission;
+        }
+
+        return null;
+    }
+
+    private void put(HashMap<String, ArrayList<T>> index, @Nullable String key, T mission) {
+        if (key == null) return;
+
+        ArrayList<T> missions = index.get(key);
+        if (missions == null) {
+            missions = new ArrayList<>(1);
+            index.put(key, missions);
+        }
+
+        missions.add(mission);
+    }
+
+    private void take(HashMap<String, ArrayList<T>> index, @Nullable String key, T mission) {
+        if (key == null) return;
+
+        ArrayList<T> missions = index.get(key);
+        if (missions == null) return;
+
+        // compare by identity, like the keys
+        for (int i = 0; i < missions.size(); i++) {
+            if (missions.get(i) == mission) {
+                missions.remove(i);
+                break;
+            }
+        }
+
+        if (missions.isEmpty()) index.remove(key);
+    }
+}
@@ -0,0 +1,143 @@
+package us.shandian.giga.service;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import us.shandian.giga.get.DownloadMission;
+
+/**
+ * Decides which pending missions run. The missions waiting in the queue are started by their
+ * {@link DownloadMission#priority}, then by their {@link DownloadMission#queuePosition}, until
+ * the limit of concurrent missions is reached.
+ */
+class MissionQueue {
+    /**
+     * Concurrency value used to run all the enqueued missions at the same time
+     */
+    static final int UNLIMITED = 0;
+
+    /**
+     * Missions smaller than this get a high priority, so they are not stuck behind big videos
+     */
+    static final long SMALL_MISSION_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Queue order, higher priorities first
+     */
+    static final Comparator<DownloadMission> ORDER = (a, b) -> {
+        int cmp = Integer.compare(b.priority, a.priority);
+        if (cmp != 0) return cmp;
+        return Long.compare(a.queuePosition, b.queuePosition);
+    };
+
+    private MissionQueue() {
+    }
+
+    /**
+     * Chooses the initial priority of a new mission, subtitles and small files go first
+     *
+     * @param mission the new mission
+     * @return the priority
+     */
+    static int getDefaultPriority(@NonNull DownloadMission mission) {
+        if (mission.kind == 's') return DownloadMission.PRIORITY_HIGH;
+        if (mission.nearLength > 0 && mission.nearLength < SMALL_MISSION_LENGTH) {
+            return DownloadMission.PRIORITY_HIGH;
+        }
+        return DownloadMission.PRIORITY_NORMAL;
+    }
+
+    /**
+     * Indicates if the mission is using one of the download slots
+     */
+    static boolean isActive(@NonNull DownloadMission mission) {
+        return mission.running && !mission.isPsFailed() && !mission.isFinished();
+    }
+
+    /**
+     * Indicates if the mission is waiting in the queue to be started
+     */
+    static boolean isWaiting(@NonNull DownloadMission mission) {
+        return !mission.running && mission.enqueued && mission.urls.length > 0 && !mission.isCorrupt();
+    }
+
+    /**
+     * Counts how many missions can be started without exceeding the concurrency limit
+     *
+     * @param missions      the pending missions
+     * @param maxConcurrent maximum amount of missions running at the same time, or {@link #UNLIMITED}
+     * @return the amount of free slots
+     */
+    static int getFreeSlots(@NonNull List<DownloadMission> missions, int maxConcurrent) {
+        if (maxConcurrent == UNLIMITED) return Integer.MAX_VALUE;
+
+        int active = 0;
+        for (DownloadMission mission : missions) {
+            if (isActive(mission)) active++;
+        }
+        return Math.max(0, maxConcurrent - active);
+    }
+
+    /**
+     * Gets the missions waiting to be started, in the order they should be started
+     *
+     * @param missions the pending missions
+     * @return the waiting missions, can be empty
+     */
+    @NonNull
+    static List<DownloadMission> getWaiting(@NonNull List<DownloadMission> missions) {
+        ArrayList<DownloadMission> waiting = new ArrayList<>();
+        for (DownloadMission mission : missions) {
+            if (isWaiting(mission)) waiting.add(mission);
+        }
+
+        Collections.sort(waiting, ORDER);
+        return waiting;
+    }
+
+    /**
+     * Moves a mission in the queue. A mission moved over a mission with other priority takes
+     * that priority, so the order shown to the user is the order used to start the missions.
+     *
+     * @param missions the pending missions, sorted by {@link #ORDER}
+     * @param mission  the mission to move
+     * @param offset   {@code -1} to move towards the head of the queue, {@code 1} to the tail
+     * @return the missions whose position or priority changed, empty if nothing was moved
+     */
+    @NonNull
+    static List<DownloadMission> move(@NonNull List<DownloadMission> missions,
+                                      @NonNull DownloadMission mission, int offset) {
+        int index = missions.indexOf(mission);
+        int target = index + Integer.signum(offset);
+        if (index < 0 || offset == 0 || target < 0 || target >= missions.size()) {
+            return Collections.emptyList();
+        }
+
+        // the mission takes the place of its neighbour, the positions are handed out again
+        long[] positions = new long[missions.size()];
+        for (int i = 0; i < positions.length; i++) positions[i] = missions.get(i).queuePosition;
+        Arrays.sort(positions);
+
+        mission.priority = missions.get(target).priority;
+        missions.remove(index);
+        missions.add(target, mission);
+
+        ArrayList<DownloadMission> changed = new ArrayList<>();
+        changed.add(mission);
+
+        for (int i = 0; i < positions.length; i++) {
+            DownloadMission item = missions.get(i);
+            if (item.queuePosition == positions[i]) continue;
+
+            item.queuePosition = positions[i];
+            if (item != mission) changed.add(item);
+        }
+
+        return changed;
+    }
+}
@@ -53,6 +53,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.disposables.CompositeDisposable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
@@ -86,6 +87,9 @@ import static us.shandian.giga.get.DownloadMission.ERROR_SSL_EXCEPTION;
 import static us.shandian.giga.get.DownloadMission.ERROR_TIMEOUT;
 import static us.shandian.giga.get.DownloadMission.ERROR_UNKNOWN_EXCEPTION;
 import static us.shandian.giga.get.DownloadMission.ERROR_UNKNOWN_HOST;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_HIGH;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_LOW;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_NORMAL;
 
 public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callback {
     private static final SparseArray<String> ALGORITHMS = new SparseArray<>();
@@ -95,6 +99,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
     private static final String UNDEFINED_ETA = "--:--";
 
     private static final int HASH_NOTIFICATION_ID = 123790;
+    private static final int FINISHED_PREFETCH = 10;
 
     static {
         ALGORITHMS.put(R.id.md5, "MD5");
@@ -117,6 +122,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
     private final View mView;
     private final ArrayList<Mission> mHidden;
     private Snackbar mSnackbar;
+    private boolean mLoadingFinished = false;
 
     private final Runnable rUpdater = this::updater;
     private final Runnable rDelete = this::deleteFinishedDownloads;
@@ -220,6 +226,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             h.status.setText("100%");
             h.progress.setProgress(1.0f);
             h.size.setText(Utility.formatBytes(item.mission.length));
+
+            // the finished missions are loaded page by page
+            if (pos >= getItemCount() - FINISHED_PREFETCH) mDownloadManager.loadMoreFinishedMissions();
         }
     }
 
@@ -442,6 +451,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         }
 
         switch (msg.what) {
+            case DownloadManagerService.MESSAGE_LOADED:
+                applyChanges();
+                return true;
             case DownloadManagerService.MESSAGE_ERROR:
             case DownloadManagerService.MESSAGE_FINISHED:
             case DownloadManagerService.MESSAGE_DELETED:
@@ -587,36 +599,57 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
 
     public void clearFinishedDownloads(boolean delete) {
         if (delete && mIterator.hasFinishedMissions() && mHidden.isEmpty()) {
-            for (int i = 0; i < mIterator.getOldListSize(); i++) {
-                FinishedMission mission = mIterator.getItem(i).mission instanceof FinishedMission ? (FinishedMission) mIterator.getItem(i).mission : null;
-                if (mission != null) {
-                    mIterator.hide(mission);
-                    mHidden.add(mission);
-                }
-            }
-            applyChanges();
-
-            String msg = String.format(mContext.getString(R.string.deleted_downloads), mHidden.size());
-            mSnackbar = Snackbar.make(mView, msg, Snackbar.LENGTH_INDEFINITE);
-            mSnackbar.setAction(R.string.undo, s -> {
-                Iterator<Mission> i = mHidden.iterator();
-                while (i.hasNext()) {
-                    mIterator.unHide(i.next());
-                    i.remove();
-                }
-                applyChanges();
-                mHandler.removeCallbacks(rDelete);
-            });
-            mSnackbar.setActionTextColor(Color.YELLOW);
-            mSnackbar.show();
-
-            mHandler.postDelayed(rDelete, 5000);
+            if (mLoadingFinished) return;
+            mLoadingFinished = true;
+
+            // hide the ones not loaded yet too, these are read from the database in background
+            compositeDisposable.add(
+                    Completable.fromAction(mDownloadManager::loadAllFinishedMissions)
+                            .subscribeOn(Schedulers.io())
+                            .observeOn(AndroidSchedulers.mainThread())
+                            .subscribe(this::hideFinishedDownloads, throwable -> {
+                                mLoadingFinished = false;
+                                Log.e(TAG, "Failed to load the finished downloads", throwable);
+                            })
+            );
         } else if (!delete) {
             mDownloadManager.forgetFinishedDownloads();
             applyChanges();
         }
     }
 
+    private void hideFinishedDownloads() {
+        mLoadingFinished = false;
+        if (!mHidden.isEmpty()) return;
+
+        applyChanges();
+
+        for (int i = 0; i < mIterator.getOldListSize(); i++) {
+            FinishedMission mission = mIterator.getItem(i).mission instanceof FinishedMission ? (FinishedMission) mIterator.getItem(i).mission : null;
+            if (mission != null) {
+                mIterator.hide(mission);
+                mHidden.add(mission);
+            }
+        }
+        applyChanges();
+
+        String msg = String.format(mContext.getString(R.string.deleted_downloads), mHidden.size());
+        mSnackbar = Snackbar.make(mView, msg, Snackbar.LENGTH_INDEFINITE);
+        mSnackbar.setAction(R.string.undo, s -> {
+            Iterator<Mission> i = mHidden.iterator();
+            while (i.hasNext()) {
+                mIterator.unHide(i.next());
+                i.remove();
+            }
+            applyChanges();
+            mHandler.removeCallbacks(rDelete);
+        });
+        mSnackbar.setActionTextColor(Color.YELLOW);
+        mSnackbar.show();
+
+        mHandler.postDelayed(rDelete, 5000);
+    }
+
     private void deleteFinishedDownloads() {
         if (mSnackbar != null) mSnackbar.dismiss();
 
@@ -669,6 +702,18 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                 case R.id.cancel:
                     mission.psContinue(false);
                     return false;
+                case R.id.move_up:
+                case R.id.move_down:
+                    if (mDownloadManager.moveMission(mission, id == R.id.move_up ? -1 : 1))
+                        applyChanges();
+                    return true;
+                case R.id.priority_high:
+                case R.id.priority_normal:
+                case R.id.priority_low:
+                    int priority = id == R.id.priority_high ? PRIORITY_HIGH : (id == R.id.priority_low ? PRIORITY_LOW : PRIORITY_NORMAL);
+                    mDownloadManager.setMissionPriority(mission, priority);
+                    applyChanges();
+                    return true;
             }
         }
 
@@ -859,6 +904,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         MenuItem delete;
         MenuItem source;
         MenuItem checksum;
+        MenuItem moveUp;
+        MenuItem moveDown;
+        MenuItem priority;
 
         long lastTimestamp = -1;
         double lastDone;
@@ -894,6 +942,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             delete = menu.findItem(R.id.delete);
             source = menu.findItem(R.id.source);
             checksum = menu.findItem(R.id.checksum);
+            moveUp = menu.findItem(R.id.move_up);
+            moveDown = menu.findItem(R.id.move_down);
+            priority = menu.findItem(R.id.priority);
 
             itemView.setHapticFeedbackEnabled(true);
 
@@ -920,6 +971,9 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             delete.setVisible(false);
             source.setVisible(false);
             checksum.setVisible(false);
+            moveUp.setVisible(false);
+            moveDown.setVisible(false);
+            priority.setVisible(false);
 
             DownloadMission mission = item.mission instanceof DownloadMission ? (DownloadMission) item.mission : null;
 
@@ -953,6 +1007,20 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                         start.setVisible(flag);
                         queue.setVisible(flag);
                     }
+
+                    // the order of the queue
+                    moveUp.setVisible(mDownloadManager.canMoveMission(mission, -1));
+                    moveDown.setVisible(mDownloadManager.canMoveMission(mission, 1));
+                    priority.setVisible(true);
+
+                    int checked;
+                    if (mission.priority > PRIORITY_NORMAL)
+                        checked = R.id.priority_high;
+                    else if (mission.priority < PRIORITY_NORMAL)
+                        checked = R.id.priority_low;
+                    else
+                        checked = R.id.priority_normal;
+                    priority.getSubMenu().findItem(checked).setChecked(true);
                 }
             } else {
                 open.setVisible(true);
@@ -298,7 +298,7 @@ public class MissionsFragment extends Fragment {
             return;
         }
 
-        if (unsafeMissionTarget == null || result.getData() == null) {
+        if (unsafeMissionTarget == null || result.getData() == null || mBinder == null) {
             return;
         }
 
@@ -309,7 +309,8 @@ public class MissionsFragment extends Fragment {
             }
 
             String tag = unsafeMissionTarget.storage.getTag();
-            unsafeMissionTarget.storage = new StoredFileHelper(mContext, null, fileUri, tag);
+            mBinder.getDownloadManager().setMissionStorage(unsafeMissionTarget,
+                    new StoredFileHelper(mContext, null, fileUri, tag));
             mAdapter.recoverMission(unsafeMissionTarget);
         } catch (IOException e) {
             Toast.makeText(mContext, R.string.general_error, Toast.LENGTH_LONG).show();
@@ -0,0 +1,63 @@
+package us.shandian.giga.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter for many concurrent writers. Every thread adds to its own cell, the cells
+ * are summed when the value is read. Similar to {@code java.util.concurrent.atomic.LongAdder}
+ * which is not available before API 24.
+ */
+public class StripedCounter {
+    private static final int MAX_STRIPES = 64;
+
+    /**
+     * Distance between the used cells, keeps every cell in its own cache line (64 bytes)
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedCounter(int concurrency) {
+        int stripes = 1;
+        while (stripes < concurrency * 2 && stripes < MAX_STRIPES) stripes <<= 1;
+
+        cells = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    private int index() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mask) * PADDING;
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    /**
+     * Sums all cells, concurrent additions may or may not be included
+     *
+     * @return the current value
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) sum += cells.get(i);
+        return sum;
+    }
+
+    /**
+     * Sets the counter value, must not be called while other threads are adding
+     *
+     * @param value the new value
+     */
+    public void reset(long value) {
+        for (int i = 0; i < cells.length(); i += PADDING) cells.set(i, 0);
+        cells.set(0, value);
+    }
+}
@@ -4,26 +4,18 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.os.Build;
-import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.ColorInt;
 import androidx.annotation.DrawableRes;
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import org.schabi.newpipe.R;
 import org.schabi.newpipe.streams.io.SharpStream;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -66,32 +58,6 @@ public class Utility {
         }
     }
 
-    public static void writeToFile(@NonNull File file, @NonNull Serializable serializable) {
-
-        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
-            objectOutputStream.writeObject(serializable);
-        } catch (Exception e) {
-            //nothing to do
-        }
-        //nothing to do
-    }
-
-    @Nullable
-    @SuppressWarnings("unchecked")
-    public static <T> T readFromFile(File file) {
-        T object;
-
-        try (ObjectInputStream objectInputStream =
-                     new ObjectInputStream(new FileInputStream(file))) {
-            object = (T) objectInputStream.readObject();
-        } catch (Exception e) {
-            Log.e("Utility", "Failed to deserialize the object", e);
-            object = null;
-        }
-
-        return object;
-    }
-
     @Nullable
     public static String getFileExt(String url) {
         int index;
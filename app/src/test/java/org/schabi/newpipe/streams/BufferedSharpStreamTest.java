@@ -0,0 +1,218 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.BufferedSharpStream;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferedSharpStreamTest {
+    private static final int CONTENT_SIZE = 100 * 1000;
+    private static final int OPERATIONS = 20000;
+
+    private static byte[] createContent(final int size) {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, the buffered stream returns the data
+     * read ahead without waiting for the rest.
+     *
+     * @param stream the stream
+     * @param count  the amount of bytes to read
+     * @return the bytes read
+     * @throws IOException if an I/O error occurs
+     */
+    private static byte[] readFully(final SharpStream stream, final int count)
+            throws IOException {
+        final byte[] buffer = new byte[count];
+        int offset = 0;
+        while (offset < count) {
+            final int read = stream.read(buffer, offset, count - offset);
+            if (read < 1) {
+                break;
+            }
+            offset += read;
+        }
+        return Arrays.copyOf(buffer, offset);
+    }
+
+    private static long skipFully(final SharpStream stream, final long amount)
+            throws IOException {
+        long skipped = 0;
+        while (skipped < amount) {
+            final long res = stream.skip(amount - skipped);
+            if (res < 1) {
+                break;
+            }
+            skipped += res;
+        }
+        return skipped;
+    }
+
+    /**
+     * Runs the same random operations over a memory stream and over a buffered one, every result
+     * and the final content must be the same.
+     *
+     * @param bufferSize  the size of the buffers
+     * @param bufferCount the amount of buffers
+     * @param seed        the seed of the operations
+     */
+    private static void runRandomOperations(final int bufferSize, final int bufferCount,
+                                            final long seed) throws IOException {
+        final byte[] content = createContent(CONTENT_SIZE);
+        final MemorySharpStream expected = new MemorySharpStream(content.clone());
+        final MemorySharpStream storage = new MemorySharpStream(content.clone());
+        final BufferedSharpStream actual = new BufferedSharpStream(storage, bufferSize,
+                bufferCount);
+        final Random random = new Random(seed);
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            final String operation = "operation " + i;
+            final int count = random.nextInt(bufferSize * 3) + 1;
+
+            switch (random.nextInt(20)) {
+                case 0:
+                    final long offset = random.nextInt((int) expected.length() + 1);
+                    expected.seek(offset);
+                    actual.seek(offset);
+                    break;
+                case 1:
+                    expected.rewind();
+                    actual.rewind();
+                    break;
+                case 2:
+                    assertEquals(operation, skipFully(expected, count),
+                            skipFully(actual, count));
+                    break;
+                case 3:
+                case 4:
+                    final byte[] data = createContent(count);
+                    expected.write(data);
+                    actual.write(data);
+                    break;
+                case 5:
+                    actual.flush();
+                    assertEquals(operation, expected.length(), storage.length());
+                    break;
+                case 6:
+                    assertEquals(operation, expected.available(), actual.available());
+                    assertEquals(operation, expected.length(), actual.length());
+                    break;
+                case 7:
+                    assertEquals(operation, expected.read(), actual.read());
+                    break;
+                case 8:
+                    final MemorySharpStream target = new MemorySharpStream();
+                    final long transferred = actual.transferTo(count, target);
+                    assertArrayEquals(operation, readFully(expected, (int) transferred),
+                            target.toByteArray());
+                    break;
+                default:
+                    assertArrayEquals(operation, readFully(expected, count),
+                            readFully(actual, count));
+                    break;
+            }
+        }
+
+        actual.flush();
+        actual.close();
+        assertTrue(storage.isClosed());
+        assertArrayEquals(expected.toByteArray(), storage.toByteArray());
+    }
+
+    @Test
+    public void randomOperations() throws IOException {
+        runRandomOperations(37, 2, 1);
+        runRandomOperations(1000, 3, 2);
+        runRandomOperations(4096, 8, 3);
+    }
+
+    @Test
+    public void sequentialRead() throws IOException {
+        final byte[] content = createContent(CONTENT_SIZE);
+        final BufferedSharpStream stream = new BufferedSharpStream(
+                new ThrottledSharpStream(content, 10, 1000), 4096, 4);
+
+        assertEquals(CONTENT_SIZE, stream.available());
+        assertArrayEquals(content, readFully(stream, CONTENT_SIZE + 1));
+        assertEquals(0, stream.available());
+        assertEquals(-1, stream.read());
+        stream.close();
+    }
+
+    @Test
+    public void readErrorIsThrownAtItsPosition() throws IOException {
+        final byte[] content = createContent(CONTENT_SIZE);
+        final BufferedSharpStream stream = new BufferedSharpStream(
+                new ThrottledSharpStream(content, 10, 1000).failAt(5000), 1000, 4);
+
+        // the data read before the error is returned first
+        assertArrayEquals(Arrays.copyOf(content, 5000), readFully(stream, 5000));
+        try {
+            stream.read();
+            fail("the read error was not thrown");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("simulated storage error"));
+        }
+        stream.close();
+    }
+
+    @Test
+    public void writeErrorIsThrownByTheNextOperations() throws IOException {
+        final ThrottledSharpStream storage = new ThrottledSharpStream(new byte[0], 10, 1000)
+                .failWritesAt(5000);
+        final BufferedSharpStream stream = new BufferedSharpStream(storage, 1000, 4);
+        final byte[] data = createContent(100);
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                stream.write(data);
+            }
+            stream.flush();
+            fail("the write error was not thrown");
+        } catch (final IOException e) {
+            assertTrue(e.getCause().getMessage().startsWith("simulated storage error"));
+        }
+
+        // the written data is incomplete, the stream can not be used anymore
+        try {
+            stream.seek(0);
+            fail("the write error was not thrown again");
+        } catch (final IOException e) {
+            assertTrue(e.getCause().getMessage().startsWith("simulated storage error"));
+        }
+
+        stream.close();
+        assertEquals(5000, storage.length());
+    }
+
+    @Test
+    public void writesAreQueued() throws IOException {
+        final byte[] content = createContent(CONTENT_SIZE);
+        final ThrottledSharpStream storage = new ThrottledSharpStream(new byte[0], 10, 1000);
+        final BufferedSharpStream stream = new BufferedSharpStream(storage, 4096, 4);
+
+        for (int i = 0; i < CONTENT_SIZE; i += 100) {
+            stream.write(content, i, 100);
+        }
+        // at most the buffers are waiting to be written
+        assertTrue(storage.length() >= CONTENT_SIZE - 4 * 4096);
+
+        stream.flush();
+        assertEquals(CONTENT_SIZE, storage.length());
+
+        stream.rewind();
+        assertArrayEquals(content, readFully(stream, CONTENT_SIZE));
+        stream.close();
+    }
+}
@@ -0,0 +1,109 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DataReaderTest {
+
+    /**
+     * A stream returning at most {@code chunk} bytes per read, like a file still being written.
+     *
+     * @param content the stream content
+     * @param chunk   the maximum amount of bytes per read
+     * @return the stream
+     */
+    private static MemorySharpStream chunked(final byte[] content, final int chunk) {
+        return new MemorySharpStream(content) {
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count) {
+                return super.read(buffer, offset, Math.min(chunk, count));
+            }
+        };
+    }
+
+    private static byte[] primitives() {
+        return ByteBuffer.allocate(22)
+                .putInt(0x80000001)
+                .putShort((short) 0xFFFE)
+                .putLong(0x8000000180000001L)
+                .putInt(0xFFFFFFFF)
+                .putInt(0x7FFFFFFF)
+                .array();
+    }
+
+    private static void readPrimitives(final DataReader reader) throws IOException {
+        assertEquals(0x80000001, reader.readInt());
+        assertEquals((short) 0xFFFE, reader.readShort());
+        assertEquals(0x8000000180000001L, reader.readLong());
+        assertEquals(0xFFFFFFFFL, reader.readUnsignedInt());
+        assertEquals(0x7FFFFFFF, reader.readInt());
+        assertEquals(22, reader.position());
+    }
+
+    @Test
+    public void readPrimitivesFromTheBuffer() throws IOException {
+        readPrimitives(new DataReader(new MemorySharpStream(primitives())));
+    }
+
+    @Test
+    public void readPrimitivesSplitBetweenReads() throws IOException {
+        for (int chunk = 1; chunk < 8; chunk++) {
+            readPrimitives(new DataReader(chunked(primitives(), chunk)));
+        }
+    }
+
+    @Test
+    public void readInts() throws IOException {
+        final int[] expected = new int[100_000];
+        final ByteBuffer buffer = ByteBuffer.allocate(expected.length * 4 + 2);
+        buffer.putShort((short) 1);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = i * 0x01010101;
+            buffer.putInt(expected[i]);
+        }
+
+        // the odd offset makes some integers to be split between two buffer fills
+        final DataReader reader = new DataReader(chunked(buffer.array(), 1000));
+        assertEquals(1, reader.readShort());
+
+        final int[] actual = new int[expected.length];
+        reader.readInts(actual, 0, actual.length);
+
+        assertArrayEquals(expected, actual);
+        assertEquals(buffer.capacity(), reader.position());
+    }
+
+    @Test
+    public void truncatedStream() throws IOException {
+        final DataReader reader = new DataReader(new MemorySharpStream(new byte[]{1, 2, 3}));
+
+        try {
+            reader.readInt();
+            fail("the read must fail");
+        } catch (final EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void viewIsNotAffectedByPrimitives() throws IOException {
+        final DataReader reader = new DataReader(new MemorySharpStream(primitives()));
+
+        final InputStream view = reader.getView(6);
+        assertEquals(0x80000001, reader.readInt());
+        assertEquals(6, view.available());
+
+        final byte[] buffer = new byte[6];
+        assertEquals(6, view.read(buffer));
+        assertEquals(-1, view.read());
+        assertEquals(10, reader.position());
+    }
+}
@@ -0,0 +1,193 @@
+package org.schabi.newpipe.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds synthetic DASH (fragmented MP4) files with a single track, like the streams served by
+ * YouTube. Every fragment has a {@code moof} box with a {@code trun} sample table and a
+ * {@code mdat} box with the samples.
+ */
+final class FragmentedMp4Builder {
+    static final int TIMESCALE = 48000;
+    static final int SAMPLE_DURATION = 1024;
+
+    private final boolean video;
+    private final int trackId;
+    private int fragments = 1;
+    private int samplesPerFragment = 1;
+    private int sampleSize = 4;
+    private int firstSampleSize = -1;
+
+    FragmentedMp4Builder(final boolean video, final int trackId) {
+        this.video = video;
+        this.trackId = trackId;
+    }
+
+    FragmentedMp4Builder fragments(final int count, final int samples) {
+        fragments = count;
+        samplesPerFragment = samples;
+        return this;
+    }
+
+    FragmentedMp4Builder sampleSize(final int size) {
+        sampleSize = size;
+        return this;
+    }
+
+    /**
+     * Sets a different sample size for the first fragment, like a stream starting with a
+     * keyframe much larger than the rest of the samples.
+     *
+     * @param size the size of the samples of the first fragment
+     * @return this builder
+     */
+    FragmentedMp4Builder firstSampleSize(final int size) {
+        firstSampleSize = size;
+        return this;
+    }
+
+    int getSampleCount() {
+        return fragments * samplesPerFragment;
+    }
+
+    /**
+     * Gets the size of a sample, the sizes change to avoid constant sample tables.
+     *
+     * @param sample the sample index
+     * @return the size in bytes
+     */
+    int getSampleSize(final int sample) {
+        if (firstSampleSize > 0 && sample < samplesPerFragment) {
+            return firstSampleSize + sample % 7;
+        }
+        return sampleSize + sample % 7;
+    }
+
+    static byte getSampleByte(final int sample, final int offset) {
+        return (byte) (sample * 31 + offset);
+    }
+
+    byte[] build() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(ftyp(), 0, 24);
+        final byte[] moov = moov();
+        out.write(moov, 0, moov.length);
+
+        int sample = 0;
+        for (int i = 0; i < fragments; i++) {
+            final byte[] fragment = fragment(i, sample);
+            out.write(fragment, 0, fragment.length);
+            sample += samplesPerFragment;
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", ByteBuffer.allocate(16)
+                .put(type("dash")).putInt(0).put(type("iso6")).put(type("mp41")).array());
+    }
+
+    private byte[] moov() {
+        final ByteBuffer mvhd = ByteBuffer.allocate(100);
+        mvhd.putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0);
+        mvhd.position(96);
+        mvhd.putInt(trackId + 1);
+
+        final ByteBuffer tkhd = ByteBuffer.allocate(84);
+        tkhd.putInt(0x3).putInt(0).putInt(0).putInt(trackId).putInt(0).putInt(0);
+        tkhd.position(32);
+        tkhd.putShort((short) 0).putShort((short) 0).putShort((short) (video ? 0 : 0x100));
+        tkhd.position(40);
+        tkhd.putInt(0x10000).putInt(0).putInt(0).putInt(0).putInt(0x10000).putInt(0).putInt(0)
+                .putInt(0).putInt(0x40000000);
+        tkhd.putInt(video ? 1280 << 16 : 0).putInt(video ? 720 << 16 : 0);
+
+        final byte[] mdhd = ByteBuffer.allocate(24)
+                .putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putInt(0x55C40000)
+                .array();
+
+        final ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(0).putInt(0).put(type(video ? "vide" : "soun"));
+
+        final byte[] mhd = video ? box("vmhd", new byte[]{0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0})
+                : box("smhd", new byte[8]);
+        final byte[] dinf = box("dinf", box("dref", concat(new byte[]{0, 0, 0, 0, 0, 0, 0, 1},
+                box("url ", new byte[]{0, 0, 0, 1}))));
+        final byte[] stsd = box("stsd", concat(new byte[]{0, 0, 0, 0, 0, 0, 0, 1},
+                box(video ? "avc1" : "mp4a", new byte[28])));
+        final byte[] stbl = box("stbl", concat(stsd, box("stts", new byte[8]),
+                box("stsc", new byte[8]), box("stsz", new byte[12]), box("stco", new byte[8])));
+
+        final byte[] minf = box("minf", concat(mhd, dinf, stbl));
+        final byte[] mdia = box("mdia", concat(box("mdhd", mdhd), box("hdlr", hdlr.array()),
+                minf));
+        final byte[] trak = box("trak", concat(box("tkhd", tkhd.array()), mdia));
+
+        final byte[] trex = ByteBuffer.allocate(24)
+                .putInt(0).putInt(trackId).putInt(1).putInt(0).putInt(0).putInt(0).array();
+
+        return box("moov", concat(box("mvhd", mvhd.array()), trak,
+                box("mvex", box("trex", trex))));
+    }
+
+    private byte[] fragment(final int index, final int firstSample) {
+        final int tableSize = samplesPerFragment * 8;
+
+        final byte[] mfhd = ByteBuffer.allocate(8).putInt(0).putInt(index + 1).array();
+        final byte[] tfhd = ByteBuffer.allocate(8).putInt(0x020000).putInt(trackId).array();
+        final byte[] tfdt = ByteBuffer.allocate(12)
+                .putInt(0x01000000).putLong((long) firstSample * SAMPLE_DURATION).array();
+
+        // version 0, flags: data offset, sample duration and sample size
+        final ByteBuffer trun = ByteBuffer.allocate(12 + tableSize);
+        trun.putInt(0x000301).putInt(samplesPerFragment).putInt(0);
+
+        int dataSize = 0;
+        for (int i = 0; i < samplesPerFragment; i++) {
+            final int size = getSampleSize(firstSample + i);
+            trun.putInt(SAMPLE_DURATION).putInt(size);
+            dataSize += size;
+        }
+
+        final byte[] traf = box("traf", concat(box("tfhd", tfhd), box("tfdt", tfdt),
+                box("trun", trun.array())));
+        final byte[] moof = box("moof", concat(box("mfhd", mfhd), traf));
+
+        // the data offset is relative to the moof box, points to the first sample in the mdat
+        final int dataOffsetPosition = moof.length - trun.capacity() + 8;
+        ByteBuffer.wrap(moof).putInt(dataOffsetPosition, moof.length + 8);
+
+        final byte[] mdat = new byte[dataSize];
+        int offset = 0;
+        for (int i = 0; i < samplesPerFragment; i++) {
+            final int sample = firstSample + i;
+            final int size = getSampleSize(sample);
+            for (int j = 0; j < size; j++) {
+                mdat[offset++] = getSampleByte(sample, j);
+            }
+        }
+
+        return concat(moof, box("mdat", mdat));
+    }
+
+    private static byte[] type(final String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] box(final String name, final byte[] payload) {
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(8 + payload.length).put(type(name)).put(payload).array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+package org.schabi.newpipe.streams;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Seekable in-memory stream, used to feed and collect the muxers output in the tests.
+ */
+class MemorySharpStream extends SharpStream {
+    private byte[] data;
+    private int length;
+    private int position;
+    private boolean closed;
+
+    MemorySharpStream() {
+        this(new byte[0]);
+    }
+
+    MemorySharpStream(final byte[] content) {
+        data = content;
+        length = content.length;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    @Override
+    public int read() {
+        return position < length ? data[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] buffer) {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count) {
+        if (position >= length) {
+            return -1;
+        }
+
+        final int amount = Math.min(count, length - position);
+        System.arraycopy(data, position, buffer, offset, amount);
+        position += amount;
+        return amount;
+    }
+
+    @Override
+    public long skip(final long amount) {
+        final int skip = (int) Math.min(amount, length - position);
+        position += skip;
+        return skip;
+    }
+
+    @Override
+    public long available() {
+        return length - position;
+    }
+
+    @Override
+    public void rewind() {
+        position = 0;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean canRewind() {
+        return true;
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeek() {
+        return true;
+    }
+
+    @Override
+    public boolean canSetLength() {
+        return true;
+    }
+
+    @Override
+    public void write(final byte value) {
+        write(new byte[]{value}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer) {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int count) {
+        ensureCapacity(position + count);
+        System.arraycopy(buffer, offset, data, position, count);
+        position += count;
+        length = Math.max(length, position);
+    }
+
+    @Override
+    public void setLength(final long newLength) {
+        ensureCapacity((int) newLength);
+        if (newLength < length) {
+            Arrays.fill(data, (int) newLength, length, (byte) 0);
+        }
+        length = (int) newLength;
+        position = Math.min(position, length);
+    }
+
+    @Override
+    public void seek(final long offset) throws IOException {
+        if (offset < 0 || offset > length) {
+            throw new IOException("offset outside of the stream: " + offset);
+        }
+        position = (int) offset;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+}
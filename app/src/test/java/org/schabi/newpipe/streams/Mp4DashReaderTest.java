@@ -0,0 +1,149 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashChunk;
+import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashSample;
+import org.schabi.newpipe.streams.Mp4DashReader.TrackKind;
+import org.schabi.newpipe.streams.Mp4DashReader.TrunEntry;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4DashReaderTest {
+    private static final int BENCHMARK_SAMPLES = 1_000_000;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * Reads the sample tables of the whole file.
+     *
+     * @param file the file
+     * @return the amount of samples
+     */
+    private static int readSampleTables(final byte[] file) throws IOException {
+        final Mp4DashReader reader = new Mp4DashReader(new MemorySharpStream(file));
+        reader.parse();
+        reader.selectTrack(0);
+
+        int samples = 0;
+        Mp4DashChunk chunk;
+        while ((chunk = reader.getNextChunk(true)) != null) {
+            while (chunk.getNextSampleInfo() != null) {
+                samples++;
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void readSamples() throws IOException {
+        final FragmentedMp4Builder builder = new FragmentedMp4Builder(false, 1)
+                .fragments(10, 50).sampleSize(100);
+        final Mp4DashReader reader = new Mp4DashReader(new MemorySharpStream(builder.build()));
+
+        reader.parse();
+        assertEquals(1, reader.getAvailableTracks().length);
+        assertEquals(TrackKind.Audio, reader.selectTrack(0).kind);
+        assertEquals(FragmentedMp4Builder.TIMESCALE,
+                reader.getAvailableTracks()[0].trak.mdia.mdhdTimeScale);
+
+        int sample = 0;
+        Mp4DashChunk chunk;
+        while ((chunk = reader.getNextChunk(false)) != null) {
+            assertEquals(50 * FragmentedMp4Builder.SAMPLE_DURATION,
+                    chunk.moof.traf.trun.chunkDuration);
+
+            Mp4DashSample data;
+            while ((data = chunk.getNextSample()) != null) {
+                final byte[] expected = new byte[builder.getSampleSize(sample)];
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = FragmentedMp4Builder.getSampleByte(sample, i);
+                }
+
+                assertEquals(FragmentedMp4Builder.SAMPLE_DURATION, data.info.sampleDuration);
+                assertArrayEquals(expected, data.data);
+                sample++;
+            }
+        }
+
+        assertEquals(builder.getSampleCount(), sample);
+        assertNull(reader.getNextChunk(true));
+    }
+
+    @Test
+    public void sampleTableColumns() throws IOException {
+        final Mp4DashReader reader = new Mp4DashReader(new MemorySharpStream(
+                new FragmentedMp4Builder(true, 2).fragments(1, 3).build()));
+        reader.parse();
+        reader.selectTrack(0);
+
+        final Mp4DashChunk chunk = reader.getNextChunk(true);
+        assertEquals(1, chunk.moof.traf.trun.getColumn(0x0200));
+        assertEquals(-1, chunk.moof.traf.trun.getColumn(0x0400));
+
+        final TrunEntry entry = chunk.getNextSampleInfo();
+        assertEquals(FragmentedMp4Builder.SAMPLE_DURATION, entry.sampleDuration);
+        assertEquals(4, entry.sampleSize);
+        assertTrue(entry.isKeyframe);
+    }
+
+    @Test
+    public void sampleTableBenchmark() throws IOException {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+
+        final FragmentedMp4Builder builder = new FragmentedMp4Builder(true, 1)
+                .fragments(BENCHMARK_SAMPLES / 500, 500).sampleSize(1);
+        final byte[] file = builder.build();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            assertEquals(BENCHMARK_SAMPLES, readSampleTables(file));
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            readSampleTables(file);
+            final long time = System.nanoTime() - start;
+
+            best = Math.min(best, time);
+            total += time;
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d samples (%.1f MiB): avg %.1f ms, best %.1f ms, %.1f ns/sample, "
+                        + "%.1f bytes allocated/sample",
+                BENCHMARK_SAMPLES, file.length / (1024.0 * 1024.0), total / 1e6 / ITERATIONS,
+                best / 1e6, best / (double) BENCHMARK_SAMPLES,
+                allocatedBytes(file) / (double) BENCHMARK_SAMPLES));
+    }
+
+    /**
+     * Measures the memory allocated by the parsing, only available on HotSpot.
+     *
+     * @param file the file
+     * @return the allocated bytes or {@code -1} if not available
+     */
+    private static long allocatedBytes(final byte[] file) throws IOException {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+        final long threadId = Thread.currentThread().getId();
+
+        final long start = hotspot.getThreadAllocatedBytes(threadId);
+        readSampleTables(file);
+        return hotspot.getThreadAllocatedBytes(threadId) - start;
+    }
+}
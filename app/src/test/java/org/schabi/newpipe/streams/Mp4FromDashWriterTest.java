@@ -0,0 +1,673 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashChunk;
+import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashSample;
+import org.schabi.newpipe.streams.io.BufferedSharpStream;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import us.shandian.giga.io.ChunkFileInputStream;
+import us.shandian.giga.io.CircularFileWriter;
+import us.shandian.giga.io.FileStream;
+import us.shandian.giga.io.MappedFileStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4FromDashWriterTest {
+    private static final int VIDEO_SAMPLE = 24 * 1024;
+    private static final int AUDIO_SAMPLE = 400;
+
+    private final FragmentedMp4Builder videoBuilder = new FragmentedMp4Builder(true, 1)
+            .fragments(40, 60).sampleSize(VIDEO_SAMPLE);
+    private final FragmentedMp4Builder audioBuilder = new FragmentedMp4Builder(false, 1)
+            .fragments(60, 100).sampleSize(AUDIO_SAMPLE);
+    private final byte[] video = videoBuilder.build();
+    private final byte[] audio = audioBuilder.build();
+
+    private File file;
+    private File temp;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("mp4", ".bin");
+        temp = File.createTempFile("mp4", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+    }
+
+    private static void mux(final SharpStream output, final SharpStream... sources)
+            throws IOException {
+        mux(false, output, sources);
+    }
+
+    private static void mux(final boolean singlePass, final SharpStream output,
+                            final SharpStream... sources) throws IOException {
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+        muxer.setSinglePass(singlePass);
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        muxer.build(output);
+    }
+
+    /**
+     * Copies the sample data through the read buffer, the streams are not backed by files.
+     *
+     * @return the muxed file
+     */
+    private byte[] muxInMemory() throws IOException {
+        final MemorySharpStream output = new MemorySharpStream();
+        mux(output, new MemorySharpStream(video), new MemorySharpStream(audio));
+        return output.toByteArray();
+    }
+
+    /**
+     * Gets the content of the top-level box, the moov box can not be compared because it contains
+     * the creation time.
+     *
+     * @param mp4  the file
+     * @param type the box type
+     * @return the box content, without the header
+     */
+    private static byte[] getBox(final byte[] mp4, final String type) {
+        final ByteBuffer buffer = ByteBuffer.wrap(mp4);
+
+        while (buffer.remaining() >= 8) {
+            final int size = buffer.getInt();
+            final byte[] name = new byte[4];
+            buffer.get(name);
+
+            if (type.equals(new String(name))) {
+                return Arrays.copyOfRange(mp4, buffer.position(), buffer.position() + size - 8);
+            }
+            buffer.position(buffer.position() + size - 8);
+        }
+
+        throw new AssertionError("missing " + type + " box");
+    }
+
+    /**
+     * Gets the top-level box types, in order.
+     *
+     * @param mp4 the file
+     * @return the box types
+     */
+    private static List<String> getBoxTypes(final byte[] mp4) {
+        final List<String> types = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(mp4);
+
+        while (buffer.remaining() >= 8) {
+            final long size = buffer.getInt() & 0xFFFFFFFFL;
+            final byte[] name = new byte[4];
+            buffer.get(name);
+            types.add(new String(name));
+
+            buffer.position((int) (buffer.position() + (size == 1 ? buffer.getLong() - 8 : size)
+                    - 8));
+        }
+
+        return types;
+    }
+
+    /**
+     * Gets the content of a sample table of every track, the tables are inside of
+     * moov/trak/mdia/minf/stbl.
+     *
+     * @param mp4  the file
+     * @param type the table type
+     * @return the table content of every track, without the header
+     */
+    private static List<ByteBuffer> getTables(final byte[] mp4, final String type) {
+        final List<ByteBuffer> tables = new ArrayList<>();
+        findTables(ByteBuffer.wrap(getBox(mp4, "moov")), type, tables);
+        return tables;
+    }
+
+    private static void findTables(final ByteBuffer buffer, final String type,
+                                   final List<ByteBuffer> tables) {
+        while (buffer.remaining() >= 8) {
+            final int start = buffer.position();
+            final int size = buffer.getInt();
+            final byte[] name = new byte[4];
+            buffer.get(name);
+
+            final ByteBuffer content = ByteBuffer.wrap(buffer.array(),
+                    buffer.arrayOffset() + start + 8, size - 8).slice();
+            final String boxType = new String(name);
+
+            if (boxType.equals(type)) {
+                tables.add(content);
+            } else if (Arrays.asList("trak", "mdia", "minf", "stbl").contains(boxType)) {
+                findTables(content, type, tables);
+            }
+
+            buffer.position(start + size);
+        }
+    }
+
+    /**
+     * Reads every sample of the track using the stsz, stsc and stco tables, and checks the
+     * content.
+     *
+     * @param mp4     the file
+     * @param track   the track index
+     * @param builder the builder of the source
+     */
+    private static void assertSamples(final byte[] mp4, final int track,
+                                      final FragmentedMp4Builder builder) {
+        final ByteBuffer stsz = getTables(mp4, "stsz").get(track);
+        final ByteBuffer stsc = getTables(mp4, "stsc").get(track);
+        final List<ByteBuffer> stco = getTables(mp4, "stco");
+        final boolean is64 = stco.isEmpty();
+        final ByteBuffer chunks = is64 ? getTables(mp4, "co64").get(track) : stco.get(track);
+
+        final int defaultSize = stsz.getInt(4);
+        final int sampleCount = stsz.getInt(8);
+        final int chunkCount = chunks.getInt(4);
+        final int stscCount = stsc.getInt(4);
+        assertEquals(builder.getSampleCount(), sampleCount);
+
+        int sample = 0;
+        int stscEntry = 0;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (stscEntry + 1 < stscCount && stsc.getInt(8 + (stscEntry + 1) * 12) == chunk + 1) {
+                stscEntry++;
+            }
+            final int samplesPerChunk = stsc.getInt(8 + stscEntry * 12 + 4);
+            long offset = is64 ? chunks.getLong(8 + chunk * 8) : chunks.getInt(8 + chunk * 4);
+
+            for (int i = 0; i < samplesPerChunk; i++, sample++) {
+                final int size = defaultSize > 0 ? defaultSize : stsz.getInt(12 + sample * 4);
+                assertEquals(builder.getSampleSize(sample), size);
+
+                for (int j = 0; j < size; j++) {
+                    assertEquals(FragmentedMp4Builder.getSampleByte(sample, j),
+                            mp4[(int) offset++]);
+                }
+            }
+        }
+
+        assertEquals(sampleCount, sample);
+    }
+
+    /**
+     * Reads every sample of the track with the DASH reader, the output of the fragmented mode is
+     * read like the sources.
+     *
+     * @param mp4     the file
+     * @param track   the track index
+     * @param builder the builder of the source
+     */
+    private static void assertFragmentedSamples(final byte[] mp4, final int track,
+                                                final FragmentedMp4Builder builder)
+            throws IOException {
+        final Mp4DashReader reader = new Mp4DashReader(new MemorySharpStream(mp4));
+        reader.parse();
+        reader.selectTrack(track);
+
+        int sample = 0;
+        Mp4DashChunk chunk;
+        while ((chunk = reader.getNextChunk(false)) != null) {
+            assertEquals((long) sample * FragmentedMp4Builder.SAMPLE_DURATION,
+                    chunk.moof.traf.tfdt);
+
+            Mp4DashSample data;
+            while ((data = chunk.getNextSample()) != null) {
+                final byte[] expected = new byte[builder.getSampleSize(sample)];
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = FragmentedMp4Builder.getSampleByte(sample, i);
+                }
+
+                assertEquals(FragmentedMp4Builder.SAMPLE_DURATION, data.info.sampleDuration);
+                assertTrue(data.info.isKeyframe);
+                assertArrayEquals(expected, data.data);
+                sample++;
+            }
+        }
+
+        assertEquals(builder.getSampleCount(), sample);
+    }
+
+    private static void assertSameMux(final byte[] expected, final byte[] actual) {
+        assertEquals(expected.length, actual.length);
+        assertArrayEquals(getBox(expected, "ftyp"), getBox(actual, "ftyp"));
+        assertEquals(getBox(expected, "moov").length, getBox(actual, "moov").length);
+        assertArrayEquals(getBox(expected, "mdat"), getBox(actual, "mdat"));
+    }
+
+    /**
+     * Limits the output to the data already read, like the post-processing does.
+     *
+     * @param sources the sources, in the same file
+     * @return the offset checker
+     */
+    private static CircularFileWriter.OffsetChecker createChecker(
+            final ChunkFileInputStream[] sources) {
+        return () -> {
+            for (final ChunkFileInputStream source : sources) {
+                if (source.isClosed() || source.getUnreadLength() < 1) {
+                    continue;
+                }
+                return source.getUnreadPointer();
+            }
+            return -1;
+        };
+    }
+
+    private static byte[] readFile(final File file, final long length) throws IOException {
+        final byte[] content = new byte[(int) length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(content);
+        }
+        return content;
+    }
+
+    @Test
+    public void transferBetweenFiles() throws IOException {
+        final File[] inputs = {
+                File.createTempFile("mp4", ".bin"), File.createTempFile("mp4", ".bin")
+        };
+        try {
+            try (FileOutputStream out = new FileOutputStream(inputs[0])) {
+                out.write(video);
+            }
+            try (FileOutputStream out = new FileOutputStream(inputs[1])) {
+                out.write(audio);
+            }
+
+            final FileStream output = new FileStream(file);
+            final long length;
+            try {
+                mux(output, new FileStream(inputs[0]), new FileStream(inputs[1]));
+                length = output.length();
+            } finally {
+                output.close();
+            }
+
+            assertSameMux(muxInMemory(), readFile(file, length));
+        } finally {
+            for (final File input : inputs) {
+                assertTrue(input.delete());
+            }
+        }
+    }
+
+    /**
+     * Muxes over the downloaded tracks, like the post-processing does. The output is written in
+     * the same file and the data must go to the auxiliary file while there is no space ahead.
+     */
+    @Test
+    public void transferInPlace() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(video);
+            out.write(audio);
+        }
+
+        final ChunkFileInputStream[] sources = {
+                new ChunkFileInputStream(new FileStream(file), 0, video.length, null),
+                new ChunkFileInputStream(new FileStream(file), video.length,
+                        video.length + audio.length, null)
+        };
+
+        final long length;
+        try (CircularFileWriter output = new CircularFileWriter(new FileStream(file), temp,
+                createChecker(sources))) {
+            mux(output, sources);
+            length = output.finalizeFile();
+        } finally {
+            for (final SharpStream source : sources) {
+                source.close();
+            }
+        }
+
+        assertSameMux(muxInMemory(), readFile(file, length));
+    }
+
+    /**
+     * Muxes over the downloaded tracks reading them ahead, like the post-processing does. The
+     * offset checker sees the position of the reads ahead, the data between the muxer position
+     * and the read ahead is already in memory.
+     */
+    @Test
+    public void transferInPlaceReadingAhead() throws IOException {
+        for (final boolean singlePass : new boolean[]{false, true}) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(video);
+                out.write(audio);
+            }
+
+            final ChunkFileInputStream[] sources = {
+                    new ChunkFileInputStream(new FileStream(file), 0, video.length, null),
+                    new ChunkFileInputStream(new FileStream(file), video.length,
+                            video.length + audio.length, null)
+            };
+            final SharpStream[] readers = {
+                    new BufferedSharpStream(sources[0], 4096, 4),
+                    new BufferedSharpStream(sources[1], 4096, 4)
+            };
+
+            final long length;
+            try (CircularFileWriter output = new CircularFileWriter(new FileStream(file), temp,
+                    createChecker(sources))) {
+                mux(singlePass, output, readers);
+                length = output.finalizeFile();
+            } finally {
+                for (final SharpStream reader : readers) {
+                    reader.close();
+                }
+            }
+
+            final byte[] mp4 = readFile(file, length);
+            assertSamples(mp4, 0, videoBuilder);
+            assertSamples(mp4, 1, audioBuilder);
+        }
+    }
+
+    @Test
+    public void fragmentedWritesTheSamplesInOrder() throws IOException {
+        final MemorySharpStream output = new MemorySharpStream() {
+            @Override
+            public void seek(final long offset) {
+                throw new AssertionError("the output was sought");
+            }
+
+            @Override
+            public void rewind() {
+                throw new AssertionError("the output was rewound");
+            }
+        };
+
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(new MemorySharpStream(video),
+                new MemorySharpStream(audio));
+        muxer.setFragmented(true);
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        muxer.build(output);
+
+        final byte[] mp4 = output.toByteArray();
+        final List<String> types = getBoxTypes(mp4);
+        assertEquals(Arrays.asList("ftyp", "moov"), types.subList(0, 2));
+        assertEquals("mfra", types.get(types.size() - 1));
+
+        // one moof and mdat pair per source fragment
+        final int fragments = (types.size() - 3) / 2;
+        assertEquals(40 + 60, fragments);
+        for (int i = 0; i < fragments; i++) {
+            assertEquals("moof", types.get(2 + i * 2));
+            assertEquals("mdat", types.get(3 + i * 2));
+        }
+
+        // the sample tables are empty
+        for (final ByteBuffer stsz : getTables(mp4, "stsz")) {
+            assertEquals(0, stsz.getInt(8));
+        }
+
+        assertFragmentedSamples(mp4, 0, videoBuilder);
+        assertFragmentedSamples(mp4, 1, audioBuilder);
+    }
+
+    @Test
+    public void fragmentedWritesTheRandomAccessIndex() throws IOException {
+        final MemorySharpStream output = new MemorySharpStream();
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(new MemorySharpStream(video),
+                new MemorySharpStream(audio));
+        muxer.setFragmented(true);
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        muxer.build(output);
+
+        final byte[] mp4 = output.toByteArray();
+        final ByteBuffer mfra = ByteBuffer.wrap(getBox(mp4, "mfra"));
+
+        // the mfro box is at the end and has the size of the mfra box
+        assertEquals(mfra.capacity() + 8, ByteBuffer.wrap(mp4).getInt(mp4.length - 4));
+
+        final int[] fragments = {40, 60};
+        final int[] samplesPerFragment = {60, 100};
+
+        for (int track = 0; track < fragments.length; track++) {
+            final int start = mfra.position();
+            final int size = mfra.getInt();
+            assertEquals(0x74667261, mfra.getInt()); // tfra
+            mfra.getInt(); // version and flags
+            assertEquals(track + 1, mfra.getInt());
+            assertEquals(0x03, mfra.getInt());
+            assertEquals(fragments[track], mfra.getInt());
+
+            for (int i = 0; i < fragments[track]; i++) {
+                assertEquals((long) i * samplesPerFragment[track]
+                        * FragmentedMp4Builder.SAMPLE_DURATION, mfra.getLong());
+
+                final int moofOffset = (int) mfra.getLong();
+                assertEquals(0x6D6F6F66, ByteBuffer.wrap(mp4).getInt(moofOffset + 4)); // moof
+                // the tfhd box has the track id
+                assertEquals(track + 1, ByteBuffer.wrap(mp4).getInt(moofOffset + 44));
+
+                assertEquals(1, mfra.get());
+                assertEquals(1, mfra.get());
+                assertEquals(1, mfra.getInt()); // the first sample is a keyframe
+            }
+
+            assertEquals(start + size, mfra.position());
+        }
+    }
+
+    @Test
+    public void singlePassWritesTheSameTables() throws IOException {
+        final MemorySharpStream twoPass = new MemorySharpStream();
+        final MemorySharpStream singlePass = new MemorySharpStream();
+        mux(false, twoPass, new MemorySharpStream(video), new MemorySharpStream(audio));
+        mux(true, singlePass, new MemorySharpStream(video), new MemorySharpStream(audio));
+
+        final byte[] expected = twoPass.toByteArray();
+        final byte[] actual = singlePass.toByteArray();
+
+        // the moov fits in the reserved space
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), getBoxTypes(actual));
+
+        for (final String table : new String[]{"stts", "stss", "ctts", "stsc", "stsz"}) {
+            final List<ByteBuffer> expectedTables = getTables(expected, table);
+            final List<ByteBuffer> actualTables = getTables(actual, table);
+            assertEquals(table, expectedTables.size(), actualTables.size());
+            for (int i = 0; i < expectedTables.size(); i++) {
+                assertEquals(table, expectedTables.get(i), actualTables.get(i));
+            }
+        }
+
+        for (final byte[] mp4 : new byte[][]{expected, actual}) {
+            assertSamples(mp4, 0, videoBuilder);
+            assertSamples(mp4, 1, audioBuilder);
+        }
+    }
+
+    @Test
+    public void singlePassWritesTheMoovAtTheEnd() throws IOException {
+        // the first fragment makes the estimated amount of samples too small
+        final FragmentedMp4Builder builder = new FragmentedMp4Builder(true, 1)
+                .fragments(40, 60).sampleSize(VIDEO_SAMPLE / 64).firstSampleSize(VIDEO_SAMPLE * 4);
+
+        final FragmentedMp4Builder shortAudio = new FragmentedMp4Builder(false, 1)
+                .fragments(2, 100).sampleSize(AUDIO_SAMPLE);
+
+        final MemorySharpStream output = new MemorySharpStream();
+        mux(true, output, new MemorySharpStream(builder.build()),
+                new MemorySharpStream(shortAudio.build()));
+
+        final byte[] mp4 = output.toByteArray();
+        assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), getBoxTypes(mp4));
+        assertSamples(mp4, 0, builder);
+        assertSamples(mp4, 1, shortAudio);
+    }
+
+    @Test
+    public void singlePassInPlace() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(video);
+            out.write(audio);
+        }
+
+        final ChunkFileInputStream[] sources = {
+                new ChunkFileInputStream(new FileStream(file), 0, video.length, null),
+                new ChunkFileInputStream(new FileStream(file), video.length,
+                        video.length + audio.length, null)
+        };
+
+        final long length;
+        try (CircularFileWriter output = new CircularFileWriter(new FileStream(file), temp,
+                createChecker(sources))) {
+            mux(true, output, sources);
+            length = output.finalizeFile();
+        } finally {
+            for (final SharpStream source : sources) {
+                source.close();
+            }
+        }
+
+        final byte[] mp4 = readFile(file, length);
+        assertSamples(mp4, 0, videoBuilder);
+        assertSamples(mp4, 1, audioBuilder);
+    }
+
+    /**
+     * Muxes a single track over itself reading it from the mapping, like the post-processing of
+     * the audio-only downloads. The output lags the input (the moof boxes are dropped), the muxer
+     * writes over the bytes of the last mapped view while the reader still decodes them.
+     */
+    @Test
+    public void singleTrackInPlaceFromMapping() throws IOException {
+        for (final boolean singlePass : new boolean[]{false, true}) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(audio);
+            }
+
+            final ChunkFileInputStream[] sources = {
+                    new ChunkFileInputStream(MappedFileStream.map(new FileStream(file)), 0,
+                            audio.length, null)
+            };
+            assertTrue(sources[0].canReadMapped());
+
+            final long length;
+            try (CircularFileWriter output = new CircularFileWriter(new FileStream(file), temp,
+                    createChecker(sources))) {
+                final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+                muxer.setSinglePass(singlePass);
+                muxer.parseSources();
+                muxer.selectTracks(0);
+                muxer.build(output);
+                length = output.finalizeFile();
+            } finally {
+                sources[0].close();
+            }
+
+            assertSamples(readFile(file, length), 0, audioBuilder);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the sources. The two-pass mode reads the moof boxes first, but
+     * the read buffer also reads the samples of the small fragments (the audio track).
+     */
+    @Test
+    public void singlePassReadsTheSourcesOnce() throws IOException {
+        final byte[][] inputs = {video, audio};
+        final long[][] read = new long[2][inputs.length];
+
+        for (int mode = 0; mode < 2; mode++) {
+            final SharpStream[] sources = new SharpStream[inputs.length];
+            for (int i = 0; i < sources.length; i++) {
+                final long[] counter = read[mode];
+                final int index = i;
+                sources[i] = new MemorySharpStream(inputs[i]) {
+                    @Override
+                    public int read(final byte[] buffer, final int offset, final int count) {
+                        final int res = super.read(buffer, offset, count);
+                        counter[index] += Math.max(res, 0);
+                        return res;
+                    }
+                };
+            }
+            mux(mode == 1, new MemorySharpStream(), sources);
+        }
+
+        for (int i = 0; i < inputs.length; i++) {
+            assertEquals(inputs[i].length, read[1][i]);
+            assertTrue(read[0][i] > read[1][i]);
+        }
+        assertTrue(read[0][1] * 2 >= read[1][1] * 3);
+    }
+
+    /**
+     * Muxes the slow sources with the given mode and prefetch depth.
+     *
+     * @param mode          {@code 0} two-pass, {@code 1} single-pass or {@code 2} fragmented
+     * @param prefetchDepth the prefetch depth
+     * @param failAt        the amount of bytes of the video source read before failing, or
+     *                      {@code -1}
+     * @return the muxed file
+     */
+    private byte[] muxSlowSources(final int mode, final int prefetchDepth, final long failAt)
+            throws IOException {
+        final MemorySharpStream output = new MemorySharpStream();
+        final Mp4FromDashWriter muxer = new Mp4FromDashWriter(
+                new ThrottledSharpStream(video, 20, 1000).failAt(failAt),
+                new ThrottledSharpStream(audio, 20, 1000));
+        muxer.setSinglePass(mode == 1);
+        muxer.setFragmented(mode == 2);
+        muxer.setPrefetchDepth(prefetchDepth);
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        muxer.build(output);
+        muxer.close();
+        return output.toByteArray();
+    }
+
+    @Test
+    public void prefetchWritesTheSameFile() throws IOException {
+        for (int mode = 0; mode < 3; mode++) {
+            final byte[] expected = muxSlowSources(mode, 0, -1);
+
+            for (final int depth : new int[]{1, 3}) {
+                final byte[] mp4 = muxSlowSources(mode, depth, -1);
+                assertSameMux(expected, mp4);
+
+                if (mode == 2) {
+                    assertFragmentedSamples(mp4, 0, videoBuilder);
+                    assertFragmentedSamples(mp4, 1, audioBuilder);
+                } else {
+                    assertSamples(mp4, 0, videoBuilder);
+                    assertSamples(mp4, 1, audioBuilder);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void prefetchThrowsTheReadErrors() throws IOException {
+        for (int mode = 1; mode < 3; mode++) {
+            try {
+                muxSlowSources(mode, 2, video.length / 2);
+                fail("the read error was not thrown, mode " + mode);
+            } catch (final IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("simulated storage error"));
+            }
+        }
+    }
+}
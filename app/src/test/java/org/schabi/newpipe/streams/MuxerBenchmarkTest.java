@@ -0,0 +1,498 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.BufferedSharpStream;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import us.shandian.giga.io.FileStream;
+import us.shandian.giga.io.MappedFileStream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs every muxer over synthetic inputs, kept in memory and in files, and reports the
+ * throughput, the CPU time (user and kernel), the allocated memory (also per MiB of input) and
+ * the peak heap usage.
+ * The input size (in MiB) is set with the {@code newpipe.benchmark.mib} system property, for
+ * example:
+ * {@code ./gradlew testDebugUnitTest --tests "*MuxerBenchmarkTest" -Dnewpipe.benchmark=true
+ * -Dnewpipe.benchmark.mib=256}
+ */
+public class MuxerBenchmarkTest {
+    private static final int MIB = 1024 * 1024;
+    private static final int SIZE = Integer.getInteger("newpipe.benchmark.mib", 8) * MIB;
+    // the auto-generated captions of long videos are several megabytes
+    private static final int LARGE_TTML_SIZE = 20 * 1000 * 1000;
+
+    // simulated SD card, every read waits the latency plus the transfer time
+    private static final int SLOW_LATENCY_MICROS = 200;
+    private static final double SLOW_MIB_PER_SECOND = 40;
+    // the blocks of the WebM files are smaller than the fragments of the MP4 files
+    private static final int[] MP4_PREFETCH_DEPTHS = {0, 1, 4, 16};
+    private static final int[] WEBM_PREFETCH_DEPTHS = {0, 16, 64, 256};
+    // the reads and writes of the copy, smaller than the buffers of the buffered streams
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    // the sources are also read from mapped files, the output is always a file stream
+    private static final String[] STORAGES = {"memory", "file", "mapped"};
+
+    private static final List<String> REPORT = new ArrayList<>();
+    private static final List<String> SLOW_REPORT = new ArrayList<>();
+    private static final List<String> BUFFERED_REPORT = new ArrayList<>();
+
+    private static byte[] mp4Video;
+    private static byte[] mp4Audio;
+    private static byte[] webmVideo;
+    private static byte[] webmAudio;
+    private static byte[] ttml;
+    private static byte[] largeTtml;
+
+    private final List<File> files = new ArrayList<>();
+
+    private interface Muxer {
+        void run(SharpStream[] sources, SharpStream output) throws IOException;
+    }
+
+    private interface PrefetchMuxer {
+        void run(SharpStream[] sources, SharpStream output, int prefetchDepth)
+                throws IOException;
+    }
+
+    @BeforeClass
+    public static void createInputs() {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+
+        // 90% video, 10% audio
+        final int videoSample = 16 * 1024;
+        final int audioSample = 512;
+        final int videoFragments = (int) Math.ceil(SIZE * 0.9 / videoSample / 120);
+        final int audioFragments = (int) Math.ceil(SIZE * 0.1 / audioSample / 250);
+
+        mp4Video = new FragmentedMp4Builder(true, 1)
+                .fragments(videoFragments, 120).sampleSize(videoSample).build();
+        mp4Audio = new FragmentedMp4Builder(false, 1)
+                .fragments(audioFragments, 250).sampleSize(audioSample).build();
+
+        webmVideo = new WebMBuilder(true)
+                .clusters(videoFragments, 120).blockSize(videoSample).build();
+        webmAudio = new WebMBuilder(false)
+                .clusters(audioFragments, 250).blockSize(audioSample).build();
+
+        // near 90 bytes per paragraph
+        ttml = TtmlBuilder.build(SIZE / 8 / 90);
+        largeTtml = TtmlBuilder.build(LARGE_TTML_SIZE / 100);
+    }
+
+    @AfterClass
+    public static void printReport() {
+        if (REPORT.isEmpty() && SLOW_REPORT.isEmpty() && BUFFERED_REPORT.isEmpty()) {
+            return;
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%-18s %-7s %9s %9s %7s %7s %11s %11s %13s %10s", "muxer", "storage", "input",
+                "MiB/s", "cpu s", "user s", "alloc MiB", "alloc MiB/s", "alloc KiB/MiB",
+                "peak heap"));
+        for (final String line : REPORT) {
+            System.out.println(line);
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%nslow storage, %.0f MiB/s and %d us per operation%n%-18s %6s %9s %9s %8s",
+                SLOW_MIB_PER_SECOND, SLOW_LATENCY_MICROS, "muxer", "depth", "seconds",
+                "MiB/s", "speedup"));
+        for (final String line : SLOW_REPORT) {
+            System.out.println(line);
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%nbuffered slow storage (%d x %d KiB buffers)%n%-18s %8s %9s %9s %8s",
+                BufferedSharpStream.DEFAULT_BUFFER_COUNT,
+                BufferedSharpStream.DEFAULT_BUFFER_SIZE / 1024, "muxer", "streams", "seconds",
+                "MiB/s", "speedup"));
+        for (final String line : BUFFERED_REPORT) {
+            System.out.println(line);
+        }
+    }
+
+    private File createFile(final byte[] content) throws IOException {
+        final File file = File.createTempFile("muxer", ".bin");
+        files.add(file);
+
+        if (content != null) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(content);
+            }
+        }
+        return file;
+    }
+
+    private void deleteFiles() {
+        for (final File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        files.clear();
+    }
+
+    private void benchmark(final String name, final Muxer muxer, final byte[]... inputs)
+            throws IOException {
+        long inputLength = 0;
+        for (final byte[] input : inputs) {
+            inputLength += input.length;
+        }
+
+        for (final String storage : STORAGES) {
+            final SharpStream[] sources = new SharpStream[inputs.length];
+            final SharpStream output;
+
+            if (!storage.equals("memory")) {
+                for (int i = 0; i < inputs.length; i++) {
+                    sources[i] = new FileStream(createFile(inputs[i]));
+                    if (storage.equals("mapped")) {
+                        sources[i] = MappedFileStream.map(sources[i]);
+                    }
+                }
+                output = new FileStream(createFile(null));
+            } else {
+                for (int i = 0; i < inputs.length; i++) {
+                    sources[i] = new MemorySharpStream(inputs[i]);
+                }
+                output = new MemorySharpStream();
+            }
+
+            try {
+                final Measure measure = new Measure();
+                muxer.run(sources, output);
+                measure.stop();
+
+                assertTrue(name + " wrote nothing", output.length() > 0);
+
+                REPORT.add(String.format(Locale.ENGLISH,
+                        "%-18s %-7s %5.1f MiB %9.1f %7.2f %7.2f %11.1f %11.1f %13.1f %6.1f MiB",
+                        name, storage, inputLength / (double) MIB,
+                        inputLength / (double) MIB / (measure.nanos / 1e9),
+                        measure.cpuNanos / 1e9, measure.userNanos / 1e9,
+                        measure.allocated / (double) MIB,
+                        measure.allocated / (double) MIB / (measure.nanos / 1e9),
+                        measure.allocated / 1024.0 / (inputLength / (double) MIB),
+                        measure.peakHeap / (double) MIB));
+            } finally {
+                for (final SharpStream source : sources) {
+                    source.close();
+                }
+                output.close();
+                deleteFiles();
+            }
+        }
+    }
+
+    /**
+     * Runs the muxer over throttled sources and output with every prefetch depth, the prefetch
+     * threads read the sources while the writer thread writes.
+     *
+     * @param name   the muxer name
+     * @param depths the prefetch depths, the first one must be {@code 0}
+     * @param muxer  the muxer
+     * @param inputs the content of the sources
+     */
+    private void benchmarkSlowStorage(final String name, final int[] depths,
+                                      final PrefetchMuxer muxer, final byte[]... inputs)
+            throws IOException {
+        long inputLength = 0;
+        for (final byte[] input : inputs) {
+            inputLength += input.length;
+        }
+
+        long withoutPrefetch = 0;
+        for (final int depth : depths) {
+            final SharpStream[] sources = new SharpStream[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                sources[i] = new ThrottledSharpStream(inputs[i], SLOW_LATENCY_MICROS,
+                        SLOW_MIB_PER_SECOND);
+            }
+
+            final long start = System.nanoTime();
+            muxer.run(sources, new ThrottledSharpStream(new byte[0], SLOW_LATENCY_MICROS,
+                    SLOW_MIB_PER_SECOND), depth);
+            final long nanos = System.nanoTime() - start;
+
+            if (depth == 0) {
+                withoutPrefetch = nanos;
+            }
+
+            SLOW_REPORT.add(String.format(Locale.ENGLISH, "%-18s %6d %9.2f %9.1f %7.2fx",
+                    name, depth, nanos / 1e9, inputLength / (double) MIB / (nanos / 1e9),
+                    withoutPrefetch / (double) nanos));
+        }
+    }
+
+    /**
+     * Runs the muxer over throttled sources and output, first used directly and then wrapped in
+     * {@link BufferedSharpStream}, which read ahead and write behind in background threads.
+     *
+     * @param name   the muxer name
+     * @param muxer  the muxer
+     * @param inputs the content of the sources
+     */
+    private void benchmarkBuffered(final String name, final Muxer muxer,
+                                   final byte[]... inputs) throws IOException {
+        long inputLength = 0;
+        for (final byte[] input : inputs) {
+            inputLength += input.length;
+        }
+
+        long direct = 0;
+        for (final boolean buffered : new boolean[]{false, true}) {
+            final SharpStream[] sources = new SharpStream[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                sources[i] = new ThrottledSharpStream(inputs[i], SLOW_LATENCY_MICROS,
+                        SLOW_MIB_PER_SECOND);
+            }
+            SharpStream output = new ThrottledSharpStream(new byte[0], SLOW_LATENCY_MICROS,
+                    SLOW_MIB_PER_SECOND);
+
+            if (buffered) {
+                for (int i = 0; i < inputs.length; i++) {
+                    sources[i] = new BufferedSharpStream(sources[i]);
+                }
+                output = new BufferedSharpStream(output);
+            }
+
+            final long start = System.nanoTime();
+            muxer.run(sources, output);
+            output.flush();
+            final long nanos = System.nanoTime() - start;
+
+            assertTrue(name + " wrote nothing", output.length() > 0);
+            for (final SharpStream source : sources) {
+                source.close();
+            }
+            output.close();
+
+            if (!buffered) {
+                direct = nanos;
+            }
+
+            BUFFERED_REPORT.add(String.format(Locale.ENGLISH, "%-18s %8s %9.2f %9.1f %7.2fx",
+                    name, buffered ? "buffered" : "direct", nanos / 1e9,
+                    inputLength / (double) MIB / (nanos / 1e9), direct / (double) nanos));
+        }
+    }
+
+    @Test
+    public void mp4FromDash() throws IOException {
+        benchmark("Mp4FromDashWriter", (sources, output) -> {
+            final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+            muxer.parseSources();
+            muxer.selectTracks(0, 0);
+            muxer.build(output);
+        }, mp4Video, mp4Audio);
+    }
+
+    @Test
+    public void fragmentedMp4() throws IOException {
+        benchmark("fragmented MP4", (sources, output) -> {
+            final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+            muxer.setFragmented(true);
+            muxer.parseSources();
+            muxer.selectTracks(0, 0);
+            muxer.build(output);
+        }, mp4Video, mp4Audio);
+    }
+
+    @Test
+    public void webm() throws IOException {
+        benchmark("WebMWriter", (sources, output) -> {
+            final WebMWriter muxer = new WebMWriter(sources);
+            muxer.parseSources();
+            muxer.selectTracks(0, 0);
+            muxer.build(output);
+        }, webmVideo, webmAudio);
+    }
+
+    /**
+     * Only parses the sources, the sample data is skipped. Most of the reads are small, the
+     * primitives of the boxes and elements.
+     */
+    @Test
+    public void readers() throws IOException {
+        benchmark("Mp4DashReader", (sources, output) -> {
+            final Mp4DashReader reader = new Mp4DashReader(sources[0]);
+            reader.parse();
+            reader.selectTrack(0);
+
+            int chunks = 0;
+            while (reader.getNextChunk(true) != null) {
+                chunks++;
+            }
+            output.write(new byte[chunks]);
+        }, mp4Video);
+
+        benchmark("WebMReader", (sources, output) -> {
+            final WebMReader reader = new WebMReader(sources[0]);
+            reader.parse();
+            reader.selectTrack(0);
+
+            int blocks = 0;
+            final WebMReader.Segment segment = reader.getNextSegment();
+            WebMReader.Cluster cluster;
+            while ((cluster = segment.getNextCluster()) != null) {
+                while (cluster.getNextSimpleBlock() != null) {
+                    blocks++;
+                }
+            }
+            output.write(new byte[blocks]);
+        }, webmVideo);
+    }
+
+    @Test
+    public void slowStorage() throws IOException {
+        benchmarkSlowStorage("Mp4FromDashWriter", MP4_PREFETCH_DEPTHS,
+                (sources, output, depth) -> {
+                    final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+                    muxer.setSinglePass(true);
+                    muxer.setPrefetchDepth(depth);
+                    muxer.parseSources();
+                    muxer.selectTracks(0, 0);
+                    muxer.build(output);
+                }, mp4Video, mp4Audio);
+
+        benchmarkSlowStorage("WebMWriter", WEBM_PREFETCH_DEPTHS,
+                (sources, output, depth) -> {
+                    final WebMWriter muxer = new WebMWriter(sources);
+                    muxer.setPrefetchDepth(depth);
+                    muxer.parseSources();
+                    muxer.selectTracks(0, 0);
+                    muxer.build(output);
+                }, webmVideo, webmAudio);
+    }
+
+    @Test
+    public void bufferedSlowStorage() throws IOException {
+        benchmarkBuffered("copy", (sources, output) -> {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = sources[0].read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        }, mp4Video);
+
+        benchmarkBuffered("Mp4FromDashWriter", (sources, output) -> {
+            final Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
+            muxer.setSinglePass(true);
+            muxer.parseSources();
+            muxer.selectTracks(0, 0);
+            muxer.build(output);
+        }, mp4Video, mp4Audio);
+
+        benchmarkBuffered("WebMWriter", (sources, output) -> {
+            final WebMWriter muxer = new WebMWriter(sources);
+            muxer.parseSources();
+            muxer.selectTracks(0, 0);
+            muxer.build(output);
+        }, webmVideo, webmAudio);
+
+        // every frame is a small write
+        benchmarkBuffered("SrtFromTtmlWriter", (sources, output) ->
+                new SrtFromTtmlWriter(output, false).build(sources[0]), ttml);
+    }
+
+    @Test
+    public void oggFromWebM() throws IOException {
+        benchmark("OggFromWebMWriter", (sources, output) -> {
+            final OggFromWebMWriter demuxer = new OggFromWebMWriter(sources[0], output);
+            demuxer.parseSource();
+            demuxer.selectTrack(0);
+            demuxer.build();
+        }, webmAudio);
+    }
+
+    @Test
+    public void srtFromTtml() throws IOException {
+        benchmark("SrtFromTtmlWriter", (sources, output) ->
+                new SrtFromTtmlWriter(output, false).build(sources[0]), ttml);
+    }
+
+    @Test
+    public void largeTtml() throws IOException {
+        benchmark("SRT from 20MB TTML", (sources, output) ->
+                new SrtFromTtmlWriter(output, false).build(sources[0]), largeTtml);
+
+        benchmark("VTT from 20MB TTML", (sources, output) -> {
+            final SrtFromTtmlWriter writer = new SrtFromTtmlWriter(output, false);
+            writer.setWebVtt(true);
+            writer.build(sources[0]);
+        }, largeTtml);
+    }
+
+    /**
+     * Measures the time, the CPU time and the memory allocated by the current thread (only on
+     * HotSpot) and the peak heap usage.
+     */
+    private static final class Measure {
+        private final com.sun.management.ThreadMXBean threads;
+        private final long threadId = Thread.currentThread().getId();
+        private final long allocationStart;
+        private final long cpuStart;
+        private final long userStart;
+        private final long start;
+
+        long nanos;
+        long cpuNanos;
+        long userNanos;
+        long allocated = -1;
+        long peakHeap;
+
+        Measure() {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            threads = bean instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) bean : null;
+
+            System.gc();
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+
+            allocationStart = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId);
+            cpuStart = bean.getCurrentThreadCpuTime();
+            userStart = bean.getCurrentThreadUserTime();
+            start = System.nanoTime();
+        }
+
+        void stop() {
+            nanos = System.nanoTime() - start;
+
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            cpuNanos = bean.getCurrentThreadCpuTime() - cpuStart;
+            userNanos = bean.getCurrentThreadUserTime() - userStart;
+
+            if (threads != null) {
+                allocated = threads.getThreadAllocatedBytes(threadId) - allocationStart;
+            }
+
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+        }
+    }
+}
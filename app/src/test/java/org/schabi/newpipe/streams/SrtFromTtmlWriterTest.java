@@ -0,0 +1,114 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SrtFromTtmlWriterTest {
+    private static final String TTML = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+            + "<tt xmlns=\"http://www.w3.org/ns/ttml\">\n"
+            + "<head><p begin=\"00:00:00.000\" end=\"00:00:00.500\">not a frame</p></head>\n"
+            + "<body><div>\n"
+            + "<!-- a comment with a <p> inside -->\n"
+            + "<p begin=\"00:00:01.000\" end=\"00:00:02.500\">Fish &amp; chips &lt;3<br/>"
+            + "second \n  line</p>\n"
+            + "<p begin='00:00:03.000' end=\"00:00:04.000\"><span>nested</span>caf&#233; "
+            + "&#x263A;</p>\n"
+            + "<p begin=\"00:00:05.000\" end=\"00:00:06.000\"></p>\n"
+            + "<p begin=\"00:00:07.000\" end=\"00:00:08.000\"><![CDATA[a <raw> text]]></p>\n"
+            + "</div></body></tt>\n";
+
+    private static String convert(final byte[] ttml, final boolean ignoreEmptyFrames,
+                                  final boolean webVtt) throws IOException {
+        final MemorySharpStream output = new MemorySharpStream();
+        final SrtFromTtmlWriter writer = new SrtFromTtmlWriter(output, ignoreEmptyFrames);
+        writer.setWebVtt(webVtt);
+        writer.build(new MemorySharpStream(ttml));
+        return readAll(output);
+    }
+
+    private static String readAll(final SharpStream output) throws IOException {
+        output.rewind();
+        final byte[] result = new byte[(int) output.length()];
+        assertEquals(result.length, Math.max(0, output.read(result)));
+        return new String(result, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void srt() throws IOException {
+        assertEquals("0\r\n00:00:01,000 --> 00:00:02,500\r\nFish & chips <3\r\nsecond line\r\n\r\n"
+                        + "1\r\n00:00:03,000 --> 00:00:04,000\r\ncaf\u00E9 \u263A\r\n\r\n"
+                        + "2\r\n00:00:05,000 --> 00:00:06,000\r\n\r\n\r\n"
+                        + "3\r\n00:00:07,000 --> 00:00:08,000\r\na <raw> text\r\n\r\n",
+                convert(TTML.getBytes(StandardCharsets.UTF_8), false, false));
+    }
+
+    @Test
+    public void webVtt() throws IOException {
+        assertEquals("WEBVTT\r\n\r\n"
+                        + "00:00:01.000 --> 00:00:02.500\r\nFish &amp; chips &lt;3\r\n"
+                        + "second line\r\n\r\n"
+                        + "00:00:03.000 --> 00:00:04.000\r\ncaf\u00E9 \u263A\r\n\r\n"
+                        + "00:00:07.000 --> 00:00:08.000\r\na &lt;raw&gt; text\r\n\r\n",
+                convert(TTML.getBytes(StandardCharsets.UTF_8), true, true));
+    }
+
+    @Test
+    public void truncatedDocument() throws IOException {
+        final String ttml = "<tt><body><div><p begin=\"00:00:01.000\" end=\"00:00:02.000\">"
+                + "first</p><p begin=\"00:00:03.000\" end=\"00:00:04.000\">sec";
+
+        assertEquals("0\r\n00:00:01,000 --> 00:00:02,000\r\nfirst\r\n\r\n"
+                        + "1\r\n00:00:03,000 --> 00:00:04,000\r\nsec\r\n\r\n",
+                convert(ttml.getBytes(StandardCharsets.UTF_8), false, false));
+    }
+
+    @Test
+    public void framesAreWrittenWhileReading() throws IOException {
+        final byte[] ttml = TtmlBuilder.build(20000);
+        final MemorySharpStream output = new MemorySharpStream();
+        final long[] writtenAtHalf = {-1};
+
+        final SharpStream source = new MemorySharpStream(ttml) {
+            private long read = 0;
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count) {
+                if (writtenAtHalf[0] < 0 && read >= ttml.length / 2) {
+                    writtenAtHalf[0] = output.length();
+                }
+
+                final int amount = super.read(buffer, offset, count);
+                read += Math.max(0, amount);
+                return amount;
+            }
+        };
+
+        new SrtFromTtmlWriter(output, false).build(source);
+
+        assertTrue("nothing written at the middle of the document", writtenAtHalf[0] > 0);
+        assertTrue(output.length() > writtenAtHalf[0]);
+    }
+
+    @Test
+    public void paragraphSplitAcrossReads() throws IOException {
+        // the reads of the source return one byte, every token is split
+        final byte[] ttml = TTML.getBytes(StandardCharsets.UTF_8);
+        final MemorySharpStream output = new MemorySharpStream();
+        final SharpStream source = new MemorySharpStream(ttml) {
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count) {
+                return super.read(buffer, offset, Math.min(count, 1));
+            }
+        };
+
+        new SrtFromTtmlWriter(output, false).build(source);
+
+        assertEquals(convert(ttml, false, false), readAll(output));
+    }
+}
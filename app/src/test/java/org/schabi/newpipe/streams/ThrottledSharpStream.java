@@ -0,0 +1,184 @@
+package org.schabi.newpipe.streams;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stream that simulates a slow storage, like a SD card or a SAF provider. Every read
+ * or write waits a fixed latency plus the time needed to transfer the bytes. The reads and the
+ * writes can also fail after a given amount of bytes, to test the error propagation.
+ */
+class ThrottledSharpStream extends SharpStream {
+    private final MemorySharpStream storage;
+    private final long latencyNanos;
+    private final double nanosPerByte;
+
+    private long failAt = -1;
+    private long read = 0;
+    private long failWritesAt = -1;
+    private long written = 0;
+
+    /**
+     * Creates the stream.
+     *
+     * @param content       the stream content
+     * @param latencyMicros the time spent by every read, before transferring the bytes
+     * @param mibPerSecond  the transfer speed
+     */
+    ThrottledSharpStream(final byte[] content, final int latencyMicros,
+                         final double mibPerSecond) {
+        storage = new MemorySharpStream(content);
+        latencyNanos = latencyMicros * 1000L;
+        nanosPerByte = 1e9 / (mibPerSecond * 1024 * 1024);
+    }
+
+    /**
+     * Makes the reads fail once the given amount of bytes was read.
+     *
+     * @param bytes the amount of bytes read without errors
+     * @return this stream
+     */
+    ThrottledSharpStream failAt(final long bytes) {
+        failAt = bytes;
+        return this;
+    }
+
+    /**
+     * Makes the writes fail once the given amount of bytes was written.
+     *
+     * @param bytes the amount of bytes written without errors
+     * @return this stream
+     */
+    ThrottledSharpStream failWritesAt(final long bytes) {
+        failWritesAt = bytes;
+        return this;
+    }
+
+    private void throttleWrite(final long bytes) throws IOException {
+        if (failWritesAt >= 0 && written + bytes > failWritesAt) {
+            throw new IOException("simulated storage error at " + failWritesAt);
+        }
+        written += bytes;
+        throttle(bytes);
+    }
+
+    private void throttleRead(final long bytes) throws IOException {
+        if (failAt >= 0 && read + bytes > failAt) {
+            throw new IOException("simulated storage error at " + failAt);
+        }
+        read += bytes;
+        throttle(bytes);
+    }
+
+    private void throttle(final long bytes) {
+        final long deadline = System.nanoTime() + latencyNanos + (long) (bytes * nanosPerByte);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        throttleRead(1);
+        return storage.read();
+    }
+
+    @Override
+    public int read(final byte[] buffer) throws IOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+        throttleRead(Math.min(count, storage.available()));
+        return storage.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(final long amount) throws IOException {
+        throttle(0);
+        return storage.skip(amount);
+    }
+
+    @Override
+    public long available() {
+        return storage.available();
+    }
+
+    @Override
+    public void rewind() throws IOException {
+        storage.rewind();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return storage.isClosed();
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+    @Override
+    public boolean canRewind() {
+        return true;
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeek() {
+        return true;
+    }
+
+    @Override
+    public boolean canSetLength() {
+        return true;
+    }
+
+    @Override
+    public void write(final byte value) throws IOException {
+        throttleWrite(1);
+        storage.write(value);
+    }
+
+    @Override
+    public void write(final byte[] buffer) throws IOException {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int count)
+            throws IOException {
+        throttleWrite(count);
+        storage.write(buffer, offset, count);
+    }
+
+    @Override
+    public void seek(final long offset) throws IOException {
+        throttle(0);
+        storage.seek(offset);
+    }
+
+    @Override
+    public void setLength(final long length) {
+        storage.setLength(length);
+    }
+
+    @Override
+    public long length() {
+        return storage.length();
+    }
+}
@@ -0,0 +1,48 @@
+package org.schabi.newpipe.streams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Builds synthetic TTML subtitles, with the layout of the YouTube ones.
+ */
+final class TtmlBuilder {
+    private TtmlBuilder() {
+    }
+
+    static String timestamp(final long millis) {
+        return String.format(Locale.ENGLISH, "%02d:%02d:%02d.%03d", millis / 3600000,
+                millis / 60000 % 60, millis / 1000 % 60, millis % 1000);
+    }
+
+    static String text(final int paragraph) {
+        return "Subtitle line number " + paragraph + " & more";
+    }
+
+    /**
+     * Builds a document with the given amount of paragraphs, every paragraph has two lines.
+     *
+     * @param paragraphs amount of paragraphs
+     * @return the document
+     */
+    static byte[] build(final int paragraphs) {
+        final StringBuilder ttml = new StringBuilder(paragraphs * 100 + 512);
+
+        ttml.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n")
+                .append("<tt xml:lang=\"en\" xmlns=\"http://www.w3.org/ns/ttml\" ")
+                .append("xmlns:tts=\"http://www.w3.org/ns/ttml#styling\">\n")
+                .append("<head><styling><style xml:id=\"s1\" tts:textAlign=\"center\"/>")
+                .append("</styling></head>\n<body style=\"s1\"><div>\n");
+
+        for (int i = 0; i < paragraphs; i++) {
+            ttml.append("<p begin=\"").append(timestamp(i * 2000L))
+                    .append("\" end=\"").append(timestamp(i * 2000L + 1500))
+                    .append("\" style=\"s1\">")
+                    .append(text(i).replace("&", "&amp;"))
+                    .append("<br/>second line</p>\n");
+        }
+
+        ttml.append("</div></body></tt>\n");
+        return ttml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
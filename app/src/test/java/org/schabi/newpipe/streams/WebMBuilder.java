@@ -0,0 +1,158 @@
+package org.schabi.newpipe.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds synthetic WebM files with a single VP9 video or Opus audio track, like the streams
+ * served by YouTube. The clusters only contain simple blocks.
+ */
+final class WebMBuilder {
+    static final int BLOCK_DURATION = 20; // milliseconds
+
+    private final boolean video;
+    private int clusters = 1;
+    private int blocksPerCluster = 1;
+    private int blockSize = 4;
+
+    WebMBuilder(final boolean video) {
+        this.video = video;
+    }
+
+    WebMBuilder clusters(final int count, final int blocks) {
+        clusters = count;
+        blocksPerCluster = blocks;
+        return this;
+    }
+
+    WebMBuilder blockSize(final int size) {
+        blockSize = size;
+        return this;
+    }
+
+    int getBlockCount() {
+        return clusters * blocksPerCluster;
+    }
+
+    byte[] build() {
+        final byte[] ebml = element(0x1A45DFA3, concat(
+                uint(0x4286, 1), uint(0x42F7, 1), uint(0x42F2, 4), uint(0x42F3, 8),
+                element(0x4282, "webm".getBytes(StandardCharsets.US_ASCII)),
+                uint(0x4287, 4), uint(0x4285, 2)));
+
+        final byte[] info = element(0x1549A966, concat(uint(0x2AD7B1, 1000000),
+                element(0x4489, ByteBuffer.allocate(8)
+                        .putDouble((double) getBlockCount() * BLOCK_DURATION).array())));
+
+        final byte[] track;
+        if (video) {
+            track = concat(uint(0xD7, 1), uint(0x73C5, 1), uint(0x83, 1),
+                    element(0x86, "V_VP9".getBytes(StandardCharsets.US_ASCII)),
+                    uint(0x23E383, BLOCK_DURATION * 1000000L),
+                    element(0xE0, concat(uint(0xB0, 1280), uint(0xBA, 720))));
+        } else {
+            final byte[] opusHead = ByteBuffer.allocate(19)
+                    .put("OpusHead".getBytes(StandardCharsets.US_ASCII))
+                    .put((byte) 1).put((byte) 2).putShort((short) 0x3801)
+                    .putInt(0x80BB0000).array();
+            track = concat(uint(0xD7, 1), uint(0x73C5, 1), uint(0x83, 2),
+                    element(0x86, "A_OPUS".getBytes(StandardCharsets.US_ASCII)),
+                    element(0x63A2, opusHead), uint(0x56AA, 6500000), uint(0x56BB, 80000000),
+                    element(0xE1, concat(element(0xB5, ByteBuffer.allocate(4)
+                            .putFloat(48000f).array()), uint(0x9F, 2))));
+        }
+        final byte[] tracks = element(0x1654AE6B, element(0xAE, track));
+
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(info, 0, info.length);
+        segment.write(tracks, 0, tracks.length);
+
+        int block = 0;
+        for (int i = 0; i < clusters; i++) {
+            final ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            final byte[] timecode = uint(0xE7, (long) block * BLOCK_DURATION);
+            cluster.write(timecode, 0, timecode.length);
+
+            for (int j = 0; j < blocksPerCluster; j++, block++) {
+                final byte[] simpleBlock = element(0xA3, simpleBlock(block, j));
+                cluster.write(simpleBlock, 0, simpleBlock.length);
+            }
+
+            final byte[] bytes = element(0x1F43B675, cluster.toByteArray());
+            segment.write(bytes, 0, bytes.length);
+        }
+
+        return concat(ebml, element(0x18538067, segment.toByteArray()));
+    }
+
+    int getBlockSize(final int block) {
+        return blockSize + block % 5;
+    }
+
+    static byte getBlockByte(final int block, final int offset) {
+        return (byte) (block * 17 + offset);
+    }
+
+    private byte[] simpleBlock(final int block, final int index) {
+        final int size = getBlockSize(block);
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + size);
+
+        buffer.put((byte) 0x81); // track number 1
+        buffer.putShort((short) (index * BLOCK_DURATION));
+        buffer.put((byte) (index == 0 ? 0x80 : 0x00)); // keyframe flag
+
+        for (int i = 0; i < size; i++) {
+            buffer.put(getBlockByte(block, i));
+        }
+        return buffer.array();
+    }
+
+    private static byte[] uint(final int id, final long value) {
+        return element(id, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    /**
+     * Encodes an element, the content size is written with one byte if possible, otherwise with
+     * 8 bytes.
+     *
+     * @param id      the element id
+     * @param content the element content
+     * @return the element
+     */
+    private static byte[] element(final int id, final byte[] content) {
+        final int idLength;
+        if (id > 0xFFFFFF) {
+            idLength = 4;
+        } else if (id > 0xFFFF) {
+            idLength = 3;
+        } else if (id > 0xFF) {
+            idLength = 2;
+        } else {
+            idLength = 1;
+        }
+
+        final boolean small = content.length < 0x7F;
+        final ByteBuffer buffer = ByteBuffer.allocate(idLength + (small ? 1 : 8)
+                + content.length);
+        for (int i = idLength - 1; i >= 0; i--) {
+            buffer.put((byte) (id >>> (i * 8)));
+        }
+        if (small) {
+            buffer.put((byte) (0x80 | content.length));
+        } else {
+            buffer.putLong(0x0100000000000000L | content.length);
+        }
+        buffer.put(content);
+
+        return buffer.array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
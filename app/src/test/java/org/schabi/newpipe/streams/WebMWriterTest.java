@@ -0,0 +1,152 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.WebMReader.Cluster;
+import org.schabi.newpipe.streams.WebMReader.Segment;
+import org.schabi.newpipe.streams.WebMReader.SimpleBlock;
+import org.schabi.newpipe.streams.WebMReader.WebMTrack;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WebMWriterTest {
+    // bigger than the output buffer of the muxer
+    private static final int VIDEO_BLOCK = 70 * 1024;
+    private static final int AUDIO_BLOCK = 300;
+
+    private final WebMBuilder videoBuilder = new WebMBuilder(true)
+            .clusters(6, 30).blockSize(VIDEO_BLOCK);
+    private final WebMBuilder audioBuilder = new WebMBuilder(false)
+            .clusters(9, 50).blockSize(AUDIO_BLOCK);
+
+    private byte[] mux(final SharpStream output) throws IOException {
+        final WebMWriter muxer = new WebMWriter(new MemorySharpStream(videoBuilder.build()),
+                new MemorySharpStream(audioBuilder.build()));
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+        muxer.build(output);
+        muxer.close();
+
+        output.rewind();
+        final byte[] result = new byte[(int) output.length()];
+        int offset = 0;
+        while (offset < result.length) {
+            final int read = output.read(result, offset, result.length - offset);
+            if (read < 1) {
+                break;
+            }
+            offset += read;
+        }
+        output.close();
+
+        assertEquals(result.length, offset);
+        return result;
+    }
+
+    private static void assertBlocks(final byte[] webm, final int trackIndex,
+                                     final WebMBuilder builder) throws IOException {
+        final WebMReader reader = new WebMReader(new MemorySharpStream(webm));
+        reader.parse();
+        final WebMTrack track = reader.selectTrack(trackIndex);
+        assertEquals(trackIndex + 1, track.trackNumber);
+
+        int block = 0;
+        final Segment segment = reader.getNextSegment();
+        assertNotNull(segment);
+
+        Cluster cluster;
+        while ((cluster = segment.getNextCluster()) != null) {
+            SimpleBlock simpleBlock;
+            while ((simpleBlock = cluster.getNextSimpleBlock()) != null) {
+                final int size = builder.getBlockSize(block);
+                assertEquals("block size " + block, size, simpleBlock.dataSize);
+                assertEquals("timecode " + block, (long) block * WebMBuilder.BLOCK_DURATION,
+                        simpleBlock.absoluteTimeCodeNs / 1000000);
+
+                final byte[] expected = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    expected[i] = WebMBuilder.getBlockByte(block, i);
+                }
+                assertArrayEquals("block data " + block, expected, readAll(simpleBlock.data,
+                        size));
+                block++;
+            }
+        }
+
+        assertEquals(builder.getBlockCount(), block);
+    }
+
+    private static byte[] readAll(final InputStream stream, final int size) throws IOException {
+        final byte[] buffer = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            final int read = stream.read(buffer, offset, size - offset);
+            if (read < 1) {
+                break;
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    @Test
+    public void blocksRoundTrip() throws IOException {
+        final byte[] webm = mux(new MemorySharpStream());
+
+        assertBlocks(webm, 0, videoBuilder);
+        assertBlocks(webm, 1, audioBuilder);
+    }
+
+    @Test
+    public void sameOutputInFile() throws IOException {
+        final File file = File.createTempFile("webm", ".bin");
+        try {
+            assertArrayEquals(mux(new MemorySharpStream()), mux(new FileStream(file)));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private byte[] muxSlowSources(final int prefetchDepth, final long failAt)
+            throws IOException {
+        final WebMWriter muxer = new WebMWriter(
+                new ThrottledSharpStream(videoBuilder.build(), 20, 1000).failAt(failAt),
+                new ThrottledSharpStream(audioBuilder.build(), 20, 1000));
+        muxer.setPrefetchDepth(prefetchDepth);
+        muxer.parseSources();
+        muxer.selectTracks(0, 0);
+
+        final MemorySharpStream output = new MemorySharpStream();
+        muxer.build(output);
+        muxer.close();
+        return output.toByteArray();
+    }
+
+    @Test
+    public void prefetchWritesTheSameFile() throws IOException {
+        final byte[] expected = muxSlowSources(0, -1);
+        assertArrayEquals(expected, muxSlowSources(1, -1));
+        assertArrayEquals(expected, muxSlowSources(8, -1));
+    }
+
+    @Test
+    public void prefetchThrowsTheReadErrors() {
+        try {
+            muxSlowSources(4, videoBuilder.build().length / 2);
+            fail("the read error was not thrown");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("simulated storage error"));
+        }
+    }
+}
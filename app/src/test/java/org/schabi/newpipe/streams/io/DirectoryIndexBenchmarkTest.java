@@ -0,0 +1,92 @@
+package org.schabi.newpipe.streams.io;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a batch of files into a directory of a fake storage provider holding 10k files, and
+ * reports the directory listings, the rows read from the provider and the time spent picking
+ * the filenames. Without the index every download lists the whole directory, like
+ * {@link StoredDirectoryHelper#createUniqueFile(String, String)} did before.
+ * Run with {@code -Dnewpipe.benchmark=true}.
+ */
+public class DirectoryIndexBenchmarkTest {
+    private static final int DIRECTORY_SIZE = 10000;
+    private static final int[] BATCH_SIZES = {10, 100, 1000};
+    // simulated provider, every row read from the cursor costs this time
+    private static final int ROW_NANOS = 2000;
+
+    private static final List<String> REPORT = new ArrayList<>();
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+    }
+
+    @AfterClass
+    public static void printReport() {
+        if (REPORT.isEmpty()) {
+            return;
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d files in the directory, %d ns per row read%n%-8s %-8s %9s %11s %12s %9s",
+                DIRECTORY_SIZE, ROW_NANOS, "mode", "batch", "listings", "rows read",
+                "provider ms", "total ms"));
+        for (final String line : REPORT) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * @param indexed {@code false} to list the directory for every download
+     * @param batch   the amount of downloads, half of them with a name already in use
+     * @return the listings done
+     */
+    private static int download(final boolean indexed, final int batch) {
+        final DirectoryIndexTest.FakeDirectory directory =
+                new DirectoryIndexTest.FakeDirectory(DIRECTORY_SIZE);
+        DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) {
+            if (!indexed) {
+                index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+            }
+            assertTrue(index.load());
+
+            final int number = i % 2 == 0 ? i : DIRECTORY_SIZE + i;
+            final String name = index.reserveUniqueName("video" + number + ".mp4");
+            assertNotNull(name);
+            directory.add(name);
+            index.onCreated(name, name.toUpperCase());
+        }
+        final double totalMillis = (System.nanoTime() - start) / 1e6;
+
+        assertEquals(DIRECTORY_SIZE + batch, directory.files.size());
+        REPORT.add(String.format(Locale.ENGLISH, "%-8s %-8d %9d %11d %12.1f %9.1f",
+                indexed ? "index" : "listing", batch, directory.listings, directory.rowsRead,
+                directory.rowsRead * ROW_NANOS / 1e6, totalMillis));
+
+        return directory.listings;
+    }
+
+    @Test
+    public void batchDownload() {
+        for (final int batch : BATCH_SIZES) {
+            assertEquals(batch, download(false, batch));
+            assertEquals(1, download(true, batch));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.schabi.newpipe.streams.io;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryIndexTest {
+
+    /**
+     * Directory of a storage provider, the document id of every file is its name in uppercase.
+     */
+    static class FakeDirectory implements DirectoryIndex.Lister {
+        final HashMap<String, String> files = new HashMap<>();
+        boolean readable = true;
+        int listings = 0;
+        long rowsRead = 0;
+
+        FakeDirectory(final int count) {
+            for (int i = 0; i < count; i++) {
+                add("video" + i + ".mp4");
+            }
+        }
+
+        void add(final String name) {
+            files.put(name, name.toUpperCase());
+        }
+
+        @Nullable
+        @Override
+        public Map<String, String> list() {
+            if (!readable) {
+                return null;
+            }
+            listings++;
+            rowsRead += files.size();
+            return new HashMap<>(files);
+        }
+    }
+
+    @Test
+    public void directoryIsListedOnce() {
+        final FakeDirectory directory = new FakeDirectory(10000);
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(index.load());
+            assertEquals(i < 10000, index.contains("VIDEO" + i + ".MP4"));
+        }
+
+        assertEquals("VIDEO5.MP4", index.findDocumentId("video5.mp4"));
+        assertNull(index.findDocumentId("video10000.mp4"));
+        assertEquals(1, directory.listings);
+    }
+
+    @Test
+    public void uniqueNamesAreNumbered() {
+        final FakeDirectory directory = new FakeDirectory(0);
+        directory.add("Song.m4a");
+        directory.add("song (1).m4a");
+        directory.add("song (3).m4a");
+        directory.add("notes");
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+        assertTrue(index.load());
+
+        assertEquals("Other.m4a", index.reserveUniqueName("Other.m4a"));
+        assertEquals("Song (2).m4a", index.reserveUniqueName("Song.m4a"));
+        assertEquals("Song (4).m4a", index.reserveUniqueName("Song.m4a"));
+        assertEquals("notes (1)", index.reserveUniqueName("notes"));
+
+        // the names reserved are in use, but have no file yet
+        assertTrue(index.contains("other.m4a"));
+        assertEquals("Other (1).m4a", index.reserveUniqueName("Other.m4a"));
+        assertNull(index.findDocumentId("Other.m4a"));
+
+        index.onCreated("Other.m4a", "OTHER.M4A");
+        assertEquals("OTHER.M4A", index.findDocumentId("other.m4a"));
+    }
+
+    @Test
+    public void deletedNumbersAreReused() {
+        final FakeDirectory directory = new FakeDirectory(0);
+        directory.add("video.mp4");
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+        assertTrue(index.load());
+
+        for (int i = 1; i <= 10; i++) {
+            assertEquals("video (" + i + ").mp4", index.reserveUniqueName("video.mp4"));
+        }
+
+        index.onDeleted("video (4).mp4");
+        assertFalse(index.contains("video (4).mp4"));
+        assertEquals("video (4).mp4", index.reserveUniqueName("video.mp4"));
+        assertEquals("video (11).mp4", index.reserveUniqueName("video.mp4"));
+    }
+
+    @Test
+    public void allNumbersInUse() {
+        final FakeDirectory directory = new FakeDirectory(0);
+        directory.add("video.mp4");
+        for (int i = 1; i <= DirectoryIndex.MAX_NUMBERED_NAMES; i++) {
+            directory.add("video (" + i + ").mp4");
+        }
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+        assertTrue(index.load());
+
+        assertNull(index.reserveUniqueName("video.mp4"));
+    }
+
+    @Test
+    public void externalChangesAreSeenAfterInvalidation() {
+        final FakeDirectory directory = new FakeDirectory(10);
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+        assertTrue(index.load());
+
+        // created by another app
+        directory.add("external.mp4");
+        assertTrue(index.load());
+        assertFalse(index.contains("external.mp4"));
+
+        index.invalidate();
+        assertTrue(index.load());
+        assertTrue(index.contains("external.mp4"));
+        assertEquals(2, directory.listings);
+    }
+
+    @Test
+    public void outdatedIndexIsListedAgain() throws InterruptedException {
+        final FakeDirectory directory = new FakeDirectory(10);
+        final DirectoryIndex index = new DirectoryIndex(directory, 50);
+        assertTrue(index.load());
+
+        directory.add("external.mp4");
+        Thread.sleep(100);
+
+        assertTrue(index.load());
+        assertTrue(index.contains("external.mp4"));
+        assertEquals(2, directory.listings);
+    }
+
+    @Test
+    public void unreadableDirectory() {
+        final FakeDirectory directory = new FakeDirectory(10);
+        directory.readable = false;
+        final DirectoryIndex index = new DirectoryIndex(directory, DirectoryIndex.MAX_AGE_MILLIS);
+
+        assertFalse(index.load());
+        assertFalse(index.contains("video1.mp4"));
+        assertNull(index.reserveUniqueName("video1.mp4"));
+
+        // changes while not listed are ignored
+        index.onCreated("new.mp4", "NEW.MP4");
+        directory.readable = true;
+        assertTrue(index.load());
+        assertFalse(index.contains("new.mp4"));
+        assertTrue(index.contains("video1.mp4"));
+    }
+}
@@ -0,0 +1,348 @@
+package us.shandian.giga.get;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the download threads in a deterministic simulation: the time is given by a simulated
+ * clock and every read is served by a throttled server, which transfers the bytes of all the
+ * connections through a link of fixed speed.
+ */
+public class BandwidthSchedulerTest {
+    private static final long SECOND = 1000L * 1000L * 1000L;
+    private static final long MIB = 1024 * 1024;
+    private static final int CHUNK = DownloadMission.BUFFER_SIZE;
+
+    private SimulatedClock clock;
+    private BandwidthScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new SimulatedClock();
+        scheduler = new BandwidthScheduler(clock);
+    }
+
+    private DownloadMission createMission(final int weight) {
+        final DownloadMission mission = new DownloadMission(new String[]{"http://localhost/"},
+                null, 'v', null);
+        mission.weight = weight;
+        mission.scheduler = scheduler;
+        return mission;
+    }
+
+    /**
+     * Every thread has a read in flight which is throttled only after it returns, so the
+     * transfer can be ahead of the limit by one {@link #CHUNK} per thread.
+     */
+    private static void assertNear(final String message, final double expected,
+                                   final double actual, final int threads) {
+        assertEquals(message, expected, actual, threads * CHUNK + expected * 0.01);
+    }
+
+    private static double seconds(final double bytes, final long bytesPerSecond) {
+        return bytes * SECOND / bytesPerSecond;
+    }
+
+    @Test
+    public void unlimitedFollowsTheServer() {
+        final Simulation simulation = new Simulation(new ThrottledServer(4 * MIB));
+        final DownloadMission mission = createMission(1);
+        simulation.add(mission, 2, 8 * MIB);
+
+        simulation.run(Long.MAX_VALUE);
+
+        assertEquals(2 * SECOND, clock.now);
+        assertEquals(8 * MIB, simulation.received(mission));
+    }
+
+    @Test
+    public void globalLimitIsEnforced() {
+        scheduler.setMaxRate(MIB);
+
+        final Simulation simulation = new Simulation(new ThrottledServer(8 * MIB));
+        final DownloadMission mission = createMission(1);
+        simulation.add(mission, 4, 4 * MIB);
+
+        simulation.run(Long.MAX_VALUE);
+
+        assertEquals(4 * MIB, simulation.received(mission));
+        assertEquals("elapsed " + clock.now, 4 * SECOND, clock.now, seconds(4 * CHUNK, MIB));
+    }
+
+    @Test
+    public void weightsSplitTheBandwidth() {
+        scheduler.setMaxRate(4 * MIB);
+
+        final Simulation simulation = new Simulation(new ThrottledServer(16 * MIB));
+        final DownloadMission light = createMission(1);
+        final DownloadMission heavy = createMission(3);
+
+        // the thread count does not change the share
+        simulation.add(light, 6, 64 * MIB);
+        simulation.add(heavy, 2, 64 * MIB);
+
+        simulation.run(8 * SECOND);
+
+        assertNear("light", 8 * MIB, simulation.received(light), 6);
+        assertNear("heavy", 24 * MIB, simulation.received(heavy), 2);
+    }
+
+    @Test
+    public void finishedMissionReleasesItsShare() {
+        scheduler.setMaxRate(2 * MIB);
+
+        final Simulation simulation = new Simulation(new ThrottledServer(16 * MIB));
+        final DownloadMission small = createMission(1);
+        final DownloadMission big = createMission(1);
+        simulation.add(small, 3, 2 * MIB);
+        simulation.add(big, 3, 8 * MIB);
+
+        simulation.run(Long.MAX_VALUE);
+
+        // 1 MiB/s each until the small one finishes, then 2 MiB/s for the big one
+        final double tolerance = seconds(3 * CHUNK, MIB);
+        assertEquals("small", 2 * SECOND, simulation.finishedAt(small), tolerance);
+        assertEquals("big", 5 * SECOND, simulation.finishedAt(big), 2 * tolerance);
+    }
+
+    @Test
+    public void backOffWhilePlayerIsBuffering() {
+        scheduler.setMaxRate(4 * MIB);
+
+        final DownloadMission mission = createMission(1);
+        scheduler.register(mission);
+        assertEquals(4 * MIB, scheduler.getRate(mission));
+
+        scheduler.setPlayerBuffering(true);
+        assertTrue(scheduler.isBackingOff());
+        assertEquals((long) (4 * MIB * BandwidthScheduler.BACKOFF_FACTOR),
+                scheduler.getRate(mission));
+
+        scheduler.setPlayerBuffering(false);
+        assertFalse(scheduler.isBackingOff());
+        assertEquals(4 * MIB, scheduler.getRate(mission));
+
+        // without a global limit the downloads are also slowed down
+        scheduler.setMaxRate(BandwidthScheduler.UNLIMITED);
+        assertEquals(BandwidthScheduler.UNLIMITED, scheduler.getRate(mission));
+        scheduler.setPlayerBuffering(true);
+        assertEquals(BandwidthScheduler.BACKOFF_RATE, scheduler.getRate(mission));
+    }
+
+    @Test
+    public void backOffSlowsDownTheTransfer() {
+        final Simulation simulation = new Simulation(new ThrottledServer(8 * MIB));
+        final DownloadMission mission = createMission(1);
+        simulation.add(mission, 3, 64 * MIB);
+
+        scheduler.setPlayerBuffering(true);
+        simulation.run(4 * SECOND);
+
+        assertNear("buffering", 4 * BandwidthScheduler.BACKOFF_RATE,
+                simulation.received(mission), 3);
+
+        scheduler.setPlayerBuffering(false);
+        simulation.run(8 * SECOND);
+
+        assertNear("playing", 4 * BandwidthScheduler.BACKOFF_RATE + 32 * MIB,
+                simulation.received(mission), 3);
+    }
+
+    @Test
+    public void backOffExpires() {
+        final DownloadMission mission = createMission(1);
+        scheduler.register(mission);
+        scheduler.setPlayerBuffering(true);
+
+        clock.now += BandwidthScheduler.MAX_BACKOFF_NANOS;
+        assertFalse(scheduler.isBackingOff());
+
+        // the rate is restored with the next read
+        scheduler.reserve(mission, CHUNK);
+        assertEquals(BandwidthScheduler.UNLIMITED, scheduler.getRate(mission));
+    }
+
+    @Test
+    public void unregisteredMissionIsNotThrottled() {
+        scheduler.setMaxRate(MIB);
+
+        final DownloadMission mission = createMission(1);
+        assertEquals(0, scheduler.reserve(mission, CHUNK));
+
+        scheduler.register(mission);
+        assertEquals(CHUNK * SECOND / MIB, scheduler.reserve(mission, CHUNK), 1);
+
+        scheduler.unregister(mission);
+        assertEquals(0, scheduler.reserve(mission, CHUNK));
+    }
+
+    private static final class SimulatedClock implements BandwidthScheduler.Clock {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleep(final long nanos) {
+            now += nanos;
+        }
+    }
+
+    /**
+     * Server connected through a link of fixed speed, the requests of every connection are
+     * transferred one after another.
+     */
+    private static final class ThrottledServer {
+        private final double nanosPerByte;
+        private long busyUntil;
+
+        ThrottledServer(final long bytesPerSecond) {
+            nanosPerByte = SECOND / (double) bytesPerSecond;
+        }
+
+        /**
+         * Sends bytes to a connection.
+         *
+         * @param now   the time of the request
+         * @param bytes the amount of bytes
+         * @return the time when the last byte is received
+         */
+        long send(final long now, final int bytes) {
+            busyUntil = Math.max(now, busyUntil) + Math.round(bytes * nanosPerByte);
+            return busyUntil;
+        }
+    }
+
+    private static final class Reader {
+        final DownloadMission mission;
+        final Counter counter;
+        long readyAt;
+        int pending;
+        boolean waiting;
+
+        Reader(final DownloadMission mission, final Counter counter) {
+            this.mission = mission;
+            this.counter = counter;
+        }
+    }
+
+    private static final class Counter {
+        long length;
+        long remaining;
+        long received;
+        long finishedAt = -1;
+        int readers;
+    }
+
+    /**
+     * Runs the download threads as events ordered by time, the earliest thread reads next.
+     */
+    private final class Simulation {
+        private final ThrottledServer server;
+        private final List<Reader> readers = new ArrayList<>();
+        private final List<DownloadMission> missions = new ArrayList<>();
+        private final List<Counter> counters = new ArrayList<>();
+
+        Simulation(final ThrottledServer server) {
+            this.server = server;
+        }
+
+        void add(final DownloadMission mission, final int threads, final long length) {
+            final Counter counter = new Counter();
+            counter.length = length;
+            counter.remaining = length;
+            counter.readers = threads;
+
+            missions.add(mission);
+            counters.add(counter);
+            scheduler.register(mission);
+
+            for (int i = 0; i < threads; i++) {
+                final Reader reader = new Reader(mission, counter);
+                readers.add(reader);
+                request(reader, clock.now);
+            }
+        }
+
+        long received(final DownloadMission mission) {
+            return counters.get(missions.indexOf(mission)).received;
+        }
+
+        long finishedAt(final DownloadMission mission) {
+            return counters.get(missions.indexOf(mission)).finishedAt;
+        }
+
+        private void request(final Reader reader, final long now) {
+            final int len = (int) Math.min(CHUNK, reader.counter.remaining);
+
+            if (len < 1) {
+                // no data left for this thread
+                reader.readyAt = Long.MAX_VALUE;
+                if (--reader.counter.readers == 0) {
+                    scheduler.unregister(reader.mission);
+                }
+                return;
+            }
+
+            reader.counter.remaining -= len;
+            reader.pending = len;
+            reader.readyAt = server.send(now, len);
+        }
+
+        /**
+         * Processes the reads until all data is received or the clock reaches the given time.
+         *
+         * @param until the end of the simulation
+         */
+        void run(final long until) {
+            while (true) {
+                Reader next = null;
+                for (final Reader reader : readers) {
+                    if (next == null || reader.readyAt < next.readyAt) {
+                        next = reader;
+                    }
+                }
+
+                if (next == null || next.readyAt == Long.MAX_VALUE || next.readyAt > until) {
+                    if (until != Long.MAX_VALUE) {
+                        clock.now = until;
+                    }
+                    return;
+                }
+
+                clock.now = next.readyAt;
+
+                if (next.waiting) {
+                    // the thread was throttled, now reads again
+                    next.waiting = false;
+                    request(next, clock.now);
+                    continue;
+                }
+
+                // the read returned, the thread writes the data and asks the scheduler
+                final Counter counter = next.counter;
+                counter.received += next.pending;
+                if (counter.received == counter.length) {
+                    counter.finishedAt = clock.now;
+                }
+
+                final long wait = scheduler.reserve(next.mission, next.pending);
+                if (wait > 0) {
+                    next.waiting = true;
+                    next.readyAt = clock.now + wait;
+                } else {
+                    request(next, clock.now);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import us.shandian.giga.get.DownloadMission.Block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+
+public class BlockStealingTest {
+
+    /**
+     * Simulates a download thread writing {@code amount} bytes of the block.
+     */
+    private static long write(final DownloadMission mission, final Block block, final int amount) {
+        long start = (long) block.position * BLOCK_SIZE + block.done;
+        int left = amount;
+
+        while (left > 0) {
+            final int len = mission.claimBlock(block, start,
+                    Math.min(left, DownloadMission.BUFFER_SIZE));
+            if (len < 1) {
+                break;
+            }
+
+            start += len;
+            left -= len;
+            block.done += len;
+            mission.notifyProgress(len);
+
+            if (block.count > 1 && block.done >= BLOCK_SIZE) {
+                mission.advanceBlock(block);
+            }
+        }
+
+        return block.end - start;
+    }
+
+    @Test
+    public void lastBlockIsSplitInHalves() {
+        final DownloadMission mission = TestMissions.create(1);
+
+        final Block head = mission.acquireBlock();
+        assertNotNull(head);
+        write(mission, head, 100 * 1024);
+
+        final Block tail = mission.acquireBlock();
+        assertNotNull(tail);
+        assertTrue(tail.tail);
+
+        final long mid = 100 * 1024 + (BLOCK_SIZE - 100 * 1024) / 2;
+        assertEquals(mid, tail.done);
+        assertEquals(mid - 1, head.end);
+
+        assertTrue(write(mission, tail, BLOCK_SIZE) < 0);
+        mission.releaseBlock(tail, true);
+        assertEquals(0, mission.blocks[0]);// the head is still running
+
+        assertTrue(write(mission, head, BLOCK_SIZE) < 0);
+        mission.releaseBlock(head, true);
+
+        assertArrayEquals(new int[]{-1}, mission.blocks);
+        assertEquals(BLOCK_SIZE, mission.getDone());
+        assertNull(mission.acquireBlock());
+    }
+
+    @Test
+    public void stoppedHeadDiscardsTail() {
+        final DownloadMission mission = TestMissions.create(1);
+
+        final Block head = mission.acquireBlock();
+        assertNotNull(head);
+        write(mission, head, 128 * 1024);
+
+        final Block tail = mission.acquireBlock();
+        assertNotNull(tail);
+        write(mission, tail, BLOCK_SIZE);
+        mission.releaseBlock(tail, true);
+
+        // paused, the head is released incomplete
+        write(mission, head, 64 * 1024);
+        mission.releaseBlock(head, false);
+
+        // the block is resumed from the end of the head, the tail progress is not counted
+        assertEquals(192 * 1024, mission.blocks[0]);
+        assertEquals(192 * 1024, mission.getDone());
+
+        final Block resumed = mission.acquireBlock();
+        assertNotNull(resumed);
+        assertFalse(resumed.tail);
+        assertEquals(192 * 1024, resumed.done);
+    }
+
+    @Test
+    public void untouchedBlocksOfSpanAreStolen() {
+        final DownloadMission mission = TestMissions.create(4);
+        mission.tuner = new DownloadTuner(1, true);
+        mission.tuner.onRequest(64L * BLOCK_SIZE, 0, 1000L * 1000L * 1000L);
+
+        final Block owner = mission.acquireBlock();
+        assertNotNull(owner);
+        assertEquals(4, owner.count);
+        write(mission, owner, 1024);
+
+        final Block thief = mission.acquireBlock();
+        assertNotNull(thief);
+        assertFalse(thief.tail);
+        assertEquals(2, thief.position);
+        assertEquals(2, thief.count);
+        assertEquals(0, thief.done);
+        assertEquals(2L * BLOCK_SIZE - 1, owner.end);
+
+        // the owner can not write past the stolen blocks
+        assertTrue(write(mission, owner, 4 * BLOCK_SIZE) < 0);
+        assertEquals(2L * BLOCK_SIZE, mission.getDone());
+        mission.releaseBlock(owner, true);
+
+        write(mission, thief, BLOCK_SIZE / 2);
+        mission.releaseBlock(thief, false);
+
+        assertArrayEquals(new int[]{-1, -1, BLOCK_SIZE / 2, 0}, mission.blocks);
+    }
+
+    @Test
+    public void concurrentStealNeverOverlapsTheOwner() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            final DownloadMission mission = TestMissions.create(1);
+            final Block head = mission.acquireBlock();
+            assertNotNull(head);
+            final long[] written = {0};
+
+            // the owner reserves and commits without holding the mission lock
+            final Thread owner = new Thread(() -> {
+                long start = 0;
+                int len;
+                while ((len = mission.claimBlock(head, start, 1024)) > 0) {
+                    start += len;
+                    mission.notifyProgress(mission.commitBlock(head, start));
+                }
+                written[0] = start;
+            });
+            owner.start();
+
+            Block tail = null;
+            while (tail == null && owner.isAlive()) {
+                tail = mission.acquireBlock();
+            }
+            owner.join();
+
+            assertEquals(written[0], mission.getDone());
+            if (tail == null) {
+                assertEquals(BLOCK_SIZE, written[0]);
+            } else {
+                // the owner stopped exactly where the tail starts
+                assertEquals(head.end + 1, written[0]);
+                assertEquals(written[0], (long) tail.position * BLOCK_SIZE + tail.done);
+            }
+        }
+    }
+}
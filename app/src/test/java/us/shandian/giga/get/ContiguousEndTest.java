@@ -0,0 +1,84 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import us.shandian.giga.get.DownloadMission.Block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+
+public class ContiguousEndTest {
+    private static final long AUDIO_OFFSET = 1000;
+
+    /**
+     * A video already downloaded and an audio track of {@code blockCount} blocks in download.
+     */
+    private static DownloadMission createMission(final int blockCount) {
+        final DownloadMission mission = new DownloadMission(
+                new String[]{"http://localhost/video", "http://localhost/audio"}, null, 'v', null);
+        mission.metadata = new File("mission");
+        mission.current = 1;
+        mission.offsets[1] = AUDIO_OFFSET;
+        mission.length = (long) blockCount * BLOCK_SIZE;
+        mission.blocks = new int[blockCount];
+        mission.prepareBlocks();
+        return mission;
+    }
+
+    @Test
+    public void previousResourcesAreAvailable() {
+        final DownloadMission mission = createMission(4);
+
+        assertEquals(AUDIO_OFFSET, mission.getContiguousEnd(0));
+        assertEquals(AUDIO_OFFSET, mission.getContiguousEnd(1));
+    }
+
+    @Test
+    public void stopsAtTheFirstPendingBlock() {
+        final DownloadMission mission = createMission(4);
+
+        final Block first = mission.acquireBlock();
+        final Block second = mission.acquireBlock();
+        assertNotNull(first);
+        assertNotNull(second);
+
+        // the second block is written first, the data after the gap is not available
+        second.done = BLOCK_SIZE;
+        mission.releaseBlock(second, true);
+        assertEquals(AUDIO_OFFSET, mission.getContiguousEnd(1));
+
+        first.done = 1234;
+        assertEquals(AUDIO_OFFSET + 1234, mission.getContiguousEnd(1));
+
+        first.done = BLOCK_SIZE;
+        mission.releaseBlock(first, true);
+        assertEquals(AUDIO_OFFSET + 2L * BLOCK_SIZE, mission.getContiguousEnd(1));
+    }
+
+    @Test
+    public void downloadedResourceIsFullyAvailable() {
+        final DownloadMission mission = createMission(2);
+        mission.blocks[0] = -1;
+        mission.blocks[1] = -1;
+
+        assertEquals(AUDIO_OFFSET + mission.length, mission.getContiguousEnd(1));
+    }
+
+    @Test
+    public void waitFailsIfTheMissionIsDeleted() {
+        final DownloadMission mission = createMission(2);
+        mission.metadata = null;
+
+        try {
+            mission.waitForData(1, AUDIO_OFFSET);
+            fail("the wait must fail");
+        } catch (final IOException e) {
+            // the post-processing is aborted
+        }
+    }
+}
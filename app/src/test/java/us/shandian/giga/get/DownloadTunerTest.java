@@ -0,0 +1,212 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+
+public class DownloadTunerTest {
+    private static final long MILLIS = 1000L * 1000L;
+    private static final long MIB = 1024 * 1024;
+
+    @Test
+    public void adaptiveHidesHighLatency() {
+        final RangeServer server = new RangeServer(300 * MILLIS, MIB, 16 * MIB);
+
+        final Result fixed = server.download(64 * MIB, new DownloadTuner(4, false));
+        final Result adaptive = server.download(64 * MIB, new DownloadTuner(4, true));
+
+        assertEquals(1, fixed.maxSpan);
+        assertTrue("span not increased " + adaptive.maxSpan, adaptive.maxSpan > 1);
+        assertTrue("adaptive " + adaptive.seconds() + "s fixed " + fixed.seconds() + "s",
+                adaptive.nanos < fixed.nanos * 0.85);
+    }
+
+    @Test
+    public void adaptiveAvoidsUselessConnections() {
+        // the server bandwidth is shared, more connections do not help
+        final RangeServer server = new RangeServer(5 * MILLIS, 8 * MIB, 4 * MIB);
+
+        final Result fixed = server.download(64 * MIB, new DownloadTuner(4, false));
+        final Result adaptive = server.download(64 * MIB, new DownloadTuner(4, true));
+
+        assertEquals(4, fixed.finalThreads);
+        assertTrue("threads " + adaptive.finalThreads, adaptive.finalThreads < 4);
+        assertTrue("adaptive " + adaptive.seconds() + "s fixed " + fixed.seconds() + "s",
+                adaptive.nanos < fixed.nanos * 1.1);
+    }
+
+    @Test
+    public void spanStopsAtUsedBlocks() {
+        final int[] blocks = {100, 0, 0, -1, 0, 0, 0, 0};
+        final boolean[] acquired = new boolean[blocks.length];
+        acquired[6] = true;
+
+        // a partially downloaded block can only be the first one
+        assertEquals(3, DownloadTuner.spanLength(blocks, acquired, 0, 16));
+        assertEquals(1, DownloadTuner.spanLength(new int[]{0, 100}, new boolean[2], 0, 16));
+        assertEquals(2, DownloadTuner.spanLength(blocks, acquired, 4, 16));
+        assertEquals(1, DownloadTuner.spanLength(blocks, acquired, 7, 16));
+        assertEquals(2, DownloadTuner.spanLength(blocks, acquired, 1, 2));
+    }
+
+    @Test
+    public void spanIsBounded() {
+        final DownloadTuner tuner = new DownloadTuner(8, true);
+
+        tuner.onRequest(100 * MIB, 2000 * MILLIS, 1000 * MILLIS);
+        assertEquals(DownloadTuner.MAX_SPAN, tuner.getSpan());
+
+        for (int i = 0; i < 50; i++) {
+            tuner.onRequest(1024, 1000 * MILLIS, 1000 * MILLIS);
+        }
+        assertEquals(1, tuner.getSpan());
+    }
+
+    @Test
+    public void fixedModeNeverChanges() {
+        final DownloadTuner tuner = new DownloadTuner(3, false);
+
+        for (int i = 0; i < 10; i++) {
+            tuner.onRequest(10 * MIB, 500 * MILLIS, 1000 * MILLIS);
+            tuner.onProgress(i * DownloadTuner.WINDOW_NANOS, i * 10 * MIB);
+        }
+
+        assertEquals(1, tuner.getSpan());
+        assertEquals(3, tuner.getTargetThreads());
+    }
+
+    private static final class Result {
+        long nanos;
+        int maxSpan;
+        int finalThreads;
+
+        double seconds() {
+            return nanos / 1e9;
+        }
+    }
+
+    private static final class Request {
+        int position;
+        int count;
+        long start;
+        long ttfb;
+        long bytes;
+        double rate;
+
+        long end() {
+            return start + ttfb + (long) (bytes / rate);
+        }
+
+        long progress(final long now) {
+            final long transferred = (long) ((now - start - ttfb) * rate);
+            return Math.max(0, Math.min(bytes, transferred));
+        }
+    }
+
+    /**
+     * Stand-in of an HTTP server accepting range requests. Every response takes a fixed time
+     * to first byte, and the bandwidth is limited per connection and in total.
+     */
+    private static final class RangeServer {
+        private final long ttfb;
+        private final double connectionRate;
+        private final double totalRate;
+
+        RangeServer(final long ttfb, final long connectionBytesPerSecond,
+                    final long totalBytesPerSecond) {
+            this.ttfb = ttfb;
+            this.connectionRate = connectionBytesPerSecond / 1e9;
+            this.totalRate = totalBytesPerSecond / 1e9;
+        }
+
+        Result download(final long length, final DownloadTuner tuner) {
+            final int[] blocks = new int[(int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+            final boolean[] acquired = new boolean[blocks.length];
+            final List<Request> running = new ArrayList<>();
+            final Result result = new Result();
+
+            long now = 0;
+            long done = 0;
+
+            fill(tuner, blocks, acquired, running, now, result);
+
+            while (!running.isEmpty()) {
+                Request next = running.get(0);
+                for (final Request request : running) {
+                    if (request.end() < next.end()) {
+                        next = request;
+                    }
+                }
+
+                now = next.end();
+                running.remove(next);
+                done += next.bytes;
+
+                for (int i = 0; i < next.count; i++) {
+                    blocks[next.position + i] = -1;
+                    acquired[next.position + i] = false;
+                }
+
+                long inFlight = 0;
+                for (final Request request : running) {
+                    inFlight += request.progress(now);
+                }
+
+                tuner.onRequest(next.bytes, next.ttfb, next.end() - next.start - next.ttfb);
+                tuner.onProgress(now, done + inFlight);
+
+                fill(tuner, blocks, acquired, running, now, result);
+            }
+
+            result.nanos = now;
+            result.finalThreads = tuner.getTargetThreads();
+            return result;
+        }
+
+        /**
+         * Mimics {@link DownloadMission#acquireBlock()} for every idle thread.
+         */
+        private void fill(final DownloadTuner tuner, final int[] blocks, final boolean[] acquired,
+                          final List<Request> running, final long now, final Result result) {
+            while (running.size() < tuner.getTargetThreads()) {
+                int first = -1;
+                int free = 0;
+                for (int i = 0; i < blocks.length; i++) {
+                    if (!acquired[i] && blocks[i] >= 0) {
+                        if (first < 0) {
+                            first = i;
+                        }
+                        free++;
+                    }
+                }
+
+                if (first < 0) {
+                    return;
+                }
+
+                final int threads = tuner.getTargetThreads();
+                final int maxSpan = Math.min(tuner.getSpan(), Math.max(1, free / threads));
+
+                final Request request = new Request();
+                request.position = first;
+                request.count = DownloadTuner.spanLength(blocks, acquired, first, maxSpan);
+                request.start = now;
+                request.ttfb = ttfb;
+                request.bytes = (long) request.count * BLOCK_SIZE;
+                request.rate = Math.min(connectionRate, totalRate / (running.size() + 1));
+
+                for (int i = 0; i < request.count; i++) {
+                    acquired[first + i] = true;
+                }
+
+                result.maxSpan = Math.max(result.maxSpan, request.count);
+                running.add(request);
+            }
+        }
+    }
+}
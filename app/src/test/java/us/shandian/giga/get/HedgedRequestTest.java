@@ -0,0 +1,301 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import us.shandian.giga.get.DownloadMission.Block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+import static us.shandian.giga.get.StallDetector.WINDOW_NANOS;
+
+public class HedgedRequestTest {
+    private static final long KIB = 1024;
+    private static final int LOCK_ITERATIONS = 200_000;
+
+    private static Block createBlock(final int position, final long started) {
+        final Block block = new Block();
+        block.position = position;
+        block.end = (long) (position + 1) * BLOCK_SIZE - 1;
+        block.origin = (long) position * BLOCK_SIZE;
+        block.claimed = block.origin;
+        block.sampledAt = started;
+        block.sampledClaimed = block.origin;
+        return block;
+    }
+
+    /**
+     * Simulates a download thread writing the data received by its connection.
+     *
+     * @return the amount of new bytes, which are counted as progress
+     */
+    private static long write(final DownloadMission mission, final Block block, final long start,
+                              final int amount) {
+        long offset = start;
+        long progress = 0;
+        int left = amount;
+
+        while (left > 0) {
+            final int len = mission.claimBlock(block, offset,
+                    Math.min(left, DownloadMission.BUFFER_SIZE));
+            if (len < 1) {
+                break;
+            }
+
+            offset += len;
+            left -= len;
+
+            final int fresh = mission.commitBlock(block, offset);
+            mission.notifyProgress(fresh);
+            progress += fresh;
+        }
+
+        return progress;
+    }
+
+    /**
+     * Makes a hedged request for the block, like {@link DownloadMission#checkStalls()}.
+     */
+    private static DownloadRunnable hedge(final DownloadMission mission, final Block block) {
+        final DownloadRunnable hedge = new DownloadRunnable(mission, -4, block);
+        block.owner = new DownloadRunnable(mission, 0);
+        block.hedge = hedge;
+        block.owners = 2;
+        block.hedged = true;
+        return hedge;
+    }
+
+    @Test
+    public void healthyBlocksAreNotStalled() {
+        final ConnectionStats stats = new ConnectionStats();
+        final List<Block> blocks = Arrays.asList(createBlock(0, 0), createBlock(1, 0));
+
+        blocks.get(0).claimed += 300 * KIB;
+        blocks.get(1).claimed += 200 * KIB;
+
+        // nothing is measured before the first window
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS / 2, stats));
+        assertEquals(-1, blocks.get(0).rate, 0);
+
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS, stats));
+        assertEquals(0, stats.getStalls());
+    }
+
+    @Test
+    public void slowestStalledBlockIsHedged() {
+        final ConnectionStats stats = new ConnectionStats();
+        final List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            blocks.add(createBlock(i, 0));
+        }
+
+        blocks.get(0).claimed += 400 * KIB;
+        blocks.get(1).claimed += 16 * KIB;// below 10% of the average
+        blocks.get(3).claimed += 400 * KIB;
+
+        // the block without progress is chosen, but both are stalled
+        assertSame(blocks.get(2), StallDetector.check(blocks, WINDOW_NANOS, stats));
+        assertEquals(2, stats.getStalls());
+
+        // still stalled, not counted again
+        blocks.get(0).claimed += 400 * KIB;
+        blocks.get(3).claimed += 400 * KIB;
+        blocks.get(2).hedged = true;
+        assertSame(blocks.get(1), StallDetector.check(blocks, 2 * WINDOW_NANOS, stats));
+        assertEquals(2, stats.getStalls());
+    }
+
+    @Test
+    public void singleBlockUsesTheAbsoluteFloor() {
+        final ConnectionStats stats = new ConnectionStats();
+        final Block block = createBlock(0, 0);
+        final List<Block> blocks = new ArrayList<>();
+        blocks.add(block);
+
+        block.claimed += 64 * KIB;
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS, stats));
+
+        // a single byte in the next window
+        block.claimed++;
+        assertSame(block, StallDetector.check(blocks, 2 * WINDOW_NANOS, stats));
+        assertEquals(1, stats.getStalls());
+    }
+
+    @Test
+    public void noHedgesWhenEveryBlockIsStalled() {
+        final ConnectionStats stats = new ConnectionStats();
+        final List<Block> blocks = Arrays.asList(createBlock(0, 0), createBlock(1, 0),
+                createBlock(2, 0));
+
+        // the network is down
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS, stats));
+        assertEquals(3, stats.getStalls());
+    }
+
+    @Test
+    public void hedgesAreLimited() {
+        final ConnectionStats stats = new ConnectionStats();
+        final List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < StallDetector.MAX_HEDGES + 2; i++) {
+            final Block block = createBlock(i, 0);
+            if (i < StallDetector.MAX_HEDGES) {
+                block.owners = 2;
+            } else {
+                block.claimed += BLOCK_SIZE / 2;
+            }
+            blocks.add(block);
+        }
+
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS, stats));
+        assertEquals(StallDetector.MAX_HEDGES, stats.getStalls());
+    }
+
+    @Test
+    public void almostFinishedBlockIsNotHedged() {
+        final ConnectionStats stats = new ConnectionStats();
+        final List<Block> blocks = Arrays.asList(createBlock(0, 0), createBlock(1, 0));
+
+        blocks.get(0).claimed += BLOCK_SIZE / 2;
+        blocks.get(1).claimed = blocks.get(1).end;
+
+        assertNull(StallDetector.check(blocks, WINDOW_NANOS, stats));
+    }
+
+    @Test
+    public void hedgeWinsTheRace() {
+        final DownloadMission mission = TestMissions.create(1);
+        final Block block = mission.acquireBlock();
+        assertNotNull(block);
+
+        final long stalledAt = write(mission, block, 0, 100 * 1024);
+        final DownloadRunnable hedge = hedge(mission, block);
+
+        // the hedged request starts where the stalled one stopped
+        final long hedgeStart = (long) block.position * BLOCK_SIZE + block.done;
+        assertEquals(stalledAt, hedgeStart);
+        assertEquals(BLOCK_SIZE - stalledAt, write(mission, block, hedgeStart, BLOCK_SIZE));
+
+        mission.releaseBlock(block, true, hedge);
+        assertArrayEquals(new int[]{-1}, mission.blocks);
+        assertEquals(1, mission.getConnectionStats().getHedgesWon());
+
+        // the stalled connection wakes up, its data is discarded
+        assertEquals(0, write(mission, block, stalledAt, 64 * 1024));
+        mission.releaseBlock(block, false, block.owner);
+
+        assertArrayEquals(new int[]{-1}, mission.blocks);
+        assertEquals(BLOCK_SIZE, mission.getDone());
+        assertNull(mission.acquireBlock());
+    }
+
+    @Test
+    public void ownerWinsTheRace() {
+        final DownloadMission mission = TestMissions.create(1);
+        final Block block = mission.acquireBlock();
+        assertNotNull(block);
+
+        write(mission, block, 0, 128 * 1024);
+        final DownloadRunnable hedge = hedge(mission, block);
+
+        // the hedge is behind, only the data ahead of the owner counts
+        final long hedgeStart = (long) block.position * BLOCK_SIZE + block.done;
+        assertEquals(0, write(mission, block, hedgeStart - 64 * 1024, 64 * 1024));
+        assertEquals(64 * 1024, write(mission, block, hedgeStart, 64 * 1024));
+
+        // the owner recovers, it continues from its own position
+        write(mission, block, hedgeStart, BLOCK_SIZE);
+        mission.releaseBlock(block, true, block.owner);
+
+        assertEquals(0, write(mission, block, hedgeStart + 64 * 1024, 64 * 1024));
+        mission.releaseBlock(block, false, hedge);
+
+        assertArrayEquals(new int[]{-1}, mission.blocks);
+        assertEquals(BLOCK_SIZE, mission.getDone());
+        assertEquals(0, mission.getConnectionStats().getHedgesWon());
+    }
+
+    @Test
+    public void failedHedgeLeavesTheBlockToTheOwner() {
+        final DownloadMission mission = TestMissions.create(1);
+        final Block block = mission.acquireBlock();
+        assertNotNull(block);
+
+        write(mission, block, 0, 64 * 1024);
+        final DownloadRunnable hedge = hedge(mission, block);
+
+        write(mission, block, 64 * 1024, 64 * 1024);
+        mission.releaseBlock(block, false, hedge);
+        assertEquals(1, block.owners);
+
+        // the owner finishes the block from the progress made by the hedge
+        write(mission, block, 128 * 1024, BLOCK_SIZE);
+        mission.releaseBlock(block, true, block.owner);
+
+        assertArrayEquals(new int[]{-1}, mission.blocks);
+        assertEquals(BLOCK_SIZE, mission.getDone());
+    }
+
+    @Test
+    public void pausedOwnerStopsTheHedge() {
+        final DownloadMission mission = TestMissions.create(1);
+        final Block block = mission.acquireBlock();
+        assertNotNull(block);
+
+        write(mission, block, 0, 64 * 1024);
+        final DownloadRunnable hedge = hedge(mission, block);
+        write(mission, block, 64 * 1024, 128 * 1024);
+
+        mission.releaseBlock(block, false, block.owner);
+        assertArrayEquals(new int[]{192 * 1024}, mission.blocks);
+
+        // the data received later by the hedge is not counted, the saved state is kept
+        assertEquals(0, write(mission, block, 192 * 1024, 64 * 1024));
+        mission.releaseBlock(block, false, hedge);
+
+        assertArrayEquals(new int[]{192 * 1024}, mission.blocks);
+        assertEquals(192 * 1024, mission.getDone());
+    }
+
+    /**
+     * The snapshotter looks for stalls while a download thread balances the thread count, both
+     * paths take the mission lock and the instance lock.
+     */
+    @Test
+    public void stallCheckWhileBalancingThreads() throws InterruptedException {
+        final DownloadMission mission = TestMissions.create(1);
+        mission.tuner = new DownloadTuner(8, true);
+        mission.running = true;
+
+        // without free blocks the balancing does not start new threads
+        assertNotNull(mission.acquireBlock());
+
+        final Thread snapshotter = new Thread(() -> {
+            for (int i = 0; i < LOCK_ITERATIONS; i++) {
+                mission.checkStalls();
+            }
+        });
+        final Thread downloader = new Thread(() -> {
+            for (int i = 0; i < LOCK_ITERATIONS; i++) {
+                mission.balanceThreads(0);
+            }
+        });
+
+        // the threads are left behind if they deadlock
+        snapshotter.setDaemon(true);
+        downloader.setDaemon(true);
+        snapshotter.start();
+        downloader.start();
+        snapshotter.join(10000);
+        downloader.join(10000);
+
+        assertFalse("deadlock", snapshotter.isAlive() || downloader.isAlive());
+    }
+}
@@ -0,0 +1,216 @@
+package us.shandian.giga.get;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpTransportTest {
+    private static final int LENGTH = 1024 * 1024;
+    private static final int REQUESTS = 32;
+
+    private final byte[] content = new byte[LENGTH];
+    private RangeServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < LENGTH; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        server = new RangeServer(content);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private DownloadMission createMission(final HttpTransport transport) {
+        final DownloadMission mission = new DownloadMission(new String[]{server.getUrl()},
+                null, 'v', null);
+        mission.transport = transport;
+        return mission;
+    }
+
+    /**
+     * Downloads the resource in {@value #REQUESTS} range requests, like the download threads.
+     */
+    private static byte[] download(final DownloadMission mission) throws IOException,
+            DownloadMission.HttpError {
+        final byte[] buffer = new byte[LENGTH];
+        final int size = LENGTH / REQUESTS;
+
+        for (int i = 0; i < REQUESTS; i++) {
+            final HttpConnection conn = mission.openConnection(false, (long) i * size,
+                    (long) (i + 1) * size - 1);
+            try {
+                mission.establishConnection(1, conn);
+                assertEquals(206, conn.getResponseCode());
+                assertEquals(size, conn.getContentLength());
+
+                try (InputStream is = conn.getInputStream()) {
+                    int offset = i * size;
+                    int len;
+                    while ((len = is.read(buffer, offset, (i + 1) * size - offset)) > 0) {
+                        offset += len;
+                    }
+                }
+            } finally {
+                conn.close();
+            }
+        }
+
+        return buffer;
+    }
+
+    @Test
+    public void okHttpReusesConnection() throws Exception {
+        final DownloadMission mission = createMission(new OkHttpTransport(new OkHttpClient()));
+
+        assertArrayEquals(content, download(mission));
+
+        final ConnectionStats stats = mission.getConnectionStats();
+        assertEquals(REQUESTS, stats.getRequests());
+        assertEquals(1, stats.getConnections());
+        assertEquals(REQUESTS - 1, stats.getReused());
+        assertEquals(1, server.getAccepted());
+    }
+
+    @Test
+    public void headRequest() throws Exception {
+        final DownloadMission mission = createMission(new OkHttpTransport(new OkHttpClient()));
+
+        final HttpConnection conn = mission.openConnection(true, -1, -1);
+        mission.establishConnection(0, conn);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(LENGTH, conn.getContentLength());
+        conn.close();
+
+        assertEquals(1, mission.getConnectionStats().getRequests());
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception {
+        final DownloadMission okhttp = createMission(new OkHttpTransport(new OkHttpClient()));
+        final DownloadMission platform = createMission(new UrlConnectionTransport());
+
+        // opens the connections
+        download(okhttp);
+
+        final int accepted = server.getAccepted();
+        assertArrayEquals(content, download(okhttp));
+        assertEquals(accepted, server.getAccepted());
+        assertTrue(okhttp.getConnectionStats().getReused() >= REQUESTS * 2 - 1);
+
+        assertArrayEquals(content, download(platform));
+    }
+
+    /**
+     * Minimal HTTP/1.1 server with keep-alive and range support.
+     */
+    private static final class RangeServer implements Runnable {
+        private final ServerSocket socket;
+        private final byte[] content;
+        private final AtomicInteger accepted = new AtomicInteger();
+        private final Thread thread;
+
+        RangeServer(final byte[] content) throws IOException {
+            this.content = content;
+            socket = new ServerSocket(0);
+            thread = new Thread(this, "RangeServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/video";
+        }
+
+        int getAccepted() {
+            return accepted.get();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    accepted.incrementAndGet();
+
+                    final Thread worker = new Thread(() -> serve(client));
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (final IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(final Socket client) {
+            try (Socket s = client) {
+                s.setTcpNoDelay(true);
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                final OutputStream out = s.getOutputStream();
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final boolean head = line.startsWith("HEAD");
+                    long start = -1;
+                    long end = content.length - 1;
+
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        if (line.toLowerCase(Locale.ENGLISH).startsWith("range: bytes=")) {
+                            final String[] range = line.substring(13).split("-", 2);
+                            start = Long.parseLong(range[0]);
+                            if (!range[1].isEmpty()) {
+                                end = Long.parseLong(range[1]);
+                            }
+                        }
+                    }
+
+                    final long from = Math.max(start, 0);
+                    final int length = (int) (end - from + 1);
+                    final StringBuilder headers = new StringBuilder();
+
+                    if (start < 0) {
+                        headers.append("HTTP/1.1 200 OK\r\n");
+                    } else {
+                        headers.append("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes ")
+                                .append(from).append('-').append(end).append('/')
+                                .append(content.length).append("\r\n");
+                    }
+                    headers.append("Content-Length: ").append(length).append("\r\n\r\n");
+
+                    out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    if (!head) {
+                        out.write(content, (int) from, length);
+                    }
+                    out.flush();
+                }
+            } catch (final IOException e) {
+                // connection closed by the client
+            }
+        }
+    }
+}
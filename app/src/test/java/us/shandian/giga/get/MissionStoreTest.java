@@ -0,0 +1,262 @@
+package us.shandian.giga.get;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.extractor.MediaFormat;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+import us.shandian.giga.postprocessing.Postprocessing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MissionStoreTest {
+    private static final int BLOCKS = 4096;
+
+    private File dir;
+    private File metadata;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("missions", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        metadata = new File(dir, "1234567890");
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(dir.delete());
+    }
+
+    private static DownloadMission createMission() {
+        final DownloadMission mission = new DownloadMission(
+                new String[]{"https://example.com/video", "https://example.com/audio"},
+                new StoredFileHelper(null, "video.mp4", "video/mp4", "tag"), 'v',
+                Postprocessing.getAlgorithm(Postprocessing.ALGORITHM_MP4_FROM_DASH_MUXER, null));
+
+        mission.length = 123456789L;
+        mission.timestamp = 1234567890L;
+        mission.source = "https://example.com/watch";
+        mission.done = 98765L;
+        mission.offsets = new long[]{0, 100000L};
+        mission.current = 1;
+        mission.nearLength = 123000000L;
+        mission.threadCount = 8;
+        mission.weight = 3;
+        mission.priority = DownloadMission.PRIORITY_LOW;
+        mission.queuePosition = 1234567999L;
+        mission.queueWaitTime = 4000L;
+        mission.runTime = 56000L;
+        mission.psState = 0;
+        mission.errCode = DownloadMission.ERROR_CONNECT_HOST;
+        mission.errObject = new IOException("test");
+        mission.recoveryInfo = new MissionRecoveryInfo[]{
+                new MissionRecoveryInfo(MediaFormat.MPEG_4, "720p", true, 0, 'v', null),
+                null
+        };
+        mission.blocks = new int[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            mission.blocks[i] = i % 3 == 0 ? -1 : i;
+        }
+
+        return mission;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final DownloadMission mission = createMission();
+        MissionStore.write(metadata, mission);
+
+        final DownloadMission read = MissionStore.read(metadata);
+        assertNotNull(read);
+
+        assertArrayEquals(mission.urls, read.urls);
+        assertEquals(mission.source, read.source);
+        assertEquals(mission.length, read.length);
+        assertEquals(mission.timestamp, read.timestamp);
+        assertEquals(mission.kind, read.kind);
+        assertEquals(mission.done, read.done);
+        assertArrayEquals(mission.offsets, read.offsets);
+        assertEquals(mission.current, read.current);
+        assertEquals(mission.nearLength, read.nearLength);
+        assertEquals(mission.threadCount, read.threadCount);
+        assertEquals(mission.adaptive, read.adaptive);
+        assertEquals(mission.weight, read.weight);
+        assertEquals(mission.priority, read.priority);
+        assertEquals(mission.queuePosition, read.queuePosition);
+        assertEquals(mission.queueWaitTime, read.queueWaitTime);
+        assertEquals(mission.runTime, read.runTime);
+        assertArrayEquals(mission.blocks, read.blocks);
+        assertEquals(mission.errCode, read.errCode);
+        assertEquals("test", read.errObject.getMessage());
+
+        assertEquals("video.mp4", read.storage.getName());
+        assertEquals("video/mp4", read.storage.getType());
+        assertEquals("tag", read.storage.getTag());
+        assertTrue(read.storage.isInvalid());
+
+        assertEquals(Postprocessing.ALGORITHM_MP4_FROM_DASH_MUXER, read.psAlgorithm.getName());
+
+        assertEquals(2, read.recoveryInfo.length);
+        assertEquals(MediaFormat.MPEG_4, read.recoveryInfo[0].getFormat());
+        assertEquals("720p", read.recoveryInfo[0].getDesired());
+        assertTrue(read.recoveryInfo[0].isDesired2());
+        assertNull(read.recoveryInfo[1]);
+
+        assertFalse(MissionStore.getTempFile(metadata).exists());
+    }
+
+    @Test
+    public void corruptFileIsRejected() throws IOException {
+        MissionStore.write(metadata, createMission());
+
+        try (RandomAccessFile file = new RandomAccessFile(metadata, "rw")) {
+            file.seek(file.length() / 2);
+            final int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 0xFF);
+        }
+
+        assertNull(MissionStore.read(metadata));
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        MissionStore.write(metadata, createMission());
+
+        try (RandomAccessFile file = new RandomAccessFile(metadata, "rw")) {
+            file.setLength(file.length() - 100);
+        }
+
+        assertNull(MissionStore.read(metadata));
+    }
+
+    @Test
+    public void interruptedWriteKeepsPreviousState() throws IOException {
+        final DownloadMission mission = createMission();
+        MissionStore.write(metadata, mission);
+
+        // crash while writing the temporal file
+        final File temp = MissionStore.getTempFile(metadata);
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(new byte[]{0x4E, 0x50, 0x4D});
+        }
+
+        final DownloadMission read = MissionStore.read(metadata);
+        assertNotNull(read);
+        assertEquals(mission.done, read.done);
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void completeTempFileIsRecovered() throws IOException {
+        final DownloadMission mission = createMission();
+        final File temp = MissionStore.getTempFile(metadata);
+
+        // crash after the temporal file was synced but before the rename
+        MissionStore.write(temp, mission);
+        assertTrue(temp.exists());
+        assertFalse(metadata.exists());
+        assertTrue(MissionStore.isTempFile(temp));
+        assertEquals(metadata, MissionStore.getMetadataFile(temp));
+
+        final DownloadMission read = MissionStore.read(metadata);
+        assertNotNull(read);
+        assertEquals(mission.done, read.done);
+        assertTrue(metadata.exists());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void legacyFileIsMigrated() throws IOException {
+        final DownloadMission mission = createMission();
+        mission.storage = null;
+        mission.psAlgorithm = null;
+        mission.recoveryInfo = null;
+
+        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(metadata))) {
+            output.writeObject(mission);
+        }
+
+        final DownloadMission legacy = MissionStore.read(metadata);
+        assertNotNull(legacy);
+        assertArrayEquals(mission.blocks, legacy.blocks);
+        assertEquals(mission.done, legacy.done);
+        assertEquals(mission.timestamp, legacy.queuePosition);
+
+        MissionStore.write(metadata, legacy);
+        final DownloadMission migrated = MissionStore.read(metadata);
+        assertNotNull(migrated);
+        assertArrayEquals(mission.blocks, migrated.blocks);
+    }
+
+    /**
+     * Compares the time and size of saving the state against the Java serialization, which
+     * was used before.
+     */
+    @Test
+    public void writeBenchmark() throws IOException {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+
+        final DownloadMission mission = createMission();
+        mission.storage = null;
+        mission.psAlgorithm = null;
+        mission.recoveryInfo = null;
+
+        final int iterations = 50;
+        final File legacy = new File(dir, "legacy");
+
+        for (int i = 0; i < iterations; i++) {
+            writeLegacy(legacy, mission);
+            MissionStore.write(metadata, mission);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            writeLegacy(legacy, mission);
+        }
+        final long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            MissionStore.write(metadata, mission);
+        }
+        final long storeTime = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d blocks: serialization %.1f us/write %d bytes, "
+                        + "store (with fsync) %.1f us/write %d bytes",
+                BLOCKS, legacyTime / 1000.0 / iterations, legacy.length(),
+                storeTime / 1000.0 / iterations, metadata.length()));
+
+        assertTrue(metadata.length() < legacy.length());
+    }
+
+    private static void writeLegacy(final File file, final DownloadMission mission)
+            throws IOException {
+        try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(file))) {
+            output.writeObject(mission);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package us.shandian.giga.get;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import us.shandian.giga.get.DownloadMission.Block;
+import us.shandian.giga.io.FileStream;
+import us.shandian.giga.io.PositionalFileSink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+import static us.shandian.giga.get.DownloadMission.BUFFER_SIZE;
+
+/**
+ * Runs the write loop of {@link DownloadRunnable} (claim, write, commit and progress) on several
+ * threads, with the data already received. The current path, which reserves and commits without
+ * the mission lock, is compared with the same loop holding the mission lock for the reservation
+ * and for the commit, like the previous implementation did. The data is discarded, to measure
+ * only the overhead of the loop, written to memory, and written to a file through a
+ * {@link PositionalFileSink}.
+ * Run with {@code -Dnewpipe.benchmark=true}, the size (in MiB) is set with
+ * {@code newpipe.benchmark.mib}.
+ */
+public class ProgressPathBenchmarkTest {
+    private static final int SIZE = Integer.getInteger("newpipe.benchmark.mib", 8) * 1024 * 1024;
+    private static final int[] THREADS = {1, 4, 8};
+
+    private static final List<String> REPORT = new ArrayList<>();
+
+    private interface Sink {
+        void write(byte[] buffer, int count, long position) throws IOException;
+    }
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+    }
+
+    @AfterClass
+    public static void printReport() {
+        if (REPORT.isEmpty()) {
+            return;
+        }
+
+        System.out.println(String.format(Locale.ENGLISH, "%-7s %-10s %7s %9s %10s",
+                "sink", "path", "threads", "MiB/s", "ns/read"));
+        for (final String line : REPORT) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Downloads every block of a mission, like {@link DownloadRunnable} does.
+     *
+     * @param locked {@code true} to hold the mission lock while reserving and committing
+     */
+    private static void download(final DownloadMission mission, final Sink sink,
+                                 final boolean locked) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        Block block;
+
+        while ((block = mission.acquireBlock()) != null) {
+            long start = (long) block.position * BLOCK_SIZE + block.done;
+
+            while (start <= block.end) {
+                final int len;
+                if (locked) {
+                    synchronized (mission.LOCK) {
+                        len = mission.claimBlock(block, start, buffer.length);
+                    }
+                } else {
+                    len = mission.claimBlock(block, start, buffer.length);
+                }
+                if (len < 1) {
+                    break;
+                }
+
+                sink.write(buffer, len, start);
+                start += len;
+
+                if (locked) {
+                    synchronized (mission.LOCK) {
+                        mission.notifyProgress(mission.commitBlock(block, start));
+                    }
+                } else {
+                    mission.notifyProgress(mission.commitBlock(block, start));
+                }
+            }
+
+            mission.releaseBlock(block, start > block.end);
+        }
+    }
+
+    private static long measure(final Sink sink, final boolean locked, final int threadCount)
+            throws Exception {
+        final DownloadMission mission = TestMissions.create(SIZE / BLOCK_SIZE);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        final Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    go.await();
+                    download(mission, sink, locked);
+                } catch (final Exception e) {
+                    error[0] = e;
+                }
+            });
+            threads[i].start();
+        }
+
+        final long start = System.nanoTime();
+        go.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        final int[] completed = new int[mission.blocks.length];
+        Arrays.fill(completed, -1);
+        assertArrayEquals(completed, mission.blocks);
+        assertEquals(SIZE, mission.getDone());
+
+        return elapsed;
+    }
+
+    private static void compare(final String sinkName, final Sink sink) throws Exception {
+        // warm up
+        measure(sink, false, 1);
+        measure(sink, true, 1);
+
+        for (final int threadCount : THREADS) {
+            for (final boolean locked : new boolean[]{true, false}) {
+                final long elapsed = measure(sink, locked, threadCount);
+
+                REPORT.add(String.format(Locale.ENGLISH, "%-7s %-10s %7d %9.1f %10.1f",
+                        sinkName, locked ? "locked" : "lock-free", threadCount,
+                        SIZE / (1024.0 * 1024.0) / (elapsed / 1e9),
+                        elapsed / (double) (SIZE / BUFFER_SIZE)));
+            }
+        }
+    }
+
+    @Test
+    public void noSink() throws Exception {
+        compare("none", (buffer, count, position) -> {
+        });
+    }
+
+    @Test
+    public void memorySink() throws Exception {
+        final byte[] memory = new byte[SIZE];
+
+        compare("memory", (buffer, count, position) ->
+                System.arraycopy(buffer, 0, memory, (int) position, count));
+    }
+
+    @Test
+    public void fileSink() throws Exception {
+        final File file = File.createTempFile("progress", ".bin");
+
+        try {
+            final PositionalFileSink sink = PositionalFileSink.open(new FileStream(file));
+            try {
+                compare("file", (buffer, count, position) ->
+                        sink.write(buffer, 0, count, position));
+            } finally {
+                sink.release();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
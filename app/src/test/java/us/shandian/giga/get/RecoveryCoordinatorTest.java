@@ -0,0 +1,225 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.schabi.newpipe.extractor.exceptions.ExtractionException;
+import org.schabi.newpipe.extractor.stream.StreamInfo;
+import org.schabi.newpipe.extractor.stream.StreamType;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecoveryCoordinatorTest {
+    private static final String URL = "https://www.youtube.com/watch?v=";
+
+    /**
+     * Counts the pages fetched, every fetch waits until the gate is opened.
+     */
+    private static class FakeLoader implements RecoveryCoordinator.Loader {
+        final Map<String, StreamInfo> cache = new ConcurrentHashMap<>();
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        volatile IOException failure;
+
+        @Nullable
+        @Override
+        public StreamInfo getCached(@NonNull final String url) {
+            return cache.get(url);
+        }
+
+        @NonNull
+        @Override
+        public StreamInfo fetch(@NonNull final String url) throws IOException {
+            fetches.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+            try {
+                if (!gate.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("timeout");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+
+                final StreamInfo info = new StreamInfo(0, url, url, StreamType.VIDEO_STREAM,
+                        url, "name", 0);
+                cache.put(url, info);
+                return info;
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Runs a mission recovery in background, like {@link DownloadMissionRecover}.
+     */
+    private static final class Recovery extends Thread {
+        final RecoveryCoordinator coordinator;
+        final String url;
+        volatile StreamInfo info;
+        volatile Exception error;
+
+        Recovery(final RecoveryCoordinator coordinator, final String url) {
+            this.coordinator = coordinator;
+            this.url = url;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                info = coordinator.resolve(url);
+            } catch (final ExtractionException | IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private static void waitFor(final AtomicInteger counter, final int value)
+            throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 10000;
+        while (counter.get() < value) {
+            if (System.currentTimeMillis() > timeout) {
+                fail("expected " + value + " got " + counter.get());
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void sameStreamIsFetchedOnce() throws Exception {
+        final FakeLoader loader = new FakeLoader();
+        final RecoveryCoordinator coordinator = new RecoveryCoordinator(loader);
+        loader.gate = new CountDownLatch(1);
+
+        // video, audio and subtitles of the same stream
+        final List<Recovery> recoveries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            recoveries.add(new Recovery(coordinator, URL + "a"));
+        }
+
+        waitFor(loader.fetches, 1);
+        Thread.sleep(50);
+        loader.gate.countDown();
+
+        for (final Recovery recovery : recoveries) {
+            recovery.join();
+            assertSame(recoveries.get(0).info, recovery.info);
+        }
+        assertEquals(1, loader.fetches.get());
+
+        // a mission failing later reuses the resolved stream
+        assertSame(recoveries.get(0).info, coordinator.resolve(URL + "a"));
+        assertEquals(1, loader.fetches.get());
+    }
+
+    @Test
+    public void evictedStreamIsFetchedAgain() throws Exception {
+        final FakeLoader loader = new FakeLoader();
+        final RecoveryCoordinator coordinator = new RecoveryCoordinator(loader);
+
+        coordinator.resolve(URL + "a");
+        loader.cache.clear();
+        coordinator.resolve(URL + "a");
+
+        assertEquals(2, loader.fetches.get());
+    }
+
+    @Test
+    public void parallelismIsBounded() throws Exception {
+        final FakeLoader loader = new FakeLoader();
+        final RecoveryCoordinator coordinator = new RecoveryCoordinator(loader);
+        loader.gate = new CountDownLatch(1);
+
+        // a batch of missions expired at once
+        final List<Recovery> recoveries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            recoveries.add(new Recovery(coordinator, URL + (i % 10)));
+        }
+
+        waitFor(loader.fetches, RecoveryCoordinator.MAX_PARALLEL);
+        Thread.sleep(50);
+        assertEquals(RecoveryCoordinator.MAX_PARALLEL, loader.fetches.get());
+        loader.gate.countDown();
+
+        for (final Recovery recovery : recoveries) {
+            recovery.join();
+            assertTrue(recovery.info != null);
+        }
+
+        assertEquals(10, loader.fetches.get());
+        assertEquals(RecoveryCoordinator.MAX_PARALLEL, loader.maxRunning.get());
+    }
+
+    @Test
+    public void failureIsSharedAndBacksOff() throws Exception {
+        final FakeLoader loader = new FakeLoader();
+        final RecoveryCoordinator coordinator = new RecoveryCoordinator(loader);
+        loader.gate = new CountDownLatch(1);
+        loader.failure = new IOException("HTTP 429");
+
+        final Recovery first = new Recovery(coordinator, URL + "a");
+        final Recovery second = new Recovery(coordinator, URL + "a");
+        waitFor(loader.fetches, 1);
+        Thread.sleep(50);
+        loader.gate.countDown();
+        first.join();
+        second.join();
+
+        // both missions got the error of the single request
+        assertSame(loader.failure, first.error);
+        assertSame(loader.failure, second.error);
+        assertEquals(1, loader.fetches.get());
+
+        // the next attempt waits before fetching the page again
+        loader.failure = null;
+        final long start = System.currentTimeMillis();
+        coordinator.resolve(URL + "a");
+
+        assertTrue(System.currentTimeMillis() - start >= RecoveryCoordinator.BASE_BACKOFF_MILLIS - 50);
+        assertEquals(2, loader.fetches.get());
+    }
+
+    @Test
+    public void waitingMissionTakesOverWhenInterrupted() throws Exception {
+        final FakeLoader loader = new FakeLoader();
+        final RecoveryCoordinator coordinator = new RecoveryCoordinator(loader);
+        loader.gate = new CountDownLatch(1);
+
+        final Recovery paused = new Recovery(coordinator, URL + "a");
+        waitFor(loader.fetches, 1);
+        final Recovery waiting = new Recovery(coordinator, URL + "a");
+        Thread.sleep(50);
+
+        // the mission fetching the page is paused
+        paused.interrupt();
+        paused.join();
+        assertTrue(paused.error instanceof InterruptedIOException);
+
+        waitFor(loader.fetches, 2);
+        loader.gate.countDown();
+        waiting.join();
+
+        assertTrue(waiting.info != null);
+        assertEquals(2, loader.fetches.get());
+    }
+}
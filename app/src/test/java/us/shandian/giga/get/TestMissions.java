@@ -0,0 +1,27 @@
+package us.shandian.giga.get;
+
+import static us.shandian.giga.get.DownloadMission.BLOCK_SIZE;
+
+/**
+ * Missions used by the tests of the download engine.
+ */
+final class TestMissions {
+    private TestMissions() {
+    }
+
+    /**
+     * Creates a mission of a single resource with its blocks ready to be acquired, no download
+     * thread is started.
+     *
+     * @param blockCount the amount of blocks of the resource
+     * @return the mission
+     */
+    static DownloadMission create(final int blockCount) {
+        final DownloadMission mission = new DownloadMission(new String[]{"http://localhost/"},
+                null, 'v', null);
+        mission.length = (long) blockCount * BLOCK_SIZE;
+        mission.blocks = new int[blockCount];
+        mission.prepareBlocks();
+        return mission;
+    }
+}
@@ -0,0 +1,120 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkFileInputStreamTest {
+    private static final int OFFSET = 1000;
+    private static final int LENGTH = 256 * 1024;
+    private static final int PIECE = 4096;
+
+    private File file;
+    private final byte[] content = new byte[LENGTH];
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("chunk", ".bin");
+        for (int i = 0; i < LENGTH; i++) {
+            content[i] = (byte) (i * 7);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    /**
+     * Waits until the written data goes beyond the position.
+     */
+    private static ChunkFileInputStream.Availability waitingFor(final AtomicLong written) {
+        return position -> {
+            while (written.get() <= position) {
+                try {
+                    Thread.sleep(1);
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return written.get();
+        };
+    }
+
+    @Test
+    public void readsWhileTheFileIsWritten() throws Exception {
+        final AtomicLong written = new AtomicLong(OFFSET);
+        final Exception[] error = new Exception[1];
+
+        final Thread writer = new Thread(() -> {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(OFFSET + LENGTH);
+                for (int i = 0; i < LENGTH; i += PIECE) {
+                    raf.seek(OFFSET + i);
+                    raf.write(content, i, PIECE);
+                    written.addAndGet(PIECE);
+                    Thread.sleep(1);
+                }
+            } catch (final Exception e) {
+                error[0] = e;
+            }
+        });
+        writer.start();
+
+        final byte[] actual = new byte[LENGTH];
+        try (ChunkFileInputStream stream = new ChunkFileInputStream(new FileStream(file), OFFSET,
+                OFFSET + LENGTH, null, waitingFor(written))) {
+            int offset = 0;
+            int len;
+            while ((len = stream.read(actual, offset, Math.min(10000, LENGTH - offset))) > 0) {
+                // the reads never go beyond the written data
+                assertTrue(stream.getFilePointer() <= written.get());
+                offset += len;
+            }
+            assertEquals(LENGTH, offset);
+        }
+
+        writer.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        assertArrayEquals(content, actual);
+    }
+
+    @Test
+    public void abortsWhenTheDataWillNotBeWritten() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(OFFSET + LENGTH);
+        }
+
+        final ChunkFileInputStream.Availability aborted = position -> {
+            if (position < OFFSET + PIECE) {
+                return OFFSET + PIECE;
+            }
+            throw new IOException("the resource will not be downloaded");
+        };
+
+        try (ChunkFileInputStream stream = new ChunkFileInputStream(new FileStream(file), OFFSET,
+                OFFSET + LENGTH, null, aborted)) {
+            final byte[] buffer = new byte[PIECE * 2];
+            assertEquals(PIECE, stream.read(buffer));
+
+            try {
+                stream.read(buffer);
+                fail("the read must fail");
+            } catch (final IOException e) {
+                assertEquals("the resource will not be downloaded", e.getMessage());
+            }
+        }
+    }
+}
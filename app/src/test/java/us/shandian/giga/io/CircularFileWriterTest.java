@@ -0,0 +1,212 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CircularFileWriterTest {
+    private static final int MIB = 1024 * 1024;
+    private static final int RESERVED = MIB;
+    private static final int HEADER = MIB / 2;
+    private static final int CHUNK = 64 * 1024;
+
+    private File file;
+    private File temp;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("mux", ".bin");
+        temp = File.createTempFile("mux", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+    }
+
+    private static byte videoByte(final long position) {
+        return (byte) (position * 31 + 7);
+    }
+
+    private static byte audioByte(final long position) {
+        return (byte) (position * 13 + 3);
+    }
+
+    private static byte headerByte(final long position, final boolean patched) {
+        return (byte) (patched ? position * 5 : position * 3);
+    }
+
+    /**
+     * Writes the sources in place, like a downloaded mission: the reserved space, the video and
+     * the audio.
+     */
+    private void createSources(final long video, final long audio) throws IOException {
+        final byte[] buffer = new byte[MIB];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(new byte[RESERVED]);
+            writeTrack(raf, buffer, video, false);
+            writeTrack(raf, buffer, audio, true);
+        }
+    }
+
+    private static void writeTrack(final RandomAccessFile raf, final byte[] buffer,
+                                   final long length, final boolean audio) throws IOException {
+        for (long i = 0; i < length; i += buffer.length) {
+            final int len = (int) Math.min(buffer.length, length - i);
+            for (int j = 0; j < len; j++) {
+                buffer[j] = audio ? audioByte(i + j) : videoByte(i + j);
+            }
+            raf.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Simulates a muxer working on the same file: the tracks are read interleaved and the output
+     * is written over them, starting with a header which is patched at the end.
+     *
+     * @return the final file length
+     */
+    private long mux(final long video, final long audio) throws IOException {
+        final long[] pointers = {RESERVED, RESERVED + video};
+        final long[] ends = {RESERVED + video, RESERVED + video + audio};
+
+        final CircularFileWriter.OffsetChecker checker = () -> {
+            for (int i = 0; i < pointers.length; i++) {
+                if (pointers[i] < ends[i]) {
+                    return pointers[i] - 1;
+                }
+            }
+            return -1;
+        };
+
+        final byte[] buffer = new byte[CHUNK];
+        final long steps = (video + CHUNK - 1) / CHUNK;
+        final long audioChunk = (audio + steps - 1) / steps;
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             CircularFileWriter out = new CircularFileWriter(new FileStream(file), temp,
+                     checker)) {
+            for (int i = 0; i < HEADER; i++) {
+                buffer[i % CHUNK] = headerByte(i, false);
+                if (i % CHUNK == CHUNK - 1) {
+                    out.write(buffer, 0, CHUNK);
+                }
+            }
+
+            while (pointers[0] < ends[0] || pointers[1] < ends[1]) {
+                copy(in, out, buffer, pointers, ends, 0, CHUNK);
+                copy(in, out, buffer, pointers, ends, 1, (int) audioChunk);
+            }
+
+            out.seek(0);
+            for (int i = 0; i < HEADER; i++) {
+                buffer[i % CHUNK] = headerByte(i, true);
+                if (i % CHUNK == CHUNK - 1) {
+                    out.write(buffer, 0, CHUNK);
+                }
+            }
+
+            return out.finalizeFile();
+        }
+    }
+
+    private static void copy(final RandomAccessFile in, final CircularFileWriter out,
+                             final byte[] buffer, final long[] pointers, final long[] ends,
+                             final int track, final int amount) throws IOException {
+        final int len = (int) Math.min(amount, ends[track] - pointers[track]);
+        if (len < 1) {
+            return;
+        }
+
+        in.seek(pointers[track]);
+        in.readFully(buffer, 0, len);
+        pointers[track] += len;
+        out.write(buffer, 0, len);
+    }
+
+    private void verify(final long video, final long audio) throws IOException {
+        final long steps = (video + CHUNK - 1) / CHUNK;
+        final long audioChunk = (audio + steps - 1) / steps;
+        final byte[] buffer = new byte[CHUNK];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertEquals(HEADER + video + audio, raf.length());
+
+            raf.readFully(buffer, 0, CHUNK);
+            for (int i = 0; i < CHUNK; i++) {
+                assertEquals(headerByte(i, true), buffer[i]);
+            }
+            raf.seek(HEADER);
+
+            long videoPosition = 0;
+            long audioPosition = 0;
+            while (videoPosition < video || audioPosition < audio) {
+                int len = (int) Math.min(CHUNK, video - videoPosition);
+                raf.readFully(buffer, 0, len);
+                for (int i = 0; i < len; i++) {
+                    assertEquals(videoByte(videoPosition++), buffer[i]);
+                }
+
+                len = (int) Math.min(audioChunk, audio - audioPosition);
+                raf.readFully(buffer, 0, len);
+                for (int i = 0; i < len; i++) {
+                    assertEquals(audioByte(audioPosition++), buffer[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void muxOverTheSources() throws IOException {
+        final long video = 8L * MIB;
+        final long audio = 2L * MIB + 12345;
+
+        createSources(video, audio);
+        assertEquals(HEADER + video + audio, mux(video, audio));
+        verify(video, audio);
+    }
+
+    @Test
+    public void muxWithoutSpilling() throws IOException {
+        // the header fits in the reserved space, the auxiliary file is never used
+        final long video = 4L * MIB;
+
+        createSources(video, 0);
+        assertEquals(HEADER + video, mux(video, 0));
+        verify(video, 0);
+        assertEquals(0, temp.length());
+    }
+
+    @Test
+    public void muxBenchmark() throws IOException {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+
+        final long video = 450L * MIB;
+        final long audio = 50L * MIB;
+
+        createSources(video, audio);
+
+        final long start = System.nanoTime();
+        mux(video, audio);
+        final long time = System.nanoTime() - start;
+
+        verify(video, audio);
+
+        System.out.println(String.format(Locale.ENGLISH, "500 MiB mux: %.0f ms, %.0f MiB/s",
+                time / 1e6, (video + audio) / (double) MIB / (time / 1e9)));
+    }
+}
@@ -0,0 +1,206 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.DataReader;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileStreamTest {
+    private static final int SIZE = 300 * 1000;
+    // small windows, most of the reads cross a window boundary
+    private static final int WINDOW = 4096;
+
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("mapped", ".bin");
+        content = new byte[SIZE];
+        new Random(SIZE).nextBytes(content);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    private MappedFileStream open() throws IOException {
+        final FileStream stream = new FileStream(file);
+        return new MappedFileStream(stream, stream.getChannel(), WINDOW);
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    @Test
+    public void randomReads() throws IOException {
+        final Random random = new Random(1);
+
+        try (MappedFileStream stream = open()) {
+            int position = 0;
+
+            for (int i = 0; i < 20000; i++) {
+                final int count = random.nextInt(WINDOW * 3) + 1;
+                final int expected = Math.min(count, SIZE - position);
+
+                switch (random.nextInt(6)) {
+                    case 0:
+                        position = random.nextInt(SIZE + 1);
+                        stream.seek(position);
+                        break;
+                    case 1:
+                        assertEquals(expected, stream.skip(count));
+                        position += expected;
+                        break;
+                    case 2:
+                        assertEquals(position < SIZE ? content[position++] & 0xFF : -1,
+                                stream.read());
+                        break;
+                    case 3:
+                        assertArrayEquals(Arrays.copyOfRange(content, position,
+                                position + expected), toArray(stream.readMapped(count)));
+                        position += expected;
+                        break;
+                    default:
+                        final byte[] buffer = new byte[count];
+                        final int read = stream.read(buffer, 0, count);
+                        if (expected < 1) {
+                            assertEquals(-1, read);
+                            break;
+                        }
+                        // the reads stop at the end of the window
+                        assertTrue(read > 0 && read <= expected);
+                        assertArrayEquals(Arrays.copyOfRange(content, position,
+                                position + read), Arrays.copyOf(buffer, read));
+                        position += read;
+                        break;
+                }
+
+                assertEquals(SIZE - position, stream.available());
+            }
+        }
+    }
+
+    @Test
+    public void fileGrowsWhileMapped() throws IOException {
+        try (MappedFileStream stream = open();
+             RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            stream.seek(SIZE - 10);
+            assertEquals(10, stream.readMapped(100).remaining());
+
+            raf.seek(SIZE);
+            raf.write(content, 0, 1000);
+
+            assertArrayEquals(Arrays.copyOf(content, 1000), toArray(stream.readMapped(1000)));
+            assertEquals(0, stream.available());
+        }
+    }
+
+    @Test
+    public void transferTo() throws IOException {
+        final File output = File.createTempFile("mapped", ".out");
+        try (MappedFileStream stream = open(); FileStream target = new FileStream(output)) {
+            stream.seek(1000);
+            assertEquals(SIZE - 1000, stream.transferTo(SIZE, target));
+            assertEquals(0, stream.available());
+
+            final byte[] result = new byte[SIZE - 1000];
+            target.rewind();
+            assertEquals(result.length, target.read(result));
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, SIZE), result);
+        } finally {
+            assertTrue(output.delete());
+        }
+    }
+
+    @Test
+    public void onlyFilesAreMapped() throws IOException {
+        final FileStream fileStream = new FileStream(file);
+        final SharpStream mapped = MappedFileStream.map(fileStream);
+        assertTrue(mapped.canReadMapped());
+        assertFalse(mapped.canWrite());
+
+        mapped.close();
+        assertTrue(fileStream.isClosed());
+
+        // the streams without a file descriptor are used as they are
+        final SharpStream chunk = new ChunkFileInputStream(new FileStream(file), 0, SIZE, null);
+        assertSame(chunk, MappedFileStream.map(chunk));
+        assertFalse(chunk.canReadMapped());
+        chunk.close();
+    }
+
+    /**
+     * The readers of the muxers decode the primitives from the mapping, the results must be the
+     * same of the read buffer.
+     */
+    @Test
+    public void dataReaderOverChunks() throws IOException {
+        final int length = SIZE - 2000;
+        final SharpStream[] sources = {
+                new ChunkFileInputStream(new FileStream(file), 1001, 1001 + length, null),
+                new ChunkFileInputStream(MappedFileStream.map(new FileStream(file)), 1001,
+                        1001 + length, null)
+        };
+        final DataReader expected = new DataReader(sources[0]);
+        final DataReader actual = new DataReader(sources[1]);
+        final Random random = new Random(2);
+
+        while (expected.available()) {
+            // the primitives are not read at the end, they would be truncated
+            final int operation = length - expected.position() < DataReader.LONG_SIZE
+                    ? 4 : random.nextInt(5);
+
+            switch (operation) {
+                case 0:
+                    assertEquals(expected.readInt(), actual.readInt());
+                    break;
+                case 1:
+                    assertEquals(expected.readLong(), actual.readLong());
+                    break;
+                case 2:
+                    final int skip = random.nextInt(200 * 1000);
+                    assertEquals(expected.skipBytes(skip), actual.skipBytes(skip));
+                    break;
+                case 3:
+                    final byte[] a = new byte[random.nextInt(300 * 1000)];
+                    final byte[] b = new byte[a.length];
+                    assertEquals(expected.read(a), actual.read(b));
+                    assertArrayEquals(a, b);
+                    break;
+                default:
+                    assertEquals(expected.read(), actual.read());
+                    break;
+            }
+            assertEquals(expected.position(), actual.position());
+        }
+
+        assertFalse(actual.available());
+        for (final SharpStream source : sources) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PositionalFileSinkTest {
+    private static final int BLOCK_SIZE = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long BENCHMARK_LENGTH = 1024L * 1024 * 1024;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("sink", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    private interface BlockWriter extends Closeable {
+        void write(byte[] buffer, long position) throws IOException;
+    }
+
+    private interface WriterFactory {
+        BlockWriter create() throws IOException;
+    }
+
+    /**
+     * Writes the file using {@code threadCount} threads, every thread takes the next free block
+     * and writes it in {@value #BUFFER_SIZE} bytes pieces, like the download threads.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    private static long run(final int threadCount, final long length,
+                            final WriterFactory factory) throws Exception {
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final int blocks = (int) (length / BLOCK_SIZE);
+        final Thread[] threads = new Thread[threadCount];
+        final Exception[] error = new Exception[1];
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                try (BlockWriter writer = factory.create()) {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int block;
+
+                    while ((block = nextBlock.getAndIncrement()) < blocks) {
+                        final long position = (long) block * BLOCK_SIZE;
+                        for (int j = 0; j < BLOCK_SIZE; j += BUFFER_SIZE) {
+                            fill(buffer, position + j);
+                            writer.write(buffer, position + j);
+                        }
+                    }
+                } catch (final Exception e) {
+                    error[0] = e;
+                }
+            });
+            threads[i].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static void fill(final byte[] buffer, final long position) {
+        // only the first bytes, the benchmark measures the writes
+        for (int i = 0; i < 8; i++) {
+            buffer[i] = (byte) (position >>> (i * 8));
+        }
+    }
+
+    private WriterFactory sinkWriter(final PositionalFileSink sink) {
+        return () -> {
+            assertTrue(sink.retain());
+            return new BlockWriter() {
+                @Override
+                public void write(final byte[] buffer, final long position) throws IOException {
+                    sink.write(buffer, 0, buffer.length, position);
+                }
+
+                @Override
+                public void close() {
+                    sink.release();
+                }
+            };
+        };
+    }
+
+    /**
+     * The previous approach, every thread opens the file, seeks and writes.
+     */
+    private WriterFactory streamWriter() {
+        return () -> {
+            final FileStream stream = new FileStream(file);
+            return new BlockWriter() {
+                @Override
+                public void write(final byte[] buffer, final long position) throws IOException {
+                    stream.seek(position);
+                    stream.write(buffer, 0, buffer.length);
+                }
+
+                @Override
+                public void close() {
+                    stream.close();
+                }
+            };
+        };
+    }
+
+    private void allocate(final long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(length);
+        }
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        final long length = 16L * BLOCK_SIZE;
+        allocate(length);
+
+        final PositionalFileSink sink = PositionalFileSink.open(new FileStream(file));
+        assertTrue(sink.isPositional());
+
+        run(4, length, sinkWriter(sink));
+        sink.release();
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final byte[] expected = new byte[8];
+        final byte[] actual = new byte[8];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertEquals(length, raf.length());
+            for (long position = 0; position < length; position += BUFFER_SIZE) {
+                fill(buffer, position);
+                System.arraycopy(buffer, 0, expected, 0, 8);
+
+                raf.seek(position);
+                raf.readFully(actual);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void lastReleaseClosesTheFile() throws IOException {
+        final FileStream stream = new FileStream(file);
+        final PositionalFileSink sink = PositionalFileSink.open(stream);
+
+        assertTrue(sink.retain());
+        sink.release();
+        assertFalse(stream.isClosed());
+
+        sink.release();
+        assertTrue(stream.isClosed());
+        assertFalse(sink.retain());
+    }
+
+    @Test
+    public void writeBenchmark() throws Exception {
+        Assume.assumeTrue("benchmark, run with -Dnewpipe.benchmark=true",
+                Boolean.getBoolean("newpipe.benchmark"));
+
+        final StringBuilder report = new StringBuilder("1 GiB file:");
+
+        for (final int threads : new int[]{1, 4, 16}) {
+            allocate(BENCHMARK_LENGTH);
+            final long streamTime = run(threads, BENCHMARK_LENGTH, streamWriter());
+
+            allocate(BENCHMARK_LENGTH);
+            final PositionalFileSink sink = PositionalFileSink.open(new FileStream(file));
+            final long sinkTime = run(threads, BENCHMARK_LENGTH, sinkWriter(sink));
+            sink.release();
+
+            report.append(String.format(Locale.ENGLISH,
+                    "\n  %2d threads: seek+write %.0f MiB/s, positional %.0f MiB/s", threads,
+                    speed(streamTime), speed(sinkTime)));
+        }
+
+        System.out.println(report);
+    }
+
+    private static double speed(final long nanos) {
+        return BENCHMARK_LENGTH / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,208 @@
+package us.shandian.giga.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import us.shandian.giga.get.FinishedMission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static us.shandian.giga.service.FinishedMissionList.PAGE_SIZE;
+
+public class FinishedMissionListTest {
+
+    /**
+     * In-memory version of {@code FinishedMissionStore}, the pages are kept by timestamp.
+     */
+    private static class FakeSource implements FinishedMissionList.Source {
+        final List<FinishedMission> missions = new ArrayList<>();
+        final Set<FinishedMission> removedFiles = new HashSet<>();
+        final List<FinishedMission> deleted = new ArrayList<>();
+        long position = Long.MAX_VALUE;
+        int reads = 0;
+
+        FakeSource(final int count) {
+            for (int i = count; i > 0; i--) {
+                missions.add(createMission(i));
+            }
+        }
+
+        void insert(final FinishedMission mission) {
+            int index = 0;
+            while (index < missions.size() && missions.get(index).timestamp > mission.timestamp) {
+                index++;
+            }
+            missions.add(index, mission);
+        }
+
+        @NonNull
+        @Override
+        public List<FinishedMission> next(final int limit) {
+            reads++;
+            final List<FinishedMission> page = new ArrayList<>();
+            for (final FinishedMission mission : missions) {
+                if (mission.timestamp < position && page.size() < limit) {
+                    page.add(mission);
+                }
+            }
+            if (!page.isEmpty()) {
+                position = page.get(page.size() - 1).timestamp;
+            }
+            return page;
+        }
+
+        @Override
+        public boolean exists(@NonNull final FinishedMission mission) {
+            return !removedFiles.contains(mission);
+        }
+
+        @Override
+        public void delete(@NonNull final FinishedMission mission) {
+            missions.remove(mission);
+            deleted.add(mission);
+        }
+
+        @Nullable
+        @Override
+        public FinishedMission find(@NonNull final StoredFileHelper storage) {
+            for (final FinishedMission mission : missions) {
+                if (mission.storage.equals(storage)) {
+                    return mission;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static FinishedMission createMission(final long timestamp) {
+        final FinishedMission mission = new FinishedMission();
+        mission.timestamp = timestamp;
+        mission.kind = 'v';
+        mission.storage = createStorage(timestamp);
+        return mission;
+    }
+
+    private static StoredFileHelper createStorage(final long timestamp) {
+        return new StoredFileHelper(null, "video" + timestamp + ".mp4", "video/mp4",
+                DownloadManager.TAG_VIDEO);
+    }
+
+    private static void loadAll(final FinishedMissionList list) {
+        while (list.hasMore()) {
+            list.publish(list.read());
+        }
+    }
+
+    @Test
+    public void pagesAreLoadedOnDemand() {
+        final FakeSource source = new FakeSource(2 * PAGE_SIZE + 20);
+        final FinishedMissionList list = new FinishedMissionList(source);
+
+        assertTrue(list.getLoaded().isEmpty());
+        assertEquals(0, source.reads);
+
+        assertTrue(list.publish(list.read()));
+        assertEquals(PAGE_SIZE, list.getLoaded().size());
+        assertTrue(list.hasMore());
+
+        assertTrue(list.publish(list.read()));
+        assertTrue(list.publish(list.read()));
+        assertEquals(2 * PAGE_SIZE + 20, list.getLoaded().size());
+        assertFalse(list.hasMore());
+        assertEquals(3, source.reads);
+
+        // newest first
+        for (int i = 1; i < list.getLoaded().size(); i++) {
+            assertTrue(list.getLoaded().get(i - 1).timestamp > list.getLoaded().get(i).timestamp);
+        }
+
+        // nothing else is read
+        assertFalse(list.publish(list.read()));
+        assertEquals(3, source.reads);
+    }
+
+    @Test
+    public void missingFilesAreForgotten() {
+        final FakeSource source = new FakeSource(10);
+        final FinishedMission removed = source.missions.get(3);
+        source.removedFiles.add(removed);
+
+        final FinishedMissionList list = new FinishedMissionList(source);
+        loadAll(list);
+
+        assertEquals(9, list.getLoaded().size());
+        assertFalse(list.getLoaded().contains(removed));
+        assertEquals(1, source.deleted.size());
+        assertSame(removed, source.deleted.get(0));
+    }
+
+    @Test
+    public void missionFinishedWhileLoadingIsNotDuplicated() {
+        final FakeSource source = new FakeSource(2 * PAGE_SIZE);
+        final FinishedMissionList list = new FinishedMissionList(source);
+        list.publish(list.read());
+
+        // an old download, its row goes to a page not loaded yet
+        final FinishedMission mission = createMission(10);
+        source.missions.remove(source.find(mission.storage));
+        source.insert(mission);
+        list.add(createMission(10));
+
+        assertEquals(10, list.getLoaded().get(0).timestamp);
+
+        loadAll(list);
+
+        assertEquals(2 * PAGE_SIZE, list.getLoaded().size());
+        int count = 0;
+        for (final FinishedMission item : list.getLoaded()) {
+            if (item.timestamp == 10) {
+                count++;
+            }
+        }
+        assertEquals(1, count);
+    }
+
+    @Test
+    public void clearDiscardsThePageBeingRead() {
+        final FakeSource source = new FakeSource(2 * PAGE_SIZE);
+        final FinishedMissionList list = new FinishedMissionList(source);
+        list.publish(list.read());
+
+        final FinishedMissionList.Page page = list.read();
+        list.clear();
+
+        assertFalse(list.publish(page));
+        assertTrue(list.getLoaded().isEmpty());
+        assertFalse(list.hasMore());
+    }
+
+    @Test
+    public void findLooksUpMissionsNotLoaded() {
+        final FakeSource source = new FakeSource(2 * PAGE_SIZE);
+        final FinishedMissionList list = new FinishedMissionList(source);
+        list.publish(list.read());
+
+        final FinishedMission loaded = list.find(createStorage(2 * PAGE_SIZE));
+        assertNotNull(loaded);
+        assertSame(list.getLoaded().get(0), loaded);
+
+        final FinishedMission notLoaded = list.find(createStorage(1));
+        assertNotNull(notLoaded);
+        assertEquals(1, notLoaded.timestamp);
+        assertFalse(list.getLoaded().contains(notLoaded));
+
+        assertNull(list.find(createStorage(1000)));
+    }
+}
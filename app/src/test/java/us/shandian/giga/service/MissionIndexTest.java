@@ -0,0 +1,145 @@
+package us.shandian.giga.service;
+
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import us.shandian.giga.get.FinishedMission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MissionIndexTest {
+    private static final int HISTORY_SIZE = 50000;
+
+    private static StoredFileHelper createStorage(final String name) {
+        return new StoredFileHelper(null, name, "video/mp4", DownloadManager.TAG_VIDEO);
+    }
+
+    private static FinishedMission createMission(final int id) {
+        final FinishedMission mission = new FinishedMission();
+        mission.timestamp = id;
+        mission.kind = 'v';
+        mission.source = "https://www.youtube.com/watch?v=" + (id / 2);// video and audio
+        mission.storage = createStorage("video" + id + ".mp4");
+        return mission;
+    }
+
+    private static List<FinishedMission> createHistory(final MissionIndex<FinishedMission> index) {
+        final List<FinishedMission> missions = new ArrayList<>(HISTORY_SIZE);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            final FinishedMission mission = createMission(i);
+            missions.add(mission);
+            index.add(mission);
+        }
+        return missions;
+    }
+
+    @Test
+    public void largeHistoryLookup() {
+        final MissionIndex<FinishedMission> index = new MissionIndex<>();
+        final List<FinishedMission> missions = createHistory(index);
+
+        assertEquals(HISTORY_SIZE, index.size());
+
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            // same matching rules as StoredFileHelper.equals()
+            assertSame(missions.get(i), index.get(createStorage("VIDEO" + i + ".MP4")));
+        }
+
+        assertNull(index.get(createStorage("video" + HISTORY_SIZE + ".mp4")));
+        assertNull(index.get(new StoredFileHelper(null, "video1.mp4", "audio/mp4", "")));
+        assertNull(index.get(null));
+    }
+
+    @Test
+    public void largeHistoryRemove() {
+        final MissionIndex<FinishedMission> index = new MissionIndex<>();
+        final List<FinishedMission> missions = createHistory(index);
+
+        for (int i = 0; i < HISTORY_SIZE; i += 2) {
+            index.remove(missions.get(i));
+        }
+
+        assertEquals(HISTORY_SIZE / 2, index.size());
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            final FinishedMission found = index.get(createStorage("video" + i + ".mp4"));
+            if (i % 2 == 0) {
+                assertNull(found);
+                assertFalse(index.contains(missions.get(i)));
+            } else {
+                assertSame(missions.get(i), found);
+            }
+        }
+
+        // removing twice is harmless
+        index.remove(missions.get(0));
+        assertEquals(HISTORY_SIZE / 2, index.size());
+    }
+
+    @Test
+    public void renamedMissionIsIndexedAgain() {
+        final MissionIndex<FinishedMission> index = new MissionIndex<>();
+        final List<FinishedMission> missions = createHistory(index);
+        final FinishedMission mission = missions.get(1234);
+
+        mission.storage = createStorage("renamed.mp4");
+
+        // not updated yet, the old keys are still used
+        assertNull(index.get(createStorage("renamed.mp4")));
+
+        index.update(mission);
+        assertSame(mission, index.get(createStorage("renamed.mp4")));
+        assertNull(index.get(createStorage("video1234.mp4")));
+        assertEquals(HISTORY_SIZE, index.size());
+
+        // forgotten missions have no file
+        mission.storage = null;
+        index.update(mission);
+        assertNull(index.get(createStorage("renamed.mp4")));
+        assertTrue(index.contains(mission));
+
+        index.remove(mission);
+        assertFalse(index.contains(mission));
+        assertEquals(HISTORY_SIZE - 1, index.size());
+    }
+
+    @Test
+    public void sameFileTwice() {
+        final MissionIndex<FinishedMission> index = new MissionIndex<>();
+        final FinishedMission first = createMission(1);
+        final FinishedMission second = createMission(1);
+
+        index.add(first);
+        index.add(second);
+        index.add(first);// already indexed
+        assertEquals(2, index.size());
+
+        assertSame(first, index.get(createStorage("video1.mp4")));
+        index.remove(first);
+        assertSame(second, index.get(createStorage("video1.mp4")));
+    }
+
+    @Test
+    public void lookupBySource() {
+        final MissionIndex<FinishedMission> index = new MissionIndex<>();
+        final List<FinishedMission> missions = createHistory(index);
+
+        final List<FinishedMission> found = index.getBySource("https://www.youtube.com/watch?v=500");
+        assertEquals(2, found.size());
+        assertSame(missions.get(1000), found.get(0));
+        assertSame(missions.get(1001), found.get(1));
+
+        index.remove(missions.get(1000));
+        assertEquals(1, index.getBySource("https://www.youtube.com/watch?v=500").size());
+
+        index.remove(missions.get(1001));
+        assertTrue(index.getBySource("https://www.youtube.com/watch?v=500").isEmpty());
+        assertTrue(index.getBySource(null).isEmpty());
+    }
+}
@@ -0,0 +1,198 @@
+package us.shandian.giga.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import us.shandian.giga.get.DownloadMission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_HIGH;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_LOW;
+import static us.shandian.giga.get.DownloadMission.PRIORITY_NORMAL;
+
+public class MissionQueueTest {
+    private static final long MIB = 1024 * 1024;
+
+    private static DownloadMission createMission(final char kind, final long length,
+                                                 final long position) {
+        final DownloadMission mission = new DownloadMission(new String[]{"http://localhost/"},
+                null, kind, null);
+        mission.nearLength = length;
+        mission.queuePosition = position;
+        mission.priority = MissionQueue.getDefaultPriority(mission);
+        return mission;
+    }
+
+    private static List<DownloadMission> sorted(final DownloadMission... missions) {
+        final List<DownloadMission> list = new ArrayList<>(Arrays.asList(missions));
+        Collections.sort(list, MissionQueue.ORDER);
+        return list;
+    }
+
+    /**
+     * Starts the missions like {@code DownloadManager.startWaitingMissions()}.
+     */
+    private static List<DownloadMission> startWaiting(final List<DownloadMission> missions,
+                                                      final int maxConcurrent) {
+        int free = MissionQueue.getFreeSlots(missions, maxConcurrent);
+        final List<DownloadMission> started = new ArrayList<>();
+
+        for (final DownloadMission mission : MissionQueue.getWaiting(missions)) {
+            if (free < 1) {
+                break;
+            }
+            mission.running = true;
+            started.add(mission);
+            free--;
+        }
+
+        return started;
+    }
+
+    @Test
+    public void smallFilesGoFirst() {
+        assertEquals(PRIORITY_HIGH, createMission('s', 0, 0).priority);
+        assertEquals(PRIORITY_HIGH, createMission('a', 5 * MIB, 0).priority);
+        assertEquals(PRIORITY_NORMAL, createMission('a', 200 * MIB, 0).priority);
+        assertEquals(PRIORITY_NORMAL, createMission('v', 2048 * MIB, 0).priority);
+
+        // unknown length
+        assertEquals(PRIORITY_NORMAL, createMission('v', 0, 0).priority);
+    }
+
+    @Test
+    public void concurrencyLimit() {
+        final DownloadMission video1 = createMission('v', 2048 * MIB, 1);
+        final DownloadMission video2 = createMission('v', 4096 * MIB, 2);
+        final DownloadMission video3 = createMission('v', 1024 * MIB, 3);
+        final List<DownloadMission> missions = sorted(video1, video2, video3);
+
+        assertEquals(Arrays.asList(video1, video2), startWaiting(missions, 2));
+        assertEquals(0, MissionQueue.getFreeSlots(missions, 2));
+        assertTrue(startWaiting(missions, 2).isEmpty());
+
+        // one finished, the next one takes the slot
+        video1.running = false;
+        video1.enqueued = false;
+        assertEquals(Collections.singletonList(video3), startWaiting(missions, 2));
+    }
+
+    @Test
+    public void unlimitedStartsAll() {
+        final List<DownloadMission> missions = sorted(
+                createMission('v', 2048 * MIB, 1),
+                createMission('v', 2048 * MIB, 2),
+                createMission('a', 100 * MIB, 3),
+                createMission('s', 1024, 4)
+        );
+
+        assertEquals(4, startWaiting(missions, MissionQueue.UNLIMITED).size());
+        assertEquals(Integer.MAX_VALUE,
+                MissionQueue.getFreeSlots(missions, MissionQueue.UNLIMITED));
+    }
+
+    @Test
+    public void smallFileJumpsAheadOfVideo() {
+        final DownloadMission video1 = createMission('v', 2048 * MIB, 1);
+        final DownloadMission video2 = createMission('v', 4096 * MIB, 2);
+        final List<DownloadMission> missions = sorted(video1, video2);
+        assertEquals(Collections.singletonList(video1), startWaiting(missions, 1));
+
+        // added later, while the first video is downloading
+        final DownloadMission subtitle = createMission('s', 40 * 1024, 3);
+        final DownloadMission audio = createMission('a', 4 * MIB, 4);
+        missions.add(subtitle);
+        missions.add(audio);
+        Collections.sort(missions, MissionQueue.ORDER);
+
+        assertEquals(Arrays.asList(subtitle, audio, video1, video2), missions);
+
+        video1.running = false;
+        video1.enqueued = false;
+        assertEquals(Arrays.asList(subtitle, audio), startWaiting(missions, 2));
+    }
+
+    @Test
+    public void pausedAndFailedMissionsAreSkipped() {
+        final DownloadMission paused = createMission('v', 2048 * MIB, 1);
+        paused.enqueued = false;
+        final DownloadMission failed = createMission('v', 2048 * MIB, 2);
+        failed.errCode = DownloadMission.ERROR_POSTPROCESSING_HOLD;
+        final DownloadMission waiting = createMission('v', 2048 * MIB, 3);
+
+        final List<DownloadMission> missions = sorted(paused, failed, waiting);
+        assertEquals(Collections.singletonList(waiting), startWaiting(missions, 3));
+    }
+
+    @Test
+    public void moveWithinPriority() {
+        final DownloadMission a = createMission('v', 2048 * MIB, 10);
+        final DownloadMission b = createMission('v', 2048 * MIB, 20);
+        final DownloadMission c = createMission('v', 2048 * MIB, 30);
+        final List<DownloadMission> missions = sorted(a, b, c);
+
+        assertEquals(Arrays.asList(c, b), MissionQueue.move(missions, c, -1));
+        assertEquals(Arrays.asList(a, c, b), missions);
+        assertEquals(20, c.queuePosition);
+        assertEquals(30, b.queuePosition);
+
+        // the head and the tail can not move further
+        assertTrue(MissionQueue.move(missions, a, -1).isEmpty());
+        assertTrue(MissionQueue.move(missions, b, 1).isEmpty());
+        assertEquals(Arrays.asList(a, c, b), missions);
+    }
+
+    @Test
+    public void moveAcrossPriorities() {
+        final DownloadMission high1 = createMission('s', 1024, 50);
+        final DownloadMission high2 = createMission('s', 1024, 90);
+        final DownloadMission normal = createMission('v', 2048 * MIB, 10);
+        final DownloadMission low = createMission('v', 2048 * MIB, 5);
+        low.priority = PRIORITY_LOW;
+
+        final List<DownloadMission> missions = sorted(high1, high2, normal, low);
+        assertEquals(Arrays.asList(high1, high2, normal, low), missions);
+
+        // the video moves one place only, ahead of the last subtitle
+        MissionQueue.move(missions, normal, -1);
+        assertEquals(Arrays.asList(high1, normal, high2, low), missions);
+        assertEquals(PRIORITY_HIGH, normal.priority);
+
+        MissionQueue.move(missions, low, -1);
+        assertEquals(Arrays.asList(high1, normal, low, high2), missions);
+
+        // the order is kept when sorted again, like after a restart
+        final List<DownloadMission> reloaded = sorted(high2, low, normal, high1);
+        assertEquals(missions, reloaded);
+    }
+
+    @Test
+    public void timeMetrics() throws InterruptedException {
+        final DownloadMission mission = createMission('v', 2048 * MIB, 1);
+        mission.trackTime();
+
+        Thread.sleep(50);
+        mission.running = true;
+        mission.trackTime();
+
+        Thread.sleep(50);
+        mission.running = false;
+        mission.enqueued = false;
+        mission.trackTime();
+
+        final long queued = mission.getQueueWaitTime();
+        final long running = mission.getRunTime();
+        assertTrue("queued " + queued, queued >= 50);
+        assertTrue("running " + running, running >= 50);
+
+        // idle missions do not count
+        Thread.sleep(50);
+        assertEquals(queued, mission.getQueueWaitTime());
+        assertEquals(running, mission.getRunTime());
+    }
+}
@@ -0,0 +1,65 @@
+package us.shandian.giga.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 100_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    public void sumOfConcurrentAdditions() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(THREADS);
+        counter.reset(1000);
+
+        run(THREADS, () -> counter.add(BUFFER_SIZE));
+        run(THREADS, () -> counter.add(-1));
+
+        assertEquals(1000 + (long) THREADS * ITERATIONS * (BUFFER_SIZE - 1), counter.sum());
+    }
+
+    @Test
+    public void resetDiscardsAllCells() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(4);
+        run(4, () -> counter.add(3));
+
+        counter.reset(7);
+        assertEquals(7, counter.sum());
+    }
+
+    /**
+     * Runs {@code action} {@value #ITERATIONS} times on every thread.
+     */
+    private static void run(final int threadCount, final Runnable action)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < ITERATIONS; j++) {
+                    action.run();
+                }
+            });
+            threads[i].start();
+        }
+
+        ready.await();
+        go.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+}